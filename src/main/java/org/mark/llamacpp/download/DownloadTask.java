@@ -6,6 +6,7 @@ import java.util.Objects;
 import java.util.UUID;
 
 import org.mark.llamacpp.download.struct.DownloadState;
+import org.mark.llamacpp.server.cache.ApiSnapshots;
 
 /**
  * 下载任务数据结构
@@ -67,7 +68,7 @@ public class DownloadTask {
     
     public void setType(DownloadTaskType type) {
     	this.type = type == null ? DownloadTaskType.GENERAL_FILE : type;
-        this.updatedAt = LocalDateTime.now();
+        this.touch();
     }
     
     public String getUrl() {
@@ -96,7 +97,7 @@ public class DownloadTask {
     
     public void setState(DownloadState state) {
         this.state = state;
-        this.updatedAt = LocalDateTime.now();
+        this.touch();
     }
     
     public long getTotalBytes() {
@@ -105,7 +106,7 @@ public class DownloadTask {
     
     public void setTotalBytes(long totalBytes) {
         this.totalBytes = totalBytes;
-        this.updatedAt = LocalDateTime.now();
+        this.touch();
     }
     
     public long getDownloadedBytes() {
@@ -114,7 +115,7 @@ public class DownloadTask {
     
     public void setDownloadedBytes(long downloadedBytes) {
         this.downloadedBytes = downloadedBytes;
-        this.updatedAt = LocalDateTime.now();
+        this.touch();
     }
     
     public int getPartsTotal() {
@@ -123,7 +124,7 @@ public class DownloadTask {
     
     public void setPartsTotal(int partsTotal) {
         this.partsTotal = partsTotal;
-        this.updatedAt = LocalDateTime.now();
+        this.touch();
     }
     
     public int getPartsCompleted() {
@@ -132,7 +133,7 @@ public class DownloadTask {
     
     public void setPartsCompleted(int partsCompleted) {
         this.partsCompleted = partsCompleted;
-        this.updatedAt = LocalDateTime.now();
+        this.touch();
     }
     
     public String getErrorMessage() {
@@ -141,7 +142,7 @@ public class DownloadTask {
     
     public void setErrorMessage(String errorMessage) {
         this.errorMessage = errorMessage;
-        this.updatedAt = LocalDateTime.now();
+        this.touch();
     }
     
     public String getFinalUri() {
@@ -150,7 +151,7 @@ public class DownloadTask {
     
     public void setFinalUri(String finalUri) {
         this.finalUri = finalUri;
-        this.updatedAt = LocalDateTime.now();
+        this.touch();
     }
     
     public String getEtag() {
@@ -159,7 +160,7 @@ public class DownloadTask {
     
     public void setEtag(String etag) {
         this.etag = etag;
-        this.updatedAt = LocalDateTime.now();
+        this.touch();
     }
     
     public boolean isRangeSupported() {
@@ -168,7 +169,7 @@ public class DownloadTask {
     
     public void setRangeSupported(boolean rangeSupported) {
         this.rangeSupported = rangeSupported;
-        this.updatedAt = LocalDateTime.now();
+        this.touch();
     }
     
     public BasicDownloader getDownloader() {
@@ -193,7 +194,7 @@ public class DownloadTask {
     
     public void setPaused(boolean paused) {
         this.paused = paused;
-        this.updatedAt = LocalDateTime.now();
+        this.touch();
     }
     
     public double getProgressRatio() {
@@ -223,6 +224,14 @@ public class DownloadTask {
         }
     }
     
+    /**
+     * 更新修改时间，并让下载列表的快照失效
+     */
+    private void touch() {
+        this.updatedAt = LocalDateTime.now();
+        ApiSnapshots.getInstance().bump(ApiSnapshots.DOWNLOADS);
+    }
+    
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -26,6 +26,7 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.mark.llamacpp.download.struct.DownloadState;
+import org.mark.llamacpp.server.cache.ApiSnapshots;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -70,6 +71,7 @@ public class TaskRepository {
      */
     public void saveTask(DownloadTask task) {
         tasks.put(task.getTaskId(), task);
+        ApiSnapshots.getInstance().bump(ApiSnapshots.DOWNLOADS);
         persistTasks();
     }
     
@@ -92,6 +94,7 @@ public class TaskRepository {
      */
     public void deleteTask(String taskId) {
         tasks.remove(taskId);
+        ApiSnapshots.getInstance().bump(ApiSnapshots.DOWNLOADS);
         persistTasks();
     }
     
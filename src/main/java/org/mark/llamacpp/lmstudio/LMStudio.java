@@ -2,6 +2,9 @@ package org.mark.llamacpp.lmstudio;
 
 import org.mark.llamacpp.lmstudio.channel.LMStudioRouterHandler;
 import org.mark.llamacpp.lmstudio.websocket.LMStudioWsPathSelectHandler;
+import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.channel.HttpPipeline;
+import org.mark.llamacpp.server.channel.NettyTransport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -11,12 +14,8 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
-import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.stream.ChunkedWriteHandler;
 
 import java.util.concurrent.atomic.AtomicLong;
@@ -55,8 +54,6 @@ public class LMStudio {
 	private final AtomicLong generation = new AtomicLong(0L);
 	private volatile long activeGeneration = 0L;
 	
-	private volatile EventLoopGroup bossGroup;
-	private volatile EventLoopGroup workerGroup;
 	private volatile Channel serverChannel;
 	
 	
@@ -102,31 +99,20 @@ public class LMStudio {
 	}
 	
 	private void runServer(long gen) {
-		EventLoopGroup localBossGroup = new NioEventLoopGroup();
-		EventLoopGroup localWorkerGroup = new NioEventLoopGroup();
-		
-		synchronized (lifecycleLock) {
-			if (this.activeGeneration == gen) {
-				this.bossGroup = localBossGroup;
-				this.workerGroup = localWorkerGroup;
-			}
-		}
-		
 		try {
-			ServerBootstrap bootstrap = new ServerBootstrap();
-			bootstrap.group(localBossGroup, localWorkerGroup)
-					.channel(NioServerSocketChannel.class)
-					.option(ChannelOption.SO_BACKLOG, 1024)
+			// 线程组由所有服务共用，停止服务时只关闭监听端口
+			ServerBootstrap bootstrap = NettyTransport.getInstance().serverBootstrap();
+			bootstrap.option(ChannelOption.SO_BACKLOG, 1024)
 					.childOption(ChannelOption.SO_KEEPALIVE, true)
+					.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, LlamaServer.getStreamWriteBufferWaterMark())
 					.childHandler(new ChannelInitializer<SocketChannel>() {
 						@Override
 						protected void initChannel(SocketChannel ch) throws Exception {
-							ch.pipeline()
-									.addLast(new HttpServerCodec())
+							HttpPipeline.init(ch, MAX_HTTP_CONTENT_LENGTH, p -> p
 									.addLast(new HttpObjectAggregator(MAX_HTTP_CONTENT_LENGTH))
 									.addLast(new ChunkedWriteHandler())
 									.addLast(new LMStudioWsPathSelectHandler())
-									.addLast(new LMStudioRouterHandler());
+									.addLast(new LMStudioRouterHandler()));
 						}
 						@Override
 						public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
@@ -136,7 +122,7 @@ public class LMStudio {
 					});
 			
 			int bindPort = this.port;
-			ChannelFuture future = bootstrap.bind(bindPort).sync();
+			ChannelFuture future = NettyTransport.getInstance().bind(bootstrap, bindPort).sync();
 			synchronized (lifecycleLock) {
 				if (this.activeGeneration == gen) {
 					this.serverChannel = future.channel();
@@ -155,20 +141,9 @@ public class LMStudio {
 		} catch (Exception e) {
 			logger.info("服务器启动失败", e);
 		} finally {
-			try {
-				localBossGroup.shutdownGracefully();
-			} catch (Exception ignore) {
-			}
-			try {
-				localWorkerGroup.shutdownGracefully();
-			} catch (Exception ignore) {
-			}
-			
 			synchronized (lifecycleLock) {
 				if (this.activeGeneration == gen) {
 					this.serverChannel = null;
-					this.bossGroup = null;
-					this.workerGroup = null;
 					this.worker = null;
 				}
 			}
@@ -181,29 +156,16 @@ public class LMStudio {
 	 */
 	public void stop() {
 		synchronized (lifecycleLock) {
+			// 还在绑定端口的服务线程看到代数变化后会自己关闭
+			this.activeGeneration = generation.incrementAndGet();
 			Channel ch = this.serverChannel;
+			this.serverChannel = null;
 			if (ch != null) {
 				try {
 					ch.close();
 				} catch (Exception ignore) {
 				}
 			}
-			
-			EventLoopGroup bg = this.bossGroup;
-			if (bg != null) {
-				try {
-					bg.shutdownGracefully();
-				} catch (Exception ignore) {
-				}
-			}
-			
-			EventLoopGroup wg = this.workerGroup;
-			if (wg != null) {
-				try {
-					wg.shutdownGracefully();
-				} catch (Exception ignore) {
-				}
-			}
 		}
 	}
 }
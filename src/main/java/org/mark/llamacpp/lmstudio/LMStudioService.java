@@ -1,12 +1,5 @@
 package org.mark.llamacpp.lmstudio;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URI;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -14,8 +7,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
 
 import org.mark.llamacpp.gguf.GGUFMetaData;
 import org.mark.llamacpp.gguf.GGUFModel;
@@ -26,6 +18,27 @@ import org.mark.llamacpp.server.exception.RequestMethodException;
 import org.mark.llamacpp.server.service.OpenAIService;
 import org.mark.llamacpp.server.tools.JsonUtil;
 import org.mark.llamacpp.server.tools.ParamTool;
+import org.mark.llamacpp.server.cache.ResponseCache;
+import org.mark.llamacpp.server.embedding.EmbeddingDispatcher;
+import org.mark.llamacpp.server.replica.PrefixAffinity;
+import org.mark.llamacpp.server.replica.PrefixAffinity.Route;
+import org.mark.llamacpp.server.scheduler.AdmissionException;
+import org.mark.llamacpp.server.scheduler.AdmissionListener;
+import org.mark.llamacpp.server.scheduler.ModelScheduler;
+import org.mark.llamacpp.server.scheduler.Permit;
+import org.mark.llamacpp.server.stream.ChunkReader;
+import org.mark.llamacpp.server.stream.StopStringStage;
+import org.mark.llamacpp.server.stream.TokenStream;
+import org.mark.llamacpp.server.stream.ToolCallIdStage;
+import org.mark.llamacpp.server.stream.UsageStage;
+import org.mark.llamacpp.server.stream.WallTimeStage;
+import org.mark.llamacpp.server.upstream.Backpressure;
+import org.mark.llamacpp.server.upstream.CancelRegistry;
+import org.mark.llamacpp.server.upstream.SingleFlight;
+import org.mark.llamacpp.server.upstream.StreamFlusher;
+import org.mark.llamacpp.server.upstream.UpstreamClient;
+import org.mark.llamacpp.server.upstream.UpstreamExchange;
+import org.mark.llamacpp.server.upstream.UpstreamListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,15 +48,15 @@ import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.http.DefaultHttpContent;
 import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
-import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
@@ -64,17 +77,9 @@ public class LMStudioService {
 	private static final Logger logger = LoggerFactory.getLogger(OpenAIService.class);
 	
 	/**
-	 * 	线程池。
+	 * 	转发到llama.cpp的超时时间，与llama-server的--timeout保持一致。
 	 */
-	private static final ExecutorService worker = Executors.newVirtualThreadPerTaskExecutor();
-	
-	/**
-	 * 	
-	 */
-	private final Map<ChannelHandlerContext, HttpURLConnection> channelConnectionMap = new HashMap<>();
-
-	private static final int LLAMA_CONNECT_TIMEOUT_MS = 36000 * 1000;
-	private static final int LLAMA_READ_TIMEOUT_MS = 36000 * 1000;
+	private static final long LLAMA_TIMEOUT_MS = 36000L * 1000;
 	
 	/**
 	 * 	响应：/api/v0/models
@@ -229,7 +234,7 @@ public class LMStudioService {
 				return;
 			}
 			// 转发请求到对应的llama.cpp进程
-			this.forwardRequestChatCompletionToLlamaCpp(ctx, request, modelName, modelPort, isStream, body);
+			this.forwardRequestChatCompletionToLlamaCpp(ctx, request, modelName, modelPort, isStream, body, requestJson);
 		} catch (Exception e) {
 			logger.info("处理OpenAI聊天补全请求时发生错误", e);
 			this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
@@ -276,7 +281,7 @@ public class LMStudioService {
 				return;
 			}
 			
-			this.forwardRequestTextCompletionToLlamaCpp(ctx, request, modelName, modelPort.intValue(), isStream, content);
+			this.forwardRequestTextCompletionToLlamaCpp(ctx, request, modelName, modelPort.intValue(), isStream, content, requestJson);
 		} catch (Exception e) {
 			logger.info("处理OpenAI文本补全请求时发生错误", e);
 			this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
@@ -351,47 +356,166 @@ public class LMStudioService {
 		return null;
 	}
 
-	private static Map<String, String> copyHeaders(FullHttpRequest request) {
-		Map<String, String> headers = new HashMap<>();
-		if (request == null) {
-			return headers;
+	/**
+	 * 	按模型排队，拿到许可后发送请求到llama.cpp进程，并记录到{@link CancelRegistry}。
+	 * @param ctx
+	 * @param request
+	 * @param modelName
+	 * @param port
+	 * @param endpoint
+	 * @param requestBody
+	 * @param requestJson 不为null时按提示词前缀选择副本和slot，结果确定时还会合并相同的请求
+	 * @param listener
+	 */
+	private void sendAndTrack(ChannelHandlerContext ctx, FullHttpRequest request, String modelName, int port, String endpoint, String requestBody, JsonObject requestJson, UpstreamListener listener) {
+		HttpMethod method = request.method();
+		HttpHeaders headers = UpstreamClient.copyHeaders(request.headers());
+		// 完全相同的请求正在执行时直接挂上去，不占用slot
+		String flightKey = null;
+		if (requestJson != null) {
+			boolean stream = requestJson.has("stream") && requestJson.get("stream").getAsBoolean();
+			flightKey = SingleFlight.keyOf(ResponseCache.getInstance().requestKey(modelName, endpoint, requestJson, null), stream);
 		}
-		for (Map.Entry<String, String> entry : request.headers()) {
-			headers.put(entry.getKey(), entry.getValue());
+		CancelRegistry.getInstance().begin(ctx, endpoint, headers, requestJson == null ? null : requestJson.get("timeout"), LMStudioService::rejectionBody);
+		UpstreamExchange joined = SingleFlight.getInstance().join(flightKey, listener);
+		if (joined != null) {
+			CancelRegistry.getInstance().track(ctx, joined);
+			return;
 		}
-		return headers;
-	}
+		String key = flightKey;
+		ModelScheduler.getInstance().submit(modelName, ModelScheduler.resolvePriority(request), ctx.channel(), new AdmissionListener() {
+			@Override
+			public void onGranted(Permit permit) {
+				Route route = PrefixAffinity.getInstance().route(modelName, port, requestJson);
+				// 固定到slot时请求体里加了id_slot，需要重新序列化
+				String payload = route.isPinned() ? JsonUtil.toJson(requestJson) : requestBody;
+				ByteBuf body = null;
+				if (method == HttpMethod.POST && payload != null && !payload.isEmpty()) {
+					body = Unpooled.wrappedBuffer(payload.getBytes(StandardCharsets.UTF_8));
+				}
+				UpstreamExchange exchange = SingleFlight.getInstance().send(key, route.getPort(), method, endpoint, headers, body, LLAMA_TIMEOUT_MS, listener);
+				// 合并到已有的相同请求时不占用slot，许可立即归还
+				exchange.whenUpstreamDone(permit::release);
+				exchange.whenUpstreamDone(route::release);
+				CancelRegistry.getInstance().track(ctx, exchange);
+			}
 
-	private HttpURLConnection openAndTrack(ChannelHandlerContext ctx, String targetUrl) throws IOException {
-		URL url = URI.create(targetUrl).toURL();
-		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-		synchronized (this.channelConnectionMap) {
-			this.channelConnectionMap.put(ctx, connection);
+			@Override
+			public void onRejected(AdmissionException e) {
+				logger.info("请求被拒绝，模型: {}，原因: {}", modelName, e.getMessage());
+				untrack(ctx);
+				ModelScheduler.sendRejection(ctx, e, rejectionBody(e));
+			}
+		});
+	}
+	
+	/**
+	 * 	没有拿到执行许可时回复的错误内容，OpenAI格式。
+	 */
+	private static Map<String, Object> rejectionBody(AdmissionException e) {
+		return rejectionBody(e.getStatus().code(), e.getMessage());
+	}
+	
+	/**
+	 * 	排队被拒绝或者超过截止时间（504）时回复的错误内容，OpenAI格式。
+	 */
+	private static Map<String, Object> rejectionBody(int code, String message) {
+		Map<String, Object> error = new HashMap<>();
+		error.put("message", message);
+		error.put("type", code == 429 ? "rate_limit_error" : "server_error");
+		error.put("code", code == 429 ? "queue_full" : code == 504 ? "deadline_exceeded" : "server_busy");
+		error.put("param", null);
+		Map<String, Object> response = new HashMap<>();
+		response.put("error", error);
+		return response;
+	}
+	
+	/**
+	 * 	上游请求失败时回复错误：超过截止时间或者上游响应超时返回504，和排队期间到期的格式一样。
+	 */
+	private void sendUpstreamError(ChannelHandlerContext ctx, Throwable cause) {
+		if (cause instanceof TimeoutException) {
+			this.sendOpenAIJsonResponseWithCleanup(ctx, rejectionBody(504, cause.getMessage()), HttpResponseStatus.GATEWAY_TIMEOUT);
+		} else {
+			this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, cause.getMessage(), null);
 		}
-		return connection;
 	}
+	
+	private void untrack(ChannelHandlerContext ctx) {
+		CancelRegistry.getInstance().untrack(ctx);
+	}
+	
+	private UpstreamExchange tracked(ChannelHandlerContext ctx) {
+		return CancelRegistry.getInstance().tracked(ctx);
+	}
+	
+	/**
+	 * 	非流式响应的处理方法。
+	 */
+	private interface ResponseHandler {
+		public void handle(int responseCode, String responseBody);
+	}
+	
+	/**
+	 * 	聚合完整响应体后交给{@link ResponseHandler}。
+	 */
+	private class AggregateListener implements UpstreamListener {
+		
+		private final ChannelHandlerContext ctx;
+		
+		private final String errorMessage;
+		
+		private final ResponseHandler handler;
+		
+		private int responseCode;
+		
+		private ByteBuf body;
+		
+		private AggregateListener(ChannelHandlerContext ctx, String errorMessage, ResponseHandler handler) {
+			this.ctx = ctx;
+			this.errorMessage = errorMessage;
+			this.handler = handler;
+		}
+
+		@Override
+		public void onResponse(HttpResponse response) {
+			this.responseCode = response.status().code();
+		}
 
-	private void configureAndSend(HttpURLConnection connection, HttpMethod method, Map<String, String> headers, String requestBody) throws IOException {
-		connection.setRequestMethod(method.name());
-		for (Map.Entry<String, String> entry : headers.entrySet()) {
-			String key = entry.getKey();
-			if (!key.equalsIgnoreCase("Connection") &&
-				!key.equalsIgnoreCase("Content-Length") &&
-				!key.equalsIgnoreCase("Transfer-Encoding")) {
-				connection.setRequestProperty(key, entry.getValue());
+		@Override
+		public void onContent(ByteBuf content) {
+			if (this.body == null) {
+				this.body = this.ctx.alloc().buffer(content.readableBytes());
 			}
+			this.body.writeBytes(content);
 		}
 
-		connection.setConnectTimeout(LLAMA_CONNECT_TIMEOUT_MS);
-		connection.setReadTimeout(LLAMA_READ_TIMEOUT_MS);
+		@Override
+		public void onComplete() {
+			untrack(this.ctx);
+			String responseBody = "";
+			if (this.body != null) {
+				responseBody = this.body.toString(StandardCharsets.UTF_8);
+				this.body.release();
+				this.body = null;
+			}
+			try {
+				this.handler.handle(this.responseCode, responseBody);
+			} catch (Exception e) {
+				logger.info(this.errorMessage, e);
+				sendOpenAIErrorResponseWithCleanup(this.ctx, 500, null, e.getMessage(), null);
+			}
+		}
 
-		if (method == HttpMethod.POST && requestBody != null && !requestBody.isEmpty()) {
-			connection.setDoOutput(true);
-			try (OutputStream os = connection.getOutputStream()) {
-				byte[] input = requestBody.getBytes(StandardCharsets.UTF_8);
-				os.write(input, 0, input.length);
-				logger.info("已发送请求体到llama.cpp进程，大小: {} 字节", input.length);
+		@Override
+		public void onError(Throwable cause) {
+			untrack(this.ctx);
+			if (this.body != null) {
+				this.body.release();
+				this.body = null;
 			}
+			logger.info(this.errorMessage, cause);
+			sendUpstreamError(this.ctx, cause);
 		}
 	}
 	
@@ -403,51 +527,35 @@ public class LMStudioService {
 			int port,
 			String requestBody) {
 		HttpMethod method = request.method();
-		Map<String, String> headers = copyHeaders(request);
-
-		int requestBodyLength = requestBody == null ? 0 : requestBody.length();
-		logger.info("转发请求到llama.cpp进程: {} 端口: {} 请求体长度: {}", method.name(), port, requestBodyLength);
 
-		worker.execute(() -> {
-			HttpURLConnection connection = null;
+		JsonObject requestJson = JsonUtil.tryParseObject(requestBody);
+		if (requestJson == null) {
+			this.sendOpenAIErrorResponseWithCleanup(ctx, 400, null, "Invalid JSON body", null);
+			return;
+		}
+		// 小请求合并、大请求拆分后再发往llama.cpp
+		EmbeddingDispatcher.getInstance().submit(loadedModelName, port, ModelScheduler.resolvePriority(request), ctx.channel(), requestJson, (result, error) -> {
+			if (error instanceof AdmissionException) {
+				AdmissionException e = (AdmissionException) error;
+				logger.info("请求被拒绝，模型: {}，原因: {}", loadedModelName, e.getMessage());
+				ModelScheduler.sendRejection(ctx, e, rejectionBody(e));
+				return;
+			}
+			if (error != null) {
+				logger.info("转发嵌入请求到llama.cpp进程时发生错误", error);
+				this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, error.getMessage(), null);
+				return;
+			}
 			try {
-				String targetUrl = String.format("http://localhost:%d/v1/embeddings", port);
-				logger.info("连接到llama.cpp进程: {}", targetUrl);
-
-				connection = openAndTrack(ctx, targetUrl);
-				configureAndSend(connection, method, headers, requestBody);
-				long t = System.currentTimeMillis();
-				int responseCode = connection.getResponseCode();
-				logger.info("llama.cpp进程响应码: {}，等待时间：{}", responseCode, System.currentTimeMillis() - t);
-				this.handleEmbeddingsNonStreamResponse(ctx, connection, responseCode, requestedModelName, loadedModelName);
+				this.handleEmbeddingsNonStreamResponse(ctx, result.getStatusCode(), result.getBodyAsString(), requestedModelName, loadedModelName);
 			} catch (Exception e) {
 				logger.info("转发嵌入请求到llama.cpp进程时发生错误", e);
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
-			} finally {
-				if (connection != null) {
-					connection.disconnect();
-				}
-				synchronized (this.channelConnectionMap) {
-					this.channelConnectionMap.remove(ctx);
-				}
 			}
 		});
 	}
 	
-	private void handleEmbeddingsNonStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String requestedModelName, String loadedModelName) throws IOException {
-		String responseBody = "";
-		try (BufferedReader br = new BufferedReader(new InputStreamReader(
-			responseCode >= 200 && responseCode < 300 ? connection.getInputStream() : connection.getErrorStream(),
-			StandardCharsets.UTF_8
-		))) {
-			StringBuilder sb = new StringBuilder();
-			String line;
-			while ((line = br.readLine()) != null) {
-				sb.append(line);
-			}
-			responseBody = sb.toString();
-		}
-
+	private void handleEmbeddingsNonStreamResponse(ChannelHandlerContext ctx, int responseCode, String responseBody, String requestedModelName, String loadedModelName) {
 		if (!(responseCode >= 200 && responseCode < 300)) {
 			LlamaServer.sendExpressRawJsonResponse(ctx, HttpResponseStatus.valueOf(responseCode), responseBody.getBytes(StandardCharsets.UTF_8), false);
 			return;
@@ -509,123 +617,46 @@ public class LMStudioService {
 			FullHttpRequest request, 
 			String modelName, int port, 
 			boolean isStream, String 
-			requestBody) {
-		// 在异步执行前先读取请求体，避免ByteBuf引用计数问题
+			requestBody, JsonObject requestJson) {
 		HttpMethod method = request.method();
-		// 复制请求头，避免在异步任务中访问已释放的请求对象
-		Map<String, String> headers = copyHeaders(request);
-
-		int requestBodyLength = requestBody == null ? 0 : requestBody.length();
-		logger.info("转发请求到llama.cpp进程: {} 端口: {} 请求体长度: {}", method.name(), port, requestBodyLength);
 		
-		worker.execute(() -> {
-			// 添加断开连接的事件监听
-			HttpURLConnection connection = null;
-			try {
-				// 构建目标URL
-				String targetUrl = String.format("http://localhost:%d/v1/chat/completions", port);
-				logger.info("连接到llama.cpp进程: {}", targetUrl);
-				connection = openAndTrack(ctx, targetUrl);
-				configureAndSend(connection, method, headers, requestBody);
-				
-				// 获取响应码
-				long t = System.currentTimeMillis();
-				int responseCode = connection.getResponseCode();
-				logger.info("llama.cpp进程响应码: {}，等待时间：{}", responseCode, System.currentTimeMillis() - t);
-				
-				if (isStream) {
-					// 处理流式响应
-					this.handleStreamResponse(ctx, connection, responseCode, modelName);
-				} else {
-					// 处理非流式响应
-					this.handleNonStreamResponse(ctx, connection, responseCode, modelName);
-				}
-			} catch (Exception e) {
-				logger.info("转发请求到llama.cpp进程时发生错误", e);
-				// 检查是否是客户端断开连接导致的异常
-				if (e.getMessage() != null && e.getMessage().contains("Connection reset by peer")) {
-					
-				}
-				this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
-			} finally {
-				// 关闭连接
-				if (connection != null) {
-					connection.disconnect();
-				}
-				// 清理 
-				synchronized (this.channelConnectionMap) {
-					this.channelConnectionMap.remove(ctx);
-				}
-			}
-		});
+		UpstreamListener listener;
+		if (isStream) {
+			// 处理流式响应
+			listener = new ChatStreamListener(ctx, modelName, request.headers(), requestJson);
+		} else {
+			// 处理非流式响应
+			listener = new AggregateListener(ctx, "转发请求到llama.cpp进程时发生错误",
+					(responseCode, responseBody) -> this.handleNonStreamResponse(ctx, responseCode, responseBody, modelName));
+		}
+		this.sendAndTrack(ctx, request, modelName, port, "/v1/chat/completions", requestBody, requestJson, listener);
 	}
 	
 	private void forwardRequestTextCompletionToLlamaCpp(
 			ChannelHandlerContext ctx,
 			FullHttpRequest request,
 			String modelName, int port,
-			boolean isStream, String requestBody) {
+			boolean isStream, String requestBody, JsonObject requestJson) {
 		HttpMethod method = request.method();
-		Map<String, String> headers = copyHeaders(request);
-		
-		int requestBodyLength = requestBody == null ? 0 : requestBody.length();
-		logger.info("转发请求到llama.cpp进程: {} 端口: {} 请求体长度: {}", method.name(), port, requestBodyLength);
 		
-		worker.execute(() -> {
-			HttpURLConnection connection = null;
-			try {
-				String targetUrl = String.format("http://localhost:%d/v1/completions", port);
-				logger.info("连接到llama.cpp进程: {}", targetUrl);
-				connection = openAndTrack(ctx, targetUrl);
-				configureAndSend(connection, method, headers, requestBody);
-				long t = System.currentTimeMillis();
-				int responseCode = connection.getResponseCode();
-				logger.info("llama.cpp进程响应码: {}，等待时间：{}", responseCode, System.currentTimeMillis() - t);
-				
-				if (isStream) {
-					this.handleTextCompletionStreamResponse(ctx, connection, responseCode, modelName);
-				} else {
-					this.handleTextCompletionNonStreamResponse(ctx, connection, responseCode, modelName);
-				}
-			} catch (Exception e) {
-				logger.info("转发文本补全请求到llama.cpp进程时发生错误", e);
-				this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
-			} finally {
-				if (connection != null) {
-					connection.disconnect();
-				}
-				synchronized (this.channelConnectionMap) {
-					this.channelConnectionMap.remove(ctx);
-				}
-			}
-		});
+		UpstreamListener listener;
+		if (isStream) {
+			listener = new TextCompletionStreamListener(ctx, modelName, request.headers(), requestJson);
+		} else {
+			listener = new AggregateListener(ctx, "转发文本补全请求到llama.cpp进程时发生错误",
+					(responseCode, responseBody) -> this.handleTextCompletionNonStreamResponse(ctx, responseCode, responseBody, modelName));
+		}
+		this.sendAndTrack(ctx, request, modelName, port, "/v1/completions", requestBody, requestJson, listener);
 	}
 	
 	/**
 	 * 	
 	 * @param ctx
-	 * @param connection
 	 * @param responseCode
+	 * @param responseBody
 	 * @param modelName
 	 */
-	private void handleNonStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String modelName) throws IOException {
-		String responseBody = "";
-		try (BufferedReader br = new BufferedReader(new InputStreamReader(
-			responseCode >= 200 && responseCode < 300 ? connection.getInputStream() : connection.getErrorStream(),
-			StandardCharsets.UTF_8
-		))) {
-			StringBuilder sb = new StringBuilder();
-			String line;
-			while ((line = br.readLine()) != null) {
-				sb.append(line);
-			}
-			responseBody = sb.toString();
-		} catch (IOException e) {
-			//logger.info("读取llama.cpp非流式响应失败", e);
-			//this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
-			throw e;
-		}
-
+	private void handleNonStreamResponse(ChannelHandlerContext ctx, int responseCode, String responseBody, String modelName) {
 		if (!(responseCode >= 200 && responseCode < 300)) {
 			LlamaServer.sendExpressRawJsonResponse(ctx, HttpResponseStatus.valueOf(responseCode), responseBody.getBytes(StandardCharsets.UTF_8), false);
 			return;
@@ -668,22 +699,7 @@ public class LMStudioService {
 		this.sendOpenAIJsonResponseWithCleanup(ctx, completion, HttpResponseStatus.OK);
 	}
 	
-	private void handleTextCompletionNonStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String modelName) throws IOException {
-		String responseBody = "";
-		try (BufferedReader br = new BufferedReader(new InputStreamReader(
-			responseCode >= 200 && responseCode < 300 ? connection.getInputStream() : connection.getErrorStream(),
-			StandardCharsets.UTF_8
-		))) {
-			StringBuilder sb = new StringBuilder();
-			String line;
-			while ((line = br.readLine()) != null) {
-				sb.append(line);
-			}
-			responseBody = sb.toString();
-		} catch (IOException e) {
-			throw e;
-		}
-		
+	private void handleTextCompletionNonStreamResponse(ChannelHandlerContext ctx, int responseCode, String responseBody, String modelName) {
 		if (!(responseCode >= 200 && responseCode < 300)) {
 			LlamaServer.sendExpressRawJsonResponse(ctx, HttpResponseStatus.valueOf(responseCode), responseBody.getBytes(StandardCharsets.UTF_8), false);
 			return;
@@ -723,338 +739,177 @@ public class LMStudioService {
 	}
 
 	/**
-	 * 	处理流式响应
-	 * @param ctx
-	 * @param connection
-	 * @param responseCode
-	 * @param modelName
-	 * @throws IOException
+	 * 	流式响应的公共部分：发送响应头、逐行解析、客户端断开时中断上游，结束时补发LM Studio的汇总数据。
 	 */
-	private void handleStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String modelName) throws IOException {
-		// 创建响应头
-		HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(responseCode));
-		response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/event-stream; charset=UTF-8");
-		response.headers().set(HttpHeaderNames.CACHE_CONTROL, "no-cache");
-		response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
-		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
-		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "*");
-		response.headers().set(HttpHeaderNames.ETAG, ParamTool.buildEtag((modelName + ":" + responseCode + ":" + System.nanoTime()).getBytes(StandardCharsets.UTF_8)));
+	private abstract class LmStudioStreamListener implements UpstreamListener {
 		
-		// 发送响应头
-		ctx.write(response);
-		ctx.flush();
+		protected final ChannelHandlerContext ctx;
 		
-		logger.info("开始处理流式响应，响应码: {}", responseCode);
+		protected final String modelName;
 		
-		// 读取流式响应
-		try (BufferedReader br = new BufferedReader(
-			new InputStreamReader(
-				responseCode >= 200 && responseCode < 300 ?
-					connection.getInputStream() : connection.getErrorStream(),
-				StandardCharsets.UTF_8
-			)
-		)) {
-			String line;
-			int chunkCount = 0;
-			Map<Integer, String> toolCallIds = new HashMap<>();
-			String completionId = null;
-			Long created = null;
-			StringBuilder fullContent = new StringBuilder();
-			JsonObject timings = null;
-			String finishReason = null;
-			while ((line = br.readLine()) != null) {
-				// 检查客户端连接是否仍然活跃
-				if (!ctx.channel().isActive()) {
-					logger.info("检测到客户端连接已断开，停止流式响应处理");
-					if (connection != null) {
-						connection.disconnect();
-					}
-					break;
-				}
-				
-				// 处理SSE格式的数据行
-				if (line.startsWith("data: ")) {
-					String data = line.substring(6); // 去掉 "data: " 前缀
-					
-					// 检查是否为结束标记
-					if (data.equals("[DONE]")) {
-						logger.info("收到流式响应结束标记");
-						break;
-					}
-					
-					String outLine = line;
-					JsonObject parsed = ParamTool.tryParseObject(data);
-					if (parsed != null) {
-						if (completionId == null) {
-							completionId = safeString(parsed, "id");
-						}
-						if (created == null) {
-							created = safeLong(parsed, "created");
-						}
-
-						JsonObject extractedTimings = parsed.has("timings") && parsed.get("timings").isJsonObject() ? parsed.getAsJsonObject("timings") : null;
-						if (extractedTimings != null) {
-							timings = extractedTimings;
-						}
+		private final StreamFlusher flusher;
+		
+		protected final LmStudioStreamTranscoder transcoder;
+		
+		private final TokenStream stream;
+		
+		protected int responseCode;
+		
+		protected int chunkCount = 0;
+		
+		private boolean headerSent = false;
+		
+		private volatile boolean finished = false;
+		
+		private LmStudioStreamListener(ChannelHandlerContext ctx, String modelName, HttpHeaders requestHeaders, JsonObject requestJson, boolean text) {
+			this.ctx = ctx;
+			this.modelName = modelName;
+			this.flusher = new StreamFlusher(ctx, requestHeaders, this::abort);
+			this.transcoder = new LmStudioStreamTranscoder(text);
+			this.stream = new TokenStream(text ? ChunkReader.openAIText() : ChunkReader.openAIChat(), this.transcoder, ctx.alloc(), this::write)
+					.add(WallTimeStage.fromConfig())
+					.add(requestJson == null ? null : StopStringStage.of(requestJson.get("stop")))
+					.add(text ? null : new ToolCallIdStage())
+					.add(new UsageStage());
+		}
 
-						JsonArray choices = parsed.has("choices") && parsed.get("choices").isJsonArray() ? parsed.getAsJsonArray("choices") : null;
-						if (choices != null && choices.size() > 0 && choices.get(0).isJsonObject()) {
-							JsonObject c0 = choices.get(0).getAsJsonObject();
-							String fr = safeString(c0, "finish_reason");
-							if (fr != null && !fr.isBlank()) {
-								finishReason = fr;
-							}
-							JsonObject delta = c0.has("delta") && c0.get("delta").isJsonObject() ? c0.getAsJsonObject("delta") : null;
-							if (delta != null) {
-								String piece = safeString(delta, "content");
-								if (piece != null) {
-									fullContent.append(piece);
-								}
-							} else {
-								JsonObject msg = c0.has("message") && c0.get("message").isJsonObject() ? c0.getAsJsonObject("message") : null;
-								if (msg != null) {
-									String piece = safeString(msg, "content");
-									if (piece != null) {
-										fullContent.append(piece);
-									}
-								}
-							}
-						}
+		@Override
+		public void onResponse(HttpResponse upstream) {
+			this.responseCode = upstream.status().code();
+			// 创建响应头
+			HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(this.responseCode));
+			response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/event-stream; charset=UTF-8");
+			response.headers().set(HttpHeaderNames.CACHE_CONTROL, "no-cache");
+			response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+			response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+			response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "*");
+			response.headers().set(HttpHeaderNames.ETAG, ParamTool.buildEtag((this.modelName + ":" + this.responseCode + ":" + System.nanoTime()).getBytes(StandardCharsets.UTF_8)));
+			// 发送响应头
+			this.ctx.writeAndFlush(response);
+			this.headerSent = true;
+		}
 
-						boolean changed = JsonUtil.ensureToolCallIds(parsed, toolCallIds);
-						if (changed) {
-							outLine = "data: " + JsonUtil.toJson(parsed);
-						}
-					}
-					
-					// 创建数据块
-					ByteBuf content = ctx.alloc().buffer();
-					content.writeBytes(outLine.getBytes(StandardCharsets.UTF_8));
-					content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-					
-					// 创建HTTP内容块
-					HttpContent httpContent = new DefaultHttpContent(content);
-					
-					// 发送数据块，并添加监听器检查写入是否成功
-					ChannelFuture future = ctx.writeAndFlush(httpContent);
-					
-					// 检查写入是否失败，如果失败可能是客户端断开连接
-					future.addListener((ChannelFutureListener) channelFuture -> {
-						if (!channelFuture.isSuccess()) {
-							logger.info("写入流式数据失败，可能是客户端断开连接: {}", channelFuture.cause().getMessage());
-							ctx.close();
-						}
-					});
-					
-					chunkCount++;
-					
-					// 每发送10个数据块记录一次日志
-					if (chunkCount % 10 == 0) {
-						//logger.info("已发送 {} 个流式数据块", chunkCount);
-					}
-				} else if (line.startsWith("event: ")) {
-					// 处理事件行
-					ByteBuf content = ctx.alloc().buffer();
-					content.writeBytes(line.getBytes(StandardCharsets.UTF_8));
-					content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-					
-					HttpContent httpContent = new DefaultHttpContent(content);
-					ctx.writeAndFlush(httpContent);
-				} else if (line.isEmpty()) {
-					// 发送空行作为分隔符
-					ByteBuf content = ctx.alloc().buffer();
-					content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-					
-					HttpContent httpContent = new DefaultHttpContent(content);
-					ctx.writeAndFlush(httpContent);
-				}
+		@Override
+		public void onContent(ByteBuf content) {
+			if (this.finished) {
+				return;
 			}
-			
+			// 检查客户端连接是否仍然活跃
+			if (!this.ctx.channel().isActive()) {
+				logger.info("检测到客户端连接已断开，停止流式响应处理");
+				this.abort();
+				return;
+			}
+			this.stream.feed(content);
+			if (this.stream.isStopped()) {
+				this.stopUpstream();
+				return;
+			}
+			// 客户端读得慢时暂停读取上游，而不是断开
+			if (!this.ctx.channel().isWritable() && !Backpressure.afterWrite(this.ctx.channel(), tracked(this.ctx))) {
+				logger.info("客户端读取过慢，积压数据超过上限，停止流式响应处理");
+				this.abort();
+			}
+		}
+
+		@Override
+		public void onComplete() {
+			untrack(this.ctx);
+			this.stream.finish();
 			// 构造响应！
-			if (responseCode >= 200 && responseCode < 300) {
+			if (this.responseCode >= 200 && this.responseCode < 300) {
 				// 这里生成最后的性能状态信息。
-				JsonObject completion = this.buildLmStudioCompletion(modelName, completionId, created, fullContent.toString(), timings, finishReason);
-				
-				//// 这里做一个调试日志
-				//logger.info("测试输出 - lmstudio响应结果：{}", completion);
-				String out = "data: " + JsonUtil.toJson(completion) + "\r\n\r\n";
-				ByteBuf buf = ctx.alloc().buffer();
-				buf.writeBytes(out.getBytes(StandardCharsets.UTF_8));
-				ctx.writeAndFlush(new DefaultHttpContent(buf));
-				chunkCount++;
-
-				String done = "data: [DONE]\r\n\r\n";
-				ByteBuf doneBuf = ctx.alloc().buffer();
-				doneBuf.writeBytes(done.getBytes(StandardCharsets.UTF_8));
-				ctx.writeAndFlush(new DefaultHttpContent(doneBuf));
-				chunkCount++;
+				JsonObject completion = this.buildCompletion();
+				this.writeText("data: " + JsonUtil.toJson(completion) + "\r\n\r\n");
+				this.writeText("data: [DONE]\r\n\r\n");
+				this.chunkCount += 2;
 			}
-			
-			logger.info("流式响应处理完成，共发送 {} 个数据块", chunkCount);
-		} catch (Exception e) {
-			logger.info("处理流式响应时发生错误", e);
-			// 检查是否是客户端断开连接导致的异常
-			if (e.getMessage() != null &&
-				(e.getMessage().contains("Connection reset by peer") ||
-				 e.getMessage().contains("Broken pipe") ||
-				 e.getMessage().contains("Connection closed"))) {
-				logger.info("检测到客户端断开连接，尝试断开与llama.cpp的连接");
-				if (connection != null) {
-					connection.disconnect();
+			this.flusher.flush();
+			// 发送结束标记
+			this.ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT).addListener(new ChannelFutureListener() {
+				@Override
+				public void operationComplete(ChannelFuture future) {
+					ctx.close();
 				}
+			});
+		}
+
+		@Override
+		public void onError(Throwable cause) {
+			untrack(this.ctx);
+			this.stream.release();
+			logger.info("处理流式响应时发生错误", cause);
+			if (this.headerSent) {
+				this.ctx.close();
+			} else {
+				sendUpstreamError(this.ctx, cause);
 			}
-			throw e;
 		}
 		
-		// 发送结束标记
-		LastHttpContent lastContent = LastHttpContent.EMPTY_LAST_CONTENT;
-		ctx.writeAndFlush(lastContent).addListener(new ChannelFutureListener() {
-			@Override
-			public void operationComplete(ChannelFuture future) {
-				ctx.close();
-			}
-		});
+		private void abort() {
+			this.finished = true;
+			CancelRegistry.getInstance().cancel(this.ctx);
+			this.ctx.close();
+		}
+		
+		/**
+		 * 	流水线提前结束了流：取消上游请求释放slot，再按正常结束写出汇总数据。
+		 */
+		private void stopUpstream() {
+			logger.info("流式响应提前结束，原因: {}", this.stream.getStopReason());
+			this.finished = true;
+			CancelRegistry.getInstance().cancel(this.ctx);
+			this.onComplete();
+		}
+		
+		private void write(ByteBuf buf) {
+			this.flusher.write(buf);
+			this.chunkCount++;
+		}
+		
+		protected void writeText(String text) {
+			ByteBuf content = this.ctx.alloc().buffer();
+			content.writeCharSequence(text, StandardCharsets.UTF_8);
+			this.flusher.write(content);
+		}
+		
+		/**
+		 * 	生成最后的汇总数据。
+		 * @return
+		 */
+		protected abstract JsonObject buildCompletion();
 	}
 	
-	private void handleTextCompletionStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String modelName) throws IOException {
-		HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(responseCode));
-		response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/event-stream; charset=UTF-8");
-		response.headers().set(HttpHeaderNames.CACHE_CONTROL, "no-cache");
-		response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
-		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
-		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "*");
-		response.headers().set(HttpHeaderNames.ETAG, ParamTool.buildEtag((modelName + ":" + responseCode + ":" + System.nanoTime()).getBytes(StandardCharsets.UTF_8)));
-		
-		ctx.write(response);
-		ctx.flush();
+	/**
+	 * 	处理聊天补全的流式响应
+	 */
+	private class ChatStreamListener extends LmStudioStreamListener {
 		
-		try (BufferedReader br = new BufferedReader(
-			new InputStreamReader(
-				responseCode >= 200 && responseCode < 300 ?
-					connection.getInputStream() : connection.getErrorStream(),
-				StandardCharsets.UTF_8
-			)
-		)) {
-			String line;
-			int chunkCount = 0;
-			String completionId = null;
-			Long created = null;
-			StringBuilder fullText = new StringBuilder();
-			JsonObject timings = null;
-			JsonObject usage = null;
-			String finishReason = null;
-			JsonArray lastChoices = null;
-			
-			while ((line = br.readLine()) != null) {
-				if (!ctx.channel().isActive()) {
-					if (connection != null) {
-						connection.disconnect();
-					}
-					break;
-				}
-				
-				if (line.startsWith("data: ")) {
-					String data = line.substring(6);
-					if (data.equals("[DONE]")) {
-						break;
-					}
-					
-					JsonObject parsed = ParamTool.tryParseObject(data);
-					if (parsed != null) {
-						if (completionId == null) {
-							completionId = safeString(parsed, "id");
-						}
-						if (created == null) {
-							created = safeLong(parsed, "created");
-						}
-						
-						JsonObject extractedTimings = parsed.has("timings") && parsed.get("timings").isJsonObject() ? parsed.getAsJsonObject("timings") : null;
-						if (extractedTimings != null) {
-							timings = extractedTimings;
-						}
-						JsonObject extractedUsage = parsed.has("usage") && parsed.get("usage").isJsonObject() ? parsed.getAsJsonObject("usage") : null;
-						if (extractedUsage != null) {
-							usage = extractedUsage;
-						}
-						
-						JsonArray choices = parsed.has("choices") && parsed.get("choices").isJsonArray() ? parsed.getAsJsonArray("choices") : null;
-						if (choices != null) {
-							lastChoices = choices;
-						}
-						if (choices != null && choices.size() > 0 && choices.get(0).isJsonObject()) {
-							JsonObject c0 = choices.get(0).getAsJsonObject();
-							String fr = safeString(c0, "finish_reason");
-							if (fr != null && !fr.isBlank()) {
-								finishReason = fr;
-							}
-							String piece = safeString(c0, "text");
-							if (piece != null) {
-								fullText.append(piece);
-							}
-						}
-					}
-					
-					ByteBuf content = ctx.alloc().buffer();
-					content.writeBytes(line.getBytes(StandardCharsets.UTF_8));
-					content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-					HttpContent httpContent = new DefaultHttpContent(content);
-					ChannelFuture future = ctx.writeAndFlush(httpContent);
-					future.addListener((ChannelFutureListener) channelFuture -> {
-						if (!channelFuture.isSuccess()) {
-							ctx.close();
-						}
-					});
-					chunkCount++;
-				} else if (line.startsWith("event: ")) {
-					ByteBuf content = ctx.alloc().buffer();
-					content.writeBytes(line.getBytes(StandardCharsets.UTF_8));
-					content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-					HttpContent httpContent = new DefaultHttpContent(content);
-					ctx.writeAndFlush(httpContent);
-				} else if (line.isEmpty()) {
-					ByteBuf content = ctx.alloc().buffer();
-					content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-					HttpContent httpContent = new DefaultHttpContent(content);
-					ctx.writeAndFlush(httpContent);
-				}
-			}
-			
-			if (responseCode >= 200 && responseCode < 300) {
-				JsonObject completion = buildLmStudioTextCompletion(modelName, completionId, created, lastChoices, usage, timings, finishReason, fullText.toString());
-				String out = "data: " + JsonUtil.toJson(completion) + "\r\n\r\n";
-				ByteBuf buf = ctx.alloc().buffer();
-				buf.writeBytes(out.getBytes(StandardCharsets.UTF_8));
-				ctx.writeAndFlush(new DefaultHttpContent(buf));
-				chunkCount++;
-				
-				String done = "data: [DONE]\r\n\r\n";
-				ByteBuf doneBuf = ctx.alloc().buffer();
-				doneBuf.writeBytes(done.getBytes(StandardCharsets.UTF_8));
-				ctx.writeAndFlush(new DefaultHttpContent(doneBuf));
-				chunkCount++;
-			}
-			
-			logger.info("流式文本补全响应处理完成，共发送 {} 个数据块", chunkCount);
-		} catch (Exception e) {
-			logger.info("处理流式文本补全响应时发生错误", e);
-			if (e.getMessage() != null &&
-				(e.getMessage().contains("Connection reset by peer") ||
-				 e.getMessage().contains("Broken pipe") ||
-				 e.getMessage().contains("Connection closed"))) {
-				if (connection != null) {
-					connection.disconnect();
-				}
-			}
-			throw e;
+		private ChatStreamListener(ChannelHandlerContext ctx, String modelName, HttpHeaders requestHeaders, JsonObject requestJson) {
+			super(ctx, modelName, requestHeaders, requestJson, false);
+		}
+
+		@Override
+		protected JsonObject buildCompletion() {
+			return buildLmStudioCompletion(this.modelName, this.transcoder.getCompletionId(), this.transcoder.getCreated(), this.transcoder.getContent(),
+					this.transcoder.getTimings(), this.transcoder.getFinishReason());
 		}
+	}
+	
+	/**
+	 * 	处理文本补全的流式响应
+	 */
+	private class TextCompletionStreamListener extends LmStudioStreamListener {
 		
-		LastHttpContent lastContent = LastHttpContent.EMPTY_LAST_CONTENT;
-		ctx.writeAndFlush(lastContent).addListener(new ChannelFutureListener() {
-			@Override
-			public void operationComplete(ChannelFuture future) {
-				ctx.close();
-			}
-		});
+		private TextCompletionStreamListener(ChannelHandlerContext ctx, String modelName, HttpHeaders requestHeaders, JsonObject requestJson) {
+			super(ctx, modelName, requestHeaders, requestJson, true);
+		}
+
+		@Override
+		protected JsonObject buildCompletion() {
+			return buildLmStudioTextCompletion(this.modelName, this.transcoder.getCompletionId(), this.transcoder.getCreated(), this.transcoder.getLastChoices(),
+					this.transcoder.getUsage(), this.transcoder.getTimings(), this.transcoder.getFinishReason(), this.transcoder.getContent());
+		}
 	}
 	
 	/**
@@ -1111,31 +966,23 @@ public class LMStudioService {
 	}
 	
 	/**
-	 * 	当连接断开时调用，用于清理{@link #channelConnectionMap}
+	 * 	客户端连接可写状态变化时调用，写缓冲降到低水位以下后恢复读取上游。
+	 * @param ctx
+	 */
+	public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+		Backpressure.writabilityChanged(ctx.channel(), this.tracked(ctx));
+	}
+	
+	/**
+	 * 	当连接断开时调用，取消正在进行的上游请求
 	 * 
 	 * @param ctx
 	 * @throws Exception
 	 */
 	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-		// 关闭正在进行的链接
-		synchronized (this.channelConnectionMap) {
-			HttpURLConnection conn = this.channelConnectionMap.remove(ctx);
-			if (conn != null) {
-				try {
-					conn.disconnect();
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-			}
-		}
+		CancelRegistry.getInstance().cancel(ctx);
 	}
-
-	/**	
-	 * 	
-	 * @param obj
-	 * @param key
-	 * @return
-	 */
+	
 	private static String safeString(JsonObject obj, String key) {
 		try {
 			if (obj == null || key == null) {
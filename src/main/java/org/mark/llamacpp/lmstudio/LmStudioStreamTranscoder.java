@@ -0,0 +1,138 @@
+package org.mark.llamacpp.lmstudio;
+
+import java.nio.charset.StandardCharsets;
+
+import org.mark.llamacpp.server.stream.JsonHolder;
+import org.mark.llamacpp.server.stream.SseWriter;
+import org.mark.llamacpp.server.stream.StreamChunk;
+import org.mark.llamacpp.server.stream.TokenStream;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * 	LM Studio的流式响应：数据行原样转发，同时收集结束时汇总数据需要的字段（id、created、timings、usage、finish_reason和完整文本）。
+ * 	数据行直接按字节复制，只有被流水线修改过的数据块（例如补了工具调用id）才重新序列化。
+ */
+public class LmStudioStreamTranscoder extends SseWriter {
+
+	private static final byte[] EVENT_PREFIX = "event: ".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * 	true：文本补全，内容在choices[0].text；false：聊天补全，内容在choices[0].delta.content。
+	 */
+	private final boolean text;
+
+	private final StringBuilder fullContent = new StringBuilder();
+
+	private String completionId = null;
+
+	private Long created = null;
+
+	private String finishReason = null;
+
+	// 只在最后汇总时用到的字段，先保存原始文本
+	private final JsonHolder timings = new JsonHolder();
+	private final JsonHolder usage = new JsonHolder();
+	private final JsonHolder choices = new JsonHolder();
+
+	/**
+	 *
+	 * @param text 是否是文本补全
+	 */
+	public LmStudioStreamTranscoder(boolean text) {
+		super(CRLF, false);
+		this.text = text;
+	}
+
+	@Override
+	public ByteBuf onChunk(StreamChunk chunk, ByteBufAllocator alloc) {
+		if (chunk.isValid()) {
+			if (this.completionId == null) {
+				this.completionId = chunk.id();
+			}
+			if (this.created == null) {
+				this.created = chunk.created();
+			}
+			chunk.keepTimings(this.timings);
+			if (this.text) {
+				chunk.keepUsage(this.usage);
+				chunk.keepChoices(this.choices);
+			}
+			String fr = chunk.finishReason();
+			if (fr != null && !fr.isBlank()) {
+				this.finishReason = fr;
+			}
+			chunk.appendContent(this.fullContent);
+		}
+		return super.onChunk(chunk, alloc);
+	}
+
+	@Override
+	public ByteBuf onOtherLine(ByteBuf line, int index, int length, ByteBufAllocator alloc) {
+		if (length == 0) {
+			// 空行是事件之间的分隔符
+			ByteBuf out = alloc.buffer(CRLF.length);
+			out.writeBytes(CRLF);
+			return out;
+		}
+		if (length >= EVENT_PREFIX.length && line.getByte(index) == 'e') {
+			for (int i = 0; i < EVENT_PREFIX.length; i++) {
+				if (line.getByte(index + i) != EVENT_PREFIX[i]) {
+					return null;
+				}
+			}
+			return super.onOtherLine(line, index, length, alloc);
+		}
+		return null;
+	}
+
+	/**
+	 * 	只结束当前事件，汇总数据和[DONE]由调用方在结束时写出。
+	 */
+	@Override
+	public ByteBuf onStop(TokenStream stream, ByteBufAllocator alloc) {
+		ByteBuf out = alloc.buffer(CRLF.length);
+		out.writeBytes(CRLF);
+		return out;
+	}
+
+	public String getCompletionId() {
+		return this.completionId;
+	}
+
+	public Long getCreated() {
+		return this.created;
+	}
+
+	public String getFinishReason() {
+		return this.finishReason;
+	}
+
+	/**
+	 * 	拼接起来的完整输出。
+	 * @return
+	 */
+	public String getContent() {
+		return this.fullContent.toString();
+	}
+
+	public JsonObject getTimings() {
+		return this.timings.getObject();
+	}
+
+	public JsonObject getUsage() {
+		return this.usage.getObject();
+	}
+
+	/**
+	 * 	最后一个数据块的choices，只有文本补全会记录。
+	 * @return
+	 */
+	public JsonArray getLastChoices() {
+		return this.choices.getArray();
+	}
+}
@@ -70,7 +70,6 @@ public class LMStudioRouterHandler extends SimpleChannelInboundHandler<FullHttpR
 			return;
 		}
 		String uri = request.uri();
-		logger.info("收到请求: {} {}", request.method().name(), uri);
 		// 傻逼浏览器不知道为什么一直在他妈的访问/.well-known/appspecific/com.chrome.devtools.json
 		if ("/.well-known/appspecific/com.chrome.devtools.json".equals(uri)) {
 			ctx.close();
@@ -164,13 +163,19 @@ public class LMStudioRouterHandler extends SimpleChannelInboundHandler<FullHttpR
 	
 	@Override
 	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-		logger.info("LMS 客户端连接关闭：{}", ctx);
 		// 事件通知
 		this.lmStudioService.channelInactive(ctx);
 		this.openAIService.channelInactive(ctx);
 		super.channelInactive(ctx);
 	}
 
+	@Override
+	public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+		this.lmStudioService.channelWritabilityChanged(ctx);
+		this.openAIService.channelWritabilityChanged(ctx);
+		super.channelWritabilityChanged(ctx);
+	}
+
 	@Override
 	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
 		logger.info("处理请求时发生异常", cause);
@@ -4,6 +4,7 @@ import java.net.InetSocketAddress;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.mark.llamacpp.server.channel.NettyTransport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -12,10 +13,7 @@ import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.stream.ChunkedWriteHandler;
@@ -33,8 +31,6 @@ public class LMStudioWebServer implements AutoCloseable {
 	private final int maxContentLength;
 	
 	private final AtomicBoolean started = new AtomicBoolean(false);
-	private EventLoopGroup bossGroup;
-	private EventLoopGroup workerGroup;
 	private Channel serverChannel;
 	
 	public LMStudioWebServer(int port) {
@@ -52,13 +48,8 @@ public class LMStudioWebServer implements AutoCloseable {
 			throw new IllegalStateException("server already started");
 		}
 		
-		bossGroup = new NioEventLoopGroup(1);
-		workerGroup = new NioEventLoopGroup();
-		
-		ServerBootstrap bootstrap = new ServerBootstrap();
-		bootstrap.group(bossGroup, workerGroup)
-				.channel(NioServerSocketChannel.class)
-				.option(ChannelOption.SO_BACKLOG, 1024)
+		ServerBootstrap bootstrap = NettyTransport.getInstance().serverBootstrap();
+		bootstrap.option(ChannelOption.SO_BACKLOG, 1024)
 				.childOption(ChannelOption.SO_KEEPALIVE, true)
 				.childHandler(new ChannelInitializer<SocketChannel>() {
 					@Override
@@ -72,7 +63,7 @@ public class LMStudioWebServer implements AutoCloseable {
 				});
 		
 		InetSocketAddress address = new InetSocketAddress(host, port);
-		ChannelFuture future = bootstrap.bind(address);
+		ChannelFuture future = NettyTransport.getInstance().bind(bootstrap, address);
 		future.addListener((ChannelFuture f) -> {
 			if (f.isSuccess()) {
 				serverChannel = f.channel();
@@ -108,14 +99,6 @@ public class LMStudioWebServer implements AutoCloseable {
 			ch.close();
 			this.serverChannel = null;
 		}
-		if (bossGroup != null) {
-			bossGroup.shutdownGracefully();
-			bossGroup = null;
-		}
-		if (workerGroup != null) {
-			workerGroup.shutdownGracefully();
-			workerGroup = null;
-		}
 		started.set(false);
 	}
 }
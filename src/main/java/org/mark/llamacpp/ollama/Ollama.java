@@ -5,6 +5,10 @@ import java.util.HashMap;
 import java.util.Map;
 
 import org.mark.llamacpp.ollama.channel.OllamaRouterHandler;
+import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.cache.ApiSnapshots;
+import org.mark.llamacpp.server.channel.HttpPipeline;
+import org.mark.llamacpp.server.channel.NettyTransport;
 import org.mark.llamacpp.server.tools.JsonUtil;
 import org.mark.llamacpp.server.tools.ParamTool;
 import org.slf4j.Logger;
@@ -17,16 +21,12 @@ import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpResponseStatus;
-import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.stream.ChunkedWriteHandler;
 
@@ -51,8 +51,6 @@ public class Ollama {
 	private final AtomicLong generation = new AtomicLong(0L);
 	private volatile long activeGeneration = 0L;
 	
-	private volatile EventLoopGroup bossGroup;
-	private volatile EventLoopGroup workerGroup;
 	private volatile Channel serverChannel;
 	
 	/**
@@ -117,30 +115,19 @@ public class Ollama {
 	}
 	
 	private void runServer(long gen) {
-		EventLoopGroup localBossGroup = new NioEventLoopGroup(1);
-		EventLoopGroup localWorkerGroup = new NioEventLoopGroup();
-		
-		synchronized (lifecycleLock) {
-			if (this.activeGeneration == gen) {
-				this.bossGroup = localBossGroup;
-				this.workerGroup = localWorkerGroup;
-			}
-		}
-		
 		try {
-			ServerBootstrap bootstrap = new ServerBootstrap();
-			bootstrap.group(localBossGroup, localWorkerGroup)
-					.channel(NioServerSocketChannel.class)
-					.option(ChannelOption.SO_BACKLOG, 1024)
+			// 线程组由所有服务共用，停止服务时只关闭监听端口
+			ServerBootstrap bootstrap = NettyTransport.getInstance().serverBootstrap();
+			bootstrap.option(ChannelOption.SO_BACKLOG, 1024)
 					.childOption(ChannelOption.SO_KEEPALIVE, true)
+					.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, LlamaServer.getStreamWriteBufferWaterMark())
 					.childHandler(new ChannelInitializer<SocketChannel>() {
 						@Override
 						protected void initChannel(SocketChannel ch) throws Exception {
-							ch.pipeline()
-									.addLast(new HttpServerCodec())
+							HttpPipeline.init(ch, MAX_HTTP_CONTENT_LENGTH, p -> p
 									.addLast(new HttpObjectAggregator(MAX_HTTP_CONTENT_LENGTH))
 									.addLast(new ChunkedWriteHandler())
-									.addLast(new OllamaRouterHandler());
+									.addLast(new OllamaRouterHandler()));
 						}
 						@Override
 						public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
@@ -150,7 +137,7 @@ public class Ollama {
 					});
 			
 			int bindPort = this.port;
-			ChannelFuture future = bootstrap.bind(bindPort).sync();
+			ChannelFuture future = NettyTransport.getInstance().bind(bootstrap, bindPort).sync();
 			synchronized (lifecycleLock) {
 				if (this.activeGeneration == gen) {
 					this.serverChannel = future.channel();
@@ -169,20 +156,9 @@ public class Ollama {
 		} catch (Exception e) {
 			logger.info("服务器启动失败", e);
 		} finally {
-			try {
-				localBossGroup.shutdownGracefully();
-			} catch (Exception ignore) {
-			}
-			try {
-				localWorkerGroup.shutdownGracefully();
-			} catch (Exception ignore) {
-			}
-			
 			synchronized (lifecycleLock) {
 				if (this.activeGeneration == gen) {
 					this.serverChannel = null;
-					this.bossGroup = null;
-					this.workerGroup = null;
 					this.worker = null;
 				}
 			}
@@ -192,29 +168,16 @@ public class Ollama {
 	
 	public void stop() {
 		synchronized (lifecycleLock) {
+			// 还在绑定端口的服务线程看到代数变化后会自己关闭
+			this.activeGeneration = generation.incrementAndGet();
 			Channel ch = this.serverChannel;
+			this.serverChannel = null;
 			if (ch != null) {
 				try {
 					ch.close();
 				} catch (Exception ignore) {
 				}
 			}
-			
-			EventLoopGroup bg = this.bossGroup;
-			if (bg != null) {
-				try {
-					bg.shutdownGracefully();
-				} catch (Exception ignore) {
-				}
-			}
-			
-			EventLoopGroup wg = this.workerGroup;
-			if (wg != null) {
-				try {
-					wg.shutdownGracefully();
-				} catch (Exception ignore) {
-				}
-			}
 		}
 	}
 	
@@ -254,6 +217,30 @@ public class Ollama {
 		});
 	}
 	
+	/**
+	 * 	发送版本化快照，带ETag。
+	 * @param ctx
+	 * @param snapshot
+	 */
+	public static void sendOllamaSnapshot(ChannelHandlerContext ctx, ApiSnapshots.Snapshot snapshot) {
+		byte[] content = snapshot.getBody();
+		
+		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+		response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
+		response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.length);
+		response.headers().set(HttpHeaderNames.DATE, ParamTool.getDate());
+		response.headers().set(HttpHeaderNames.ETAG, snapshot.getEtag());
+		response.headers().set(HttpHeaderNames.CACHE_CONTROL, "no-cache");
+		response.content().writeBytes(content);
+		
+		ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) {
+				ctx.close();
+			}
+		});
+	}
+	
 	/**
 	 * 	发送JSON消息，但是响应头中带chunked。
 	 * @param ctx
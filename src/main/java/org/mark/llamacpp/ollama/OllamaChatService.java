@@ -1,23 +1,33 @@
 package org.mark.llamacpp.ollama;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URI;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
 
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.cache.ResponseCache;
+import org.mark.llamacpp.server.replica.PrefixAffinity;
+import org.mark.llamacpp.server.replica.PrefixAffinity.Route;
+import org.mark.llamacpp.server.scheduler.AdmissionException;
+import org.mark.llamacpp.server.scheduler.AdmissionListener;
+import org.mark.llamacpp.server.scheduler.ModelScheduler;
+import org.mark.llamacpp.server.scheduler.Permit;
+import org.mark.llamacpp.server.stream.ChunkReader;
+import org.mark.llamacpp.server.stream.StopStringStage;
+import org.mark.llamacpp.server.stream.ThinkTagStage;
+import org.mark.llamacpp.server.stream.TokenStream;
+import org.mark.llamacpp.server.stream.ToolCallIdStage;
+import org.mark.llamacpp.server.stream.UsageStage;
+import org.mark.llamacpp.server.stream.WallTimeStage;
 import org.mark.llamacpp.server.tools.JsonUtil;
 import org.mark.llamacpp.server.tools.ParamTool;
+import org.mark.llamacpp.server.upstream.CancelRegistry;
+import org.mark.llamacpp.server.upstream.SingleFlight;
+import org.mark.llamacpp.server.upstream.StreamFlusher;
+import org.mark.llamacpp.server.upstream.UpstreamExchange;
+import org.mark.llamacpp.server.upstream.UpstreamListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,14 +36,15 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
 import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
-import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
@@ -50,14 +61,9 @@ public class OllamaChatService {
 	
 	
 	/**
-	 * 	
+	 * 	转发到llama.cpp的超时时间，与llama-server的--timeout保持一致。
 	 */
-	private final ExecutorService worker = Executors.newVirtualThreadPerTaskExecutor();
-	
-	/**
-	 * 	转发用的HTTP客户端连接。
-	 */
-	private HttpURLConnection connection = null;
+	private static final long LLAMA_TIMEOUT_MS = 36000L * 1000;
 	
 	
 	public OllamaChatService() {
@@ -76,8 +82,6 @@ public class OllamaChatService {
 		}
 		
 		String content = request.content().toString(StandardCharsets.UTF_8);
-		int contentLength = content == null ? 0 : content.length();
-		logger.info("收到 Ollama chat 请求: {} 请求体长度: {}", request.method().name(), contentLength);
 		if (content == null || content.trim().isEmpty()) {
 			Ollama.sendOllamaError(ctx, HttpResponseStatus.BAD_REQUEST, "Request body is empty");
 			return;
@@ -157,69 +161,158 @@ public class OllamaChatService {
 		OllamaApiTool.applyOllamaToolsToOpenAI(openAiReq, ollamaReq);
 
 		String requestBody = JsonUtil.toJson(openAiReq);
-
-		int requestBodyLength = requestBody == null ? 0 : requestBody.length();
-		logger.info("转发请求到llama.cpp进程: {} {} 端口: {} 请求体长度: {}", request.method().name(), "/v1/chat/completions", port, requestBodyLength);
 		
 		boolean finalIsStream = isStream;
-		this.worker.execute(() -> {
-			try {
-				String targetUrl = String.format("http://localhost:%d/v1/chat/completions", port.intValue());
-				
-				logger.info("连接到llama.cpp进程: {}", targetUrl);
-				
-				URL url = URI.create(targetUrl).toURL();
-				this.connection = (HttpURLConnection) url.openConnection();
-				this.connection.setRequestMethod("POST");
-				this.connection.setConnectTimeout(36000 * 1000);
-				this.connection.setReadTimeout(36000 * 1000);
-				this.connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-				this.connection.setDoOutput(true);
-				byte[] input = requestBody.getBytes(StandardCharsets.UTF_8);
-				//this.connection.setRequestProperty("Content-Length", String.valueOf(input.length));
-				try (OutputStream os = this.connection.getOutputStream()) {
-					os.write(input, 0, input.length);
-					logger.info("已发送请求体到llama.cpp进程，大小: {} 字节", input.length);
-				}
-				long t = System.currentTimeMillis();
-				int responseCode = this.connection.getResponseCode();
-				
-				logger.info("llama.cpp进程响应码: {}，等待时间：{}", responseCode, System.currentTimeMillis() - t);
-				
-				if (finalIsStream) {
-					this.handleOllamaChatStreamResponse(ctx, this.connection, responseCode, modelName);
-				} else {
-					this.handleOllamaChatNonStreamResponse(ctx, this.connection, responseCode, modelName);
-				}
-			} catch (Exception e) {
-				logger.info("处理Ollama chat请求时发生错误", e);
-				Ollama.sendOllamaError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, e.getMessage());
-			} finally {
-				if (this.connection != null) {
-					this.connection.disconnect();
-				}
+		byte[] input = requestBody.getBytes(StandardCharsets.UTF_8);
+		HttpHeaders headers = new DefaultHttpHeaders();
+		headers.set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
+		UpstreamListener listener = finalIsStream ? new ChatStreamListener(ctx, modelName, request.headers(), openAiReq, enableThinking) : new ChatNonStreamListener(ctx, modelName);
+		// 完全相同的请求正在执行时直接挂上去，不占用slot
+		String flightKey = SingleFlight.keyOf(ResponseCache.getInstance().requestKey(modelName, "/v1/chat/completions", openAiReq, null), finalIsStream);
+		CancelRegistry.getInstance().begin(ctx, "/api/chat", request.headers(), ollamaReq.get("timeout"), OllamaChatService::rejectionBody);
+		UpstreamExchange joined = SingleFlight.getInstance().join(flightKey, listener);
+		if (joined != null) {
+			CancelRegistry.getInstance().track(ctx, joined);
+			return;
+		}
+		ModelScheduler.getInstance().submit(modelName, ModelScheduler.resolvePriority(request), ctx.channel(), new AdmissionListener() {
+			@Override
+			public void onGranted(Permit permit) {
+				Route route = PrefixAffinity.getInstance().route(modelName, port.intValue(), openAiReq);
+				// 固定到slot时请求体里加了id_slot，需要重新序列化
+				byte[] payload = route.isPinned() ? JsonUtil.toJson(openAiReq).getBytes(StandardCharsets.UTF_8) : input;
+				UpstreamExchange exchange = SingleFlight.getInstance().send(flightKey, route.getPort(), HttpMethod.POST, "/v1/chat/completions", headers, Unpooled.wrappedBuffer(payload), LLAMA_TIMEOUT_MS, listener);
+				// 合并到已有的相同请求时不占用slot，许可立即归还
+				exchange.whenUpstreamDone(permit::release);
+				exchange.whenUpstreamDone(route::release);
+				CancelRegistry.getInstance().track(ctx, exchange);
+			}
+
+			@Override
+			public void onRejected(AdmissionException e) {
+				logger.info("请求被拒绝，模型: {}，原因: {}", modelName, e.getMessage());
+				untrack(ctx);
+				ModelScheduler.sendRejection(ctx, e, rejectionBody(e));
 			}
 		});
 	}
 	
+	/**
+	 * 	没有拿到执行许可时回复的错误内容，Ollama格式。
+	 */
+	private static Map<String, Object> rejectionBody(AdmissionException e) {
+		Map<String, Object> error = new HashMap<>();
+		error.put("error", e.getMessage());
+		return error;
+	}
+	
+	private void untrack(ChannelHandlerContext ctx) {
+		CancelRegistry.getInstance().untrack(ctx);
+	}
 	
 	/**
-	 * 	处理非流式响应。
-	 * @param ctx
-	 * @param connection
-	 * @param responseCode
-	 * @param modelName
-	 * @throws IOException
+	 * 	聚合上游响应体的通用部分。
 	 */
-	private void handleOllamaChatNonStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String modelName) throws IOException {
-		String responseBody = OllamaApiTool.readBody(connection, responseCode >= 200 && responseCode < 300);
-		if (!(responseCode >= 200 && responseCode < 300)) {
+	private abstract class BufferedListener implements UpstreamListener {
+		
+		protected final ChannelHandlerContext ctx;
+		
+		protected final String modelName;
+		
+		protected int responseCode;
+		
+		protected ByteBuf body;
+		
+		private BufferedListener(ChannelHandlerContext ctx, String modelName) {
+			this.ctx = ctx;
+			this.modelName = modelName;
+		}
+		
+		@Override
+		public void onResponse(HttpResponse response) {
+			this.responseCode = response.status().code();
+		}
+		
+		protected void append(ByteBuf content) {
+			if (this.body == null) {
+				this.body = this.ctx.alloc().buffer(content.readableBytes());
+			}
+			this.body.writeBytes(content);
+		}
+		
+		protected String takeBody() {
+			if (this.body == null) {
+				return "";
+			}
+			String s = this.body.toString(StandardCharsets.UTF_8);
+			this.body.release();
+			this.body = null;
+			return s;
+		}
+		
+		protected boolean isSuccess() {
+			return this.responseCode >= 200 && this.responseCode < 300;
+		}
+		
+		protected void sendUpstreamError() {
+			String responseBody = this.takeBody();
 			String msg = OllamaApiTool.extractOpenAIErrorMessage(responseBody);
-			Ollama.sendOllamaError(ctx, HttpResponseStatus.valueOf(responseCode), msg == null ? responseBody : msg);
-			return;
+			Ollama.sendOllamaError(this.ctx, HttpResponseStatus.valueOf(this.responseCode), msg == null ? responseBody : msg);
 		}
-		logger.info("非流式响应读取完成，响应体长度: {}", responseBody == null ? 0 : responseBody.length());
 		
+		@Override
+		public void onError(Throwable cause) {
+			untrack(this.ctx);
+			if (this.body != null) {
+				this.body.release();
+				this.body = null;
+			}
+			logger.info("处理Ollama chat请求时发生错误", cause);
+			this.handleError(cause);
+		}
+		
+		/**
+		 * 	超过截止时间或者上游响应超时返回504，和排队期间到期的格式一样。
+		 */
+		protected void handleError(Throwable cause) {
+			HttpResponseStatus status = cause instanceof TimeoutException ? HttpResponseStatus.GATEWAY_TIMEOUT : HttpResponseStatus.INTERNAL_SERVER_ERROR;
+			Ollama.sendOllamaError(this.ctx, status, cause.getMessage());
+		}
+	}
+	
+	/**
+	 * 	非流式：聚合完整响应后转换。
+	 */
+	private class ChatNonStreamListener extends BufferedListener {
+		
+		private ChatNonStreamListener(ChannelHandlerContext ctx, String modelName) {
+			super(ctx, modelName);
+		}
+		
+		@Override
+		public void onContent(ByteBuf content) {
+			this.append(content);
+		}
+		
+		@Override
+		public void onComplete() {
+			untrack(this.ctx);
+			if (!this.isSuccess()) {
+				this.sendUpstreamError();
+				return;
+			}
+			handleOllamaChatNonStreamResponse(this.ctx, this.takeBody(), this.modelName);
+		}
+	}
+	
+	
+	/**
+	 * 	处理非流式响应。
+	 * @param ctx
+	 * @param responseBody
+	 * @param modelName
+	 */
+	private void handleOllamaChatNonStreamResponse(ChannelHandlerContext ctx, String responseBody, String modelName) {
 		JsonObject parsed = null;
 		try {
 			parsed = JsonUtil.fromJson(responseBody, JsonObject.class);
@@ -306,215 +399,120 @@ public class OllamaChatService {
 	}
 	
 	/**
-	 * 	处理流式响应。
-	 * @param ctx
-	 * @param connection
-	 * @param responseCode
-	 * @param modelName
-	 * @throws IOException
+	 * 	流式：把上游的OpenAI SSE逐行转换成Ollama的NDJSON。
 	 */
-	private void handleOllamaChatStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String modelName) throws IOException {
-		if (!(responseCode >= 200 && responseCode < 300)) {
-			String responseBody = OllamaApiTool.readBody(connection, false);
-			String msg = OllamaApiTool.extractOpenAIErrorMessage(responseBody);
-			Ollama.sendOllamaError(ctx, HttpResponseStatus.valueOf(responseCode), msg == null ? responseBody : msg);
-			return;
-		}
+	private class ChatStreamListener extends BufferedListener {
 		
-		HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(responseCode));
-		response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/x-ndjson; charset=UTF-8");
-		response.headers().set(HttpHeaderNames.DATE, ParamTool.getDate());
-		HttpUtil.setTransferEncodingChunked(response, true);
-		ctx.writeAndFlush(response);
+		private final StreamFlusher flusher;
 		
-		logger.info("开始处理流式响应，响应码: {}", responseCode);
+		private final TokenStream stream;
 		
-		String doneReason = "stop";
-		Map<Integer, String> toolCallIndexToId = new HashMap<>();
-		String functionCallId = null;
-		String functionCallName = null;
-		JsonObject timings = null;
-		int chunkCount = 0;
-		
-		try (BufferedReader br = new BufferedReader(
-			new InputStreamReader(
-				responseCode >= 200 && responseCode < 300 ? connection.getInputStream() : connection.getErrorStream(),
-				StandardCharsets.UTF_8
-			)
-		)) {
-			String line;
-			
-			while ((line = br.readLine()) != null) {
-				if (!ctx.channel().isActive()) {
-					logger.info("检测到客户端连接已断开，停止流式响应处理");
-					if (connection != null) {
-						connection.disconnect();
-					}
-					break;
-				}
-				if (!line.startsWith("data: ")) {
-					continue;
-				}
-				String data = line.substring(6);
-				if ("[DONE]".equals(data)) {
-					logger.info("收到流式响应结束标记");
-					Map<String, Object> timingFields = OllamaApiTool.buildOllamaTimingFields(timings);
-					this.writeOllamaStreamChunk(ctx, modelName, "", null, true, doneReason, timingFields);
-					chunkCount++;
-					break;
-				}
-				JsonObject chunk = ParamTool.tryParseObject(data);
-				if (chunk == null) {
-					continue;
-				}
-				JsonObject extractedTimings = chunk.has("timings") && chunk.get("timings").isJsonObject() ? chunk.getAsJsonObject("timings") : null;
-				if (extractedTimings != null) {
-					timings = extractedTimings;
-				}
-				
-				String deltaContent = null;
-				String deltaThinking = null;
-				String finish = null;
-				JsonElement deltaToolCalls = null;
-				
-				try {
-					JsonArray choices = chunk.getAsJsonArray("choices");
-					if (choices != null && choices.size() > 0 && choices.get(0).isJsonObject()) {
-						JsonObject c0 = choices.get(0).getAsJsonObject();
-						JsonObject delta = c0.has("delta") && c0.get("delta").isJsonObject() ? c0.getAsJsonObject("delta") : null;
-						if (delta != null && delta.has("content")) {
-							deltaContent = JsonUtil.jsonValueToString(delta.get("content"));
-						}
-						if (delta != null && delta.has("reasoning_content")) {
-							deltaThinking = JsonUtil.jsonValueToString(delta.get("reasoning_content"));
-						}
-						if (delta != null) {
-							deltaToolCalls = OllamaApiTool.extractToolCallsFromOpenAIMessage(delta, toolCallIndexToId, false);
-							if (deltaToolCalls == null) {
-								JsonObject fc = (delta.has("function_call") && delta.get("function_call").isJsonObject()) ? delta.getAsJsonObject("function_call") : null;
-								if (fc != null) {
-									String fcName = JsonUtil.getJsonString(fc, "name", null);
-									if (fcName != null && !fcName.isBlank()) {
-										functionCallName = fcName;
-									}
-									if (functionCallId == null) {
-										functionCallId = "call_" + UUID.randomUUID().toString().replace("-", "");
-									}
-									JsonObject enriched = fc.deepCopy();
-									if ((JsonUtil.getJsonString(enriched, "name", null) == null || JsonUtil.getJsonString(enriched, "name", null).isBlank())
-											&& functionCallName != null && !functionCallName.isBlank()) {
-										enriched.addProperty("name", functionCallName);
-									}
-									deltaToolCalls = OllamaApiTool.toolCallsFromFunctionCall(enriched, functionCallId);
-								}
-							}
-						}
-						JsonElement fr = c0.get("finish_reason");
-						if (fr != null && !fr.isJsonNull()) {
-							finish = JsonUtil.jsonValueToString(fr);
-						}
-					}
-				} catch (Exception ignore) {
-				}
-				
-				if (finish != null && !finish.isBlank()) {
-					doneReason = finish;
-				}
-				boolean hasContent = deltaContent != null && !deltaContent.isEmpty();
-				boolean hasThinking = deltaThinking != null && !deltaThinking.isEmpty();
-				boolean hasToolCalls = deltaToolCalls != null && !deltaToolCalls.isJsonNull();
-				if (hasContent || hasThinking || hasToolCalls) {
-					JsonElement ollamaToolCalls = hasToolCalls ? OllamaApiTool.toOllamaToolCalls(deltaToolCalls) : null;
-					this.writeOllamaStreamChunk(ctx, modelName, hasContent ? deltaContent : "", hasThinking ? deltaThinking : null, ollamaToolCalls, false, null, null);
-					chunkCount++;
-				}
+		private int chunkCount = 0;
+		
+		private boolean headerSent = false;
+		
+		private volatile boolean finished = false;
+		
+		/**
+		 * 
+		 * @param ctx
+		 * @param modelName
+		 * @param requestHeaders
+		 * @param openAiReq 转换后的请求，用来取停止词
+		 * @param thinking 是否开启了思考，开启时把正文里的think标签拆到thinking
+		 */
+		private ChatStreamListener(ChannelHandlerContext ctx, String modelName, HttpHeaders requestHeaders, JsonObject openAiReq, boolean thinking) {
+			super(ctx, modelName);
+			this.flusher = new StreamFlusher(ctx, requestHeaders, this::abort);
+			this.stream = new TokenStream(ChunkReader.openAIChat(), new OllamaChatTranscoder(modelName), ctx.alloc(), this::write)
+					.add(WallTimeStage.fromConfig())
+					.add(thinking ? new ThinkTagStage() : null)
+					.add(StopStringStage.of(openAiReq.get("stop")))
+					.add(new ToolCallIdStage())
+					.add(new UsageStage());
+		}
+		
+		@Override
+		public void onResponse(HttpResponse upstream) {
+			super.onResponse(upstream);
+			if (!this.isSuccess()) {
+				return;
 			}
-			logger.info("流式响应处理完成，共发送 {} 个数据块", chunkCount);
-		} catch (Exception e) {
-			logger.info("处理Ollama chat流式响应时发生错误", e);
-			// 检查是否是客户端断开连接导致的异常
-			if (e.getMessage() != null &&
-				(e.getMessage().contains("Connection reset by peer") ||
-				 e.getMessage().contains("Broken pipe") ||
-				 e.getMessage().contains("Connection closed"))) {
-				logger.info("检测到客户端断开连接，尝试断开与llama.cpp的连接");
-				if (connection != null) {
-					connection.disconnect();
-				}
+			HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(this.responseCode));
+			response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/x-ndjson; charset=UTF-8");
+			response.headers().set(HttpHeaderNames.DATE, ParamTool.getDate());
+			HttpUtil.setTransferEncodingChunked(response, true);
+			this.ctx.writeAndFlush(response);
+			this.headerSent = true;
+		}
+		
+		@Override
+		public void onContent(ByteBuf content) {
+			if (!this.isSuccess()) {
+				this.append(content);
+				return;
+			}
+			if (this.finished) {
+				return;
+			}
+			if (!this.ctx.channel().isActive()) {
+				logger.info("检测到客户端连接已断开，停止流式响应处理");
+				this.abort();
+				return;
+			}
+			this.stream.feed(content);
+			if (this.stream.isStopped()) {
+				this.stopUpstream();
 			}
-			throw e;
 		}
 		
-		LastHttpContent last = LastHttpContent.EMPTY_LAST_CONTENT;
-		ctx.writeAndFlush(last).addListener(new ChannelFutureListener() {
-			@Override
-			public void operationComplete(ChannelFuture future) {
-				ctx.close();
+		@Override
+		public void onComplete() {
+			untrack(this.ctx);
+			if (!this.isSuccess()) {
+				this.sendUpstreamError();
+				return;
 			}
-		});
-	}
-	
-	
-	/**
-	 * 	写入Ollama流式传输的数据。
-	 * @param ctx
-	 * @param modelName
-	 * @param content
-	 * @param toolCalls
-	 * @param done
-	 * @param doneReason
-	 * @param doneFields
-	 */
-	private void writeOllamaStreamChunk(ChannelHandlerContext ctx, String modelName, String content, JsonElement toolCalls, boolean done, String doneReason, Map<String, Object> doneFields) {
-		this.writeOllamaStreamChunk(ctx, modelName, content, null, toolCalls, done, doneReason, doneFields);
-	}
-	
-	/**
-	 * 	写入Ollama流式传输的数据。
-	 * @param ctx
-	 * @param modelName
-	 * @param content
-	 * @param thinking
-	 * @param toolCalls
-	 * @param done
-	 * @param doneReason
-	 * @param doneFields
-	 */
-	private void writeOllamaStreamChunk(ChannelHandlerContext ctx, String modelName, String content, String thinking, JsonElement toolCalls, boolean done, String doneReason, Map<String, Object> doneFields) {
-		Map<String, Object> out = new HashMap<>();
-		out.put("model", modelName);
-		out.put("created_at", OllamaApiTool.formatOllamaTime(Instant.now()));
+			this.stream.finish();
+			this.flusher.flush();
+			this.ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT).addListener(new ChannelFutureListener() {
+				@Override
+				public void operationComplete(ChannelFuture future) {
+					ctx.close();
+				}
+			});
+		}
 		
-		Map<String, Object> message = new HashMap<>();
-		message.put("role", "assistant");
-		message.put("content", content == null ? "" : content);
-		if (thinking != null && !thinking.isBlank()) {
-			message.put("thinking", thinking);
+		@Override
+		protected void handleError(Throwable cause) {
+			this.stream.release();
+			if (this.headerSent) {
+				this.ctx.close();
+			} else {
+				super.handleError(cause);
+			}
 		}
-		if (toolCalls != null && !toolCalls.isJsonNull()) {
-			message.put("tool_calls", toolCalls);
+		
+		private void abort() {
+			this.finished = true;
+			CancelRegistry.getInstance().cancel(this.ctx);
+			this.ctx.close();
 		}
-		out.put("message", message);
 		
-		out.put("done", Boolean.valueOf(done));
-		if (done) {
-			out.put("done_reason", doneReason == null || doneReason.isBlank() ? "stop" : doneReason);
-			if (doneFields != null && !doneFields.isEmpty()) {
-				out.putAll(doneFields);
-			}
+		/**
+		 * 	流水线提前结束了流：取消上游请求释放slot，done已经写出，按正常结束收尾。
+		 */
+		private void stopUpstream() {
+			logger.info("流式响应提前结束，原因: {}", this.stream.getStopReason());
+			this.finished = true;
+			CancelRegistry.getInstance().cancel(this.ctx);
+			this.onComplete();
 		}
 		
-		String json = JsonUtil.toJson(out) + "\n";
-		ByteBuf buf = ctx.alloc().buffer();
-		buf.writeBytes(json.getBytes(StandardCharsets.UTF_8));
-		HttpContent httpContent = new DefaultHttpContent(buf);
-		ChannelFuture f = ctx.writeAndFlush(httpContent);
-		f.addListener((ChannelFutureListener) future -> {
-			if (!future.isSuccess()) {
-				logger.info("写入流式数据失败，可能是客户端断开连接: {}", future.cause().getMessage());
-				ctx.close();
-			}
-		});
+		private void write(ByteBuf buf) {
+			this.flusher.write(buf);
+			this.chunkCount++;
+		}
 	}
 	
 	
@@ -559,23 +557,14 @@ public class OllamaChatService {
 	}
 	
 	/**
-	 * 	当连接断开时调用，用于清理{@link #channelConnectionMap}
+	 * 	当连接断开时调用，取消正在进行的上游请求
 	 * 
 	 * @param ctx
 	 * @throws Exception
 	 */
 	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-		// 关闭正在进行的链接
-		synchronized (this) {
-			logger.info("检测到客户端连接已断开，尝试断开与llama.cpp的连接");
-			HttpURLConnection conn = this.connection;
-			if (conn != null) {
-				try {
-					conn.disconnect();
-				} catch (Exception e) {
-					logger.info("断开与llama.cpp的连接时发生错误", e);
-				}
-			}
+		if (CancelRegistry.getInstance().cancel(ctx)) {
+			logger.info("检测到客户端连接已断开，已断开与llama.cpp的连接");
 		}
 	}
 }
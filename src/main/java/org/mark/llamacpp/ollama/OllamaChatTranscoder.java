@@ -0,0 +1,249 @@
+package org.mark.llamacpp.ollama;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.mark.llamacpp.server.stream.JsonHolder;
+import org.mark.llamacpp.server.stream.StreamChunk;
+import org.mark.llamacpp.server.stream.StreamWriter;
+import org.mark.llamacpp.server.stream.TokenStream;
+import org.mark.llamacpp.server.tools.JsonUtil;
+import org.mark.llamacpp.server.transcode.ByteBufJsonWriter;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * 	把OpenAI格式的流式聊天响应转换成Ollama的NDJSON，每个token一行。
+ * 	普通的content和reasoning_content直接从上游字节复制到输出，工具调用的数据块才用解析后的对象。
+ */
+public class OllamaChatTranscoder implements StreamWriter {
+
+	private static final byte[] NAME_MODEL = ByteBufJsonWriter.encodeName("model");
+	private static final byte[] NAME_CREATED_AT = ByteBufJsonWriter.encodeName("created_at");
+	private static final byte[] NAME_MESSAGE = ByteBufJsonWriter.encodeName("message");
+	private static final byte[] NAME_ROLE = ByteBufJsonWriter.encodeName("role");
+	private static final byte[] NAME_CONTENT = ByteBufJsonWriter.encodeName("content");
+	private static final byte[] NAME_THINKING = ByteBufJsonWriter.encodeName("thinking");
+	private static final byte[] NAME_TOOL_CALLS = ByteBufJsonWriter.encodeName("tool_calls");
+	private static final byte[] NAME_DONE = ByteBufJsonWriter.encodeName("done");
+	private static final byte[] NAME_DONE_REASON = ByteBufJsonWriter.encodeName("done_reason");
+
+	private static final byte[] ASSISTANT = ByteBufJsonWriter.encodeString("assistant");
+	private static final byte[] EMPTY = ByteBufJsonWriter.encodeString("");
+	private static final byte[] NEWLINE = { '\n' };
+
+	private final ByteBufJsonWriter writer = new ByteBufJsonWriter();
+
+	private final byte[] model;
+
+	private final Map<Integer, String> toolCallIndexToId = new HashMap<>();
+
+	/**
+	 * 	最近一次的timings，结束时才解析。
+	 */
+	private final JsonHolder timings = new JsonHolder();
+
+	private String doneReason = "stop";
+
+	private String functionCallId = null;
+
+	private String functionCallName = null;
+
+	/**
+	 * 	created_at的秒级部分，每秒格式化一次。
+	 */
+	private long cachedSecond = Long.MIN_VALUE;
+
+	private final byte[] timeBytes = new byte[40];
+
+	private int timePrefixLength;
+
+	public OllamaChatTranscoder(String modelName) {
+		this.model = ByteBufJsonWriter.encodeString(modelName == null ? "" : modelName);
+	}
+
+	@Override
+	public ByteBuf onChunk(StreamChunk chunk, ByteBufAllocator alloc) {
+		if (!chunk.isValid()) {
+			return null;
+		}
+		chunk.keepTimings(this.timings);
+		String finish = chunk.finishReason();
+		if (finish != null && !finish.isBlank()) {
+			this.doneReason = finish;
+		}
+		if (chunk.hasToolCalls()) {
+			return this.onToolCalls(chunk, alloc);
+		}
+		boolean hasContent = chunk.hasContent();
+		boolean hasThinking = chunk.hasReasoning();
+		if (!hasContent && !hasThinking) {
+			return null;
+		}
+		int contentStart = chunk.contentStart();
+		int thinkingStart = chunk.reasoningStart();
+		ByteBuf out = alloc.buffer(192 + this.model.length + (contentStart >= 0 ? chunk.contentEnd() - contentStart : 0)
+				+ (thinkingStart >= 0 ? chunk.reasoningEnd() - thinkingStart : 0));
+		this.beginChunk(out);
+		if (!hasContent) {
+			this.writer.name(NAME_CONTENT).rawValue(EMPTY);
+		} else if (contentStart >= 0) {
+			this.writer.name(NAME_CONTENT).rawString(chunk.buffer(), contentStart, chunk.contentEnd());
+		} else {
+			this.writer.name(NAME_CONTENT).value(chunk.content());
+		}
+		if (hasThinking && !chunk.isReasoningBlank()) {
+			if (thinkingStart >= 0) {
+				this.writer.name(NAME_THINKING).rawString(chunk.buffer(), thinkingStart, chunk.reasoningEnd());
+			} else {
+				this.writer.name(NAME_THINKING).value(chunk.reasoning());
+			}
+		}
+		return this.endChunk(false);
+	}
+
+	@Override
+	public ByteBuf onDone(ByteBufAllocator alloc) {
+		Map<String, Object> timingFields = OllamaApiTool.buildOllamaTimingFields(this.timings.getObject());
+		this.beginChunk(alloc.buffer());
+		this.writer.name(NAME_CONTENT).rawValue(EMPTY);
+		this.writer.endObject();
+		this.writer.name(NAME_DONE).value(true);
+		this.writer.name(NAME_DONE_REASON).value(this.doneReason == null || this.doneReason.isBlank() ? "stop" : this.doneReason);
+		for (Map.Entry<String, Object> e : timingFields.entrySet()) {
+			if (!"done".equals(e.getKey())) {
+				this.writer.name(ByteBufJsonWriter.encodeName(e.getKey())).value(e.getValue());
+			}
+		}
+		this.writer.endObject().raw(NEWLINE);
+		return this.writer.buffer();
+	}
+
+	/**
+	 * 	提前结束时和正常结束一样写出done，结束原因已经记在被截断的数据块里。
+	 */
+	@Override
+	public ByteBuf onStop(TokenStream stream, ByteBufAllocator alloc) {
+		return this.onDone(alloc);
+	}
+
+	//================================================================================================
+
+	/**
+	 * 	带工具调用的数据块：补id（ToolCallIdStage已经补过的会沿用）并转换成Ollama的格式。
+	 */
+	private ByteBuf onToolCalls(StreamChunk chunk, ByteBufAllocator alloc) {
+		String deltaContent = chunk.content();
+		String deltaThinking = chunk.reasoning();
+		JsonElement deltaToolCalls = null;
+		try {
+			JsonObject json = chunk.json();
+			JsonArray choices = json == null ? null : json.getAsJsonArray("choices");
+			if (choices != null && choices.size() > 0 && choices.get(0).isJsonObject()) {
+				JsonObject c0 = choices.get(0).getAsJsonObject();
+				JsonObject delta = c0.has("delta") && c0.get("delta").isJsonObject() ? c0.getAsJsonObject("delta") : null;
+				if (delta != null) {
+					deltaToolCalls = OllamaApiTool.extractToolCallsFromOpenAIMessage(delta, this.toolCallIndexToId, false);
+					if (deltaToolCalls == null) {
+						JsonObject fc = (delta.has("function_call") && delta.get("function_call").isJsonObject()) ? delta.getAsJsonObject("function_call") : null;
+						if (fc != null) {
+							String fcName = JsonUtil.getJsonString(fc, "name", null);
+							if (fcName != null && !fcName.isBlank()) {
+								this.functionCallName = fcName;
+							}
+							if (this.functionCallId == null) {
+								this.functionCallId = "call_" + UUID.randomUUID().toString().replace("-", "");
+							}
+							JsonObject enriched = fc.deepCopy();
+							if ((JsonUtil.getJsonString(enriched, "name", null) == null || JsonUtil.getJsonString(enriched, "name", null).isBlank())
+									&& this.functionCallName != null && !this.functionCallName.isBlank()) {
+								enriched.addProperty("name", this.functionCallName);
+							}
+							deltaToolCalls = OllamaApiTool.toolCallsFromFunctionCall(enriched, this.functionCallId);
+						}
+					}
+				}
+			}
+		} catch (Exception ignore) {
+		}
+
+		boolean hasContent = deltaContent != null && !deltaContent.isEmpty();
+		boolean hasThinking = deltaThinking != null && !deltaThinking.isEmpty();
+		boolean hasToolCalls = deltaToolCalls != null && !deltaToolCalls.isJsonNull();
+		if (!hasContent && !hasThinking && !hasToolCalls) {
+			return null;
+		}
+		JsonElement ollamaToolCalls = hasToolCalls ? OllamaApiTool.toOllamaToolCalls(deltaToolCalls) : null;
+		this.beginChunk(alloc.buffer());
+		this.writer.name(NAME_CONTENT).value(hasContent ? deltaContent : "");
+		if (hasThinking && !deltaThinking.isBlank()) {
+			this.writer.name(NAME_THINKING).value(deltaThinking);
+		}
+		if (ollamaToolCalls != null && !ollamaToolCalls.isJsonNull()) {
+			this.writer.name(NAME_TOOL_CALLS).value(ollamaToolCalls);
+		}
+		return this.endChunk(false);
+	}
+
+	/**
+	 * 	写到message的role为止，接下来写message的其它字段。
+	 */
+	private void beginChunk(ByteBuf out) {
+		this.writer.target(out).beginObject();
+		this.writer.name(NAME_MODEL).rawValue(this.model);
+		this.writer.name(NAME_CREATED_AT).rawValue(this.timeBytes, 0, this.formatNow());
+		this.writer.name(NAME_MESSAGE).beginObject();
+		this.writer.name(NAME_ROLE).rawValue(ASSISTANT);
+	}
+
+	private ByteBuf endChunk(boolean done) {
+		this.writer.endObject();
+		this.writer.name(NAME_DONE).value(done);
+		this.writer.endObject().raw(NEWLINE);
+		return this.writer.buffer();
+	}
+
+	/**
+	 * 	把当前时间按{@link OllamaApiTool#formatOllamaTime(Instant)}的格式写进timeBytes（带引号）。
+	 * @return 长度
+	 */
+	private int formatNow() {
+		Instant now = Instant.now();
+		long second = now.getEpochSecond();
+		if (second != this.cachedSecond) {
+			String s = OllamaApiTool.formatOllamaTime(Instant.ofEpochSecond(second));
+			// 整秒时没有小数部分，去掉末尾的Z
+			byte[] prefix = s.substring(0, s.length() - 1).getBytes(StandardCharsets.US_ASCII);
+			this.timeBytes[0] = '"';
+			System.arraycopy(prefix, 0, this.timeBytes, 1, prefix.length);
+			this.timePrefixLength = prefix.length + 1;
+			this.cachedSecond = second;
+		}
+		int p = this.timePrefixLength;
+		int nano = now.getNano();
+		if (nano != 0) {
+			int digits = 9;
+			while (nano % 10 == 0) {
+				nano /= 10;
+				digits--;
+			}
+			this.timeBytes[p++] = '.';
+			for (int i = digits - 1; i >= 0; i--) {
+				this.timeBytes[p + i] = (byte) ('0' + nano % 10);
+				nano /= 10;
+			}
+			p += digits;
+		}
+		this.timeBytes[p++] = 'Z';
+		this.timeBytes[p++] = '"';
+		return p;
+	}
+}
@@ -1,15 +1,14 @@
 package org.mark.llamacpp.ollama;
 
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URI;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.cache.ResponseCache;
+import org.mark.llamacpp.server.embedding.EmbeddingDispatcher;
+import org.mark.llamacpp.server.scheduler.AdmissionException;
+import org.mark.llamacpp.server.scheduler.ModelScheduler;
 import org.mark.llamacpp.server.tools.JsonUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,11 +31,6 @@ public class OllamaEmbedService {
 	 */
 	private static final Logger logger = LoggerFactory.getLogger(OllamaEmbedService.class);
 	
-	/**
-	 * 	
-	 */
-	private final ExecutorService worker = Executors.newVirtualThreadPerTaskExecutor();
-	
 	
 	
 	public OllamaEmbedService() {
@@ -100,30 +94,37 @@ public class OllamaEmbedService {
 		}
 		openAiReq.addProperty("model", modelName);
 		
-		String requestBody = JsonUtil.toJson(openAiReq);
-		
-		this.worker.execute(() -> {
-			HttpURLConnection connection = null;
+		long startNs = System.nanoTime();
+		// 和OpenAI的embeddings接口共用响应缓存
+		ResponseCache cache = ResponseCache.getInstance();
+		String cacheKey = cache.keyFor(modelName, "/v1/embeddings", openAiReq, null);
+		String cached = cacheKey == null ? null : cache.get(cacheKey);
+		if (cached != null) {
+			JsonObject parsed = JsonUtil.tryParseObject(cached);
+			Map<String, Object> out = OllamaApiTool.toOllamaEmbedResponse(modelName, parsed, Math.max(0L, System.nanoTime() - startNs));
+			Ollama.sendOllamaChunkedJson(ctx, HttpResponseStatus.OK, out);
+			return;
+		}
+		// 小请求合并、大请求拆分后再发往llama.cpp
+		EmbeddingDispatcher.getInstance().submit(modelName, port.intValue(), ModelScheduler.resolvePriority(request), ctx.channel(), openAiReq, (result, error) -> {
+			if (error instanceof AdmissionException) {
+				AdmissionException e = (AdmissionException) error;
+				logger.info("请求被拒绝，模型: {}，原因: {}", modelName, e.getMessage());
+				Map<String, Object> body = new HashMap<>();
+				body.put("error", e.getMessage());
+				ModelScheduler.sendRejection(ctx, e, body);
+				return;
+			}
+			if (error != null) {
+				logger.info("处理Ollama embed请求时发生错误", error);
+				Ollama.sendOllamaError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, error.getMessage());
+				return;
+			}
 			try {
-				long startNs = System.nanoTime();
-				String targetUrl = String.format("http://localhost:%d/v1/embeddings", port.intValue());
-				URL url = URI.create(targetUrl).toURL();
-				connection = (HttpURLConnection) url.openConnection();
-				connection.setRequestMethod("POST");
-				connection.setConnectTimeout(36000 * 1000);
-				connection.setReadTimeout(36000 * 1000);
-				connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-				connection.setDoOutput(true);
-				byte[] input = requestBody.getBytes(StandardCharsets.UTF_8);
-				connection.setRequestProperty("Content-Length", String.valueOf(input.length));
-				try (OutputStream os = connection.getOutputStream()) {
-					os.write(input, 0, input.length);
-				}
-				
-				int responseCode = connection.getResponseCode();
-				String responseBody = OllamaApiTool.readBody(connection, responseCode >= 200 && responseCode < 300);
+				int responseCode = result.getStatusCode();
+				String responseBody = result.getBodyAsString();
 				long totalDurationNs = Math.max(0L, System.nanoTime() - startNs);
-				if (!(responseCode >= 200 && responseCode < 300)) {
+				if (!result.isSuccess()) {
 					String msg = OllamaApiTool.extractOpenAIErrorMessage(responseBody);
 					Ollama.sendOllamaError(ctx, HttpResponseStatus.valueOf(responseCode), msg == null ? responseBody : msg);
 					return;
@@ -134,16 +135,15 @@ public class OllamaEmbedService {
 					parsed = JsonUtil.fromJson(responseBody, JsonObject.class);
 				} catch (Exception ignore) {
 				}
+				if (cacheKey != null && parsed != null) {
+					cache.put(cacheKey, modelName, responseBody);
+				}
 				// 回复客户端
 				Map<String, Object> out = OllamaApiTool.toOllamaEmbedResponse(modelName, parsed, totalDurationNs);
 				Ollama.sendOllamaChunkedJson(ctx, HttpResponseStatus.OK, out);
 			} catch (Exception e) {
 				logger.info("处理Ollama embed请求时发生错误", e);
 				Ollama.sendOllamaError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, e.getMessage());
-			} finally {
-				if (connection != null) {
-					connection.disconnect();
-				}
 			}
 		});
 		
@@ -8,7 +8,9 @@ import java.util.Map;
 
 import org.mark.llamacpp.gguf.GGUFModel;
 import org.mark.llamacpp.server.LlamaCppProcess;
+import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.cache.ApiSnapshots;
 import org.mark.llamacpp.server.tools.ParamTool;
 
 import io.netty.channel.ChannelHandlerContext;
@@ -38,6 +40,24 @@ public class OllamaTagsService {
 			return;
 		}
 		
+		ApiSnapshots snapshots = ApiSnapshots.getInstance();
+		String etag = snapshots.etag(ApiSnapshots.MODELS);
+		if (snapshots.isNotModified(request, etag)) {
+			LlamaServer.sendNotModified(ctx, etag);
+			return;
+		}
+		try {
+			Ollama.sendOllamaSnapshot(ctx, snapshots.get("/api/tags", ApiSnapshots.MODELS, this::buildModelList));
+		} catch (Exception e) {
+			Ollama.sendOllamaError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, e.getMessage());
+		}
+	}
+	
+	/**
+	 * 	生成/api/tags的内容，按模型版本缓存。
+	 * @return
+	 */
+	private Map<String, Object> buildModelList() {
 		LlamaServerManager manager = LlamaServerManager.getInstance();
 		Map<String, LlamaCppProcess> loaded = manager.getLoadedProcesses();
 		manager.listModel();
@@ -80,8 +100,7 @@ public class OllamaTagsService {
 		
 		Map<String, Object> resp = new HashMap<>();
 		resp.put("models", models);
-		
-		Ollama.sendOllamaJson(ctx, HttpResponseStatus.OK, resp);
+		return resp;
 	}
 	
 	
@@ -96,6 +115,24 @@ public class OllamaTagsService {
 			return;
 		}
 		
+		ApiSnapshots snapshots = ApiSnapshots.getInstance();
+		String etag = snapshots.etag(ApiSnapshots.MODELS);
+		if (snapshots.isNotModified(request, etag)) {
+			LlamaServer.sendNotModified(ctx, etag);
+			return;
+		}
+		try {
+			Ollama.sendOllamaSnapshot(ctx, snapshots.get("/api/ps", ApiSnapshots.MODELS, this::buildLoadedModel));
+		} catch (Exception e) {
+			Ollama.sendOllamaError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, e.getMessage());
+		}
+	}
+	
+	/**
+	 * 	生成/api/ps的内容，按模型版本缓存。
+	 * @return
+	 */
+	private Map<String, Object> buildLoadedModel() {
 		LlamaServerManager manager = LlamaServerManager.getInstance();
 		Map<String, LlamaCppProcess> loaded = manager.getLoadedProcesses();
 		manager.listModel();
@@ -142,7 +179,6 @@ public class OllamaTagsService {
 		
 		Map<String, Object> resp = new HashMap<>();
 		resp.put("models", models);
-		
-		Ollama.sendOllamaJson(ctx, HttpResponseStatus.OK, resp);
+		return resp;
 	}
 }
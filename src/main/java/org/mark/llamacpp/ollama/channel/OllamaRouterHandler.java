@@ -10,6 +10,7 @@ import org.mark.llamacpp.ollama.OllamaShowService;
 import org.mark.llamacpp.ollama.OllamaTagsService;
 import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.exception.RequestMethodException;
+import org.mark.llamacpp.server.route.RouteTable;
 import org.mark.llamacpp.server.service.OpenAIService;
 import org.mark.llamacpp.server.struct.ApiResponse;
 import org.mark.llamacpp.server.tools.ParamTool;
@@ -42,25 +43,63 @@ public class OllamaRouterHandler extends SimpleChannelInboundHandler<FullHttpReq
 	/**
 	 * 	
 	 */
-	private OllamaTagsService ollamaTagsService = new OllamaTagsService();
+	private static final OllamaTagsService ollamaTagsService = new OllamaTagsService();
 	
 	/**
 	 * 	
 	 */
-	private OllamaShowService ollamaShowService = new OllamaShowService();
+	private static final OllamaShowService ollamaShowService = new OllamaShowService();
 	
 	/**
 	 * 	
 	 */
-	private OllamaChatService ollamaChatService = new OllamaChatService();
+	private static final OllamaChatService ollamaChatService = new OllamaChatService();
 	
 	/**
 	 * 	
 	 */
-	private OllamaEmbedService ollamaEmbedService = new OllamaEmbedService();
+	private static final OllamaEmbedService ollamaEmbedService = new OllamaEmbedService();
 	
 	
-	private OpenAIService openAIService = new OpenAIService();
+	private static final OpenAIService openAIService = new OpenAIService();
+	
+	/**
+	 * 	Ollama端口上的接口，和网页端口分开统计。
+	 */
+	private static final RouteTable routes = RouteTable.named("ollama");
+	
+	
+	static {
+		// 1、第一个，一般用来获取全部可用的模型。
+		routes.route("/api/tags", ollamaTagsService::handleModelList);
+		// 查阅指定模型的详细信息。
+		routes.route("/api/show", ollamaShowService::handleShow);
+		// 聊天补全。
+		routes.route("/api/chat", ollamaChatService::handleChat);
+		// 文本嵌入，旧版客户端用的是/api/embeddings
+		routes.route("/api/embed", ollamaEmbedService::handleEmbed);
+		routes.route("/api/embeddings", ollamaEmbedService::handleEmbed);
+		// 列出正在运行的模型。
+		routes.route("/api/ps", ollamaTagsService::handleLoadedModel);
+		for (String path : new String[] { "/api/tags", "/api/chat", "/api/show", "/api/embed", "/api/embeddings" }) {
+			routes.route(HttpMethod.OPTIONS, path, (ctx, request) -> LlamaServer.sendCorsResponse(ctx));
+		}
+		// 补上openAI的通用端点
+		// 聊天补全
+		for (String path : new String[] { "/v1/models", "/models" }) {
+			routes.route(path, openAIService::handleOpenAIModelsRequest);
+		}
+		for (String path : new String[] { "/v1/chat/completions", "/v1/chat/completion", "/chat/completion" }) {
+			routes.route(path, openAIService::handleOpenAIChatCompletionsRequest);
+		}
+		// 文本补全
+		for (String path : new String[] { "/v1/completions", "/completions" }) {
+			routes.route(path, openAIService::handleOpenAICompletionsRequest);
+		}
+		for (String path : new String[] { "/v1/embeddings", "/embeddings" }) {
+			routes.route(path, openAIService::handleOpenAIEmbeddingsRequest);
+		}
+	}
 	
 	
 	public OllamaRouterHandler() {
@@ -90,7 +129,6 @@ public class OllamaRouterHandler extends SimpleChannelInboundHandler<FullHttpReq
 			return;
 		}
 		String uri = request.uri();
-		logger.info("ollama - 收到请求: {} {}", request.method().name(), uri);
 		// 傻逼浏览器不知道为什么一直在他妈的访问/.well-known/appspecific/com.chrome.devtools.json
 		if ("/.well-known/appspecific/com.chrome.devtools.json".equals(uri)) {
 			ctx.close();
@@ -115,78 +153,18 @@ public class OllamaRouterHandler extends SimpleChannelInboundHandler<FullHttpReq
 		}
 		//
 		try {
-			this.handleRequest(uri, ctx, request);
+			// 这些端点不能使用
+			// /api/copy /api/delete /api/pull /api/push /api/generate
+			if (!routes.dispatch(ctx, request)) {
+				this.sendOllamaNotFound(ctx);
+			}
 		} catch (RequestMethodException e) {
 			LlamaServer.sendJsonResponse(ctx, ApiResponse.error(e.getMessage()));
+		} catch (Exception e) {
+			logger.info("ollama - 处理请求时发生错误: " + uri, e);
+			LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, "服务器内部错误");
 		}
 	}
-	
-	/**
-	 * 	正经处理请求的地方。
-	 * @param uri
-	 * @param ctx
-	 * @param request
-	 * @return
-	 * @throws RequestMethodException
-	 */
-	private boolean handleRequest(String uri, ChannelHandlerContext ctx, FullHttpRequest request)
-			throws RequestMethodException {
-		if (request.method() == HttpMethod.OPTIONS) {
-			if (uri.startsWith("/api/tags") || uri.startsWith("/api/chat") || uri.startsWith("/api/show") || uri.startsWith("/api/embed")) {
-				LlamaServer.sendCorsResponse(ctx);
-				return true;
-			}
-		}
-		// 1、第一个，一般用来获取全部可用的模型。
-		if (uri.startsWith("/api/tags")) {
-			this.ollamaTagsService.handleModelList(ctx, request);
-			return true;
-		}
-		// 查阅指定模型的详细信息。
-		if (uri.startsWith("/api/show")) {
-			this.ollamaShowService.handleShow(ctx, request);
-			return true;
-		}
-		// 聊天补全。
-		if (uri.startsWith("/api/chat")) {
-			this.ollamaChatService.handleChat(ctx, request);
-			return true;
-		}
-		// 文本嵌入
-		if (uri.startsWith("/api/embed")) {
-			this.ollamaEmbedService.handleEmbed(ctx, request);
-			return true;
-		}
-		// 列出正在运行的模型。
-		if (uri.startsWith("/api/ps")) {
-			this.ollamaTagsService.handleLoadedModel(ctx, request);
-			return true;
-		}
-		// 补上openAI的通用端点
-		// 聊天补全
-		if (uri.startsWith("/v1/models") || uri.startsWith("/models")) {
-			this.openAIService.handleOpenAIModelsRequest(ctx, request);
-			return true;
-		}
-		if (uri.startsWith("/v1/chat/completions") || uri.startsWith("/v1/chat/completion") || uri.startsWith("/chat/completion")) {
-			this.openAIService.handleOpenAIChatCompletionsRequest(ctx, request);
-			return true;
-		}
-		// 文本补全
-		if (uri.startsWith("/v1/completions") || uri.startsWith("/completions")) {
-			this.openAIService.handleOpenAICompletionsRequest(ctx, request);
-			return true;
-		}
-		if (uri.startsWith("/v1/embeddings") || uri.startsWith("/embeddings")) {
-			this.openAIService.handleOpenAIEmbeddingsRequest(ctx, request);
-			return true;
-		}
-		
-		// 这些端点不能使用
-		// /api/copy /api/delete /api/pull /api/push /api/generate
-		this.sendOllamaNotFound(ctx);
-		return true;
-	}
 
 	private void sendOllamaNotFound(ChannelHandlerContext ctx) {
 		String json = "{\"error\":\"Not Found\"}";
@@ -210,9 +188,8 @@ public class OllamaRouterHandler extends SimpleChannelInboundHandler<FullHttpReq
 
 	@Override
 	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-		logger.info("ollama 客户端连接关闭：{}", ctx);
-		this.ollamaChatService.channelInactive(ctx);
-		this.openAIService.channelInactive(ctx);
+		ollamaChatService.channelInactive(ctx);
+		openAIService.channelInactive(ctx);
 		super.channelInactive(ctx);
 	}
 	
@@ -220,7 +197,7 @@ public class OllamaRouterHandler extends SimpleChannelInboundHandler<FullHttpReq
 	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
 		logger.info("处理请求时发生异常", cause);
 		try {
-			this.ollamaChatService.channelInactive(ctx);
+			ollamaChatService.channelInactive(ctx);
 		} catch (Exception e) {
 			e.printStackTrace();
 		};
@@ -13,6 +13,7 @@ import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
+import org.mark.llamacpp.server.cache.ApiSnapshots;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -218,6 +219,8 @@ public class LlamaCppProcess {
 			}
 
 			this.isRunning.set(true);
+			// 进程退出（包括意外退出）后已加载模型的状态会变
+			this.process.onExit().thenRun(() -> ApiSnapshots.getInstance().bump(ApiSnapshots.MODELS));
 
 			// 启动输出读取线程
 			this.startOutputReaders();
@@ -1,7 +1,6 @@
 package org.mark.llamacpp.server;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.RandomAccessFile;
@@ -16,12 +15,17 @@ import java.util.Map;
 
 import org.mark.llamacpp.lmstudio.LMStudio;
 import org.mark.llamacpp.ollama.Ollama;
+import org.mark.llamacpp.server.cache.ApiSnapshots;
+import org.mark.llamacpp.server.cache.StaticAssets;
 import org.mark.llamacpp.server.channel.AnthropicRouterHandler;
 import org.mark.llamacpp.server.channel.BasicRouterHandler;
-import org.mark.llamacpp.server.channel.CompletionRouterHandler;
-import org.mark.llamacpp.server.channel.FileDownloadRouterHandler;
+import org.mark.llamacpp.server.channel.HttpPipeline;
+import org.mark.llamacpp.server.channel.NettyTransport;
 import org.mark.llamacpp.server.channel.OpenAIRouterHandler;
+import org.mark.llamacpp.server.channel.StreamingIngressHandler;
+import org.mark.llamacpp.server.io.AccessLog;
 import org.mark.llamacpp.server.io.ConsoleBroadcastOutputStream;
+import org.mark.llamacpp.server.io.ConsolePipeline;
 import org.mark.llamacpp.server.mcp.McpClientService;
 import org.mark.llamacpp.server.struct.LlamaCppConfig;
 import org.mark.llamacpp.server.struct.LlamaCppDataStruct;
@@ -35,6 +39,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 import io.netty.bootstrap.ServerBootstrap;
@@ -43,19 +48,17 @@ import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
-import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
@@ -73,8 +76,8 @@ public class LlamaServer {
 		// 这里重定向输出流
 		try {
 			Files.createDirectories(CONSOLE_LOG_PATH.getParent());
-			ConsoleBroadcastOutputStream out = new ConsoleBroadcastOutputStream(
-					new FileOutputStream(CONSOLE_LOG_PATH.toFile(), true), StandardCharsets.UTF_8);
+			ConsolePipeline.getInstance().start(CONSOLE_LOG_PATH);
+			ConsoleBroadcastOutputStream out = new ConsoleBroadcastOutputStream(ConsolePipeline.getInstance(), StandardCharsets.UTF_8);
 			PrintStream ps = new PrintStream(out, true, StandardCharsets.UTF_8.name());
 			System.setOut(ps);
 			System.setErr(ps);
@@ -87,6 +90,10 @@ public class LlamaServer {
 		// 加载application.json配置文件
 		logger.info("正在加载application.json配置...");
 		loadApplicationConfig();
+		
+		// 网页静态资源读进内存
+		logger.info("正在加载网页静态资源...");
+		StaticAssets.getInstance().load();
 
 		// 初始化配置管理器并加载配置
 		logger.info("正在初始化配置管理器...");
@@ -110,6 +117,9 @@ public class LlamaServer {
 			logger.info("MCP初始化失败: {}", e.getMessage());
 		}
 
+		// 访问日志的后台写入线程
+		AccessLog.getInstance().start();
+
 		logger.info("系统初始化完成，启动Web服务器...");
 
 		Thread t1 = new Thread(() -> {
@@ -228,6 +238,231 @@ public class LlamaServer {
 	private static volatile boolean lmstudioCompatEnabled = false;
 	
 	private static volatile int lmstudioCompatPort = 1234;
+	
+	/**
+	 * 	客户端连接写缓冲的低水位，积压降到这里以下才恢复读取llama.cpp的响应。
+	 */
+	private static volatile int streamLowWaterMark = 32 * 1024;
+	
+	/**
+	 * 	客户端连接写缓冲的高水位，积压超过这里就暂停读取llama.cpp的响应。
+	 */
+	private static volatile int streamHighWaterMark = 256 * 1024;
+	
+	/**
+	 * 	单个连接允许积压的最大字节数，超过后放弃这个流。
+	 */
+	private static volatile int streamMaxPendingBytes = 8 * 1024 * 1024;
+	
+	/**
+	 * 	流式响应攒够多少个数据块后flush一次。
+	 */
+	private static volatile int streamFlushMaxEvents = 16;
+	
+	/**
+	 * 	流式响应的数据块最多等待多少毫秒就flush。小于等于0表示每个数据块立即flush。
+	 */
+	private static volatile long streamFlushMaxDelayMs = 5;
+	
+	/**
+	 * 	单个流式响应最长生成多少毫秒，超过后以finish_reason=length结束。小于等于0表示不限制。
+	 */
+	private static volatile long streamMaxWallTimeMs = 0;
+	
+	/**
+	 * 	请求默认的截止时间（毫秒，包括排队），到期后关闭上游连接。小于等于0表示不限制。
+	 */
+	private static volatile long deadlineDefaultMs = 0;
+	
+	/**
+	 * 	接口路径前缀对应的截止时间（毫秒），覆盖默认值。
+	 */
+	private static volatile Map<String, String> deadlineEndpointMs = new HashMap<>(Map.of("/v1/messages/count_tokens", "30000"));
+	
+	/**
+	 * 	是否按模型的slot数量排队。
+	 */
+	private static volatile boolean schedulerEnabled = true;
+	
+	/**
+	 * 	每个模型最多排队的请求数。
+	 */
+	private static volatile int schedulerMaxQueue = 64;
+	
+	/**
+	 * 	排队的最长等待时间（毫秒）。
+	 */
+	private static volatile long schedulerMaxWaitMs = 120 * 1000;
+	
+	/**
+	 * 	低优先级队列最多连续被跳过多少次，之后先放行一个。小于等于0表示严格按优先级。
+	 */
+	private static volatile int schedulerStarvationLimit = 8;
+	
+	/**
+	 * 	API Key对应的优先级（interactive、normal、bulk）。
+	 */
+	private static volatile Map<String, String> schedulerApiKeyPriorities = new HashMap<>();
+	
+	/**
+	 * 	接口路径前缀对应的优先级。
+	 */
+	private static volatile Map<String, String> schedulerEndpointPriorities = new HashMap<>();
+	
+	/**
+	 * 	请求超过多少毫秒没有收到响应头就对冲到另一个副本，小于等于0表示不对冲。
+	 */
+	private static volatile long replicaHedgeAfterMs = 0;
+	
+	/**
+	 * 	副本连续失败多少次后移出轮换。
+	 */
+	private static volatile int replicaFailureThreshold = 2;
+	
+	/**
+	 * 	是否按提示词前缀把请求固定到同一个slot，复用KV缓存。
+	 */
+	private static volatile boolean affinityEnabled = true;
+	
+	/**
+	 * 	最多记录多少个前缀。
+	 */
+	private static volatile int affinityMaxEntries = 4096;
+	
+	/**
+	 * 	是否缓存结果确定的请求（embeddings、temperature为0或者固定seed）的响应。
+	 */
+	private static volatile boolean responseCacheEnabled = false;
+	
+	/**
+	 * 	响应缓存占用的内存上限（字节）。
+	 */
+	private static volatile long responseCacheMaxBytes = 64L * 1024 * 1024;
+	
+	/**
+	 * 	响应缓存的有效期（秒）。
+	 */
+	private static volatile long responseCacheTtlSeconds = 600;
+	
+	/**
+	 * 	embeddings小请求的合并窗口（毫秒），小于等于0表示不合并。
+	 */
+	private static volatile long embeddingBatchWindowMs = 5;
+	
+	/**
+	 * 	一次上游embeddings调用最多包含多少条输入。
+	 */
+	private static volatile int embeddingMaxBatchInputs = 64;
+	
+	/**
+	 * 	是否合并正在执行的完全相同的请求（只针对结果确定的请求）。
+	 */
+	private static volatile boolean singleFlightEnabled = true;
+	
+	/**
+	 * 	合并请求最多记录多少字节的响应，用于补发给后来挂上的请求。超过后不再接受挂靠。
+	 */
+	private static volatile long singleFlightMaxReplayBytes = 4L * 1024 * 1024;
+	
+	/**
+	 * 	推理接口的请求体超过这个大小（或者没有Content-Length）时不再聚合，边收边转发给llama-server。小于等于0表示不启用。
+	 */
+	private static volatile long ingressStreamThresholdBytes = 1024L * 1024;
+	
+	/**
+	 * 	流式转发的请求体大小上限。
+	 */
+	private static volatile long ingressMaxBodyBytes = 1024L * 1024 * 1024;
+	
+	/**
+	 * 	是否保持HTTP/1.1长连接。关闭后每个响应结束都断开连接。
+	 */
+	private static volatile boolean httpKeepAlive = true;
+	
+	/**
+	 * 	长连接两个请求之间最多空闲多少秒，超过后断开。小于等于0表示不限制。
+	 */
+	private static volatile int httpIdleTimeoutSeconds = 60;
+	
+	/**
+	 * 	一条连接最多处理多少个请求，之后的响应带上Connection: close。小于等于0表示不限制。
+	 */
+	private static volatile int httpMaxRequestsPerConnection = 1000;
+	
+	/**
+	 * 	是否接受HTTP/2明文连接（h2c）。
+	 */
+	private static volatile boolean httpH2c = true;
+	
+	/**
+	 * 	一条HTTP/2连接上最多同时进行多少个流。小于等于0表示不限制。
+	 */
+	private static volatile int httpH2MaxConcurrentStreams = 256;
+	
+	/**
+	 * 	Linux上是否使用原生epoll传输，不可用时自动使用NIO。
+	 */
+	private static volatile boolean transportNative = true;
+	
+	/**
+	 * 	所有监听端口共用的boss线程数。开启SO_REUSEPORT时每个线程绑定一个监听socket。
+	 */
+	private static volatile int transportBossThreads = 1;
+	
+	/**
+	 * 	所有连接共用的worker线程数。小于等于0时等于CPU核数。
+	 */
+	private static volatile int transportWorkerThreads = 0;
+	
+	/**
+	 * 	是否开启SO_REUSEPORT多监听socket，只在epoll下生效。
+	 */
+	private static volatile boolean transportReusePort = false;
+	
+	/**
+	 * 	是否记录访问日志。
+	 */
+	private static volatile boolean accessLogEnabled = true;
+	
+	/**
+	 * 	访问日志文件，每个请求一行JSON。
+	 */
+	private static volatile String accessLogPath = "logs/access.log";
+	
+	/**
+	 * 	单个访问日志文件的大小上限（字节），超过后滚动，小于等于0时不滚动。
+	 */
+	private static volatile long accessLogMaxBytes = 64L * 1024 * 1024;
+	
+	/**
+	 * 	滚动后保留的旧文件数量。
+	 */
+	private static volatile int accessLogMaxFiles = 5;
+	
+	/**
+	 * 	等待写入的记录数上限，满了之后丢弃。
+	 */
+	private static volatile int accessLogBufferSize = 8192;
+	
+	/**
+	 * 	接口路径前缀对应的抽样率（0~1），只作用于成功的请求；没有配置的路径全部记录。
+	 */
+	private static volatile Map<String, String> accessLogSampleRates = new HashMap<>(Map.of("/api/sys/", "0.1", "/api/models/", "0.1", "/api/downloads/", "0.1"));
+	
+	/**
+	 * 	console.log的大小上限（字节），超过后压缩归档，小于等于0时不滚动。
+	 */
+	private static volatile long consoleMaxBytes = 32L * 1024 * 1024;
+	
+	/**
+	 * 	保留的控制台日志压缩文件数量。
+	 */
+	private static volatile int consoleMaxFiles = 5;
+	
+	/**
+	 * 	控制台输出合并写出和广播的间隔（毫秒）。
+	 */
+	private static volatile int consoleFlushIntervalMs = 100;
 
 	//##############################################################################################################################
 	
@@ -288,6 +523,202 @@ public class LlamaServer {
 				anthropicPort = server.get("anthropicPort").getAsInt();
 			}
 		}
+		
+		if (root.has("stream")) {
+			JsonObject stream = root.getAsJsonObject("stream");
+			if (stream.has("lowWaterMark")) {
+				streamLowWaterMark = stream.get("lowWaterMark").getAsInt();
+			}
+			if (stream.has("highWaterMark")) {
+				streamHighWaterMark = stream.get("highWaterMark").getAsInt();
+			}
+			if (stream.has("maxPendingBytes")) {
+				streamMaxPendingBytes = stream.get("maxPendingBytes").getAsInt();
+			}
+			if (stream.has("flushMaxEvents")) {
+				streamFlushMaxEvents = stream.get("flushMaxEvents").getAsInt();
+			}
+			if (stream.has("flushMaxDelayMs")) {
+				streamFlushMaxDelayMs = stream.get("flushMaxDelayMs").getAsLong();
+			}
+			if (stream.has("maxWallTimeMs")) {
+				streamMaxWallTimeMs = stream.get("maxWallTimeMs").getAsLong();
+			}
+			// 水位不合法时恢复默认值
+			if (streamLowWaterMark <= 0 || streamHighWaterMark < streamLowWaterMark) {
+				logger.info("stream水位配置不合法，使用默认值: low={}, high={}", streamLowWaterMark, streamHighWaterMark);
+				streamLowWaterMark = 32 * 1024;
+				streamHighWaterMark = 256 * 1024;
+			}
+			if (streamMaxPendingBytes < streamHighWaterMark) {
+				streamMaxPendingBytes = streamHighWaterMark;
+			}
+		}
+
+		if (root.has("deadline")) {
+			JsonObject deadline = root.getAsJsonObject("deadline");
+			if (deadline.has("defaultMs")) {
+				deadlineDefaultMs = deadline.get("defaultMs").getAsLong();
+			}
+			if (deadline.has("endpointMs") && deadline.get("endpointMs").isJsonObject()) {
+				deadlineEndpointMs = readStringMap(deadline.getAsJsonObject("endpointMs"));
+			}
+		}
+
+		if (root.has("scheduler")) {
+			JsonObject scheduler = root.getAsJsonObject("scheduler");
+			if (scheduler.has("enabled")) {
+				schedulerEnabled = scheduler.get("enabled").getAsBoolean();
+			}
+			if (scheduler.has("maxQueue")) {
+				schedulerMaxQueue = Math.max(0, scheduler.get("maxQueue").getAsInt());
+			}
+			if (scheduler.has("maxWaitMs")) {
+				schedulerMaxWaitMs = Math.max(1, scheduler.get("maxWaitMs").getAsLong());
+			}
+			if (scheduler.has("starvationLimit")) {
+				schedulerStarvationLimit = scheduler.get("starvationLimit").getAsInt();
+			}
+			if (scheduler.has("apiKeyPriorities") && scheduler.get("apiKeyPriorities").isJsonObject()) {
+				schedulerApiKeyPriorities = readStringMap(scheduler.getAsJsonObject("apiKeyPriorities"));
+			}
+			if (scheduler.has("endpointPriorities") && scheduler.get("endpointPriorities").isJsonObject()) {
+				schedulerEndpointPriorities = readStringMap(scheduler.getAsJsonObject("endpointPriorities"));
+			}
+		}
+
+		if (root.has("replicas")) {
+			JsonObject replicas = root.getAsJsonObject("replicas");
+			if (replicas.has("hedgeAfterMs")) {
+				replicaHedgeAfterMs = replicas.get("hedgeAfterMs").getAsLong();
+			}
+			if (replicas.has("failureThreshold")) {
+				replicaFailureThreshold = Math.max(1, replicas.get("failureThreshold").getAsInt());
+			}
+		}
+
+		if (root.has("affinity")) {
+			JsonObject affinity = root.getAsJsonObject("affinity");
+			if (affinity.has("enabled")) {
+				affinityEnabled = affinity.get("enabled").getAsBoolean();
+			}
+			if (affinity.has("maxEntries")) {
+				affinityMaxEntries = Math.max(16, affinity.get("maxEntries").getAsInt());
+			}
+		}
+
+		if (root.has("responseCache")) {
+			JsonObject responseCache = root.getAsJsonObject("responseCache");
+			if (responseCache.has("enabled")) {
+				responseCacheEnabled = responseCache.get("enabled").getAsBoolean();
+			}
+			if (responseCache.has("maxBytes")) {
+				responseCacheMaxBytes = Math.max(1024 * 1024, responseCache.get("maxBytes").getAsLong());
+			}
+			if (responseCache.has("ttlSeconds")) {
+				responseCacheTtlSeconds = Math.max(1, responseCache.get("ttlSeconds").getAsLong());
+			}
+		}
+
+		if (root.has("embedding")) {
+			JsonObject embedding = root.getAsJsonObject("embedding");
+			if (embedding.has("batchWindowMs")) {
+				embeddingBatchWindowMs = embedding.get("batchWindowMs").getAsLong();
+			}
+			if (embedding.has("maxBatchInputs")) {
+				embeddingMaxBatchInputs = Math.max(1, embedding.get("maxBatchInputs").getAsInt());
+			}
+		}
+
+		if (root.has("singleFlight")) {
+			JsonObject singleFlight = root.getAsJsonObject("singleFlight");
+			if (singleFlight.has("enabled")) {
+				singleFlightEnabled = singleFlight.get("enabled").getAsBoolean();
+			}
+			if (singleFlight.has("maxReplayBytes")) {
+				singleFlightMaxReplayBytes = Math.max(0, singleFlight.get("maxReplayBytes").getAsLong());
+			}
+		}
+
+		if (root.has("ingress")) {
+			JsonObject ingress = root.getAsJsonObject("ingress");
+			if (ingress.has("streamThresholdBytes")) {
+				ingressStreamThresholdBytes = ingress.get("streamThresholdBytes").getAsLong();
+			}
+			if (ingress.has("maxBodyBytes")) {
+				ingressMaxBodyBytes = Math.max(MAX_HTTP_CONTENT_LENGTH, ingress.get("maxBodyBytes").getAsLong());
+			}
+		}
+
+		if (root.has("http")) {
+			JsonObject http = root.getAsJsonObject("http");
+			if (http.has("keepAlive")) {
+				httpKeepAlive = http.get("keepAlive").getAsBoolean();
+			}
+			if (http.has("idleTimeoutSeconds")) {
+				httpIdleTimeoutSeconds = http.get("idleTimeoutSeconds").getAsInt();
+			}
+			if (http.has("maxRequestsPerConnection")) {
+				httpMaxRequestsPerConnection = http.get("maxRequestsPerConnection").getAsInt();
+			}
+			if (http.has("h2c")) {
+				httpH2c = http.get("h2c").getAsBoolean();
+			}
+			if (http.has("h2MaxConcurrentStreams")) {
+				httpH2MaxConcurrentStreams = http.get("h2MaxConcurrentStreams").getAsInt();
+			}
+		}
+
+		if (root.has("transport")) {
+			JsonObject transport = root.getAsJsonObject("transport");
+			if (transport.has("native")) {
+				transportNative = transport.get("native").getAsBoolean();
+			}
+			if (transport.has("bossThreads")) {
+				transportBossThreads = Math.max(1, transport.get("bossThreads").getAsInt());
+			}
+			if (transport.has("workerThreads")) {
+				transportWorkerThreads = transport.get("workerThreads").getAsInt();
+			}
+			if (transport.has("reusePort")) {
+				transportReusePort = transport.get("reusePort").getAsBoolean();
+			}
+		}
+
+		if (root.has("accessLog")) {
+			JsonObject accessLog = root.getAsJsonObject("accessLog");
+			if (accessLog.has("enabled")) {
+				accessLogEnabled = accessLog.get("enabled").getAsBoolean();
+			}
+			if (accessLog.has("path")) {
+				accessLogPath = accessLog.get("path").getAsString();
+			}
+			if (accessLog.has("maxBytes")) {
+				accessLogMaxBytes = accessLog.get("maxBytes").getAsLong();
+			}
+			if (accessLog.has("maxFiles")) {
+				accessLogMaxFiles = Math.max(1, accessLog.get("maxFiles").getAsInt());
+			}
+			if (accessLog.has("bufferSize")) {
+				accessLogBufferSize = Math.max(64, accessLog.get("bufferSize").getAsInt());
+			}
+			if (accessLog.has("sampleRates") && accessLog.get("sampleRates").isJsonObject()) {
+				accessLogSampleRates = readStringMap(accessLog.getAsJsonObject("sampleRates"));
+			}
+		}
+
+		if (root.has("console")) {
+			JsonObject console = root.getAsJsonObject("console");
+			if (console.has("maxBytes")) {
+				consoleMaxBytes = console.get("maxBytes").getAsLong();
+			}
+			if (console.has("maxFiles")) {
+				consoleMaxFiles = Math.max(1, console.get("maxFiles").getAsInt());
+			}
+			if (console.has("flushIntervalMs")) {
+				consoleFlushIntervalMs = Math.max(10, console.get("flushIntervalMs").getAsInt());
+			}
+		}
 
 		if (root.has("download")) {
 			JsonObject download = root.getAsJsonObject("download");
@@ -347,6 +778,90 @@ public class LlamaServer {
 				server.addProperty("webPort", webPort);
 				server.addProperty("anthropicPort", anthropicPort);
 				root.add("server", server);
+				
+				JsonObject stream = new JsonObject();
+				stream.addProperty("lowWaterMark", streamLowWaterMark);
+				stream.addProperty("highWaterMark", streamHighWaterMark);
+				stream.addProperty("maxPendingBytes", streamMaxPendingBytes);
+				stream.addProperty("flushMaxEvents", streamFlushMaxEvents);
+				stream.addProperty("flushMaxDelayMs", streamFlushMaxDelayMs);
+				stream.addProperty("maxWallTimeMs", streamMaxWallTimeMs);
+				root.add("stream", stream);
+				
+				JsonObject deadline = new JsonObject();
+				deadline.addProperty("defaultMs", deadlineDefaultMs);
+				deadline.add("endpointMs", GSON.toJsonTree(deadlineEndpointMs));
+				root.add("deadline", deadline);
+				
+				JsonObject scheduler = new JsonObject();
+				scheduler.addProperty("enabled", schedulerEnabled);
+				scheduler.addProperty("maxQueue", schedulerMaxQueue);
+				scheduler.addProperty("maxWaitMs", schedulerMaxWaitMs);
+				scheduler.addProperty("starvationLimit", schedulerStarvationLimit);
+				scheduler.add("apiKeyPriorities", GSON.toJsonTree(schedulerApiKeyPriorities));
+				scheduler.add("endpointPriorities", GSON.toJsonTree(schedulerEndpointPriorities));
+				root.add("scheduler", scheduler);
+				
+				JsonObject replicas = new JsonObject();
+				replicas.addProperty("hedgeAfterMs", replicaHedgeAfterMs);
+				replicas.addProperty("failureThreshold", replicaFailureThreshold);
+				root.add("replicas", replicas);
+				
+				JsonObject affinity = new JsonObject();
+				affinity.addProperty("enabled", affinityEnabled);
+				affinity.addProperty("maxEntries", affinityMaxEntries);
+				root.add("affinity", affinity);
+				
+				JsonObject responseCache = new JsonObject();
+				responseCache.addProperty("enabled", responseCacheEnabled);
+				responseCache.addProperty("maxBytes", responseCacheMaxBytes);
+				responseCache.addProperty("ttlSeconds", responseCacheTtlSeconds);
+				root.add("responseCache", responseCache);
+				
+				JsonObject embedding = new JsonObject();
+				embedding.addProperty("batchWindowMs", embeddingBatchWindowMs);
+				embedding.addProperty("maxBatchInputs", embeddingMaxBatchInputs);
+				root.add("embedding", embedding);
+				
+				JsonObject singleFlight = new JsonObject();
+				singleFlight.addProperty("enabled", singleFlightEnabled);
+				singleFlight.addProperty("maxReplayBytes", singleFlightMaxReplayBytes);
+				root.add("singleFlight", singleFlight);
+				
+				JsonObject ingress = new JsonObject();
+				ingress.addProperty("streamThresholdBytes", ingressStreamThresholdBytes);
+				ingress.addProperty("maxBodyBytes", ingressMaxBodyBytes);
+				root.add("ingress", ingress);
+				
+				JsonObject http = new JsonObject();
+				http.addProperty("keepAlive", httpKeepAlive);
+				http.addProperty("idleTimeoutSeconds", httpIdleTimeoutSeconds);
+				http.addProperty("maxRequestsPerConnection", httpMaxRequestsPerConnection);
+				http.addProperty("h2c", httpH2c);
+				http.addProperty("h2MaxConcurrentStreams", httpH2MaxConcurrentStreams);
+				root.add("http", http);
+				
+				JsonObject transport = new JsonObject();
+				transport.addProperty("native", transportNative);
+				transport.addProperty("bossThreads", transportBossThreads);
+				transport.addProperty("workerThreads", transportWorkerThreads);
+				transport.addProperty("reusePort", transportReusePort);
+				root.add("transport", transport);
+				
+				JsonObject accessLog = new JsonObject();
+				accessLog.addProperty("enabled", accessLogEnabled);
+				accessLog.addProperty("path", accessLogPath);
+				accessLog.addProperty("maxBytes", accessLogMaxBytes);
+				accessLog.addProperty("maxFiles", accessLogMaxFiles);
+				accessLog.addProperty("bufferSize", accessLogBufferSize);
+				accessLog.add("sampleRates", GSON.toJsonTree(accessLogSampleRates));
+				root.add("accessLog", accessLog);
+				
+				JsonObject console = new JsonObject();
+				console.addProperty("maxBytes", consoleMaxBytes);
+				console.addProperty("maxFiles", consoleMaxFiles);
+				console.addProperty("flushIntervalMs", consoleFlushIntervalMs);
+				root.add("console", console);
 	
 				JsonObject download = new JsonObject();
 				download.addProperty("directory", downloadDirectory);
@@ -389,6 +904,21 @@ public class LlamaServer {
 		}
 	}
 
+	/**
+	 * 	把配置里的JSON对象读成字符串映射，忽略非字符串的值。
+	 * @param obj
+	 * @return
+	 */
+	private static Map<String, String> readStringMap(JsonObject obj) {
+		Map<String, String> map = new HashMap<>();
+		for (Map.Entry<String, JsonElement> e : obj.entrySet()) {
+			if (e.getValue() != null && e.getValue().isJsonPrimitive()) {
+				map.put(e.getKey(), e.getValue().getAsString());
+			}
+		}
+		return map;
+	}
+
 	public static JsonObject readApplicationConfig() {
 		return readApplicationConfig(false);
 	}
@@ -432,6 +962,216 @@ public class LlamaServer {
         LlamaServer.anthropicPort = anthropicPort;
     }
     
+    // ==================== 流式转发配置的get方法 ====================
+    
+    /**
+     * 	客户端连接使用的写缓冲水位。
+     * @return
+     */
+    public static WriteBufferWaterMark getStreamWriteBufferWaterMark() {
+    	return new WriteBufferWaterMark(streamLowWaterMark, streamHighWaterMark);
+    }
+    
+    public static int getStreamLowWaterMark() {
+    	return streamLowWaterMark;
+    }
+    
+    public static int getStreamMaxPendingBytes() {
+    	return streamMaxPendingBytes;
+    }
+    
+    public static int getStreamFlushMaxEvents() {
+    	return streamFlushMaxEvents;
+    }
+    
+    public static long getStreamFlushMaxDelayMs() {
+    	return streamFlushMaxDelayMs;
+    }
+    
+    public static long getStreamMaxWallTimeMs() {
+    	return streamMaxWallTimeMs;
+    }
+    
+    // ==================== 截止时间配置的get方法 ====================
+    
+    public static long getDeadlineDefaultMs() {
+    	return deadlineDefaultMs;
+    }
+    
+    public static Map<String, String> getDeadlineEndpointMs() {
+    	return deadlineEndpointMs;
+    }
+    
+    // ==================== 排队配置的get方法 ====================
+    
+    public static boolean isSchedulerEnabled() {
+    	return schedulerEnabled;
+    }
+    
+    public static int getSchedulerMaxQueue() {
+    	return schedulerMaxQueue;
+    }
+    
+    public static long getSchedulerMaxWaitMs() {
+    	return schedulerMaxWaitMs;
+    }
+    
+    public static int getSchedulerStarvationLimit() {
+    	return schedulerStarvationLimit;
+    }
+    
+    public static Map<String, String> getSchedulerApiKeyPriorities() {
+    	return schedulerApiKeyPriorities;
+    }
+    
+    public static Map<String, String> getSchedulerEndpointPriorities() {
+    	return schedulerEndpointPriorities;
+    }
+    
+    // ==================== 多副本配置的get方法 ====================
+    
+    public static long getReplicaHedgeAfterMs() {
+    	return replicaHedgeAfterMs;
+    }
+    
+    public static int getReplicaFailureThreshold() {
+    	return replicaFailureThreshold;
+    }
+    
+    // ==================== 前缀亲和配置的get方法 ====================
+    
+    public static boolean isAffinityEnabled() {
+    	return affinityEnabled;
+    }
+    
+    public static int getAffinityMaxEntries() {
+    	return affinityMaxEntries;
+    }
+    
+    // ==================== 响应缓存配置的get方法 ====================
+    
+    public static boolean isResponseCacheEnabled() {
+    	return responseCacheEnabled;
+    }
+    
+    public static long getResponseCacheMaxBytes() {
+    	return responseCacheMaxBytes;
+    }
+    
+    public static long getResponseCacheTtlSeconds() {
+    	return responseCacheTtlSeconds;
+    }
+    
+    // ==================== embeddings合并配置的get方法 ====================
+    
+    public static long getEmbeddingBatchWindowMs() {
+    	return embeddingBatchWindowMs;
+    }
+    
+    public static int getEmbeddingMaxBatchInputs() {
+    	return embeddingMaxBatchInputs;
+    }
+    
+    // ==================== 相同请求合并配置的get方法 ====================
+    
+    public static boolean isSingleFlightEnabled() {
+    	return singleFlightEnabled;
+    }
+    
+    public static long getSingleFlightMaxReplayBytes() {
+    	return singleFlightMaxReplayBytes;
+    }
+    
+    // ==================== 请求体流式转发配置的get方法 ====================
+    
+    public static long getIngressStreamThresholdBytes() {
+    	return ingressStreamThresholdBytes;
+    }
+    
+    public static long getIngressMaxBodyBytes() {
+    	return ingressMaxBodyBytes;
+    }
+    
+    // ==================== 长连接配置的get方法 ====================
+    
+    public static boolean isHttpKeepAlive() {
+    	return httpKeepAlive;
+    }
+    
+    public static int getHttpIdleTimeoutSeconds() {
+    	return httpIdleTimeoutSeconds;
+    }
+    
+    public static int getHttpMaxRequestsPerConnection() {
+    	return httpMaxRequestsPerConnection;
+    }
+    
+    public static boolean isHttpH2cEnabled() {
+    	return httpH2c;
+    }
+    
+    public static int getHttpH2MaxConcurrentStreams() {
+    	return httpH2MaxConcurrentStreams;
+    }
+    
+    // ==================== 传输层配置的get方法 ====================
+    
+    public static boolean isTransportNative() {
+    	return transportNative;
+    }
+    
+    public static int getTransportBossThreads() {
+    	return transportBossThreads;
+    }
+    
+    public static int getTransportWorkerThreads() {
+    	return transportWorkerThreads;
+    }
+    
+    public static boolean isTransportReusePort() {
+    	return transportReusePort;
+    }
+    
+    // ==================== 访问日志配置的get方法 ====================
+    
+    public static boolean isAccessLogEnabled() {
+    	return accessLogEnabled;
+    }
+    
+    public static String getAccessLogPath() {
+    	return accessLogPath;
+    }
+    
+    public static long getAccessLogMaxBytes() {
+    	return accessLogMaxBytes;
+    }
+    
+    public static int getAccessLogMaxFiles() {
+    	return accessLogMaxFiles;
+    }
+    
+    public static int getAccessLogBufferSize() {
+    	return accessLogBufferSize;
+    }
+    
+    public static Map<String, String> getAccessLogSampleRates() {
+    	return accessLogSampleRates;
+    }
+    
+    // ==================== 控制台日志配置的get方法 ====================
+    
+    public static long getConsoleMaxBytes() {
+    	return consoleMaxBytes;
+    }
+    
+    public static int getConsoleMaxFiles() {
+    	return consoleMaxFiles;
+    }
+    
+    public static int getConsoleFlushIntervalMs() {
+    	return consoleFlushIntervalMs;
+    }
+    
     // ==================== 下载目录配置的get/set方法 ====================
     
     public static String getDownloadDirectory() {
@@ -521,26 +1261,19 @@ public class LlamaServer {
     
     
     private static void bindAnthropic(int port) {
-        EventLoopGroup bossGroup = new NioEventLoopGroup(1);
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
-        
         try {
-            ServerBootstrap bootstrap = new ServerBootstrap();
-            bootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
-                    .option(ChannelOption.SO_BACKLOG, 1024)
+            ServerBootstrap bootstrap = NettyTransport.getInstance().serverBootstrap();
+            bootstrap.option(ChannelOption.SO_BACKLOG, 1024)
                     .childOption(ChannelOption.SO_KEEPALIVE, true)
+                    .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, getStreamWriteBufferWaterMark())
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel ch) throws Exception {
-                            ch.pipeline()
-                                    .addLast(new HttpServerCodec())
+                            HttpPipeline.init(ch, MAX_HTTP_CONTENT_LENGTH, p -> p
                                     .addLast(new HttpObjectAggregator(MAX_HTTP_CONTENT_LENGTH))
                                     .addLast(new ChunkedWriteHandler())
                                     .addLast(new BasicRouterHandler())
-                                    .addLast(new CompletionRouterHandler())
-                                    .addLast(new AnthropicRouterHandler())
-                                    .addLast(new FileDownloadRouterHandler());
+                                    .addLast(new AnthropicRouterHandler()));
                         }
                         
                         @Override
@@ -550,7 +1283,7 @@ public class LlamaServer {
                         }
                     });
             
-            ChannelFuture future = bootstrap.bind(port).sync();
+            ChannelFuture future = NettyTransport.getInstance().bind(bootstrap, port).sync();
             logger.info("LlammServer启动成功，端口: {}", port);
             logger.info("访问地址: http://localhost:{}", port);
             
@@ -561,38 +1294,33 @@ public class LlamaServer {
         } catch (Exception e) {
             logger.info("服务器启动失败", e);
         } finally {
-            bossGroup.shutdownGracefully();
-            workerGroup.shutdownGracefully();
-            
             logger.info("服务器已关闭");
         }
     }
     
     
     private static void bindOpenAI(int port) {
-        EventLoopGroup bossGroup = new NioEventLoopGroup();
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
-        
         try {
-            ServerBootstrap bootstrap = new ServerBootstrap();
-            bootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
-                    .option(ChannelOption.SO_BACKLOG, 1024)
+            ServerBootstrap bootstrap = NettyTransport.getInstance().serverBootstrap();
+            bootstrap.option(ChannelOption.SO_BACKLOG, 1024)
                     .childOption(ChannelOption.SO_KEEPALIVE, true)
+                    .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, getStreamWriteBufferWaterMark())
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel ch) throws Exception {
-                            ch.pipeline()
-                                    .addLast(new HttpServerCodec())
+                            HttpPipeline.init(ch, MAX_HTTP_CONTENT_LENGTH, p -> {
+                                OpenAIRouterHandler openAIRouterHandler = new OpenAIRouterHandler();
+                                p
+                                    // 推理接口的大请求体在聚合之前接管，边收边转发
+                                    .addLast(new StreamingIngressHandler(openAIRouterHandler))
                                     .addLast(new HttpObjectAggregator(MAX_HTTP_CONTENT_LENGTH))
                                     .addLast(new ChunkedWriteHandler())
                                     .addLast(new WebSocketServerProtocolHandler(WEBSOCKET_PATH, null, true, Integer.MAX_VALUE))
                                     .addLast(new WebSocketServerHandler())
                                     
                                     .addLast(new BasicRouterHandler())
-                                    .addLast(new CompletionRouterHandler())
-                                    .addLast(new FileDownloadRouterHandler())
-                                    .addLast(new OpenAIRouterHandler());
+                                    .addLast(openAIRouterHandler);
+                            });
                         }
                         @Override
                         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
@@ -601,7 +1329,7 @@ public class LlamaServer {
                         }
                     });
             
-            ChannelFuture future = bootstrap.bind(port).sync();
+            ChannelFuture future = NettyTransport.getInstance().bind(bootstrap, port).sync();
             logger.info("LlammServer启动成功，端口: {}", port);
             logger.info("访问地址: http://localhost:{}", port);
             
@@ -612,9 +1340,6 @@ public class LlamaServer {
         } catch (Exception e) {
             logger.info("服务器启动失败", e);
         } finally {
-            bossGroup.shutdownGracefully();
-            workerGroup.shutdownGracefully();
-            
             logger.info("服务器已关闭");
         }
     }
@@ -680,14 +1405,18 @@ public class LlamaServer {
         WebSocketManager.getInstance().sendModelStopEvent(modelId, success, message);
     }
     
-    public static void sendConsoleLineEvent(String modelId, String line) {
-        WebSocketManager.getInstance().sendConsoleLineEvent(modelId, line);
+    public static void sendConsoleBatchEvent(String text, int lines, long epoch, long start, long cursor) {
+        WebSocketManager.getInstance().sendConsoleBatchEvent(text, lines, epoch, start, cursor);
     }
     
     public static void sendModelSlotsEvent(String modelId, com.google.gson.JsonArray slots) {
         WebSocketManager.getInstance().sendModelSlotsEvent(modelId, slots);
     }
     
+    public static void sendModelQueueEvent(String modelId, Map<String, Object> queue) {
+        WebSocketManager.getInstance().sendModelQueueEvent(modelId, queue);
+    }
+    
     //================================================================================================
     
     
@@ -861,6 +1590,49 @@ public class LlamaServer {
 		});
 	}
 
+	/**
+	 * 	发送版本化快照。客户端下次带着ETag来问，没变化时返回304。
+	 * @param ctx
+	 * @param snapshot
+	 */
+	public static void sendSnapshotResponse(ChannelHandlerContext ctx, ApiSnapshots.Snapshot snapshot) {
+		byte[] content = snapshot.getBody();
+
+		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+		response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
+		response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.length);
+		response.headers().set(HttpHeaderNames.ETAG, snapshot.getEtag());
+		response.headers().set(HttpHeaderNames.CACHE_CONTROL, "no-cache");
+		setCorsHeaders(response.headers());
+		response.content().writeBytes(content);
+
+		ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) {
+				ctx.close();
+			}
+		});
+	}
+
+	/**
+	 * 	发送304，没有响应体。
+	 * @param ctx
+	 * @param etag
+	 */
+	public static void sendNotModified(ChannelHandlerContext ctx, String etag) {
+		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+		response.headers().set(HttpHeaderNames.ETAG, etag);
+		response.headers().set(HttpHeaderNames.CACHE_CONTROL, "no-cache");
+		setCorsHeaders(response.headers());
+
+		ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) {
+				ctx.close();
+			}
+		});
+	}
+
 	public static void sendExpressJsonResponse(ChannelHandlerContext ctx, HttpResponseStatus status, Object data, boolean allowAllMethods) {
 		String json = JsonUtil.toJson(data);
 		byte[] content = json.getBytes(CharsetUtil.UTF_8);
@@ -953,6 +1725,42 @@ public class LlamaServer {
 		});
 	}
 	
+	/**
+	 * 	发送缓存的网页静态资源。按Accept-Encoding选择压缩版本，If-None-Match命中时返回304。
+	 * 	文件名带摘要或者请求带版本参数（?v=）的资源长期缓存，html每次都重新验证，其余缓存一小时。
+	 */
+	public static void sendAsset(ChannelHandlerContext ctx, FullHttpRequest request, StaticAssets.Asset asset, boolean versioned) {
+		StaticAssets.Variant variant = asset.select(request.headers().get(HttpHeaderNames.ACCEPT_ENCODING));
+		boolean notModified = asset.matches(request.headers().get(HttpHeaderNames.IF_NONE_MATCH));
+		FullHttpResponse response = notModified
+				? new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED)
+				: new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, variant.content());
+		HttpHeaders headers = response.headers();
+		headers.set(HttpHeaderNames.ETAG, variant.getEtag());
+		headers.set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+		if (asset.isHashed() || versioned) {
+			headers.set(HttpHeaderNames.CACHE_CONTROL, "public, max-age=31536000, immutable");
+		} else if (asset.getContentType().startsWith("text/html")) {
+			headers.set(HttpHeaderNames.CACHE_CONTROL, "no-cache");
+		} else {
+			headers.set(HttpHeaderNames.CACHE_CONTROL, "max-age=3600");
+		}
+		setCorsHeaders(headers);
+		if (!notModified) {
+			headers.set(HttpHeaderNames.CONTENT_TYPE, asset.getContentType());
+			headers.set(HttpHeaderNames.CONTENT_LENGTH, variant.length());
+			if (variant.getEncoding() != null) {
+				headers.set(HttpHeaderNames.CONTENT_ENCODING, variant.getEncoding());
+			}
+		}
+		ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) {
+				ctx.close();
+			}
+		});
+	}
+	
 	/**
 	 * 	
 	 * @param ctx
@@ -1041,6 +1849,18 @@ public class LlamaServer {
 			return "image/gif";
 		case "txt":
 			return "text/plain; charset=UTF-8";
+		case "md":
+			return "text/markdown; charset=UTF-8";
+		case "svg":
+			return "image/svg+xml";
+		case "ico":
+			return "image/x-icon";
+		case "woff":
+			return "font/woff";
+		case "woff2":
+			return "font/woff2";
+		case "ttf":
+			return "font/ttf";
 		default:
 			return "application/octet-stream";
 		}
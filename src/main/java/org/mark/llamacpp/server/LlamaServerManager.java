@@ -1,13 +1,7 @@
 package org.mark.llamacpp.server;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URI;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -41,8 +35,16 @@ import org.mark.llamacpp.server.struct.ApiResponse;
 import org.mark.llamacpp.server.struct.ModelPathConfig;
 import org.mark.llamacpp.server.struct.ModelPathDataStruct;
 import org.mark.llamacpp.server.tools.CommandLineRunner;
+import org.mark.llamacpp.server.tools.JsonUtil;
 import org.mark.llamacpp.server.tools.ParamTool;
 import org.mark.llamacpp.server.tools.PortChecker;
+import org.mark.llamacpp.server.cache.ApiSnapshots;
+import org.mark.llamacpp.server.cache.ResponseCache;
+import org.mark.llamacpp.server.replica.Replica;
+import org.mark.llamacpp.server.replica.ReplicaRouter;
+import org.mark.llamacpp.server.scheduler.ModelScheduler;
+import org.mark.llamacpp.server.upstream.UpstreamClient;
+import org.mark.llamacpp.server.upstream.UpstreamResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,6 +54,8 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
+import io.netty.handler.codec.http.HttpMethod;
+
 /**
  * 	
  */
@@ -123,6 +127,11 @@ public class LlamaServerManager {
 	 * 模型ID到端口映射
 	 */
 	private Map<String, Integer> modelPorts = new HashMap<>();
+	
+	/**
+	 * 	模型ID到额外副本进程的映射，不包括主进程。
+	 */
+	private Map<String, List<LlamaCppProcess>> replicaProcesses = new HashMap<>();
 
 	private final Map<String, JsonObject> loadedModelInfos = new ConcurrentHashMap<>();
 	
@@ -207,43 +216,56 @@ public class LlamaServerManager {
 				if (loaded.isEmpty()) {
 					return;
 				}
+				ReplicaRouter router = ReplicaRouter.getInstance();
 				for (String modelId : loaded.keySet()) {
 					if (modelId == null || modelId.isBlank()) {
 						continue;
 					}
-					JsonObject resp;
-					try {
-						resp = this.handleModelSlotsGet(modelId);
-					} catch (Exception e) {
-						continue;
-					}
-					JsonArray slots = resp != null && resp.has("slots") && resp.get("slots").isJsonArray()
-							? resp.getAsJsonArray("slots")
-							: null;
-					if (slots == null) {
-						continue;
-					}
+					List<Replica> replicas = router.getReplicas(modelId);
 					JsonArray filtered = new JsonArray();
-					for (JsonElement el : slots) {
-						if (el == null || !el.isJsonObject()) {
+					if (replicas.size() <= 1) {
+						JsonObject resp;
+						try {
+							resp = this.handleModelSlotsGet(modelId);
+						} catch (Exception e) {
+							continue;
+						}
+						JsonArray slots = resp != null && resp.has("slots") && resp.get("slots").isJsonArray()
+								? resp.getAsJsonArray("slots")
+								: null;
+						if (slots == null) {
 							continue;
 						}
-						JsonObject slot = el.getAsJsonObject();
-						JsonObject out = new JsonObject();
-						if (slot.has("id") && !slot.get("id").isJsonNull()) {
-							out.add("id", slot.get("id"));
+						this.filterSlots(slots, -1, filtered);
+						if (replicas.size() == 1) {
+							// 记下slot数量，前缀亲和路由要按slot分配
+							router.updateHealth(replicas.get(0).getPort(), true, slots.size());
+						}
+					} else {
+						// 多副本时逐个检查，同时作为健康检查
+						for (Replica r : replicas) {
+							JsonArray slots = null;
+							try {
+								HttpResult hr = this.callLocalModelEndpoint(r.getPort(), "GET", "/slots", null, 5000);
+								JsonObject parsed = hr.statusCode >= 200 && hr.statusCode < 300 ? this.tryParseJsonObject(hr.body) : null;
+								slots = parsed != null && parsed.has("slots") && parsed.get("slots").isJsonArray() ? parsed.getAsJsonArray("slots") : null;
+							} catch (Exception e) {
+								slots = null;
+							}
+							router.updateHealth(r.getPort(), slots != null, slots == null ? 0 : slots.size());
+							if (slots != null) {
+								this.filterSlots(slots, r.getIndex(), filtered);
+							}
 						}
-						boolean speculative = slot.has("speculative") && !slot.get("speculative").isJsonNull()
-								? slot.get("speculative").getAsBoolean()
-								: false;
-						boolean isProcessing = slot.has("is_processing") && !slot.get("is_processing").isJsonNull()
-								? slot.get("is_processing").getAsBoolean()
-								: false;
-						out.addProperty("speculative", speculative);
-						out.addProperty("is_processing", isProcessing);
-						filtered.add(out);
 					}
 					LlamaServer.sendModelSlotsEvent(modelId, filtered);
+					// slot数量决定了每个模型能同时执行多少请求
+					ModelScheduler scheduler = ModelScheduler.getInstance();
+					scheduler.updateSlots(modelId, replicas.size() <= 1 ? filtered.size() : router.getHealthySlots(modelId));
+					Map<String, Object> queue = scheduler.snapshot(modelId);
+					if (queue != null) {
+						LlamaServer.sendModelQueueEvent(modelId, queue);
+					}
 				}
 			} catch (Exception e) {
 				logger.info("轮询slots时发生错误", e);
@@ -251,6 +273,37 @@ public class LlamaServerManager {
 		}, 1, 1, TimeUnit.SECONDS);
 	}
 	
+	/**
+	 * 	只保留slots里前端需要的字段。
+	 * @param slots
+	 * @param replica 副本序号，小于0时不输出
+	 * @param out
+	 */
+	private void filterSlots(JsonArray slots, int replica, JsonArray out) {
+		for (JsonElement el : slots) {
+			if (el == null || !el.isJsonObject()) {
+				continue;
+			}
+			JsonObject slot = el.getAsJsonObject();
+			JsonObject item = new JsonObject();
+			if (slot.has("id") && !slot.get("id").isJsonNull()) {
+				item.add("id", slot.get("id"));
+			}
+			boolean speculative = slot.has("speculative") && !slot.get("speculative").isJsonNull()
+					? slot.get("speculative").getAsBoolean()
+					: false;
+			boolean isProcessing = slot.has("is_processing") && !slot.get("is_processing").isJsonNull()
+					? slot.get("is_processing").getAsBoolean()
+					: false;
+			item.addProperty("speculative", speculative);
+			item.addProperty("is_processing", isProcessing);
+			if (replica >= 0) {
+				item.addProperty("replica", replica);
+			}
+			out.add(item);
+		}
+	}
+	
 	/**
 	 * 	获取模型列表。
 	 * @return
@@ -324,6 +377,10 @@ public class LlamaServerManager {
                     if (fav != null) {
                         m.setFavourite(fav);
                     }
+                }
+                // 没有模型时每次都会重新扫描，结果还是空的就不算变化
+                if (reload || !this.list.isEmpty()) {
+                    this.modelsChanged();
                 }
 				this.ensureCapabilitiesFilesExistForCurrentList();
             }
@@ -336,6 +393,13 @@ public class LlamaServerManager {
         return this.list;
     }
     
+	/**
+	 * 	模型列表或者加载状态变了，依赖它们的只读接口的快照随之失效。
+	 */
+	private void modelsChanged() {
+		ApiSnapshots.getInstance().bump(ApiSnapshots.MODELS);
+	}
+    
     /**
      * 	锁定文件。
      * @param modelId
@@ -845,9 +909,10 @@ public class LlamaServerManager {
 			if (stopped) {
 				synchronized (this.processLock) {
 					this.loadedProcesses.remove(id);
-					this.modelPorts.remove(id);
+					this.removeModelPort(id);
 				}
 				this.loadedModelInfos.remove(id);
+				this.modelsChanged();
 			}
 			return stopped;
 		}
@@ -876,12 +941,13 @@ public class LlamaServerManager {
 			synchronized (this.processLock) {
 				this.loadingProcesses.remove(id);
 				this.loadingTasks.remove(id);
-				this.modelPorts.remove(id);
+				this.removeModelPort(id);
 			}
 			synchronized (this.loadingModels) {
 				this.loadingModels.remove(id);
 			}
 			this.loadedModelInfos.remove(id);
+			this.modelsChanged();
 		}
 		return stopped;
 	}
@@ -910,6 +976,25 @@ public class LlamaServerManager {
 	 * @return
 	 */
 	public boolean loadModelAsyncFromCmd(String modelId, String llamaBinPath, List<String> device, Integer mg, boolean enbaleVision, String cmd, String extraParams, String chatTemplateFilePath) {
+		return this.loadModelAsyncFromCmd(modelId, llamaBinPath, device, mg, enbaleVision, cmd, extraParams, chatTemplateFilePath, 1, null);
+	}
+	
+	/**
+	 * 	通过CMD命令启动llama-server进程，可以同时启动多个副本。
+	 * @param modelId
+	 * @param llamaBinPath
+	 * @param device
+	 * @param mg
+	 * @param enbaleVision
+	 * @param cmd
+	 * @param extraParams
+	 * @param chatTemplateFilePath
+	 * @param replicas 副本数量，包括主进程
+	 * @param replicaConfigs 第2个及之后副本的启动参数覆盖（cmd、extraParams、device、mg），可以为null
+	 * @return
+	 */
+	public boolean loadModelAsyncFromCmd(String modelId, String llamaBinPath, List<String> device, Integer mg, boolean enbaleVision, String cmd, String extraParams, String chatTemplateFilePath,
+			int replicas, List<JsonObject> replicaConfigs) {
 		Map<String, Object> launchConfig = new HashMap<>();
 		launchConfig.put("llamaBinPath", llamaBinPath);
 		launchConfig.put("device", device);
@@ -921,6 +1006,12 @@ public class LlamaServerManager {
 		if (chatTemplateFilePath != null && !chatTemplateFilePath.trim().isEmpty()) {
 			launchConfig.put("chatTemplateFile", chatTemplateFilePath);
 		}
+		if (replicas > 1) {
+			launchConfig.put("replicas", replicas);
+			if (replicaConfigs != null && !replicaConfigs.isEmpty()) {
+				launchConfig.put("replicaConfigs", replicaConfigs);
+			}
+		}
 		this.configManager.saveLaunchConfig(modelId, launchConfig);
 
 		synchronized (this.processLock) {
@@ -947,6 +1038,7 @@ public class LlamaServerManager {
 				return false;
 			}
 			this.loadingModels.add(targetModel.getModelId());
+			this.modelsChanged();
 		}
 
 		final String cmdSafe = cmd == null ? "" : cmd.trim();
@@ -955,10 +1047,12 @@ public class LlamaServerManager {
 		final List<String> devSafe = device;
 		final Integer mgSafe = mg;
 		final String chatTemplateFileSafe = chatTemplateFilePath == null ? "" : chatTemplateFilePath;
+		final int replicaCount = Math.max(1, replicas);
+		final List<JsonObject> replicaConfigsSafe = replicaConfigs == null ? new ArrayList<>() : new ArrayList<>(replicaConfigs);
 
 		try {
 			Future<?> future = this.executorService.submit(() -> {
-				this.loadModelInBackgroundFromCmd(modelId, targetModel, binSafe, devSafe, mgSafe, enbaleVision, cmdSafe, extraSafe, chatTemplateFileSafe);
+				this.loadModelInBackgroundFromCmd(modelId, targetModel, binSafe, devSafe, mgSafe, enbaleVision, cmdSafe, extraSafe, chatTemplateFileSafe, replicaCount, replicaConfigsSafe);
 			});
 			synchronized (this.processLock) {
 				this.loadingTasks.put(modelId, future);
@@ -970,6 +1064,7 @@ public class LlamaServerManager {
 		} catch (Exception e) {
 			synchronized (this.loadingModels) {
 				this.loadingModels.remove(targetModel.getModelId());
+				this.modelsChanged();
 			}
 			LlamaServer.sendModelLoadEvent(modelId, false, "提交加载任务失败: " + e.getMessage());
 			return false;
@@ -987,9 +1082,11 @@ public class LlamaServerManager {
 	 * @param cmd
 	 * @param extraParams
 	 * @param chatTemplateFilePath
+	 * @param replicas
+	 * @param replicaConfigs
 	 */
 	private void loadModelInBackgroundFromCmd(String modelId, GGUFModel targetModel, String llamaBinPath, List<String> device,
-			Integer mg, boolean enableVision, String cmd, String extraParams, String chatTemplateFilePath) {
+			Integer mg, boolean enableVision, String cmd, String extraParams, String chatTemplateFilePath, int replicas, List<JsonObject> replicaConfigs) {
 		try {
 			if (this.isLoadCanceled(modelId)) {
 				return;
@@ -1018,7 +1115,8 @@ public class LlamaServerManager {
 					loadSuccess.set(false);
 					synchronized (this.processLock) {
 						this.loadedProcesses.remove(modelId);
-						this.modelPorts.remove(modelId);
+						this.modelsChanged();
+						this.removeModelPort(modelId);
 					}
 					LlamaServer.sendModelStopEvent(modelId, false, "模型进程异常终止: " + line);
 					latch.countDown();
@@ -1028,7 +1126,8 @@ public class LlamaServerManager {
 					loadSuccess.set(false);
 					synchronized (this.processLock) {
 						this.loadedProcesses.remove(modelId);
-						this.modelPorts.remove(modelId);
+						this.modelsChanged();
+						this.removeModelPort(modelId);
 					}
 					latch.countDown();
 				}
@@ -1072,9 +1171,13 @@ public class LlamaServerManager {
 				if (loadSuccess.get()) {
 					synchronized (this.processLock) {
 						this.loadedProcesses.put(modelId, process);
+						this.modelsChanged();
 						this.modelPorts.put(modelId, port);
 					}
 					LlamaServer.sendModelLoadEvent(modelId, true, "模型加载成功", port);
+					// 端口每次加载都不一样，用不带端口的命令判断参数是否变化
+					ResponseCache.getInstance().onModelLoaded(modelId,
+							buildCommandStr(targetModel, 0, llamaBinPath, device, mg, enableVision, cmd, extraParams, chatTemplateFilePath));
 					// 这里请求一次
 					try {
 						JsonObject slotsResponse = this.handleModelSlotsGet(modelId);
@@ -1121,6 +1224,14 @@ public class LlamaServerManager {
 					} catch (Exception e) {
 						logger.info("获取/v1/models信息失败: " + modelId, e);
 					}
+					ReplicaRouter.getInstance().addReplica(modelId, 0, port);
+					// 主进程可用之后再依次启动其它副本
+					for (int i = 1; i < replicas; i++) {
+						JsonObject override = i - 1 < replicaConfigs.size() ? replicaConfigs.get(i - 1) : null;
+						if (!this.startReplica(modelId, i, targetModel, llamaBinPath, device, mg, enableVision, cmd, extraParams, chatTemplateFilePath, override)) {
+							break;
+						}
+					}
 				} else {
 					process.stop();
 					if (this.isLoadCanceled(modelId)) {
@@ -1144,10 +1255,89 @@ public class LlamaServerManager {
 			}
 			synchronized (this.loadingModels) {
 				this.loadingModels.remove(targetModel.getModelId());
+				this.modelsChanged();
 			}
 		}
 	}
 	
+	/**
+	 * 	启动模型的一个额外副本，参数默认和主进程相同，override里的字段会覆盖对应参数。
+	 * @return 模型已经停止或者线程被中断时返回false，不再继续启动后面的副本
+	 */
+	private boolean startReplica(String modelId, int index, GGUFModel targetModel, String llamaBinPath, List<String> device,
+			Integer mg, boolean enableVision, String cmd, String extraParams, String chatTemplateFilePath, JsonObject override) {
+		if (override != null) {
+			cmd = JsonUtil.getJsonString(override, "cmd", cmd);
+			extraParams = JsonUtil.getJsonString(override, "extraParams", extraParams);
+			if (override.has("device")) {
+				device = JsonUtil.getJsonStringList(override.get("device"));
+			}
+			mg = JsonUtil.getJsonInt(override, "mg", mg);
+		}
+		int port = this.getNextAvailablePort();
+		String commandStr = buildCommandStr(targetModel, port, llamaBinPath, device, mg, enableVision, cmd, extraParams, chatTemplateFilePath);
+		LlamaCppProcess process = new LlamaCppProcess("llama-server-" + modelId + "#" + index, commandStr, llamaBinPath);
+		logger.info("启动副本 #{} 命令：{}", index, commandStr);
+
+		CountDownLatch latch = new CountDownLatch(1);
+		AtomicBoolean loadSuccess = new AtomicBoolean(false);
+		process.setOutputHandler(line -> {
+			if (line.contains("srv  update_slots: all slots are idle")) {
+				loadSuccess.set(true);
+				latch.countDown();
+			}
+			if (line.contains("main: exiting due to model loading error")) {
+				loadSuccess.set(false);
+				latch.countDown();
+			}
+			if (line.startsWith("error") || (line.contains("Inferior") && line.contains("detached"))) {
+				logger.info("检测到副本进程异常终止: {}", line);
+				loadSuccess.set(false);
+				this.removeReplica(modelId, process, port);
+				latch.countDown();
+			}
+		});
+		if (!process.start()) {
+			logger.info("启动模型 {} 的副本 #{} 失败", modelId, index);
+			return true;
+		}
+		try {
+			if (!latch.await(10, TimeUnit.MINUTES) || !loadSuccess.get()) {
+				logger.info("模型 {} 的副本 #{} 加载失败", modelId, index);
+				process.stop();
+				return true;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			process.stop();
+			return false;
+		}
+		synchronized (this.processLock) {
+			// 副本加载期间模型被停止了
+			if (!this.loadedProcesses.containsKey(modelId)) {
+				process.stop();
+				return false;
+			}
+			this.replicaProcesses.computeIfAbsent(modelId, k -> new ArrayList<>()).add(process);
+		}
+		ReplicaRouter.getInstance().addReplica(modelId, index, port);
+		return true;
+	}
+
+	/**
+	 * 	移除异常退出的副本。
+	 */
+	private void removeReplica(String modelId, LlamaCppProcess process, int port) {
+		synchronized (this.processLock) {
+			List<LlamaCppProcess> list = this.replicaProcesses.get(modelId);
+			if (list != null) {
+				list.remove(process);
+			}
+		}
+		ReplicaRouter.getInstance().removeReplica(port);
+		UpstreamClient.getInstance().closePool(port);
+	}
+
 	private boolean isLoadCanceled(String modelId) {
 		synchronized (this.processLock) {
 			return this.canceledLoadingModels.contains(modelId);
@@ -1291,47 +1481,35 @@ public class LlamaServerManager {
 		return port.intValue();
 	}
 
-	private static String readAll(BufferedReader br) throws IOException {
-		if (br == null) {
-			return "";
-		}
-		StringBuilder sb = new StringBuilder();
-		String line;
-		while ((line = br.readLine()) != null) {
-			sb.append(line);
+	/**
+	 * 	移除模型端口，同时关闭到这个端口的连接池。需要持有processLock。
+	 * @param modelId
+	 */
+	private void removeModelPort(String modelId) {
+		Integer port = this.modelPorts.remove(modelId);
+		if (port != null) {
+			UpstreamClient.getInstance().closePool(port);
+		}
+		// 主进程停止时其它副本一起停止
+		for (Replica r : ReplicaRouter.getInstance().getReplicas(modelId)) {
+			UpstreamClient.getInstance().closePool(r.getPort());
+		}
+		ReplicaRouter.getInstance().removeModel(modelId);
+		List<LlamaCppProcess> replicas = this.replicaProcesses.remove(modelId);
+		if (replicas != null && !replicas.isEmpty()) {
+			Thread.ofVirtual().name("llama-replica-stop").start(() -> {
+				for (LlamaCppProcess p : replicas) {
+					p.stop();
+				}
+			});
 		}
-		return sb.toString();
+		ModelScheduler.getInstance().removeModel(modelId);
 	}
 
-	private HttpResult callLocalModelEndpoint(int port, String method, String endpoint, JsonObject body, int connectTimeoutMs, int readTimeoutMs) throws Exception {
-		String urlStr = String.format("http://localhost:%d%s", port, endpoint);
-		URL url = URI.create(urlStr).toURL();
-		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-		try {
-			connection.setRequestMethod(method);
-			connection.setConnectTimeout(connectTimeoutMs);
-			connection.setReadTimeout(readTimeoutMs);
-			if (body != null) {
-				connection.setDoOutput(true);
-				connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-				byte[] input = body.toString().getBytes(StandardCharsets.UTF_8);
-				try (OutputStream os = connection.getOutputStream()) {
-					os.write(input, 0, input.length);
-				}
-			}
-			int code = connection.getResponseCode();
-			boolean ok = code >= 200 && code < 300;
-			try (BufferedReader br = new BufferedReader(new InputStreamReader(ok ? connection.getInputStream() : connection.getErrorStream(), StandardCharsets.UTF_8))) {
-				return new HttpResult(code, readAll(br));
-			} catch (Exception e) {
-				return new HttpResult(code, "");
-			}
-		} finally {
-			try {
-				connection.disconnect();
-			} catch (Exception ignore) {
-			}
-		}
+	private HttpResult callLocalModelEndpoint(int port, String method, String endpoint, JsonObject body, long timeoutMs) throws Exception {
+		byte[] input = body == null ? null : body.toString().getBytes(StandardCharsets.UTF_8);
+		UpstreamResult result = UpstreamClient.getInstance().execute(port, HttpMethod.valueOf(method), endpoint, input, timeoutMs);
+		return new HttpResult(result.getStatusCode(), result.getBodyAsString());
 	}
 
 	private Object tryParseJson(String body) {
@@ -1373,7 +1551,7 @@ public class LlamaServerManager {
 		try {
 			String id = modelId == null ? "" : modelId.trim();
 			int port = this.requireLoadedModelPort(id);
-			HttpResult r = this.callLocalModelEndpoint(port, "GET", "/v1/models", null, 30000, 30000);
+			HttpResult r = this.callLocalModelEndpoint(port, "GET", "/v1/models", null, 30000);
 			if (r.statusCode < 200 || r.statusCode >= 300) {
 				throw new RuntimeException("获取模型信息失败: " + r.body);
 			}
@@ -1441,6 +1619,7 @@ public class LlamaServerManager {
 			out.add("items", items);
 
 			this.loadedModelInfos.put(id, out);
+			this.modelsChanged();
 			return out;
 		} catch (Exception e) {
 			logger.info("获取模型信息时发生错误", e);
@@ -1484,7 +1663,7 @@ public class LlamaServerManager {
 	public JsonObject handleModelSlotsGet(String modelId) {
 		try {
 			int port = this.requireLoadedModelPort(modelId);
-			HttpResult r = this.callLocalModelEndpoint(port, "GET", "/slots", null, 30000, 30000);
+			HttpResult r = this.callLocalModelEndpoint(port, "GET", "/slots", null, 30000);
 			if (r.statusCode >= 200 && r.statusCode < 300) {
 				JsonObject parsed = this.tryParseJsonObject(r.body);
 				return parsed != null ? parsed : new JsonObject();
@@ -1509,7 +1688,7 @@ public class LlamaServerManager {
 			String endpoint = String.format("/slots/%d?action=save", slot);
 			JsonObject body = new JsonObject();
 			body.addProperty("filename", fileName);
-			HttpResult r = this.callLocalModelEndpoint(port, "POST", endpoint, body, 36000 * 1000, 36000 * 1000);
+			HttpResult r = this.callLocalModelEndpoint(port, "POST", endpoint, body, 36000L * 1000);
 			if (r.statusCode >= 200 && r.statusCode < 300) {
 				Object parsed = this.tryParseJson(r.body);
 				Map<String, Object> data = new HashMap<>();
@@ -1537,7 +1716,7 @@ public class LlamaServerManager {
 			String endpoint = String.format("/slots/%d?action=restore", slot);
 			JsonObject body = new JsonObject();
 			body.addProperty("filename", fileName);
-			HttpResult r = this.callLocalModelEndpoint(port, "POST", endpoint, body, 36000 * 1000, 36000 * 1000);
+			HttpResult r = this.callLocalModelEndpoint(port, "POST", endpoint, body, 36000L * 1000);
 			if (r.statusCode >= 200 && r.statusCode < 300) {
 				Object parsed = this.tryParseJson(r.body);
 				Map<String, Object> data = new HashMap<>();
@@ -1672,8 +1851,17 @@ public class LlamaServerManager {
 	public void shutdownAll() {
 		logger.info("开始停止所有模型进程...");
 		Map<String, LlamaCppProcess> processes;
+		List<LlamaCppProcess> replicas = new ArrayList<>();
 		synchronized (this.processLock) {
 			processes = new HashMap<>(this.loadedProcesses);
+			for (List<LlamaCppProcess> list : this.replicaProcesses.values()) {
+				replicas.addAll(list);
+			}
+			this.replicaProcesses.clear();
+		}
+		for (LlamaCppProcess process : replicas) {
+			logger.info("正在停止副本进程: {}", process.getName());
+			process.stop();
 		}
 		for (Map.Entry<String, LlamaCppProcess> entry : processes.entrySet()) {
 			String modelId = entry.getKey();
@@ -1690,6 +1878,16 @@ public class LlamaServerManager {
 
 		synchronized (this.processLock) {
 			this.loadedProcesses.clear();
+			this.modelsChanged();
+			for (Integer port : this.modelPorts.values()) {
+				UpstreamClient.getInstance().closePool(port);
+			}
+			for (String modelId : processes.keySet()) {
+				for (Replica r : ReplicaRouter.getInstance().getReplicas(modelId)) {
+					UpstreamClient.getInstance().closePool(r.getPort());
+				}
+				ReplicaRouter.getInstance().removeModel(modelId);
+			}
 			this.modelPorts.clear();
 		}
 
@@ -0,0 +1,192 @@
+package org.mark.llamacpp.server.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mark.llamacpp.server.tools.JsonUtil;
+
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+
+/**
+ * 	只读JSON接口的版本化快照。
+ * 	每种资源有一个单调递增的版本号，模型加载、卸载、重新扫描或者下载状态变化时加一。
+ * 	接口按版本缓存序列化后的字节，ETag直接由版本号生成；客户端带着当前的ETag来轮询时返回304，不再访问模型管理器。
+ */
+public class ApiSnapshots {
+
+	/**
+	 * 	模型列表、加载状态、别名和运行时信息。
+	 */
+	public static final String MODELS = "models";
+
+	/**
+	 * 	下载任务的状态和进度。
+	 */
+	public static final String DOWNLOADS = "downloads";
+
+	private static final ApiSnapshots INSTANCE = new ApiSnapshots();
+
+	public static ApiSnapshots getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * 	生成快照内容，可以抛出异常，异常时不缓存。
+	 */
+	@FunctionalInterface
+	public interface Builder {
+
+		public Object build() throws Exception;
+	}
+
+	/**
+	 * 	某个版本的序列化结果。
+	 */
+	public static class Snapshot {
+
+		private final long version;
+
+		private final String etag;
+
+		private final byte[] body;
+
+		private Snapshot(long version, String etag, byte[] body) {
+			this.version = version;
+			this.etag = etag;
+			this.body = body;
+		}
+
+		public String getEtag() {
+			return this.etag;
+		}
+
+		/**
+		 * 	JSON的UTF-8字节，共享的，不要修改。
+		 * @return
+		 */
+		public byte[] getBody() {
+			return this.body;
+		}
+	}
+
+	/**
+	 * 	每次启动不同，避免重启后版本号从头开始时命中客户端手里的旧ETag。
+	 */
+	private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+
+	private final Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+
+	/**
+	 * 	接口 -> 最近一次生成的快照。
+	 */
+	private final Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+
+	private final AtomicLong hits = new AtomicLong(0);
+
+	private final AtomicLong builds = new AtomicLong(0);
+
+	private final AtomicLong notModified = new AtomicLong(0);
+
+	private ApiSnapshots() {
+
+	}
+
+	/**
+	 * 	资源发生了变化。
+	 * @param resource
+	 */
+	public void bump(String resource) {
+		this.counter(resource).incrementAndGet();
+	}
+
+	public long version(String resource) {
+		return this.counter(resource).get();
+	}
+
+	/**
+	 * 	资源当前版本的ETag。
+	 * @param resource
+	 * @return
+	 */
+	public String etag(String resource) {
+		return this.etag(resource, this.version(resource));
+	}
+
+	/**
+	 * 	请求的If-None-Match是否就是这个ETag。
+	 * @param request
+	 * @param etag
+	 * @return
+	 */
+	public boolean isNotModified(FullHttpRequest request, String etag) {
+		String ifNoneMatch = request.headers().get(HttpHeaderNames.IF_NONE_MATCH);
+		if (ifNoneMatch == null || ifNoneMatch.isEmpty()) {
+			return false;
+		}
+		for (String part : ifNoneMatch.split(",")) {
+			String tag = part.trim();
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if (tag.equals(etag) || tag.equals("*")) {
+				this.notModified.incrementAndGet();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 	取接口在资源当前版本下的快照，版本变了才重新生成。
+	 * 	生成期间版本又变了的话，结果记在生成前的版本下，下一次请求会重新生成。
+	 * @param key 接口，例如/api/models/list
+	 * @param resource 接口依赖的资源
+	 * @param builder
+	 * @return
+	 * @throws Exception builder抛出的异常
+	 */
+	public Snapshot get(String key, String resource, Builder builder) throws Exception {
+		long version = this.version(resource);
+		Snapshot cached = this.snapshots.get(key);
+		if (cached != null && cached.version == version) {
+			this.hits.incrementAndGet();
+			return cached;
+		}
+		byte[] body = JsonUtil.toJson(builder.build()).getBytes(StandardCharsets.UTF_8);
+		Snapshot snapshot = new Snapshot(version, this.etag(resource, version), body);
+		this.snapshots.merge(key, snapshot, (old, now) -> now.version >= old.version ? now : old);
+		this.builds.incrementAndGet();
+		return snapshot;
+	}
+
+	/**
+	 * 	各资源的版本和命中统计。
+	 * @return
+	 */
+	public Map<String, Object> snapshot() {
+		Map<String, Object> data = new LinkedHashMap<>();
+		Map<String, Long> v = new LinkedHashMap<>();
+		for (Map.Entry<String, AtomicLong> e : this.versions.entrySet()) {
+			v.put(e.getKey(), e.getValue().get());
+		}
+		data.put("versions", v);
+		data.put("hits", this.hits.get());
+		data.put("builds", this.builds.get());
+		data.put("notModified", this.notModified.get());
+		return data;
+	}
+
+	//================================================================================================
+
+	private AtomicLong counter(String resource) {
+		return this.versions.computeIfAbsent(resource, k -> new AtomicLong(0));
+	}
+
+	private String etag(String resource, long version) {
+		return "\"" + resource + "-" + this.epoch + "-" + version + "\"";
+	}
+}
@@ -0,0 +1,441 @@
+package org.mark.llamacpp.server.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.ingress.JsonFieldScanner;
+import org.mark.llamacpp.server.ingress.RewrittenRequest;
+import org.mark.llamacpp.server.tools.JsonUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * 	完全相同请求的响应缓存。
+ * 	只缓存结果确定的请求：embeddings，或者temperature为0、top_k为1、指定了seed的补全请求。
+ * 	键是模型、启动命令、接口路径和规范化后的请求体（对象键排序，去掉stream相关字段）的SHA-256，
+ * 	因此同一个请求的流式和非流式版本共用缓存，流式请求命中时把缓存的结果转换成SSE回放。
+ * 	按总字节数做LRU淘汰，每条记录有过期时间。
+ */
+public class ResponseCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(ResponseCache.class);
+
+	/**
+	 * 	计算缓存键时忽略的字段：流式与否不影响结果，id_slot和cache_prompt只影响在哪个slot上执行。
+	 */
+	private static final Set<String> IGNORED_FIELDS = Set.of("stream", "stream_options", "id_slot", "cache_prompt");
+
+	private static final ResponseCache INSTANCE = new ResponseCache();
+
+	public static ResponseCache getInstance() {
+		return INSTANCE;
+	}
+
+	private static class Entry {
+		private final String modelId;
+		private final String body;
+		private final int bytes;
+		private final long expiresAt;
+
+		private Entry(String modelId, String body, long expiresAt) {
+			this.modelId = modelId;
+			this.body = body;
+			this.bytes = body.length() * 2 + 64;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+	private long totalBytes = 0;
+
+	/**
+	 * 	模型ID -> 启动命令的摘要。命令变了说明模型被用不同参数重新加载，旧结果不再可靠。
+	 */
+	private final Map<String, String> fingerprints = new ConcurrentHashMap<>();
+
+	private final AtomicLong hits = new AtomicLong(0);
+
+	private final AtomicLong misses = new AtomicLong(0);
+
+	private final AtomicLong stores = new AtomicLong(0);
+
+	private final AtomicLong evictions = new AtomicLong(0);
+
+	private final AtomicLong expired = new AtomicLong(0);
+
+	private final AtomicLong invalidations = new AtomicLong(0);
+
+	private ResponseCache() {
+
+	}
+
+	/**
+	 * 	模型加载完成时记录它的启动命令，命令和上一次不同则清掉这个模型的缓存。
+	 * @param modelId
+	 * @param command 不含端口的启动命令
+	 */
+	public void onModelLoaded(String modelId, String command) {
+		String fingerprint = sha256(command == null ? "" : command);
+		String previous = this.fingerprints.put(modelId, fingerprint);
+		if (previous != null && !previous.equals(fingerprint)) {
+			int removed = this.invalidateModel(modelId);
+			logger.info("模型 {} 的启动命令已改变，清除 {} 条响应缓存", modelId, removed);
+		}
+	}
+
+	/**
+	 * 	清除一个模型的所有缓存。
+	 * @param modelId
+	 * @return 清除的条数
+	 */
+	public int invalidateModel(String modelId) {
+		int removed = 0;
+		synchronized (this.entries) {
+			Iterator<Entry> it = this.entries.values().iterator();
+			while (it.hasNext()) {
+				Entry e = it.next();
+				if (e.modelId.equals(modelId)) {
+					this.totalBytes -= e.bytes;
+					it.remove();
+					removed++;
+				}
+			}
+		}
+		this.invalidations.addAndGet(removed);
+		return removed;
+	}
+
+	/**
+	 * 	计算请求的缓存键。
+	 * @param modelId
+	 * @param endpoint
+	 * @param request 请求体，为null时解析requestBody
+	 * @param requestBody
+	 * @return 未启用缓存或者请求结果不确定时返回null
+	 */
+	public String keyFor(String modelId, String endpoint, JsonObject request, String requestBody) {
+		return LlamaServer.isResponseCacheEnabled() ? this.requestKey(modelId, endpoint, request, requestBody) : null;
+	}
+
+	/**
+	 * 	结果确定的请求的规范化摘要，响应缓存和相同请求合并（{@link org.mark.llamacpp.server.upstream.SingleFlight}）共用。
+	 * @param modelId
+	 * @param endpoint
+	 * @param request 请求体，为null时解析requestBody
+	 * @param requestBody
+	 * @return 两者都没有启用或者请求结果不确定时返回null
+	 */
+	public String requestKey(String modelId, String endpoint, JsonObject request, String requestBody) {
+		if ((!LlamaServer.isResponseCacheEnabled() && !LlamaServer.isSingleFlightEnabled()) || modelId == null || endpoint == null) {
+			return null;
+		}
+		if (request == null) {
+			request = requestBody == null ? null : JsonUtil.tryParseObject(requestBody);
+			if (request == null) {
+				return null;
+			}
+		}
+		if (!isDeterministic(endpoint, request)) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder(256);
+		sb.append(modelId).append('\n');
+		sb.append(this.fingerprints.getOrDefault(modelId, "")).append('\n');
+		sb.append(endpoint).append('\n');
+		canonicalize(request, sb, true);
+		return sha256(sb.toString());
+	}
+
+	/**
+	 * 	同上，先用扫描出来的temperature、top_k、seed判断，结果不确定的请求不用解析请求体。
+	 * @param modelId
+	 * @param endpoint
+	 * @param request
+	 * @return
+	 */
+	public String requestKey(String modelId, String endpoint, RewrittenRequest request) {
+		if ((!LlamaServer.isResponseCacheEnabled() && !LlamaServer.isSingleFlightEnabled()) || modelId == null || endpoint == null || request == null) {
+			return null;
+		}
+		if (!isDeterministic(endpoint, request.getScanner())) {
+			return null;
+		}
+		JsonObject json = request.getJson();
+		return json == null ? null : this.requestKey(modelId, endpoint, json, null);
+	}
+
+	/**
+	 * 	查找缓存的响应体。
+	 * @param key
+	 * @return 没有或者已经过期时返回null
+	 */
+	public String get(String key) {
+		long now = System.currentTimeMillis();
+		synchronized (this.entries) {
+			Entry e = this.entries.get(key);
+			if (e != null && e.expiresAt <= now) {
+				this.entries.remove(key);
+				this.totalBytes -= e.bytes;
+				this.expired.incrementAndGet();
+				e = null;
+			}
+			if (e == null) {
+				this.misses.incrementAndGet();
+				return null;
+			}
+			this.hits.incrementAndGet();
+			return e.body;
+		}
+	}
+
+	/**
+	 * 	保存一个成功的非流式响应。
+	 * @param key
+	 * @param modelId
+	 * @param body
+	 */
+	public void put(String key, String modelId, String body) {
+		if (key == null || body == null || body.isEmpty()) {
+			return;
+		}
+		long maxBytes = LlamaServer.getResponseCacheMaxBytes();
+		Entry entry = new Entry(modelId, body, System.currentTimeMillis() + LlamaServer.getResponseCacheTtlSeconds() * 1000L);
+		// 单条超过总预算的1/4就不缓存了，免得把其它记录全挤掉
+		if (entry.bytes > maxBytes / 4) {
+			return;
+		}
+		synchronized (this.entries) {
+			Entry old = this.entries.put(key, entry);
+			if (old != null) {
+				this.totalBytes -= old.bytes;
+			}
+			this.totalBytes += entry.bytes;
+			Iterator<Entry> it = this.entries.values().iterator();
+			while (this.totalBytes > maxBytes && it.hasNext()) {
+				Entry e = it.next();
+				this.totalBytes -= e.bytes;
+				it.remove();
+				this.evictions.incrementAndGet();
+			}
+		}
+		this.stores.incrementAndGet();
+	}
+
+	/**
+	 * 	命中率等统计。
+	 * @return
+	 */
+	public Map<String, Object> snapshot() {
+		Map<String, Object> data = new LinkedHashMap<>();
+		data.put("enabled", LlamaServer.isResponseCacheEnabled());
+		synchronized (this.entries) {
+			data.put("entries", this.entries.size());
+			data.put("bytes", this.totalBytes);
+		}
+		data.put("maxBytes", LlamaServer.getResponseCacheMaxBytes());
+		data.put("ttlSeconds", LlamaServer.getResponseCacheTtlSeconds());
+		long h = this.hits.get();
+		long m = this.misses.get();
+		data.put("hits", h);
+		data.put("misses", m);
+		data.put("hitRate", h + m == 0 ? 0.0 : (double) h / (h + m));
+		data.put("stores", this.stores.get());
+		data.put("evictions", this.evictions.get());
+		data.put("expired", this.expired.get());
+		data.put("invalidations", this.invalidations.get());
+		return data;
+	}
+
+	//================================================================================================
+
+	/**
+	 * 	请求的结果是否确定。
+	 */
+	static boolean isDeterministic(String endpoint, JsonObject request) {
+		if (endpoint.endsWith("/embeddings")) {
+			return true;
+		}
+		if (isNumber(request.get("temperature")) && request.get("temperature").getAsDouble() <= 0) {
+			return true;
+		}
+		if (isNumber(request.get("top_k")) && request.get("top_k").getAsInt() == 1) {
+			return true;
+		}
+		// llama.cpp里seed为-1表示随机
+		return isNumber(request.get("seed")) && request.get("seed").getAsLong() >= 0;
+	}
+
+	private static boolean isDeterministic(String endpoint, JsonFieldScanner scanner) {
+		if (endpoint.endsWith("/embeddings")) {
+			return true;
+		}
+		Double temperature = scanner.getNumber("temperature");
+		if (temperature != null && temperature.doubleValue() <= 0) {
+			return true;
+		}
+		Double topK = scanner.getNumber("top_k");
+		if (topK != null && topK.intValue() == 1) {
+			return true;
+		}
+		Double seed = scanner.getNumber("seed");
+		return seed != null && seed.longValue() >= 0;
+	}
+
+	private static boolean isNumber(JsonElement e) {
+		return e != null && e.isJsonPrimitive() && e.getAsJsonPrimitive().isNumber();
+	}
+
+	/**
+	 * 	按键排序输出JSON，保证字段顺序不同的相同请求得到同一个键。
+	 */
+	private static void canonicalize(JsonElement e, StringBuilder sb, boolean root) {
+		if (e == null || e.isJsonNull()) {
+			sb.append("null");
+		} else if (e.isJsonObject()) {
+			TreeMap<String, JsonElement> sorted = new TreeMap<>();
+			for (Map.Entry<String, JsonElement> kv : e.getAsJsonObject().entrySet()) {
+				if (root && IGNORED_FIELDS.contains(kv.getKey())) {
+					continue;
+				}
+				sorted.put(kv.getKey(), kv.getValue());
+			}
+			sb.append('{');
+			boolean first = true;
+			for (Map.Entry<String, JsonElement> kv : sorted.entrySet()) {
+				if (!first) {
+					sb.append(',');
+				}
+				first = false;
+				sb.append(new JsonPrimitive(kv.getKey()).toString()).append(':');
+				canonicalize(kv.getValue(), sb, false);
+			}
+			sb.append('}');
+		} else if (e.isJsonArray()) {
+			sb.append('[');
+			JsonArray arr = e.getAsJsonArray();
+			for (int i = 0; i < arr.size(); i++) {
+				if (i > 0) {
+					sb.append(',');
+				}
+				canonicalize(arr.get(i), sb, false);
+			}
+			sb.append(']');
+		} else {
+			sb.append(e.toString());
+		}
+	}
+
+	private static String sha256(String s) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] hash = digest.digest(s.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	//================================================================================================
+
+	/**
+	 * 	把缓存的非流式响应转换成等价的SSE数据，用于回放给流式请求。
+	 * @param endpoint
+	 * @param body
+	 * @return 无法转换时返回null
+	 */
+	public static String toSse(String endpoint, String body) {
+		JsonObject parsed = JsonUtil.tryParseObject(body);
+		if (parsed == null || !parsed.has("choices") || !parsed.get("choices").isJsonArray()) {
+			return null;
+		}
+		boolean chat = endpoint.endsWith("/chat/completions");
+		List<JsonObject> chunks = new ArrayList<>();
+		JsonArray finals = new JsonArray();
+		for (JsonElement el : parsed.getAsJsonArray("choices")) {
+			if (!el.isJsonObject()) {
+				return null;
+			}
+			JsonObject choice = el.getAsJsonObject();
+			JsonElement index = choice.has("index") ? choice.get("index") : new JsonPrimitive(0);
+			JsonObject c = new JsonObject();
+			c.add("index", index);
+			if (chat) {
+				JsonObject message = choice.has("message") && choice.get("message").isJsonObject() ? choice.getAsJsonObject("message").deepCopy() : new JsonObject();
+				// 流式的tool_calls每一项都要带index
+				if (message.has("tool_calls") && message.get("tool_calls").isJsonArray()) {
+					JsonArray calls = message.getAsJsonArray("tool_calls");
+					for (int i = 0; i < calls.size(); i++) {
+						if (calls.get(i).isJsonObject() && !calls.get(i).getAsJsonObject().has("index")) {
+							calls.get(i).getAsJsonObject().addProperty("index", i);
+						}
+					}
+				}
+				c.add("delta", message);
+			} else {
+				c.add("text", choice.has("text") ? choice.get("text") : new JsonPrimitive(""));
+			}
+			c.add("finish_reason", null);
+			chunks.add(chunk(parsed, chat, c));
+
+			JsonObject f = new JsonObject();
+			f.add("index", index);
+			if (chat) {
+				f.add("delta", new JsonObject());
+			} else {
+				f.addProperty("text", "");
+			}
+			f.add("finish_reason", choice.get("finish_reason"));
+			finals.add(f);
+		}
+		JsonObject last = chunk(parsed, chat, null);
+		last.add("choices", finals);
+		if (parsed.has("usage")) {
+			last.add("usage", parsed.get("usage"));
+		}
+		chunks.add(last);
+
+		StringBuilder sb = new StringBuilder(body.length() + 256);
+		for (JsonObject c : chunks) {
+			// toString会保留值为null的finish_reason
+			sb.append("data: ").append(c.toString()).append("\n\n");
+		}
+		sb.append("data: [DONE]\n\n");
+		return sb.toString();
+	}
+
+	private static JsonObject chunk(JsonObject parsed, boolean chat, JsonObject choice) {
+		JsonObject c = new JsonObject();
+		for (String k : new String[] { "id", "created", "model", "system_fingerprint" }) {
+			if (parsed.has(k)) {
+				c.add(k, parsed.get(k));
+			}
+		}
+		c.addProperty("object", chat ? "chat.completion.chunk" : "text_completion");
+		if (choice != null) {
+			JsonArray choices = new JsonArray();
+			choices.add(choice);
+			c.add("choices", choices);
+		}
+		return c;
+	}
+}
@@ -0,0 +1,361 @@
+package org.mark.llamacpp.server.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.mark.llamacpp.server.LlamaServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpHeaderValues;
+
+/**
+ * 	网页静态资源缓存。
+ * 	启动时把classpath下/web里的所有文件（目录或者jar都可以）读进堆外内存，文本类文件同时保存gzip和deflate压缩后的版本，
+ * 	请求时按Accept-Encoding选择一个版本直接写出，不再读文件，也不再逐块传输。
+ * 	Netty 4.1.35没有brotli编码器，所以第二种压缩格式用deflate。
+ */
+public class StaticAssets {
+
+	private static final Logger logger = LoggerFactory.getLogger(StaticAssets.class);
+
+	private static final String ROOT = "/web";
+
+	/**
+	 * 	文件名里带内容摘要的资源（例如app.3f9c2b1a.js），内容变了名字也会变，可以长期缓存。
+	 */
+	private static final Pattern HASHED_NAME = Pattern.compile(".*[.-][0-9a-fA-F]{8,}\\.[A-Za-z0-9]+$");
+
+	/**
+	 * 	压缩后至少要小这么多才保存压缩版本。
+	 */
+	private static final double MIN_SAVING = 0.9;
+
+	private static final StaticAssets INSTANCE = new StaticAssets();
+
+	public static StaticAssets getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * 	一个资源文件。所有缓冲区都是只读、不可释放的，写出时用duplicate()。
+	 */
+	public static class Asset {
+
+		private final String path;
+
+		private final String contentType;
+
+		private final String etag;
+
+		private final boolean hashed;
+
+		private final ByteBuf identity;
+
+		private final ByteBuf gzip;
+
+		private final ByteBuf deflate;
+
+		private Asset(String path, String contentType, String etag, boolean hashed, ByteBuf identity, ByteBuf gzip, ByteBuf deflate) {
+			this.path = path;
+			this.contentType = contentType;
+			this.etag = etag;
+			this.hashed = hashed;
+			this.identity = identity;
+			this.gzip = gzip;
+			this.deflate = deflate;
+		}
+
+		public String getPath() {
+			return this.path;
+		}
+
+		public String getContentType() {
+			return this.contentType;
+		}
+
+		/**
+		 * 	文件名带摘要，可以按immutable缓存。
+		 * @return
+		 */
+		public boolean isHashed() {
+			return this.hashed;
+		}
+
+		/**
+		 * 	按Accept-Encoding选择版本。
+		 * @param acceptEncoding
+		 * @return
+		 */
+		public Variant select(String acceptEncoding) {
+			if (this.gzip != null && accepts(acceptEncoding, "gzip")) {
+				return new Variant(this, HttpHeaderValues.GZIP.toString(), this.gzip);
+			}
+			if (this.deflate != null && accepts(acceptEncoding, "deflate")) {
+				return new Variant(this, HttpHeaderValues.DEFLATE.toString(), this.deflate);
+			}
+			return new Variant(this, null, this.identity);
+		}
+
+		/**
+		 * 	If-None-Match是否命中这个资源的任意一个版本。
+		 * @param ifNoneMatch
+		 * @return
+		 */
+		public boolean matches(String ifNoneMatch) {
+			if (ifNoneMatch == null || ifNoneMatch.isBlank()) {
+				return false;
+			}
+			for (String part : ifNoneMatch.split(",")) {
+				String tag = part.trim();
+				if (tag.equals("*")) {
+					return true;
+				}
+				if (tag.startsWith("W/")) {
+					tag = tag.substring(2);
+				}
+				if (tag.length() >= 2 && tag.startsWith("\"") && tag.endsWith("\"")) {
+					tag = tag.substring(1, tag.length() - 1);
+				}
+				if (tag.equals(this.etag) || tag.equals(this.etag + "-gzip") || tag.equals(this.etag + "-deflate")) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * 	选中的一个版本。
+	 */
+	public static class Variant {
+
+		private final Asset asset;
+
+		private final String encoding;
+
+		private final ByteBuf content;
+
+		private Variant(Asset asset, String encoding, ByteBuf content) {
+			this.asset = asset;
+			this.encoding = encoding;
+			this.content = content;
+		}
+
+		/**
+		 * 	Content-Encoding，原始内容时为null。
+		 * @return
+		 */
+		public String getEncoding() {
+			return this.encoding;
+		}
+
+		/**
+		 * 	强ETag，每种编码不同。
+		 * @return
+		 */
+		public String getEtag() {
+			return "\"" + this.asset.etag + (this.encoding == null ? "" : "-" + this.encoding) + "\"";
+		}
+
+		/**
+		 * 	可以直接写出的内容，不需要释放。
+		 * @return
+		 */
+		public ByteBuf content() {
+			return this.content.duplicate();
+		}
+
+		public int length() {
+			return this.content.readableBytes();
+		}
+	}
+
+	private volatile Map<String, Asset> assets = Collections.emptyMap();
+
+	private volatile Set<String> directories = Collections.emptySet();
+
+	private StaticAssets() {
+
+	}
+
+	/**
+	 * 	加载所有资源。启动时调用一次。
+	 */
+	public synchronized void load() {
+		long start = System.currentTimeMillis();
+		Map<String, Asset> loaded = new HashMap<>();
+		Set<String> dirs = new HashSet<>();
+		long raw = 0;
+		long compressed = 0;
+		try {
+			URL url = LlamaServer.class.getResource(ROOT);
+			if (url == null) {
+				logger.info("classpath中没有{}目录，网页不可用", ROOT);
+				return;
+			}
+			URI uri = url.toURI();
+			FileSystem fs = null;
+			Path root;
+			if ("jar".equals(uri.getScheme())) {
+				try {
+					fs = FileSystems.getFileSystem(uri);
+				} catch (FileSystemNotFoundException e) {
+					fs = FileSystems.newFileSystem(uri, Collections.emptyMap());
+				}
+				root = fs.getPath(ROOT);
+			} else {
+				root = Paths.get(uri);
+			}
+			try (Stream<Path> walk = Files.walk(root)) {
+				for (Path p : (Iterable<Path>) walk::iterator) {
+					String rel = root.relativize(p).toString().replace('\\', '/');
+					String path = "/" + rel;
+					if (Files.isDirectory(p)) {
+						dirs.add(rel.isEmpty() ? "/" : path);
+						continue;
+					}
+					Asset asset = build(path, Files.readAllBytes(p));
+					loaded.put(path, asset);
+					raw += asset.identity.readableBytes();
+					compressed += size(asset.gzip) + size(asset.deflate);
+				}
+			}
+		} catch (Exception e) {
+			logger.info("加载网页静态资源失败", e);
+		}
+		this.assets = loaded;
+		this.directories = dirs;
+		logger.info("已加载{}个网页静态资源，原始{}KB，压缩版本{}KB，耗时{}ms", loaded.size(), raw / 1024, compressed / 1024,
+				System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * 	按请求路径查找资源，路径以/开头，不带/web前缀。
+	 * @param path
+	 * @return 不存在时为null
+	 */
+	public Asset get(String path) {
+		return this.assets.get(path);
+	}
+
+	/**
+	 * 	路径是不是一个目录。
+	 * @param path
+	 * @return
+	 */
+	public boolean isDirectory(String path) {
+		return this.directories.contains(path.endsWith("/") && path.length() > 1 ? path.substring(0, path.length() - 1) : path);
+	}
+
+	//================================================================================================
+
+	private static Asset build(String path, byte[] bytes) throws Exception {
+		String name = path.substring(path.lastIndexOf('/') + 1);
+		String contentType = LlamaServer.getContentType(name);
+		byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+		String etag = ByteBufUtil.hexDump(digest, 0, 16);
+		ByteBuf gzip = null;
+		ByteBuf deflate = null;
+		if (isCompressible(contentType) && bytes.length > 256) {
+			gzip = smaller(gzip(bytes), bytes.length);
+			deflate = smaller(deflate(bytes), bytes.length);
+		}
+		return new Asset(path, contentType, etag, HASHED_NAME.matcher(name).matches(), offHeap(bytes), gzip, deflate);
+	}
+
+	private static ByteBuf smaller(byte[] compressed, int original) {
+		return compressed.length < original * MIN_SAVING ? offHeap(compressed) : null;
+	}
+
+	private static ByteBuf offHeap(byte[] bytes) {
+		ByteBuf buf = Unpooled.directBuffer(bytes.length, bytes.length).writeBytes(bytes);
+		return Unpooled.unreleasableBuffer(buf.asReadOnly());
+	}
+
+	private static byte[] gzip(byte[] bytes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 3);
+		try (GZIPOutputStream gz = new GZIPOutputStream(out) {
+			{
+				this.def.setLevel(Deflater.BEST_COMPRESSION);
+			}
+		}) {
+			gz.write(bytes);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] deflate(byte[] bytes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 3);
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		try (DeflaterOutputStream df = new DeflaterOutputStream(out, deflater)) {
+			df.write(bytes);
+		} finally {
+			deflater.end();
+		}
+		return out.toByteArray();
+	}
+
+	private static boolean isCompressible(String contentType) {
+		return contentType.startsWith("text/") || contentType.contains("javascript") || contentType.contains("json")
+				|| contentType.contains("xml") || contentType.equals("font/ttf") || contentType.equals("image/x-icon");
+	}
+
+	/**
+	 * 	Accept-Encoding是否接受某种编码，q=0表示不接受。
+	 */
+	private static boolean accepts(String acceptEncoding, String coding) {
+		if (acceptEncoding == null) {
+			return false;
+		}
+		boolean wildcard = false;
+		for (String part : acceptEncoding.split(",")) {
+			String[] kv = part.trim().split(";");
+			String name = kv[0].trim().toLowerCase();
+			boolean allowed = true;
+			for (int i = 1; i < kv.length; i++) {
+				String param = kv[i].trim();
+				if (param.startsWith("q=")) {
+					try {
+						allowed = Double.parseDouble(param.substring(2)) > 0;
+					} catch (NumberFormatException e) {
+						allowed = false;
+					}
+				}
+			}
+			if (name.equals(coding)) {
+				return allowed;
+			}
+			if (name.equals("*")) {
+				wildcard = allowed;
+			}
+		}
+		return wildcard;
+	}
+
+	private static long size(ByteBuf buf) {
+		return buf == null ? 0 : buf.readableBytes();
+	}
+}
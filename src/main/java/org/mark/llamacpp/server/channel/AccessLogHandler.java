@@ -0,0 +1,96 @@
+package org.mark.llamacpp.server.channel;
+
+import org.mark.llamacpp.server.io.AccessLog;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+
+/**
+ * 	记录访问日志，HTTP/1.1下放在{@link KeepAliveHandler}后面，HTTP/2下每个流一个。
+ * 	收到请求头时开始计时，从写出的响应里取状态码、字节数和首字节时间，最后一块写完时交给{@link AccessLog}，连接断开时没写完的记为中断。
+ * 	HTTP/1.1的流水线请求由{@link KeepAliveHandler}逐个交过来，同一时间每个连接只有一个请求。
+ */
+public class AccessLogHandler extends ChannelDuplexHandler {
+
+	private final String protocol;
+
+	private AccessLog.Entry entry;
+
+	public AccessLogHandler(String protocol) {
+		this.protocol = protocol;
+	}
+
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+		if (msg instanceof HttpRequest) {
+			HttpRequest request = (HttpRequest) msg;
+			this.abort();
+			String uri = request.uri();
+			int q = uri.indexOf('?');
+			this.entry = AccessLog.getInstance().begin(ctx.channel(), request.method().name(), q < 0 ? uri : uri.substring(0, q), this.protocol);
+		}
+		ctx.fireChannelRead(msg);
+	}
+
+	@Override
+	public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+		AccessLog.Entry e = this.entry;
+		if (e == null) {
+			ctx.write(msg, promise);
+			return;
+		}
+		if (msg instanceof HttpResponse) {
+			int code = ((HttpResponse) msg).status().code();
+			if (code >= 200 || code == 101) {
+				e.setStatus(code);
+			}
+		}
+		if (msg instanceof HttpContent) {
+			e.addBytes(((HttpContent) msg).content().readableBytes());
+		} else if (msg instanceof ByteBuf) {
+			e.addBytes(((ByteBuf) msg).readableBytes());
+		} else if (msg instanceof FileRegion) {
+			e.addBytes(((FileRegion) msg).count());
+		}
+		boolean last = msg instanceof LastHttpContent || (msg instanceof HttpResponse && ((HttpResponse) msg).status().code() == 101);
+		if (!last) {
+			ctx.write(msg, promise);
+			return;
+		}
+		this.entry = null;
+		ChannelPromise p = promise.unvoid();
+		ctx.write(msg, p);
+		p.addListener(f -> {
+			e.finish(!f.isSuccess());
+			AccessLog.getInstance().record(e);
+		});
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		this.abort();
+		ctx.fireChannelInactive();
+	}
+
+	@Override
+	public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+		// 切换到HTTP/2时移除，升级请求的响应在流上记录
+		this.entry = null;
+	}
+
+	private void abort() {
+		AccessLog.Entry e = this.entry;
+		if (e != null && !e.isFinished()) {
+			this.entry = null;
+			e.finish(true);
+			AccessLog.getInstance().record(e);
+		}
+	}
+}
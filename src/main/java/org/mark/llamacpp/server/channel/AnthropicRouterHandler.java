@@ -55,7 +55,6 @@ public class AnthropicRouterHandler extends SimpleChannelInboundHandler<FullHttp
 	 */
     private void handleApiRequest(ChannelHandlerContext ctx, FullHttpRequest request, String uri) {
 		try {
-			logger.info("Anthropic 收到请求：{}", uri);
 			// OpenAI API 端点
 			// 获取模型列表
 			if (uri.startsWith("/v1/models")) {
@@ -1,15 +1,16 @@
 package org.mark.llamacpp.server.channel;
 
-import java.io.File;
-import java.net.URL;
 import java.net.URLDecoder;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.cache.StaticAssets;
 import org.mark.llamacpp.server.controller.BaseController;
+import org.mark.llamacpp.server.controller.CompletionController;
+import org.mark.llamacpp.server.controller.FileDownloadController;
 import org.mark.llamacpp.server.controller.HuggingFaceController;
 import org.mark.llamacpp.server.controller.LlamacppController;
 import org.mark.llamacpp.server.controller.ModelActionController;
@@ -19,6 +20,7 @@ import org.mark.llamacpp.server.controller.ParamController;
 import org.mark.llamacpp.server.controller.SystemController;
 import org.mark.llamacpp.server.controller.ToolController;
 import org.mark.llamacpp.server.exception.RequestMethodException;
+import org.mark.llamacpp.server.route.RouteTable;
 import org.mark.llamacpp.server.struct.ApiResponse;
 
 import org.slf4j.Logger;
@@ -41,7 +43,12 @@ public class BasicRouterHandler extends SimpleChannelInboundHandler<FullHttpRequ
 
 	private static final ExecutorService async = Executors.newVirtualThreadPerTaskExecutor();
 	
-	private static final List<BaseController> pipeline = new LinkedList<>();
+	private static final List<BaseController> pipeline = new ArrayList<>();
+	
+	/**
+	 * 	所有控制器的接口都注册到这个路由表，启动后只读。
+	 */
+	private static final RouteTable routes = RouteTable.named("web");
 	
 	
 	static {
@@ -53,6 +60,11 @@ public class BasicRouterHandler extends SimpleChannelInboundHandler<FullHttpRequ
 		pipeline.add(new ParamController());
 		pipeline.add(new ToolController());
 		pipeline.add(new SystemController());
+		pipeline.add(new CompletionController());
+		pipeline.add(new FileDownloadController());
+		for (BaseController c : pipeline) {
+			c.routes(routes);
+		}
 	}
 	
 	
@@ -85,7 +97,6 @@ public class BasicRouterHandler extends SimpleChannelInboundHandler<FullHttpRequ
 			return;
 		}
 		String uri = request.uri();
-		logger.info("收到请求：{}", uri);
 		// 傻逼浏览器不知道为什么一直在他妈的访问/.well-known/appspecific/com.chrome.devtools.json
 		if ("/.well-known/appspecific/com.chrome.devtools.json".equals(uri)) {
 			ctx.close();
@@ -98,14 +109,8 @@ public class BasicRouterHandler extends SimpleChannelInboundHandler<FullHttpRequ
 		try {
 			// 处理模型API请求
 			if (this.isApiRequest(uri)) {
-				boolean handled = false;
-				for (BaseController c : pipeline) {
-					handled = c.handleRequest(uri, ctx, request);
-					if (handled) {
-						break;
-					}
-				}
-				if (!handled) {
+				// 路由表里没有的接口交给后面的处理器
+				if (!routes.dispatch(ctx, request)) {
 					ctx.fireChannelRead(request.retain());
 				}
 				return;
@@ -114,7 +119,11 @@ public class BasicRouterHandler extends SimpleChannelInboundHandler<FullHttpRequ
 			this.assertRequestMethod(request.method() != HttpMethod.GET, "仅支持GET请求");
 			// 解码URI
 			String path = URLDecoder.decode(uri, "UTF-8");
+			// 带版本参数的资源可以长期缓存
+			boolean versioned = false;
 			if(path.indexOf('?') > 0) {
+				String query = path.substring(path.indexOf('?') + 1);
+				versioned = query.startsWith("v=") || query.contains("&v=");
 				path = path.substring(0, path.indexOf('?'));
 			}
 			boolean isRootRequest = path.equals("/");
@@ -122,25 +131,15 @@ public class BasicRouterHandler extends SimpleChannelInboundHandler<FullHttpRequ
 			if (isRootRequest) {
 				path = isMobileRequest(request) ? "/index-mobile.html" : "/index.html";
 			}
-			// 
-			URL url = LlamaServer.class.getResource("/web" + path);
-
-			if (url == null) {
-				LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.NOT_FOUND, "文件不存在: " + path);
-				return;
-			}
-			// 对于非API请求，只允许访问静态文件，不允许目录浏览
-			// 首先尝试从resources目录获取文件
-			File file = new File(url.getFile().replace("%20", " "));
-			if (!file.exists()) {
-				LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.NOT_FOUND, "文件不存在: " + path);
-				return;
-			}
-			if (file.isDirectory()) {
+			// 对于非API请求，只允许访问启动时加载的静态文件，不允许目录浏览
+			StaticAssets.Asset asset = StaticAssets.getInstance().get(path);
+			if (asset != null) {
+				LlamaServer.sendAsset(ctx, request, asset, versioned);
+			} else if (StaticAssets.getInstance().isDirectory(path)) {
 				// 不允许直接访问目录，必须通过API
 				LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.FORBIDDEN, "不允许直接访问目录，请使用API获取文件列表");
 			} else {
-				LlamaServer.sendFile(ctx, file);
+				LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.NOT_FOUND, "文件不存在: " + path);
 			}
 		} catch (RequestMethodException e) {
 			LlamaServer.sendJsonResponse(ctx, ApiResponse.error(e.getMessage()));
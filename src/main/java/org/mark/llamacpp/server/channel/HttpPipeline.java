@@ -0,0 +1,136 @@
+package org.mark.llamacpp.server.channel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.mark.llamacpp.server.LlamaServer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http2.CleartextHttp2ServerUpgradeHandler;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2MultiplexCodec;
+import io.netty.handler.codec.http2.Http2MultiplexCodecBuilder;
+import io.netty.handler.codec.http2.Http2ServerUpgradeCodec;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.util.AsciiString;
+
+/**
+ * 	前端服务的HTTP协议层，OpenAI、Anthropic、Ollama和LM Studio四个服务共用。
+ * 	HTTP/1.1连接由{@link KeepAliveHandler}保持长连接；同一个端口也接受HTTP/2明文（h2c），客户端可以直接发送连接前言（prior knowledge），也可以用HTTP/1.1的Upgrade: h2c升级。
+ * 	HTTP/2的每个流是一个子Channel，先把帧转换成HttpObject，再装上和HTTP/1.1相同的handler，各个接口不用区分协议：
+ * 	流式响应的每个数据块就是一个DATA帧，每个流有自己的流量控制窗口，客户端断开一个流只会取消这个流上的请求。
+ * 	两种协议下都由{@link AccessLogHandler}记录访问日志。
+ */
+public final class HttpPipeline {
+
+	private HttpPipeline() {
+
+	}
+
+	/**
+	 * 	配置客户端连接的pipeline。
+	 * @param ch 客户端连接
+	 * @param maxContentLength Upgrade请求的请求体上限
+	 * @param handlers 添加处理请求的handler（聚合、路由等），每个HTTP/1.1连接和每个HTTP/2流各调用一次，需要创建新的handler
+	 */
+	public static void init(Channel ch, int maxContentLength, Consumer<ChannelPipeline> handlers) {
+		ChannelPipeline p = ch.pipeline();
+		HttpServerCodec codec = new HttpServerCodec();
+		if (!LlamaServer.isHttpH2cEnabled()) {
+			p.addLast(codec);
+			addHttp1(p, handlers);
+			return;
+		}
+		List<String> before = p.names();
+		addHttp1(p, handlers);
+		// HTTP/1.1专用的handler，切换到HTTP/2之后移除
+		List<String> http1 = new ArrayList<>(p.names());
+		http1.removeAll(before);
+		HttpServerUpgradeHandler upgrade = new HttpServerUpgradeHandler(codec, protocol -> {
+			if (!AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)) {
+				return null;
+			}
+			return new Http2ServerUpgradeCodec(newHttp2Codec(handlers), new Http2Installer(null, http1));
+		}, maxContentLength);
+		p.addFirst(new CleartextHttp2ServerUpgradeHandler(codec, upgrade, new Http2Installer(handlers, http1)));
+	}
+
+	private static void addHttp1(ChannelPipeline p, Consumer<ChannelPipeline> handlers) {
+		p.addLast(KeepAliveHandler.idleStateHandler());
+		p.addLast(new KeepAliveHandler());
+		p.addLast(new AccessLogHandler("h1"));
+		handlers.accept(p);
+	}
+
+	private static Http2MultiplexCodec newHttp2Codec(Consumer<ChannelPipeline> handlers) {
+		Http2Settings settings = Http2Settings.defaultSettings();
+		int maxStreams = LlamaServer.getHttpH2MaxConcurrentStreams();
+		if (maxStreams > 0) {
+			settings.maxConcurrentStreams(maxStreams);
+		}
+		return Http2MultiplexCodecBuilder.forServer(new ChannelInitializer<Channel>() {
+			@Override
+			protected void initChannel(Channel stream) throws Exception {
+				stream.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(true)).addLast(new RawContentEncoder())
+						.addLast(new AccessLogHandler("h2"));
+				handlers.accept(stream.pipeline());
+			}
+		}).initialSettings(settings).build();
+	}
+
+	/**
+	 * 	文件下载由ChunkedFile直接写出ByteBuf，HTTP/1.1下由HttpServerCodec原样发送，HTTP/2下要先包装成HttpContent才能转换成DATA帧。
+	 */
+	private static class RawContentEncoder extends MessageToMessageEncoder<ByteBuf> {
+
+		@Override
+		protected void encode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out) throws Exception {
+			out.add(new DefaultHttpContent(msg.retain()));
+		}
+	}
+
+	/**
+	 * 	切换到HTTP/2：移除HTTP/1.1专用的handler。直接发送连接前言时还要在自己的位置装上HTTP/2的编解码器。
+	 */
+	private static class Http2Installer extends ChannelHandlerAdapter {
+
+		/**
+		 * 	不为null时创建编解码器；Upgrade时编解码器由{@link Http2ServerUpgradeCodec}添加。
+		 */
+		private final Consumer<ChannelPipeline> handlers;
+
+		private final List<String> http1;
+
+		private Http2Installer(Consumer<ChannelPipeline> handlers, List<String> http1) {
+			this.handlers = handlers;
+			this.http1 = http1;
+		}
+
+		@Override
+		public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+			ChannelPipeline p = ctx.pipeline();
+			if (this.handlers != null) {
+				p.addAfter(ctx.name(), null, newHttp2Codec(this.handlers));
+			}
+			for (String name : this.http1) {
+				ChannelHandler h = p.get(name);
+				if (h != null) {
+					p.remove(h);
+				}
+			}
+			p.remove(this);
+		}
+	}
+}
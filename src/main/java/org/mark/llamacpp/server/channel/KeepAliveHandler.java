@@ -0,0 +1,287 @@
+package org.mark.llamacpp.server.channel;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+import org.mark.llamacpp.server.LlamaServer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * 	HTTP/1.1长连接，OpenAI、Anthropic、Ollama和LM Studio四个服务共用，放在HttpServerCodec后面。
+ * 	各个接口写完响应后都会调用ctx.close()：响应已经完整写出、客户端也要求保持连接时，这里把这次关闭忽略掉，连接留给下一个请求。
+ * 	响应头没有Content-Length时，完整的响应补上长度，流式响应改用chunked编码，客户端才能知道响应在哪里结束。
+ * 	上一个响应还没写完就发来的请求（pipelining）先缓存起来并暂停读取，按顺序逐个交给后面的handler，响应不会乱序。
+ * 	两个请求之间空闲超过{@link LlamaServer#getHttpIdleTimeoutSeconds()}秒时断开；升级成WebSocket后移除自己。
+ */
+public class KeepAliveHandler extends ChannelDuplexHandler {
+
+	/**
+	 * 	和{@link KeepAliveHandler}配套的空闲检测，加在它前面。
+	 * @return
+	 */
+	public static IdleStateHandler idleStateHandler() {
+		return new IdleStateHandler(0, 0, Math.max(0, LlamaServer.getHttpIdleTimeoutSeconds()), TimeUnit.SECONDS);
+	}
+
+	private final boolean enabled = LlamaServer.isHttpKeepAlive();
+
+	private final int maxRequests = LlamaServer.getHttpMaxRequestsPerConnection();
+
+	/**
+	 * 	等待处理的流水线请求。
+	 */
+	private final ArrayDeque<Object> queued = new ArrayDeque<>();
+
+	private int requests = 0;
+
+	/**
+	 * 	当前请求的响应还没写完。
+	 */
+	private boolean inFlight = false;
+
+	/**
+	 * 	当前请求的请求体还没收完。
+	 */
+	private boolean reading = false;
+
+	private boolean head = false;
+
+	private boolean keepAlive = false;
+
+	private boolean responseStarted = false;
+
+	/**
+	 * 	响应头里的chunked是这里加上的。
+	 */
+	private boolean addedChunked = false;
+
+	/**
+	 * 	按Content-Length还剩多少字节，-1表示以LastHttpContent为准。
+	 */
+	private long remaining = -1;
+
+	/**
+	 * 	确定要断开连接，之后的close不再拦截。
+	 */
+	private boolean closing = false;
+
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+		if (!this.queued.isEmpty() || (msg instanceof HttpRequest && this.inFlight)) {
+			this.queued.add(msg);
+			ctx.channel().config().setAutoRead(false);
+			return;
+		}
+		this.deliver(ctx, msg);
+	}
+
+	@Override
+	public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+		boolean complete = false;
+		if (msg instanceof HttpResponse) {
+			HttpResponse response = (HttpResponse) msg;
+			int code = response.status().code();
+			if (code == 101) {
+				ctx.write(msg, promise);
+				this.upgraded(ctx);
+				return;
+			}
+			if (code < 200) {
+				// 100 Continue之类的中间响应
+				ctx.write(msg, promise);
+				return;
+			}
+			complete = this.begin(response);
+		} else if (this.responseStarted && this.inFlight) {
+			if (msg instanceof LastHttpContent) {
+				complete = true;
+			} else if (this.remaining >= 0) {
+				this.remaining -= sizeOf(msg);
+				complete = this.remaining <= 0;
+			}
+		}
+		ctx.write(msg, promise);
+		if (complete) {
+			this.completed(ctx, promise);
+		}
+	}
+
+	@Override
+	public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+		if (this.closing || !ctx.channel().isActive()) {
+			ctx.close(promise);
+			return;
+		}
+		if (!this.inFlight && this.keepAlive) {
+			// 响应已经写完，连接留给下一个请求
+			promise.trySuccess();
+			return;
+		}
+		this.closing = true;
+		if (this.inFlight && this.responseStarted && this.addedChunked) {
+			// 原来靠断开连接表示响应结束，改成chunked之后要补上结束块
+			ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT).addListener(f -> ctx.close(promise));
+			return;
+		}
+		ctx.close(promise);
+	}
+
+	@Override
+	public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+		if (evt instanceof IdleStateEvent) {
+			if (!this.inFlight && !this.reading && this.queued.isEmpty()) {
+				this.closing = true;
+				ctx.close();
+			}
+			return;
+		}
+		ctx.fireUserEventTriggered(evt);
+	}
+
+	@Override
+	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+		// 出错的连接不再复用
+		this.closing = true;
+		ctx.fireExceptionCaught(cause);
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		this.releaseQueued();
+		ctx.fireChannelInactive();
+	}
+
+	@Override
+	public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+		// 升级后剩下的数据交给后面的handler
+		while (!this.queued.isEmpty()) {
+			ctx.fireChannelRead(this.queued.poll());
+		}
+		ctx.channel().config().setAutoRead(true);
+	}
+
+	//================================================================================================
+
+	private void deliver(ChannelHandlerContext ctx, Object msg) {
+		if (msg instanceof HttpRequest) {
+			HttpRequest request = (HttpRequest) msg;
+			this.requests++;
+			this.inFlight = true;
+			this.responseStarted = false;
+			this.addedChunked = false;
+			this.remaining = -1;
+			this.head = request.method() == HttpMethod.HEAD;
+			this.keepAlive = this.enabled && !this.closing && HttpUtil.isKeepAlive(request)
+					&& (this.maxRequests <= 0 || this.requests < this.maxRequests);
+			this.reading = !(msg instanceof LastHttpContent);
+		} else if (msg instanceof LastHttpContent) {
+			this.reading = false;
+		}
+		ctx.fireChannelRead(msg);
+	}
+
+	/**
+	 * 	处理响应头，设置Connection和长度。
+	 * @return 响应是否已经完整
+	 */
+	private boolean begin(HttpResponse response) {
+		if (!this.inFlight) {
+			return false;
+		}
+		this.responseStarted = true;
+		if (response.headers().containsValue(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE, true)) {
+			this.keepAlive = false;
+		}
+		boolean complete = false;
+		if (response instanceof FullHttpResponse) {
+			if (!HttpUtil.isContentLengthSet(response) && !HttpUtil.isTransferEncodingChunked(response)) {
+				HttpUtil.setContentLength(response, ((FullHttpResponse) response).content().readableBytes());
+			}
+			complete = true;
+		} else if (this.head) {
+			complete = true;
+		} else if (HttpUtil.isContentLengthSet(response)) {
+			this.remaining = HttpUtil.getContentLength(response, 0L);
+			complete = this.remaining <= 0;
+		} else if (!HttpUtil.isTransferEncodingChunked(response)) {
+			if (this.keepAlive && response.protocolVersion().equals(HttpVersion.HTTP_1_1)) {
+				HttpUtil.setTransferEncodingChunked(response, true);
+				this.addedChunked = true;
+			} else {
+				// 只能靠断开连接表示结束
+				this.keepAlive = false;
+			}
+		}
+		response.headers().set(HttpHeaderNames.CONNECTION, this.keepAlive ? HttpHeaderValues.KEEP_ALIVE : HttpHeaderValues.CLOSE);
+		return complete;
+	}
+
+	/**
+	 * 	响应已经完整交给下一层。不保持连接时写完就断开，否则写完后处理下一个缓存的请求。
+	 */
+	private void completed(ChannelHandlerContext ctx, ChannelPromise promise) {
+		this.inFlight = false;
+		if (!this.keepAlive) {
+			this.closing = true;
+			promise.addListener(f -> ctx.close());
+			return;
+		}
+		// 等写出之后的回调（各个接口的close）都执行完再处理下一个请求
+		promise.addListener(f -> ctx.executor().execute(() -> this.drain(ctx)));
+	}
+
+	private void drain(ChannelHandlerContext ctx) {
+		while (!this.queued.isEmpty() && (!this.inFlight || this.reading) && !this.closing) {
+			this.deliver(ctx, this.queued.poll());
+		}
+		if (this.queued.isEmpty() && !this.closing) {
+			ctx.channel().config().setAutoRead(true);
+		}
+	}
+
+	private void upgraded(ChannelHandlerContext ctx) {
+		this.inFlight = false;
+		IdleStateHandler idle = ctx.pipeline().get(IdleStateHandler.class);
+		if (idle != null) {
+			ctx.pipeline().remove(idle);
+		}
+		ctx.pipeline().remove(this);
+	}
+
+	private void releaseQueued() {
+		while (!this.queued.isEmpty()) {
+			ReferenceCountUtil.release(this.queued.poll());
+		}
+	}
+
+	private static long sizeOf(Object msg) {
+		if (msg instanceof ByteBuf) {
+			return ((ByteBuf) msg).readableBytes();
+		}
+		if (msg instanceof HttpContent) {
+			return ((HttpContent) msg).content().readableBytes();
+		}
+		if (msg instanceof FileRegion) {
+			return ((FileRegion) msg).count();
+		}
+		return 0;
+	}
+}
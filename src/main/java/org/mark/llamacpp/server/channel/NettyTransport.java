@@ -0,0 +1,176 @@
+package org.mark.llamacpp.server.channel;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import org.mark.llamacpp.server.LlamaServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * 	所有监听端口和上游连接共用的Netty传输层。
+ * 	OpenAI、Anthropic、Ollama、LM Studio等服务共用一组boss/worker线程，转发到llama-server的连接也使用同一组worker线程，
+ * 	前端占用的线程数固定，不会随着开启的服务增多而成倍增加，和推理进程抢CPU。
+ * 	Linux上能加载原生库时使用epoll，否则使用NIO。epoll下可以开启SO_REUSEPORT，同一个端口绑定多个监听socket，由内核分配新连接。
+ */
+public class NettyTransport {
+
+	private static final Logger logger = LoggerFactory.getLogger(NettyTransport.class);
+
+	private static final NettyTransport INSTANCE = new NettyTransport();
+
+	public static NettyTransport getInstance() {
+		return INSTANCE;
+	}
+
+	private final boolean epoll;
+
+	private final boolean reusePort;
+
+	private final int acceptors;
+
+	private volatile EventLoopGroup bossGroup;
+
+	private volatile EventLoopGroup workerGroup;
+
+	private NettyTransport() {
+		boolean useEpoll = false;
+		if (LlamaServer.isTransportNative()) {
+			useEpoll = Epoll.isAvailable();
+			if (!useEpoll) {
+				logger.info("epoll不可用，使用NIO: {}", String.valueOf(Epoll.unavailabilityCause()));
+			}
+		}
+		this.epoll = useEpoll;
+		this.reusePort = useEpoll && LlamaServer.isTransportReusePort();
+		if (LlamaServer.isTransportReusePort() && !useEpoll) {
+			logger.info("SO_REUSEPORT需要epoll，已忽略");
+		}
+		this.acceptors = Math.max(1, LlamaServer.getTransportBossThreads());
+		logger.info("Netty传输层: {}，boss线程: {}，worker线程: {}，SO_REUSEPORT: {}",
+				useEpoll ? "epoll" : "nio", this.acceptors, workerThreads(), this.reusePort);
+	}
+
+	public boolean isEpoll() {
+		return this.epoll;
+	}
+
+	/**
+	 * 	接受连接的线程组，所有监听端口共用。
+	 * @return
+	 */
+	public EventLoopGroup bossGroup() {
+		EventLoopGroup g = this.bossGroup;
+		if (g == null) {
+			synchronized (this) {
+				if (this.bossGroup == null) {
+					this.bossGroup = this.newEventLoopGroup(this.acceptors, "netty-boss");
+				}
+				g = this.bossGroup;
+			}
+		}
+		return g;
+	}
+
+	/**
+	 * 	处理客户端连接和上游连接的线程组。
+	 * @return
+	 */
+	public EventLoopGroup workerGroup() {
+		EventLoopGroup g = this.workerGroup;
+		if (g == null) {
+			synchronized (this) {
+				if (this.workerGroup == null) {
+					this.workerGroup = this.newEventLoopGroup(workerThreads(), "netty-worker");
+				}
+				g = this.workerGroup;
+			}
+		}
+		return g;
+	}
+
+	/**
+	 * 	创建一个同类型的独立线程组，用于不能和共享线程组混用的场景。线程为守护线程。
+	 * @param threads
+	 * @param name 线程名前缀
+	 * @return
+	 */
+	public EventLoopGroup newEventLoopGroup(int threads, String name) {
+		DefaultThreadFactory factory = new DefaultThreadFactory(name, true);
+		return this.epoll ? new EpollEventLoopGroup(threads, factory) : new NioEventLoopGroup(threads, factory);
+	}
+
+	public Class<? extends ServerChannel> serverChannelClass() {
+		return this.epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+	}
+
+	public Class<? extends SocketChannel> socketChannelClass() {
+		return this.epoll ? EpollSocketChannel.class : NioSocketChannel.class;
+	}
+
+	/**
+	 * 	使用共享线程组的ServerBootstrap，调用方再设置选项和handler。
+	 * @return
+	 */
+	public ServerBootstrap serverBootstrap() {
+		ServerBootstrap bootstrap = new ServerBootstrap()
+				.group(this.bossGroup(), this.workerGroup())
+				.channel(this.serverChannelClass());
+		if (this.reusePort) {
+			bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+		}
+		return bootstrap;
+	}
+
+	public ChannelFuture bind(ServerBootstrap bootstrap, int port) {
+		return this.bind(bootstrap, new InetSocketAddress(port));
+	}
+
+	/**
+	 * 	绑定端口。开启SO_REUSEPORT时每个boss线程绑定一个监听socket，返回第一个；第一个关闭时其余的一起关闭。
+	 * @param bootstrap
+	 * @param address
+	 * @return
+	 */
+	public ChannelFuture bind(ServerBootstrap bootstrap, SocketAddress address) {
+		ChannelFuture first = bootstrap.bind(address);
+		if (!this.reusePort || this.acceptors <= 1) {
+			return first;
+		}
+		first.addListener((ChannelFuture f) -> {
+			if (!f.isSuccess()) {
+				return;
+			}
+			for (int i = 1; i < this.acceptors; i++) {
+				ChannelFuture sibling = bootstrap.bind(address);
+				sibling.addListener((ChannelFuture sf) -> {
+					if (!sf.isSuccess()) {
+						logger.info("SO_REUSEPORT绑定失败: {}", address, sf.cause());
+					}
+				});
+				f.channel().closeFuture().addListener(cf -> sibling.channel().close());
+			}
+		});
+		return first;
+	}
+
+	private static int workerThreads() {
+		int n = LlamaServer.getTransportWorkerThreads();
+		return n > 0 ? n : Runtime.getRuntime().availableProcessors();
+	}
+}
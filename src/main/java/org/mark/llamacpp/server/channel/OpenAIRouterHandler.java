@@ -12,11 +12,13 @@ import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.service.OpenAIService;
 import org.mark.llamacpp.server.struct.ApiResponse;
 import org.mark.llamacpp.server.tools.JsonUtil;
+import org.mark.llamacpp.server.upstream.StreamingBody;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
 
 /**
  * 	服务端的主要实现。
@@ -68,7 +70,7 @@ public class OpenAIRouterHandler extends SimpleChannelInboundHandler<FullHttpReq
 		try {
 			// 验证key
 			if (uri.startsWith("/v1") && request.method() != HttpMethod.OPTIONS) {
-				if (!this.validateApiKey(request)) {
+				if (!validateApiKey(request)) {
 					LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.UNAUTHORIZED, "invalid api key");
 					return;
 				}
@@ -105,6 +107,46 @@ public class OpenAIRouterHandler extends SimpleChannelInboundHandler<FullHttpReq
 		}
     }
     
+	/**
+	 * 	支持边收边发的推理接口，返回转发到llama-server的路径，其它接口返回null。
+	 * @param uri
+	 * @return
+	 */
+	static String streamingEndpoint(String uri) {
+		if (uri.startsWith("/v1/chat/completion") || uri.startsWith("/chat/completion")) {
+			return "/v1/chat/completions";
+		}
+		if (uri.startsWith("/v1/completions") || uri.startsWith("/completions")) {
+			return "/v1/completions";
+		}
+		return null;
+	}
+	
+	/**
+	 * 	转发边收边发的请求，由{@link StreamingIngressHandler}在扫描到模型名后调用。
+	 * @param ctx 本handler的context
+	 * @param request
+	 * @param endpoint
+	 * @param modelName
+	 * @param body
+	 * @param isStream
+	 * @return 已经回复错误时返回false
+	 */
+	boolean handleStreamingRequest(ChannelHandlerContext ctx, HttpRequest request, String endpoint, String modelName, StreamingBody body, BooleanSupplier isStream) {
+		return this.openAIServerHandler.forwardStreamingRequest(ctx, request, modelName, endpoint, body, isStream);
+	}
+	
+	/**
+	 * 	边收边发的请求出错时回复OpenAI格式的错误并关闭连接。
+	 * @param ctx
+	 * @param httpStatus
+	 * @param message
+	 * @param param
+	 */
+	void sendStreamingError(ChannelHandlerContext ctx, int httpStatus, String message, String param) {
+		this.openAIServerHandler.sendOpenAIErrorResponseWithCleanup(ctx, httpStatus, null, message, param);
+	}
+    
     /**
      * 处理CORS预检请求
      */
@@ -112,7 +154,7 @@ public class OpenAIRouterHandler extends SimpleChannelInboundHandler<FullHttpReq
         FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
         response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
         response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_METHODS, "GET, POST, PUT, DELETE, OPTIONS");
-        response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "Content-Type, Authorization");
+        response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "Content-Type, Authorization, X-Priority");
         response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
         
         ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
@@ -138,7 +180,7 @@ public class OpenAIRouterHandler extends SimpleChannelInboundHandler<FullHttpReq
 		// 添加CORS头
 		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
 		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_METHODS, "GET, POST, PUT, DELETE, OPTIONS");
-		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "Content-Type, Authorization");
+		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "Content-Type, Authorization, X-Priority");
 		response.content().writeBytes(content);
 
 		ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
@@ -151,12 +193,17 @@ public class OpenAIRouterHandler extends SimpleChannelInboundHandler<FullHttpReq
 
 	@Override
 	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-		logger.info("OAI 客户端连接关闭：{}", ctx);
 		// 事件通知
 		this.openAIServerHandler.channelInactive(ctx);
 		super.channelInactive(ctx);
 	}
 
+	@Override
+	public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+		this.openAIServerHandler.channelWritabilityChanged(ctx);
+		super.channelWritabilityChanged(ctx);
+	}
+
 	@Override
 	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
 		logger.info("处理请求时发生异常", cause);
@@ -168,7 +215,7 @@ public class OpenAIRouterHandler extends SimpleChannelInboundHandler<FullHttpReq
 	 * @param request
 	 * @return
 	 */
-	private boolean validateApiKey(FullHttpRequest request) {
+	static boolean validateApiKey(HttpRequest request) {
 		if (!LlamaServer.isApiKeyValidationEnabled()) {
 			return true;
 		}
@@ -0,0 +1,315 @@
+package org.mark.llamacpp.server.channel;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.ingress.JsonFieldScanner;
+import org.mark.llamacpp.server.ingress.RequestRewriter;
+import org.mark.llamacpp.server.upstream.StreamingBody;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * 	推理接口的大请求体不经过HttpObjectAggregator，边收边转发给llama-server。
+ * 	放在HttpServerCodec和HttpObjectAggregator之间。请求体超过阈值（或者没有Content-Length）时接管这个请求：
+ * 	用{@link JsonFieldScanner}增量找出model和stream字段，拿到模型名后就开始转发，{@link RequestRewriter}追加的字段在请求体末尾插入，
+ * 	之前收到的数据块先留着（Netty的直接内存，不复制到堆上），最多{@link StreamingBody#HIGH_WATER_MARK}字节，
+ * 	超过时还没有找到模型名就把这个请求交回给HttpObjectAggregator，按普通请求聚合（聚合的上限同样限制了内存）。其它请求原样交给后面的handler。
+ */
+public class StreamingIngressHandler extends ChannelInboundHandlerAdapter {
+
+	private static final Logger logger = LoggerFactory.getLogger(StreamingIngressHandler.class);
+
+	private final OpenAIRouterHandler router;
+
+	/**
+	 * 	当前正在接管的请求，没有时为null。
+	 */
+	private Ingress current;
+
+	/**
+	 * 	已经回复过错误，剩下的请求体直接丢掉。
+	 */
+	private boolean discarding = false;
+
+	public StreamingIngressHandler(OpenAIRouterHandler router) {
+		this.router = router;
+	}
+
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+		if (msg instanceof HttpRequest && !(msg instanceof FullHttpRequest)) {
+			HttpRequest request = (HttpRequest) msg;
+			this.discarding = false;
+			String endpoint = this.shouldStream(request);
+			if (endpoint == null) {
+				ctx.fireChannelRead(msg);
+				return;
+			}
+			ReferenceCountUtil.release(msg);
+			this.begin(ctx, request, endpoint);
+			return;
+		}
+		if (msg instanceof HttpContent && (this.current != null || this.discarding)) {
+			HttpContent content = (HttpContent) msg;
+			boolean passed = false;
+			try {
+				if (this.current != null && !this.current.feed(content.content())) {
+					// 找到模型名之前攒的数据太多，交给聚合路径，这一块和之后的数据块都原样往后传
+					Ingress ingress = this.current;
+					this.current = null;
+					ingress.aggregate(ctx);
+					passed = true;
+					ctx.fireChannelRead(msg);
+					return;
+				}
+				if (msg instanceof LastHttpContent) {
+					if (this.current != null) {
+						this.current.finish();
+					}
+					this.current = null;
+					this.discarding = false;
+				}
+			} finally {
+				if (!passed) {
+					content.release();
+				}
+			}
+			return;
+		}
+		ctx.fireChannelRead(msg);
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		if (this.current != null) {
+			this.current.abort();
+			this.current = null;
+		}
+		super.channelInactive(ctx);
+	}
+
+	/**
+	 * 	判断是否接管这个请求。
+	 * @param request
+	 * @return 接管时返回转发的路径，否则返回null
+	 */
+	private String shouldStream(HttpRequest request) {
+		long threshold = LlamaServer.getIngressStreamThresholdBytes();
+		if (threshold <= 0 || request.method() != HttpMethod.POST || !request.decoderResult().isSuccess()) {
+			return null;
+		}
+		String endpoint = OpenAIRouterHandler.streamingEndpoint(request.uri());
+		if (endpoint == null) {
+			return null;
+		}
+		long length = HttpUtil.getContentLength(request, -1L);
+		if (length > threshold || (length < 0 && HttpUtil.isTransferEncodingChunked(request))) {
+			return endpoint;
+		}
+		return null;
+	}
+
+	private void begin(ChannelHandlerContext ctx, HttpRequest request, String endpoint) {
+		ChannelHandlerContext routerCtx = ctx.pipeline().context(this.router);
+		if (request.uri().startsWith("/v1") && !OpenAIRouterHandler.validateApiKey(request)) {
+			this.reject(routerCtx, 401, "invalid api key", null);
+			return;
+		}
+		long length = HttpUtil.getContentLength(request, -1L);
+		if (length > LlamaServer.getIngressMaxBodyBytes()) {
+			this.reject(routerCtx, 413, "Request body is too large", null);
+			return;
+		}
+		if (HttpUtil.is100ContinueExpected(request)) {
+			ctx.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE, Unpooled.EMPTY_BUFFER));
+		}
+		logger.info("请求体较大，边收边转发: {} 长度: {}", request.uri(), length < 0 ? "chunked" : length);
+		this.current = new Ingress(routerCtx, request, endpoint);
+	}
+
+	private void reject(ChannelHandlerContext routerCtx, int status, String message, String param) {
+		this.current = null;
+		this.discarding = true;
+		this.router.sendStreamingError(routerCtx, status, message, param);
+	}
+
+	/**
+	 * 	一个被接管的请求。
+	 */
+	private class Ingress {
+
+		private final ChannelHandlerContext ctx;
+
+		private final HttpRequest request;
+
+		private final String endpoint;
+
+		private final JsonFieldScanner scanner = RequestRewriter.getInstance().newScanner();
+
+		/**
+		 * 	拿到模型名之前收到的数据，都是客户端发来的原始数据。
+		 */
+		private List<ByteBuf> pending = new ArrayList<>();
+
+		private long pendingBytes = 0;
+
+		private long received = 0;
+
+		private StreamingBody body;
+
+		private Ingress(ChannelHandlerContext ctx, HttpRequest request, String endpoint) {
+			this.ctx = ctx;
+			this.request = request;
+			this.endpoint = endpoint;
+		}
+
+		/**
+		 * 	处理一块请求体。
+		 * @param content 调用方负责释放
+		 * @return 还没有模型名而攒的数据超过上限时返回false，这一块没有处理，调用方转交给聚合路径
+		 */
+		private boolean feed(ByteBuf content) {
+			if (!content.isReadable()) {
+				return true;
+			}
+			this.received += content.readableBytes();
+			if (this.received > LlamaServer.getIngressMaxBodyBytes()) {
+				this.fail(413, "Request body is too large", null);
+				return true;
+			}
+			int end = this.scanner.feed(content);
+			if (this.scanner.isInvalid()) {
+				this.fail(400, "Request body must be a JSON object", null);
+				return true;
+			}
+			if (this.body == null && this.scanner.getString("model") == null
+					&& this.pendingBytes + content.readableBytes() > StreamingBody.HIGH_WATER_MARK) {
+				return false;
+			}
+			String tail = end >= 0 ? RequestRewriter.getInstance().tailFor(this.endpoint, this.scanner) : null;
+			if (tail != null) {
+				// 改写规则追加的字段插在顶层对象的右花括号前面
+				int start = content.readerIndex();
+				this.emit(content.retainedSlice(start, end - start));
+				this.emit(Unpooled.copiedBuffer(tail, StandardCharsets.UTF_8));
+				this.emit(content.retainedSlice(end, content.writerIndex() - end));
+			} else {
+				this.emit(content.retainedSlice());
+			}
+			if (this.body == null) {
+				String model = this.scanner.getString("model");
+				if (model != null) {
+					this.start(model);
+				}
+			}
+			return true;
+		}
+
+		private void emit(ByteBuf chunk) {
+			if (this.body != null) {
+				this.body.write(chunk);
+			} else if (this.pending != null) {
+				this.pending.add(chunk);
+				this.pendingBytes += chunk.readableBytes();
+			} else {
+				chunk.release();
+			}
+		}
+
+		/**
+		 * 	请求体收完。
+		 */
+		private void finish() {
+			if (this.body == null) {
+				String model = this.scanner.getString("model");
+				if (model == null && "/v1/completions".equals(this.endpoint)) {
+					// 文本补全没有指定模型时使用第一个模型，和聚合路径一致
+					model = LlamaServerManager.getInstance().getFirstModelName();
+				}
+				if (model == null) {
+					this.fail(400, "Missing required parameter: model", "model");
+					return;
+				}
+				this.start(model);
+			}
+			if (this.body != null) {
+				this.body.end();
+			}
+		}
+
+		private void start(String model) {
+			StreamingBody body = new StreamingBody(this.ctx.channel());
+			List<ByteBuf> chunks = this.pending;
+			this.pending = null;
+			for (ByteBuf chunk : chunks) {
+				body.write(chunk);
+			}
+			if (!router.handleStreamingRequest(this.ctx, this.request, this.endpoint, model, body, this::isStream)) {
+				body.close();
+				current = null;
+				discarding = true;
+				return;
+			}
+			this.body = body;
+		}
+
+		/**
+		 * 	把请求头和已经收到的数据交给后面的HttpObjectAggregator，之后当作普通请求处理。
+		 * 	100-continue已经回复过了，不让聚合器再回复一次。
+		 */
+		private void aggregate(ChannelHandlerContext ctx) {
+			logger.info("请求体前部没有找到model字段，改为聚合处理: {}", this.request.uri());
+			HttpUtil.set100ContinueExpected(this.request, false);
+			ctx.fireChannelRead(this.request);
+			List<ByteBuf> chunks = this.pending;
+			this.pending = null;
+			for (ByteBuf chunk : chunks) {
+				ctx.fireChannelRead(new DefaultHttpContent(chunk));
+			}
+		}
+
+		private boolean isStream() {
+			return Boolean.TRUE.equals(this.scanner.getBoolean("stream"));
+		}
+
+		private void fail(int status, String message, String param) {
+			this.abort();
+			reject(this.ctx, status, message, param);
+		}
+
+		/**
+		 * 	放弃这个请求，释放还没发出的数据。
+		 */
+		private void abort() {
+			if (this.pending != null) {
+				for (ByteBuf chunk : this.pending) {
+					chunk.release();
+				}
+				this.pending = null;
+			}
+			if (this.body != null) {
+				this.body.close();
+			}
+		}
+	}
+}
@@ -1,9 +1,9 @@
 package org.mark.llamacpp.server.controller;
 
 import org.mark.llamacpp.server.exception.RequestMethodException;
+import org.mark.llamacpp.server.route.RouteTable;
 
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.http.FullHttpRequest;
 
 
 /**
@@ -12,14 +12,10 @@ import io.netty.handler.codec.http.FullHttpRequest;
 public interface BaseController {
 
 	/**
-	 * 	处理请求
-	 * @param uri
-	 * @param ctx
-	 * @param request
-	 * @return
-	 * @throws RequestMethodException
+	 * 	把这个控制器的接口注册到路由表。启动时调用一次。
+	 * @param table
 	 */
-	public boolean handleRequest(String uri, ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException;
+	public void routes(RouteTable table);
 	
 	
 	/**
@@ -1,4 +1,4 @@
-package org.mark.llamacpp.server.channel;
+package org.mark.llamacpp.server.controller;
 
 import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
@@ -8,10 +8,9 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.route.RouteTable;
 import org.mark.llamacpp.server.service.CompletionService;
 import org.mark.llamacpp.server.struct.CharactorDataStruct;
 
@@ -21,7 +20,6 @@ import com.google.gson.JsonObject;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpHeaderNames;
@@ -36,12 +34,11 @@ import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder;
 import io.netty.handler.codec.http.multipart.InterfaceHttpData;
 import io.netty.handler.stream.ChunkedFile;
 import io.netty.util.CharsetUtil;
-import io.netty.util.ReferenceCountUtil;
 
 /**
  * 	这是自用的创作服务的路由控制器。
  */
-public class CompletionRouterHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+public class CompletionController implements BaseController {
 	
 	/**
 	 * 	
@@ -52,8 +49,6 @@ public class CompletionRouterHandler extends SimpleChannelInboundHandler<FullHtt
 	private static final long MAX_UPLOAD_BYTES = 16L * 1024L * 1024L;
 	private static final long MAX_AVATAR_UPLOAD_BYTES = 1L * 1024L * 1024L;
 
-	private static final ExecutorService async = Executors.newVirtualThreadPerTaskExecutor();
-	
 	/**
 	 * 	
 	 */
@@ -61,117 +56,25 @@ public class CompletionRouterHandler extends SimpleChannelInboundHandler<FullHtt
 	
 	
 	
-	public CompletionRouterHandler() {
+	public CompletionController() {
 		
 	}
 	
 	
 	
 	@Override
-	protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest msg) throws Exception {
-		FullHttpRequest retained = msg.retainedDuplicate();
-		async.execute(() -> {
-			try {
-				this.handleRequest(ctx, retained);
-			} finally {
-				ReferenceCountUtil.release(retained);
-			}
-		});
-	}
-
-	private void handleRequest(ChannelHandlerContext ctx, FullHttpRequest msg) {
-		String uri = msg.uri();
-		if (uri == null) {
-			LlamaServer.sendJsonErrorResponse(ctx, HttpResponseStatus.BAD_REQUEST, "缺少URI");
-			return;
-		}
-		if (HttpMethod.OPTIONS.equals(msg.method()) && uri.startsWith("/api/chat/completion")) {
-			LlamaServer.sendCorsResponse(ctx);
-			return;
-		}
-		
-		if (uri.startsWith("/api/chat/completion")) {
-			this.handleCompletionApi(ctx, msg, uri);
-			return;
-		}
-		ctx.fireChannelRead(msg.retain());
-	}
-	
-	/**
-	 * 	处理API请求。
-	 * @param ctx
-	 * @param msg
-	 * @param uri
-	 */
-	private void handleCompletionApi(ChannelHandlerContext ctx, FullHttpRequest msg, String uri) {
-		try {
-			String path = uri;
-			String query = null;
-			int qIdx = uri.indexOf('?');
-			if (qIdx >= 0) {
-				path = uri.substring(0, qIdx);
-				query = uri.substring(qIdx + 1);
-			}
-
-			HttpMethod method = msg.method();
-			
-			if ("/api/chat/completion/list".equals(path) && HttpMethod.GET.equals(method)) {
-				this.handleCharactorList(ctx);
-				return;
-			}
-
-			if ("/api/chat/completion/create".equals(path) && HttpMethod.POST.equals(method)) {
-				String body = msg.content().toString(CharsetUtil.UTF_8);
-				this.handleCharactorCreate(ctx, body);
-				return;
-			}
-
-			if ("/api/chat/completion/get".equals(path) && HttpMethod.GET.equals(method)) {
-				String name = getQueryParam(query, "name");
-				this.handleCharactorGet(ctx, name);
-				return;
-			}
-
-			if ("/api/chat/completion/save".equals(path) && HttpMethod.POST.equals(method)) {
-				String name = getQueryParam(query, "name");
-				String body = msg.content().toString(CharsetUtil.UTF_8);
-				this.handleCharactorSave(ctx, name, body);
-				return;
-			}
-
-			if ("/api/chat/completion/delete".equals(path) && HttpMethod.DELETE.equals(method)) {
-				String id = getQueryParam(query, "name");
-				this.handleCharactorDelete(ctx, id);
-				return;
-			}
-
-			if ("/api/chat/completion/file/upload".equals(path) && HttpMethod.POST.equals(method)) {
-				this.handleChatFileUpload(ctx, msg);
-				return;
-			}
-
-			if ("/api/chat/completion/file/download".equals(path) && HttpMethod.GET.equals(method)) {
-				String name = getQueryParam(query, "name");
-				this.handleChatFileDownload(ctx, name);
-				return;
-			}
-			
-			if ("/api/chat/completion/avatar/upload".equals(path) && HttpMethod.POST.equals(method)) {
-				String name = getQueryParam(query, "name");
-				this.handleAvatarUpload(ctx, msg, name);
-				return;
-			}
-			
-			if ("/api/chat/completion/avatar/get".equals(path) && HttpMethod.GET.equals(method)) {
-				String name = getQueryParam(query, "name");
-				this.handleAvatarGet(ctx, name);
-				return;
-			}
-
-			LlamaServer.sendJsonErrorResponse(ctx, HttpResponseStatus.NOT_FOUND, "404 Not Found");
-		} catch (Exception e) {
-			LlamaServer.sendJsonErrorResponse(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, "服务器内部错误: " + e.getMessage());
-		}
+	public void routes(RouteTable table) {
+		table.route(HttpMethod.GET, "/api/chat/completion/list", (ctx, request, match) -> this.handleCharactorList(ctx));
+		table.route(HttpMethod.POST, "/api/chat/completion/create",
+				(ctx, request, match) -> this.handleCharactorCreate(ctx, request.content().toString(CharsetUtil.UTF_8)));
+		table.route(HttpMethod.GET, "/api/chat/completion/get", (ctx, request, match) -> this.handleCharactorGet(ctx, match.query("name")));
+		table.route(HttpMethod.POST, "/api/chat/completion/save",
+				(ctx, request, match) -> this.handleCharactorSave(ctx, match.query("name"), request.content().toString(CharsetUtil.UTF_8)));
+		table.route(HttpMethod.DELETE, "/api/chat/completion/delete", (ctx, request, match) -> this.handleCharactorDelete(ctx, match.query("name")));
+		table.route(HttpMethod.POST, "/api/chat/completion/file/upload", this::handleChatFileUpload);
+		table.route(HttpMethod.GET, "/api/chat/completion/file/download", (ctx, request, match) -> this.handleChatFileDownload(ctx, match.query("name")));
+		table.route(HttpMethod.POST, "/api/chat/completion/avatar/upload", (ctx, request, match) -> this.handleAvatarUpload(ctx, request, match.query("name")));
+		table.route(HttpMethod.GET, "/api/chat/completion/avatar/get", (ctx, request, match) -> this.handleAvatarGet(ctx, match.query("name")));
 	}
 
 	private void handleAvatarUpload(ChannelHandlerContext ctx, FullHttpRequest request, String charactorId) {
@@ -533,33 +436,6 @@ public class CompletionRouterHandler extends SimpleChannelInboundHandler<FullHtt
 		LlamaServer.sendJsonResponse(ctx, response);
 	}
 
-	/**
-	 * 	
-	 * @param query
-	 * @param key
-	 * @return
-	 */
-	private static String getQueryParam(String query, String key) {
-		if (query == null || query.isEmpty() || key == null || key.isEmpty())
-			return null;
-		String[] parts = query.split("&");
-		for (String p : parts) {
-			int idx = p.indexOf('=');
-			if (idx < 0)
-				continue;
-			String k = p.substring(0, idx);
-			if (!key.equals(k))
-				continue;
-			String v = p.substring(idx + 1);
-			try {
-				return java.net.URLDecoder.decode(v, StandardCharsets.UTF_8);
-			} catch (Exception e) {
-				return v;
-			}
-		}
-		return null;
-	}
-	
 	private static String maybeCompress(String s) {
 		if (s == null || s.isEmpty()) return s;
 		if (s.startsWith(LZ_PREFIX)) return s;
@@ -1,4 +1,4 @@
-package org.mark.llamacpp.server.channel;
+package org.mark.llamacpp.server.controller;
 
 
 import java.io.IOException;
@@ -9,114 +9,59 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.stream.Stream;
 
 import org.mark.llamacpp.download.struct.ModelDownloadRequest;
 import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.cache.ApiSnapshots;
+import org.mark.llamacpp.server.route.RouteTable;
 import org.mark.llamacpp.server.service.DownloadService;
 import org.mark.llamacpp.server.tools.JsonUtil;
 
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.util.CharsetUtil;
-import io.netty.util.ReferenceCountUtil;
 
 /**
  * 模型下载API路由处理器
  */
-public class FileDownloadRouterHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+public class FileDownloadController implements BaseController {
     
 	/**
 	 * 	下载服务
 	 */
     private static final DownloadService downloadService = DownloadService.getInstance();
 
-	private static final ExecutorService async = Executors.newVirtualThreadPerTaskExecutor();
     
     /**
      * 	空的构造器。
      */
-    public FileDownloadRouterHandler() {
+    public FileDownloadController() {
     	
     }
     
 	@Override
-	protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) throws Exception {
-		FullHttpRequest retained = request.retainedDuplicate();
-		async.execute(() -> {
-			try {
-				this.handleRequest(ctx, retained);
-			} finally {
-				ReferenceCountUtil.release(retained);
-			}
-		});
-	}
-
-	private void handleRequest(ChannelHandlerContext ctx, FullHttpRequest request) {
-		// 处理CORS
-		if (request.method() == HttpMethod.OPTIONS) {
-			LlamaServer.sendCorsResponse(ctx);
-			return;
-		}
-		String uri = request.uri();
-		// 解析路径
-		String[] pathParts = uri.split("/");
-		if (pathParts.length < 2) {
-			LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.BAD_REQUEST, "无效的API路径");
-			return;
-		}
+	public void routes(RouteTable table) {
 		// 列出全部的下载任务
-		if (uri.startsWith("/api/downloads/list")) {
-			this.handleListDownloads(ctx);
-			return;
-		}
+		table.route("/api/downloads/list", this::handleListDownloads);
 		// 创建下载任务
-		if (uri.startsWith("/api/downloads/create")) {
-			this.handleCreateDownload(ctx, request);
-			return;
-		}
+		table.route("/api/downloads/create", this::handleCreateDownload);
 		// 创建模型下载任务
-		if (uri.startsWith("/api/downloads/model/create")) {
-			this.handleModelDonwload(ctx, request);
-			return;
-		}
-		
+		table.route("/api/downloads/model/create", this::handleModelDonwload);
 		// 暂停指定的下载任务
-		if (uri.startsWith("/api/downloads/pause")) {
-			this.handlePauseDownload(ctx, request);
-			return;
-		}
+		table.route("/api/downloads/pause", this::handlePauseDownload);
 		// 恢复下载任务
-		if (uri.startsWith("/api/downloads/resume")) {
-			this.handleResumeDownload(ctx, request);
-			return;
-		}
+		table.route("/api/downloads/resume", this::handleResumeDownload);
 		// 删除下载任务
-		if (uri.startsWith("/api/downloads/delete")) {
-			this.handleDeleteDownload(ctx, request);
-			return;
-		}
+		table.route("/api/downloads/delete", this::handleDeleteDownload);
 		// 获取状态
-		if (uri.startsWith("/api/downloads/stats")) {
-			this.handleGetStats(ctx);
-			return;
-		}
+		table.route("/api/downloads/stats", (ctx, request, match) -> this.handleGetStats(ctx));
 		// 获取下载路径
-		if (uri.startsWith("/api/downloads/path/get")) {
-			this.handleGetDownloadPath(ctx);
-			return;
-		}
+		table.route("/api/downloads/path/get", (ctx, request, match) -> this.handleGetDownloadPath(ctx));
 		// 设置下载路径
-		if (uri.startsWith("/api/downloads/path/set")) {
-			this.handleSetDownloadPath(ctx, request);
-			return;
-		}
-		ctx.fireChannelRead(request.retain());
+		table.route("/api/downloads/path/set", this::handleSetDownloadPath);
 	}
 	
 	
@@ -303,13 +248,19 @@ public class FileDownloadRouterHandler extends SimpleChannelInboundHandler<FullH
 //	}
     
 	/**
-	 * 	处理获取下载列表请求
+	 * 	处理获取下载列表请求。列表按下载任务的版本缓存，任务没有变化时返回304。
 	 * @param ctx
+	 * @param request
 	 */
-	private void handleListDownloads(ChannelHandlerContext ctx) {
+	private void handleListDownloads(ChannelHandlerContext ctx, FullHttpRequest request) {
 		try {
-			var result = downloadService.getAllDownloadTasks();
-			LlamaServer.sendJsonResponse(ctx, result);
+			ApiSnapshots snapshots = ApiSnapshots.getInstance();
+			String etag = snapshots.etag(ApiSnapshots.DOWNLOADS);
+			if (snapshots.isNotModified(request, etag)) {
+				LlamaServer.sendNotModified(ctx, etag);
+				return;
+			}
+			LlamaServer.sendSnapshotResponse(ctx, snapshots.get("/api/downloads/list", ApiSnapshots.DOWNLOADS, downloadService::getAllDownloadTasks));
 		} catch (Exception e) {
 			LlamaServer.sendErrorResponse(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, "获取下载列表失败: " + e.getMessage());
 		}
@@ -12,6 +12,7 @@ import java.util.Map;
 
 import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.exception.RequestMethodException;
+import org.mark.llamacpp.server.route.RouteTable;
 import org.mark.llamacpp.server.struct.ApiResponse;
 import org.mark.llamacpp.server.struct.LlamaCppConfig;
 import org.mark.llamacpp.server.struct.LlamaCppDataStruct;
@@ -41,29 +42,16 @@ public class LlamacppController implements BaseController {
 	/**
 	 * 	
 	 */
-	public boolean handleRequest(String uri, ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+	@Override
+	public void routes(RouteTable table) {
 		// 添加一个llamacpp
-		if (uri.startsWith("/api/llamacpp/add")) {
-			this.handleLlamaCppAdd(ctx, request);
-			return true;
-		}
+		table.route("/api/llamacpp/add", this::handleLlamaCppAdd);
 		// 移除
-		if (uri.startsWith("/api/llamacpp/remove")) {
-			this.handleLlamaCppRemove(ctx, request);
-			return true;
-		}
+		table.route("/api/llamacpp/remove", this::handleLlamaCppRemove);
 		// 列出全部
-		if (uri.startsWith("/api/llamacpp/list")) {
-			this.handleLlamaCppList(ctx, request);
-			return true;
-		}
+		table.route("/api/llamacpp/list", this::handleLlamaCppList);
 		// 执行测试
-		if (uri.startsWith("/api/llamacpp/test")) {
-			this.handleLlamaCppTest(ctx, request);
-			return true;
-		}
-		
-		return false;
+		table.route("/api/llamacpp/test", this::handleLlamaCppTest);
 	}
 	
 	
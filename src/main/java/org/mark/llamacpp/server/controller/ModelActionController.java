@@ -4,9 +4,6 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URI;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.text.SimpleDateFormat;
@@ -23,13 +20,16 @@ import org.mark.llamacpp.gguf.GGUFModel;
 import org.mark.llamacpp.server.LlamaCppProcess;
 import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.cache.ApiSnapshots;
 import org.mark.llamacpp.server.exception.RequestMethodException;
+import org.mark.llamacpp.server.route.RouteTable;
 import org.mark.llamacpp.server.service.BenchmarkService;
 import org.mark.llamacpp.server.struct.ApiResponse;
 import org.mark.llamacpp.server.struct.StopModelRequest;
 import org.mark.llamacpp.server.tools.ChatTemplateFileTool;
 import org.mark.llamacpp.server.tools.JsonUtil;
 import org.mark.llamacpp.server.tools.ParamTool;
+import org.mark.llamacpp.server.upstream.UpstreamClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -60,75 +60,34 @@ public class ModelActionController implements BaseController {
 	}
 	
 	@Override
-	public boolean handleRequest(String uri, ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+	public void routes(RouteTable table) {
 		// 强制刷新模型列表API
-		if (uri.startsWith("/api/models/refresh")) {
-			this.handleRefreshModelListRequest(ctx, request);
-			return true;
-		}
+		table.route("/api/models/refresh", this::handleRefreshModelListRequest);
 		// 列出全部的模型
-		if (uri.startsWith("/api/models/list")) {
-			this.handleModelListRequest(ctx, request);
-			return true;
-		}
+		table.route("/api/models/list", this::handleModelListRequest);
 		// 查询已经被加载的模型
-		if (uri.startsWith("/api/models/loaded")) {
-			this.handleLoadedModelsRequest(ctx, request);
-			return true;
-		}
+		table.route("/api/models/loaded", this::handleLoadedModelsRequest);
 		// 加载指定的模型
-		if (uri.startsWith("/api/models/load")) {
-			this.handleLoadModelRequest(ctx, request);
-			return true;
-		}
+		table.route("/api/models/load", this::handleLoadModelRequest);
 		// 停止指定的运行中的模型
-		if (uri.startsWith("/api/models/stop")) {
-			this.handleStopModelRequest(ctx, request);
-			return true;
-		}
+		table.route("/api/models/stop", this::handleStopModelRequest);
 		// 执行benchmark
-		if (uri.equals("/api/models/benchmark")) {
-			this.handleModelBenchmark(ctx, request);
-			return true;
-		}
+		table.route("/api/models/benchmark", this::handleModelBenchmark);
 		// 获取指定模型的测试记录
-		if (uri.startsWith("/api/models/benchmark/list")) {
-			this.handleModelBenchmarkList(ctx, request);
-			return true;
-		}
+		table.route("/api/models/benchmark/list", this::handleModelBenchmarkList);
 		// 查询指定的测试记录
-		if (uri.startsWith("/api/models/benchmark/get")) {
-			this.handleModelBenchmarkGet(ctx, request);
-			return true;
-		}
+		table.route("/api/models/benchmark/get", this::handleModelBenchmarkGet);
 		// 删除指定的测试记录
-		if (uri.startsWith("/api/models/benchmark/delete")) {
-			this.handleModelBenchmarkDelete(ctx, request);
-			return true;
-		}
-		if (uri.equals("/api/v2/models/benchmark")) {
-			this.handleModelBenchmarkV2(ctx, request);
-			return true;
-		}
+		table.route("/api/models/benchmark/delete", this::handleModelBenchmarkDelete);
+		table.route("/api/v2/models/benchmark", this::handleModelBenchmarkV2);
+
+		table.route("/api/v2/models/benchmark/get", this::handleModelBenchmarkV2Get);
 
-		if (uri.startsWith("/api/v2/models/benchmark/get")) {
-			this.handleModelBenchmarkV2Get(ctx, request);
-			return true;
-		}		
-		
 		// 对应URL-GET：/metrics
 		// 客户端传入modelId作为参数
-		if (uri.startsWith("/api/models/metrics")) {
-			this.handleModelMetrics(ctx, request);
-			return true;
-		}
+		table.route("/api/models/metrics", this::handleModelMetrics);
 		// 对应URL-GET：/props
-		if (uri.startsWith("/api/models/props")) {
-			this.handleModelProps(ctx, request);
-			return true;
-		}
-		
-		return false;
+		table.route("/api/models/props", this::handleModelProps);
 	}
 	
 	/**
@@ -173,98 +132,112 @@ public class ModelActionController implements BaseController {
 		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
 
 		try {
-			// 获取LlamaServerManager实例并获取模型列表
-			LlamaServerManager manager = LlamaServerManager.getInstance();
-			List<GGUFModel> models = manager.listModel();
-
-			// 转换为前端期望的格式
-			List<Map<String, Object>> modelList = new ArrayList<>();
-			for (GGUFModel model : models) {
-				Map<String, Object> modelInfo = new HashMap<>();
-
-				// 从主模型获取基本信息
-				GGUFMetaData primaryModel = model.getPrimaryModel();
-				GGUFMetaData mmproj = model.getMmproj();
-
-				// 使用模型名称作为ID，如果没有名称则使用默认值
-				String modelName = "未知模型";
-				String modelId = "unknown-model-" + System.currentTimeMillis();
-
-				if (primaryModel != null) {
-					modelName = model.getName(); // primaryModel.getStringValue("general.name");
-					if (modelName == null || modelName.trim().isEmpty()) {
-						modelName = "未命名模型";
-					}
-					// 使用模型名称作为ID的一部分
-					modelId = model.getModelId();
+			ApiSnapshots snapshots = ApiSnapshots.getInstance();
+			String etag = snapshots.etag(ApiSnapshots.MODELS);
+			if (snapshots.isNotModified(request, etag)) {
+				LlamaServer.sendNotModified(ctx, etag);
+				return;
+			}
+			LlamaServer.sendSnapshotResponse(ctx, snapshots.get("/api/models/list", ApiSnapshots.MODELS, this::buildModelList));
+		} catch (Exception e) {
+			logger.info("获取模型列表时发生错误", e);
+			Map<String, Object> errorResponse = new HashMap<>();
+			errorResponse.put("success", false);
+			errorResponse.put("error", "获取模型列表失败: " + e.getMessage());
+			LlamaServer.sendJsonResponse(ctx, errorResponse);
+		}
+	}
+	
+	/**
+	 * 	生成模型列表。结果按模型版本缓存，这里不能依赖请求。
+	 * @return
+	 */
+	private Map<String, Object> buildModelList() {
+		// 获取LlamaServerManager实例并获取模型列表
+		LlamaServerManager manager = LlamaServerManager.getInstance();
+		List<GGUFModel> models = manager.listModel();
+
+		// 转换为前端期望的格式
+		List<Map<String, Object>> modelList = new ArrayList<>();
+		for (GGUFModel model : models) {
+			Map<String, Object> modelInfo = new HashMap<>();
+
+			// 从主模型获取基本信息
+			GGUFMetaData primaryModel = model.getPrimaryModel();
+			GGUFMetaData mmproj = model.getMmproj();
+
+			// 使用模型名称作为ID，如果没有名称则使用默认值
+			String modelName = "未知模型";
+			String modelId = "unknown-model-" + System.currentTimeMillis();
+
+			if (primaryModel != null) {
+				modelName = model.getName(); // primaryModel.getStringValue("general.name");
+				if (modelName == null || modelName.trim().isEmpty()) {
+					modelName = "未命名模型";
 				}
+				// 使用模型名称作为ID的一部分
+				modelId = model.getModelId();
+			}
 
-				modelInfo.put("id", modelId);
-				modelInfo.put("name", modelName);
-				modelInfo.put("alias", model.getAlias());
-				modelInfo.put("favourite", model.isFavourite());
-
-				// 设置默认路径信息
-				modelInfo.put("path", model.getPath());
+			modelInfo.put("id", modelId);
+			modelInfo.put("name", modelName);
+			modelInfo.put("alias", model.getAlias());
+			modelInfo.put("favourite", model.isFavourite());
 
-				// 从主模型元数据中获取模型类型
-				String modelType = "未知类型";
-				if (primaryModel != null) {
-					modelType = primaryModel.getStringValue("general.architecture");
-					if (modelType == null)
-						modelType = "未知类型";
-				}
-				modelInfo.put("type", modelType);
+			// 设置默认路径信息
+			modelInfo.put("path", model.getPath());
 
-				// 设置默认大小为0，因为GGUFMetaData类没有提供获取文件大小的方法
-				modelInfo.put("size", model.getSize());
+			// 从主模型元数据中获取模型类型
+			String modelType = "未知类型";
+			if (primaryModel != null) {
+				modelType = primaryModel.getStringValue("general.architecture");
+				if (modelType == null)
+					modelType = "未知类型";
+			}
+			modelInfo.put("type", modelType);
 
-				// 判断是否为多模态模型
-				boolean isMultimodal = mmproj != null;
-				modelInfo.put("isMultimodal", isMultimodal);
+			// 设置默认大小为0，因为GGUFMetaData类没有提供获取文件大小的方法
+			modelInfo.put("size", model.getSize());
 
-				// 如果是多模态模型，添加多模态投影信息
-				if (isMultimodal) {
-					Map<String, Object> mmprojInfo = new HashMap<>();
-					mmprojInfo.put("fileName", mmproj.getFileName());
-					mmprojInfo.put("name", mmproj.getStringValue("general.name"));
-					mmprojInfo.put("type", mmproj.getStringValue("general.architecture"));
+			// 判断是否为多模态模型
+			boolean isMultimodal = mmproj != null;
+			modelInfo.put("isMultimodal", isMultimodal);
 
-					modelInfo.put("mmproj", mmprojInfo);
-				}
-				// 是否处于加载状态
-				if (manager.isLoading(modelId)) {
-					modelInfo.put("isLoading", true);
-				}
+			// 如果是多模态模型，添加多模态投影信息
+			if (isMultimodal) {
+				Map<String, Object> mmprojInfo = new HashMap<>();
+				mmprojInfo.put("fileName", mmproj.getFileName());
+				mmprojInfo.put("name", mmproj.getStringValue("general.name"));
+				mmprojInfo.put("type", mmproj.getStringValue("general.architecture"));
 
-				// 添加元数据
-				Map<String, Object> metadata = new HashMap<>();
-				if (primaryModel != null) {
-					String architecture = primaryModel.getStringValue("general.architecture");
-					metadata.put("name", primaryModel.getStringValue("general.name"));
-					metadata.put("architecture", architecture);
-					metadata.put("contextLength", primaryModel.getIntValue(architecture + ".context_length"));
-					metadata.put("embeddingLength", primaryModel.getIntValue(architecture + ".embedding_length"));
-					metadata.put("fileType", primaryModel.getIntValue("general.file_type"));
-					metadata.put("quantization", primaryModel.getQuantizationType());
-				}
-				modelInfo.put("metadata", metadata);
+				modelInfo.put("mmproj", mmprojInfo);
+			}
+			// 是否处于加载状态
+			if (manager.isLoading(modelId)) {
+				modelInfo.put("isLoading", true);
+			}
 
-				modelList.add(modelInfo);
+			// 添加元数据
+			Map<String, Object> metadata = new HashMap<>();
+			if (primaryModel != null) {
+				String architecture = primaryModel.getStringValue("general.architecture");
+				metadata.put("name", primaryModel.getStringValue("general.name"));
+				metadata.put("architecture", architecture);
+				metadata.put("contextLength", primaryModel.getIntValue(architecture + ".context_length"));
+				metadata.put("embeddingLength", primaryModel.getIntValue(architecture + ".embedding_length"));
+				metadata.put("fileType", primaryModel.getIntValue("general.file_type"));
+				metadata.put("quantization", primaryModel.getQuantizationType());
 			}
+			modelInfo.put("metadata", metadata);
 
-			// 构建响应
-			Map<String, Object> response = new HashMap<>();
-			response.put("success", true);
-			response.put("models", modelList);
-			LlamaServer.sendJsonResponse(ctx, response);
-		} catch (Exception e) {
-			logger.info("获取模型列表时发生错误", e);
-			Map<String, Object> errorResponse = new HashMap<>();
-			errorResponse.put("success", false);
-			errorResponse.put("error", "获取模型列表失败: " + e.getMessage());
-			LlamaServer.sendJsonResponse(ctx, errorResponse);
+			modelList.add(modelInfo);
 		}
+
+		// 构建响应
+		Map<String, Object> response = new HashMap<>();
+		response.put("success", true);
+		response.put("models", modelList);
+		return response;
 	}
 	
 	/**
@@ -327,56 +300,70 @@ public class ModelActionController implements BaseController {
 		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
 
 		try {
-			// 获取LlamaServerManager实例
-			LlamaServerManager manager = LlamaServerManager.getInstance();
+			ApiSnapshots snapshots = ApiSnapshots.getInstance();
+			String etag = snapshots.etag(ApiSnapshots.MODELS);
+			if (snapshots.isNotModified(request, etag)) {
+				LlamaServer.sendNotModified(ctx, etag);
+				return;
+			}
+			LlamaServer.sendSnapshotResponse(ctx, snapshots.get("/api/models/loaded", ApiSnapshots.MODELS, this::buildLoadedModels));
+		} catch (Exception e) {
+			logger.info("获取已加载模型时发生错误", e);
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("获取已加载模型失败: " + e.getMessage()));
+		}
+	}
+	
+	/**
+	 * 	生成已加载模型列表。结果按模型版本缓存，这里不能依赖请求。
+	 * @return
+	 */
+	private Map<String, Object> buildLoadedModels() {
+		// 获取LlamaServerManager实例
+		LlamaServerManager manager = LlamaServerManager.getInstance();
 
-			// 获取已加载的进程信息
-			Map<String, LlamaCppProcess> loadedProcesses = manager.getLoadedProcesses();
+		// 获取已加载的进程信息
+		Map<String, LlamaCppProcess> loadedProcesses = manager.getLoadedProcesses();
 
-			// 获取所有模型信息
-			List<GGUFModel> allModels = manager.listModel();
+		// 获取所有模型信息
+		List<GGUFModel> allModels = manager.listModel();
 
-			// 构建已加载模型列表
-			List<Map<String, Object>> loadedModels = new ArrayList<>();
+		// 构建已加载模型列表
+		List<Map<String, Object>> loadedModels = new ArrayList<>();
 
-			for (Map.Entry<String, LlamaCppProcess> entry : loadedProcesses.entrySet()) {
-				String modelId = entry.getKey();
-				LlamaCppProcess process = entry.getValue();
+		for (Map.Entry<String, LlamaCppProcess> entry : loadedProcesses.entrySet()) {
+			String modelId = entry.getKey();
+			LlamaCppProcess process = entry.getValue();
 
-				// 查找对应的模型信息
-				GGUFModel modelInfo = null;
-				for (GGUFModel model : allModels) {
-					if (model.getModelId().equals(modelId)) {
-						modelInfo = model;
-						break;
-					}
+			// 查找对应的模型信息
+			GGUFModel modelInfo = null;
+			for (GGUFModel model : allModels) {
+				if (model.getModelId().equals(modelId)) {
+					modelInfo = model;
+					break;
 				}
-
-				// 构建模型信息
-				Map<String, Object> modelData = new HashMap<>();
-				modelData.put("id", modelId);
-				modelData.put("name",
-						modelInfo != null ? (modelInfo.getPrimaryModel() != null
-								? modelInfo.getPrimaryModel().getStringValue("general.name")
-								: "未知模型") : "未知模型");
-				modelData.put("status", process.isRunning() ? "running" : "stopped");
-				modelData.put("port", manager.getModelPort(modelId));
-				modelData.put("pid", process.getPid());
-				modelData.put("size", modelInfo != null ? modelInfo.getSize() : 0);
-				modelData.put("path", modelInfo != null ? modelInfo.getPath() : "");
-
-				loadedModels.add(modelData);
 			}
 
-			// 构建响应
-			Map<String, Object> response = new HashMap<>();
-			response.put("success", true);
-			response.put("models", loadedModels);
-			LlamaServer.sendJsonResponse(ctx, response);
-		} catch (Exception e) {
-			logger.info("获取已加载模型时发生错误", e);
-			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("获取已加载模型失败: " + e.getMessage()));
+			// 构建模型信息
+			Map<String, Object> modelData = new HashMap<>();
+			modelData.put("id", modelId);
+			modelData.put("name",
+					modelInfo != null ? (modelInfo.getPrimaryModel() != null
+							? modelInfo.getPrimaryModel().getStringValue("general.name")
+							: "未知模型") : "未知模型");
+			modelData.put("status", process.isRunning() ? "running" : "stopped");
+			modelData.put("port", manager.getModelPort(modelId));
+			modelData.put("pid", process.getPid());
+			modelData.put("size", modelInfo != null ? modelInfo.getSize() : 0);
+			modelData.put("path", modelInfo != null ? modelInfo.getPath() : "");
+
+			loadedModels.add(modelData);
 		}
+
+		// 构建响应
+		Map<String, Object> response = new HashMap<>();
+		response.put("success", true);
+		response.put("models", loadedModels);
+		return response;
 	}
 	
 	/**
@@ -421,6 +408,18 @@ public class ModelActionController implements BaseController {
 			}
 			List<String> device = JsonUtil.getJsonStringList(obj.get("device"));
 			Integer mg = JsonUtil.getJsonInt(obj, "mg", null);
+			// 副本数量，包括主进程；replicaConfigs依次覆盖第2个及之后副本的启动参数
+			Integer replicas = JsonUtil.getJsonInt(obj, "replicas", 1);
+			List<JsonObject> replicaConfigs = new ArrayList<>();
+			if (obj.has("replicaConfigs") && obj.get("replicaConfigs").isJsonArray()) {
+				for (JsonElement el : obj.getAsJsonArray("replicaConfigs")) {
+					replicaConfigs.add(el != null && el.isJsonObject() ? el.getAsJsonObject() : new JsonObject());
+				}
+			}
+			if (replicas == null || replicas.intValue() < 1 || replicas.intValue() > 16) {
+				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("replicas必须在1到16之间"));
+				return;
+			}
 
 			if (modelId == null || modelId.trim().isEmpty()) {
 				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("缺少必需的modelId参数"));
@@ -445,7 +444,8 @@ public class ModelActionController implements BaseController {
 			}
 			//
 			String chatTemplateFilePath = ChatTemplateFileTool.getChatTemplateCacheFilePathIfExists(modelId);
-			boolean started = manager.loadModelAsyncFromCmd(modelId, llamaBinPathSelect, device, mg, enableVision, cmd, extraParams, chatTemplateFilePath);
+			boolean started = manager.loadModelAsyncFromCmd(modelId, llamaBinPathSelect, device, mg, enableVision, cmd, extraParams, chatTemplateFilePath,
+					replicas.intValue(), replicaConfigs);
 			if (!started) {
 				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("提交加载任务失败"));
 				return;
@@ -460,6 +460,7 @@ public class ModelActionController implements BaseController {
 			data.put("mg", mg);
 			data.put("cmd", cmd);
 			data.put("extraParams", extraParams);
+			data.put("replicas", replicas);
 			data.put("enableVision", enableVision);
 			LlamaServer.sendJsonResponse(ctx, ApiResponse.success(data));
 		} catch (Exception e) {
@@ -884,42 +885,24 @@ public class ModelActionController implements BaseController {
 				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("未找到模型端口: " + modelId));
 				return;
 			}
-			String targetUrl = String.format("http://localhost:%d/metrics", port.intValue());
-			URL url = URI.create(targetUrl).toURL();
-			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-			connection.setRequestMethod("GET");
-			connection.setConnectTimeout(30000);
-			connection.setReadTimeout(30000);
-			int responseCode = connection.getResponseCode();
-			String responseBody;
-			if (responseCode >= 200 && responseCode < 300) {
-				try (BufferedReader br = new BufferedReader(
-						new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
-					StringBuilder sb = new StringBuilder();
-					String line;
-					while ((line = br.readLine()) != null) {
-						sb.append(line);
-					}
-					responseBody = sb.toString();
+			final String id = modelId;
+			UpstreamClient.getInstance().sendAggregated(port.intValue(), HttpMethod.GET, "/metrics", null, null, 30000, (result, error) -> {
+				if (error != null) {
+					logger.info("获取metrics时发生错误", error);
+					LlamaServer.sendJsonResponse(ctx, ApiResponse.error("获取metrics失败: " + error.getMessage()));
+					return;
 				}
-				Object parsed = JsonUtil.fromJson(responseBody, Object.class);
-				Map<String, Object> data = new HashMap<>();
-				data.put("modelId", modelId);
-				data.put("metrics", parsed);
-				LlamaServer.sendJsonResponse(ctx, ApiResponse.success(data));
-			} else {
-				try (BufferedReader br = new BufferedReader(
-						new InputStreamReader(connection.getErrorStream(), StandardCharsets.UTF_8))) {
-					StringBuilder sb = new StringBuilder();
-					String line;
-					while ((line = br.readLine()) != null) {
-						sb.append(line);
-					}
-					responseBody = sb.toString();
+				String responseBody = result.getBodyAsString();
+				if (result.isSuccess()) {
+					Object parsed = JsonUtil.fromJson(responseBody, Object.class);
+					Map<String, Object> data = new HashMap<>();
+					data.put("modelId", id);
+					data.put("metrics", parsed);
+					LlamaServer.sendJsonResponse(ctx, ApiResponse.success(data));
+				} else {
+					LlamaServer.sendJsonResponse(ctx, ApiResponse.error("获取metrics失败: " + responseBody));
 				}
-				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("获取metrics失败: " + responseBody));
-			}
-			connection.disconnect();
+			});
 		} catch (Exception e) {
 			logger.info("获取metrics时发生错误", e);
 			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("获取metrics失败: " + e.getMessage()));
@@ -957,42 +940,24 @@ public class ModelActionController implements BaseController {
 				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("未找到模型端口: " + modelId));
 				return;
 			}
-			String targetUrl = String.format("http://localhost:%d/props", port.intValue());
-			URL url = URI.create(targetUrl).toURL();
-			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-			connection.setRequestMethod("GET");
-			connection.setConnectTimeout(30000);
-			connection.setReadTimeout(30000);
-			int responseCode = connection.getResponseCode();
-			String responseBody;
-			if (responseCode >= 200 && responseCode < 300) {
-				try (BufferedReader br = new BufferedReader(
-						new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
-					StringBuilder sb = new StringBuilder();
-					String line;
-					while ((line = br.readLine()) != null) {
-						sb.append(line);
-					}
-					responseBody = sb.toString();
+			final String id = modelId;
+			UpstreamClient.getInstance().sendAggregated(port.intValue(), HttpMethod.GET, "/props", null, null, 30000, (result, error) -> {
+				if (error != null) {
+					logger.info("获取props时发生错误", error);
+					LlamaServer.sendJsonResponse(ctx, ApiResponse.error("获取props失败: " + error.getMessage()));
+					return;
 				}
-				Object parsed = JsonUtil.fromJson(responseBody, Object.class);
-				Map<String, Object> data = new HashMap<>();
-				data.put("modelId", modelId);
-				data.put("props", parsed);
-				LlamaServer.sendJsonResponse(ctx, ApiResponse.success(data));
-			} else {
-				try (BufferedReader br = new BufferedReader(
-						new InputStreamReader(connection.getErrorStream(), StandardCharsets.UTF_8))) {
-					StringBuilder sb = new StringBuilder();
-					String line;
-					while ((line = br.readLine()) != null) {
-						sb.append(line);
-					}
-					responseBody = sb.toString();
+				String responseBody = result.getBodyAsString();
+				if (result.isSuccess()) {
+					Object parsed = JsonUtil.fromJson(responseBody, Object.class);
+					Map<String, Object> data = new HashMap<>();
+					data.put("modelId", id);
+					data.put("props", parsed);
+					LlamaServer.sendJsonResponse(ctx, ApiResponse.success(data));
+				} else {
+					LlamaServer.sendJsonResponse(ctx, ApiResponse.error("获取props失败: " + responseBody));
 				}
-				LlamaServer.sendJsonResponse(ctx, ApiResponse.error("获取props失败: " + responseBody));
-			}
-			connection.disconnect();
+			});
 		} catch (Exception e) {
 			logger.info("获取props时发生错误", e);
 			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("获取props失败: " + e.getMessage()));
@@ -1,14 +1,7 @@
 package org.mark.llamacpp.server.controller;
 
 import java.io.File;
-import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.lang.reflect.Type;
-import java.net.HttpURLConnection;
-import java.net.URI;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -21,11 +14,14 @@ import org.mark.llamacpp.server.ConfigManager;
 import org.mark.llamacpp.server.LlamaCppProcess;
 import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.cache.ApiSnapshots;
 import org.mark.llamacpp.server.exception.RequestMethodException;
+import org.mark.llamacpp.server.route.RouteTable;
 import org.mark.llamacpp.server.struct.ApiResponse;
 import org.mark.llamacpp.server.tools.ChatTemplateFileTool;
 import org.mark.llamacpp.server.tools.JsonUtil;
 import org.mark.llamacpp.server.tools.ParamTool;
+import org.mark.llamacpp.server.upstream.UpstreamClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,6 +30,7 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.reflect.TypeToken;
 
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpMethod;
@@ -56,99 +53,44 @@ public class ModelInfoController implements BaseController {
 	
 	
 	@Override
-	public boolean handleRequest(String uri, ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
-		
+	public void routes(RouteTable table) {
 		// 获取模型。
-		if(uri.startsWith("/api/models/openai/list")) {
-			this.handleOpenAIModelsRequest(ctx, request);
-			return true;
-		}
-		
+		table.route("/api/models/openai/list", this::handleOpenAIModelsRequest);
+
 		// 设置模型的别名
-		if (uri.startsWith("/api/models/alias/set")) {
-			this.handleSetModelAliasRequest(ctx, request);
-			return true;
-		}
+		table.route("/api/models/alias/set", this::handleSetModelAliasRequest);
 		// 获取偏好模型的API
-		if (uri.startsWith("/api/models/favourite")) {
-			this.handleModelFavouriteRequest(ctx, request);
-			return true;
-		}
+		table.route("/api/models/favourite", this::handleModelFavouriteRequest);
 		// 查询指定模型启动参数的API
-		if (uri.startsWith("/api/models/config/get")) {
-			this.handleModelConfigRequest(ctx, request);
-			return true;
-		}
+		table.route("/api/models/config/get", this::handleModelConfigRequest);
 		// 用于更新启动参数的API
-		if (uri.startsWith("/api/models/config/set")) {
-			this.handleModelConfigSetRequest(ctx, request);
-			return true;
-		}
+		table.route("/api/models/config/set", this::handleModelConfigSetRequest);
 		// 获取指定模型详情的API
-		if (uri.startsWith("/api/models/details")) {
-			this.handleModelDetailsRequest(ctx, request);
-			return true;
-		}
+		table.route("/api/models/details", this::handleModelDetailsRequest);
 		// 模型的能力设定
-		if(uri.startsWith("/api/models/capabilities/set")) {
-			this.handleModelCapabilitiesSetRequest(ctx, request);
-			return true;
-		}
+		table.route("/api/models/capabilities/set", this::handleModelCapabilitiesSetRequest);
 		// 模型的能力获取
-		if(uri.startsWith("/api/models/capabilities/get")) {
-			this.handleModelCapabilitiesGetRequest(ctx, request);
-			return true;
-		}
-		
+		table.route("/api/models/capabilities/get", this::handleModelCapabilitiesGetRequest);
+
 		//============================聊天模板相关============================
-		// 
-		if (uri.startsWith("/api/model/template/get")) {
-			this.handleModelTemplateGetRequest(ctx, request);
-			return true;
-		}
-		
-		
-		if (uri.startsWith("/api/model/template/set")) {
-			this.handleModelTemplateSetRequest(ctx, request);
-			return true;
-		}
+		//
+		table.route("/api/model/template/get", this::handleModelTemplateGetRequest);
 
-		if (uri.startsWith("/api/model/template/delete")) {
-			this.handleModelTemplateDeleteRequest(ctx, request);
-			return true;
-		}
+		table.route("/api/model/template/set", this::handleModelTemplateSetRequest);
 
-		if (uri.startsWith("/api/model/template/default")) {
-			this.handleModelTemplateDefaultRequest(ctx, request);
-			return true;
-		}
+		table.route("/api/model/template/delete", this::handleModelTemplateDeleteRequest);
+
+		table.route("/api/model/template/default", this::handleModelTemplateDefaultRequest);
 		//============================运行时信息============================
 		// 查询对应模型的/solts的API
-		if (uri.startsWith("/api/models/slots/get")) {
-			this.handleModelSlotsGet(ctx, request);
-			return true;
-		}
+		table.route("/api/models/slots/get", this::handleModelSlotsGet);
 		// 对应URL-POST：/slots/{solt_id}?action=save
-		if (uri.startsWith("/api/models/slots/save")) {
-			this.handleModelSlotsSave(ctx, request);
-			return true;
-		}
+		table.route("/api/models/slots/save", this::handleModelSlotsSave);
 		// 对应URL-POST：/slots/{slot_id}?action=load
-		if (uri.startsWith("/api/models/slots/load")) {
-			this.handleModelSlotsLoad(ctx, request);
-			return true;
-		}
-		if (uri.startsWith("/tokenize")) {
-			this.handleTokenizeRequest(ctx, request);
-			return true;
-		}
-		if (uri.startsWith("/apply-template")) {
-			this.handleApplyTemplateRequest(ctx, request);
-			return true;
-		}
+		table.route("/api/models/slots/load", this::handleModelSlotsLoad);
+		table.route("/tokenize", this::handleTokenizeRequest);
+		table.route("/apply-template", this::handleApplyTemplateRequest);
 		//============================其它============================
-		
-		return false;
 	}
 	
 	private void handleModelCapabilitiesSetRequest(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
@@ -320,6 +262,7 @@ public class ModelInfoController implements BaseController {
 			GGUFModel model = manager.findModelById(modelId);
 			if (model != null) {
 				model.setAlias(alias);
+				ApiSnapshots.getInstance().bump(ApiSnapshots.MODELS);
 			}
 			Map<String, Object> data = new HashMap<>();
 			data.put("modelId", modelId);
@@ -371,6 +314,7 @@ public class ModelInfoController implements BaseController {
 
 			boolean next = !model.isFavourite();
 			model.setFavourite(next);
+			ApiSnapshots.getInstance().bump(ApiSnapshots.MODELS);
 			ConfigManager configManager = ConfigManager.getInstance();
 			boolean saved = configManager.saveModelFavourite(modelId, next);
 
@@ -874,7 +818,6 @@ public class ModelInfoController implements BaseController {
 			return;
 		}
 		this.assertRequestMethod(request.method() != HttpMethod.POST, "只支持POST请求");
-		HttpURLConnection connection = null;
 		try {
 			String content = request.content().toString(CharsetUtil.UTF_8);
 			if (content == null || content.trim().isEmpty()) {
@@ -929,54 +872,40 @@ public class ModelInfoController implements BaseController {
 			forward.addProperty("parse_special", parseSpecial);
 			forward.addProperty("with_pieces", withPieces);
 
-			String targetUrl = String.format("http://localhost:%d/tokenize", port.intValue());
-			URL url = URI.create(targetUrl).toURL();
-			connection = (HttpURLConnection) url.openConnection();
-			connection.setRequestMethod("POST");
-			connection.setDoOutput(true);
-			connection.setConnectTimeout(30000);
-			connection.setReadTimeout(30000);
-			connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-
 			byte[] outBytes = JsonUtil.toJson(forward).getBytes(StandardCharsets.UTF_8);
-			connection.setRequestProperty("Content-Length", String.valueOf(outBytes.length));
-			try (OutputStream os = connection.getOutputStream()) {
-				os.write(outBytes);
-			}
+			UpstreamClient.getInstance().sendAggregated(port.intValue(), HttpMethod.POST, "/tokenize", null, Unpooled.wrappedBuffer(outBytes), 30000, (result, error) -> {
+				if (error != null) {
+					logger.info("tokenize失败", error);
+					LlamaServer.sendJsonErrorResponse(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, "tokenize失败: " + error.getMessage());
+					return;
+				}
+				int responseCode = result.getStatusCode();
+				String responseBody = result.getBodyAsString();
+				JsonElement parsed = null;
+				try {
+					parsed = JsonUtil.fromJson(responseBody, JsonElement.class);
+				} catch (Exception ignore) {
+				}
 
-			int responseCode = connection.getResponseCode();
-			String responseBody = readBody(connection, responseCode >= 200 && responseCode < 300);
-			JsonElement parsed = null;
-			try {
-				parsed = JsonUtil.fromJson(responseBody, JsonElement.class);
-			} catch (Exception ignore) {
-			}
+				if (responseCode >= 200 && responseCode < 300) {
+					if (parsed != null) {
+						LlamaServer.sendJsonResponse(ctx, parsed);
+					} else {
+						LlamaServer.sendJsonErrorResponse(ctx, HttpResponseStatus.BAD_GATEWAY, "模型返回了非JSON响应");
+					}
+					return;
+				}
 
-			if (responseCode >= 200 && responseCode < 300) {
 				if (parsed != null) {
 					LlamaServer.sendJsonResponse(ctx, parsed);
-				} else {
-					LlamaServer.sendJsonErrorResponse(ctx, HttpResponseStatus.BAD_GATEWAY, "模型返回了非JSON响应");
+					return;
 				}
-				return;
-			}
-
-			if (parsed != null) {
-				LlamaServer.sendJsonResponse(ctx, parsed);
-				return;
-			}
-			String msg = responseBody == null || responseBody.isBlank() ? ("模型错误: HTTP " + responseCode) : responseBody;
-			LlamaServer.sendJsonErrorResponse(ctx, HttpResponseStatus.BAD_GATEWAY, msg);
+				String msg = responseBody == null || responseBody.isBlank() ? ("模型错误: HTTP " + responseCode) : responseBody;
+				LlamaServer.sendJsonErrorResponse(ctx, HttpResponseStatus.BAD_GATEWAY, msg);
+			});
 		} catch (Exception e) {
 			logger.info("tokenize失败", e);
 			LlamaServer.sendJsonErrorResponse(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, "tokenize失败: " + e.getMessage());
-		} finally {
-			if (connection != null) {
-				try {
-					connection.disconnect();
-				} catch (Exception ignore) {
-				}
-			}
 		}
 	}
 
@@ -986,7 +915,6 @@ public class ModelInfoController implements BaseController {
 			return;
 		}
 		this.assertRequestMethod(request.method() != HttpMethod.POST, "只支持POST请求");
-		HttpURLConnection connection = null;
 		try {
 			String content = request.content().toString(CharsetUtil.UTF_8);
 			if (content == null || content.trim().isEmpty()) {
@@ -1029,78 +957,45 @@ public class ModelInfoController implements BaseController {
 			JsonObject forward = new JsonObject();
 			forward.add("messages", obj.get("messages"));
 
-			String targetUrl = String.format("http://localhost:%d/apply-template", port.intValue());
-			URL url = URI.create(targetUrl).toURL();
-			connection = (HttpURLConnection) url.openConnection();
-			connection.setRequestMethod("POST");
-			connection.setDoOutput(true);
-			connection.setConnectTimeout(30000);
-			connection.setReadTimeout(30000);
-			connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-
 			byte[] outBytes = JsonUtil.toJson(forward).getBytes(StandardCharsets.UTF_8);
-			connection.setRequestProperty("Content-Length", String.valueOf(outBytes.length));
-			try (OutputStream os = connection.getOutputStream()) {
-				os.write(outBytes);
-			}
-
-			int responseCode = connection.getResponseCode();
-			String responseBody = readBody(connection, responseCode >= 200 && responseCode < 300);
-			JsonElement parsed = null;
-			try {
-				parsed = JsonUtil.fromJson(responseBody, JsonElement.class);
-			} catch (Exception ignore) {
-			}
-
-			if (responseCode >= 200 && responseCode < 300) {
-				if (parsed != null && parsed.isJsonObject()) {
-					JsonObject outObj = parsed.getAsJsonObject();
-					if (outObj.has("prompt") && outObj.get("prompt") != null && !outObj.get("prompt").isJsonNull()) {
-						Map<String, Object> data = new HashMap<>();
-						data.put("prompt", outObj.get("prompt").getAsString());
-						LlamaServer.sendJsonResponse(ctx, data);
-						return;
-					}
+			UpstreamClient.getInstance().sendAggregated(port.intValue(), HttpMethod.POST, "/apply-template", null, Unpooled.wrappedBuffer(outBytes), 30000, (result, error) -> {
+				if (error != null) {
+					logger.info("apply-template失败", error);
+					LlamaServer.sendJsonErrorResponse(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, "apply-template失败: " + error.getMessage());
+					return;
 				}
-				LlamaServer.sendJsonErrorResponse(ctx, HttpResponseStatus.BAD_GATEWAY, "模型响应缺少prompt字段");
-				return;
-			}
-
-			if (parsed != null) {
-				LlamaServer.sendJsonResponse(ctx, parsed);
-				return;
-			}
-			String msg = responseBody == null || responseBody.isBlank() ? ("模型错误: HTTP " + responseCode) : responseBody;
-			LlamaServer.sendJsonErrorResponse(ctx, HttpResponseStatus.BAD_GATEWAY, msg);
-		} catch (Exception e) {
-			logger.info("apply-template失败", e);
-			LlamaServer.sendJsonErrorResponse(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, "apply-template失败: " + e.getMessage());
-		} finally {
-			if (connection != null) {
+				int responseCode = result.getStatusCode();
+				String responseBody = result.getBodyAsString();
+				JsonElement parsed = null;
 				try {
-					connection.disconnect();
+					parsed = JsonUtil.fromJson(responseBody, JsonElement.class);
 				} catch (Exception ignore) {
 				}
-			}
-		}
-	}
 
-	private static String readBody(HttpURLConnection connection, boolean ok) {
-		if (connection == null) return "";
-		InputStream in = null;
-		try {
-			in = ok ? connection.getInputStream() : connection.getErrorStream();
-			if (in == null) return "";
-			try (BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
-				StringBuilder sb = new StringBuilder();
-				String line;
-				while ((line = br.readLine()) != null) {
-					sb.append(line);
+				if (responseCode >= 200 && responseCode < 300) {
+					if (parsed != null && parsed.isJsonObject()) {
+						JsonObject outObj = parsed.getAsJsonObject();
+						if (outObj.has("prompt") && outObj.get("prompt") != null && !outObj.get("prompt").isJsonNull()) {
+							Map<String, Object> data = new HashMap<>();
+							data.put("prompt", outObj.get("prompt").getAsString());
+							LlamaServer.sendJsonResponse(ctx, data);
+							return;
+						}
+					}
+					LlamaServer.sendJsonErrorResponse(ctx, HttpResponseStatus.BAD_GATEWAY, "模型响应缺少prompt字段");
+					return;
 				}
-				return sb.toString();
-			}
+
+				if (parsed != null) {
+					LlamaServer.sendJsonResponse(ctx, parsed);
+					return;
+				}
+				String msg = responseBody == null || responseBody.isBlank() ? ("模型错误: HTTP " + responseCode) : responseBody;
+				LlamaServer.sendJsonErrorResponse(ctx, HttpResponseStatus.BAD_GATEWAY, msg);
+			});
 		} catch (Exception e) {
-			return "";
+			logger.info("apply-template失败", e);
+			LlamaServer.sendJsonErrorResponse(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, "apply-template失败: " + e.getMessage());
 		}
 	}
 }
@@ -12,6 +12,7 @@ import java.util.Map;
 import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.LlamaServerManager;
 import org.mark.llamacpp.server.exception.RequestMethodException;
+import org.mark.llamacpp.server.route.RouteTable;
 import org.mark.llamacpp.server.struct.ApiResponse;
 import org.mark.llamacpp.server.struct.ModelPathConfig;
 import org.mark.llamacpp.server.struct.ModelPathDataStruct;
@@ -41,28 +42,14 @@ public class ModelPathController implements BaseController {
 	
 	
 	@Override
-	public boolean handleRequest(String uri, ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
-		if (uri.startsWith("/api/model/path/add")) {
-			this.handleModelPathAdd(ctx, request);
-			return true;
-		}
+	public void routes(RouteTable table) {
+		table.route("/api/model/path/add", this::handleModelPathAdd);
 
-		if (uri.startsWith("/api/model/path/remove")) {
-			this.handleModelPathRemove(ctx, request);
-			return true;
-		}
+		table.route("/api/model/path/remove", this::handleModelPathRemove);
 
-		if (uri.startsWith("/api/model/path/update")) {
-			this.handleModelPathUpdate(ctx, request);
-			return true;
-		}
+		table.route("/api/model/path/update", this::handleModelPathUpdate);
 
-		if (uri.startsWith("/api/model/path/list")) {
-			this.handleModelPathList(ctx, request);
-			return true;
-		}
-		
-		return false;
+		table.route("/api/model/path/list", this::handleModelPathList);
 	}
 	
 	
@@ -7,6 +7,7 @@ import java.util.Map;
 
 import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.exception.RequestMethodException;
+import org.mark.llamacpp.server.route.RouteTable;
 import org.mark.llamacpp.server.struct.ApiResponse;
 import org.mark.llamacpp.server.tools.JsonUtil;
 import org.slf4j.Logger;
@@ -30,21 +31,11 @@ public class ParamController implements BaseController {
 	
 
 	@Override
-	public boolean handleRequest(String uri, ChannelHandlerContext ctx, FullHttpRequest request)
-			throws RequestMethodException {
-		
+	public void routes(RouteTable table) {
 		// 列出可用的参数API
-		if (uri.startsWith("/api/models/param/server/list")) {
-			this.handleParamServerListRequest(ctx, request);
-			return true;
-		}
+		table.route("/api/models/param/server/list", this::handleParamServerListRequest);
 		// 列出可用的参数API
-		if (uri.startsWith("/api/models/param/benchmark/list")) {
-			this.handleParamBenchmarkListRequest(ctx, request);
-			return true;
-		}
-		
-		return false;
+		table.route("/api/models/param/benchmark/list", this::handleParamBenchmarkListRequest);
 	}
 
 	
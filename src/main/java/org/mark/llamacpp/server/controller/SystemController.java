@@ -19,11 +19,26 @@ import org.mark.llamacpp.lmstudio.LMStudio;
 import org.mark.llamacpp.ollama.Ollama;
 import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.cache.ApiSnapshots;
+import org.mark.llamacpp.server.cache.ResponseCache;
+import org.mark.llamacpp.server.embedding.EmbeddingDispatcher;
 import org.mark.llamacpp.server.exception.RequestMethodException;
+import org.mark.llamacpp.server.ingress.RequestRewriter;
+import org.mark.llamacpp.server.io.AccessLog;
+import org.mark.llamacpp.server.io.ConsoleFollower;
+import org.mark.llamacpp.server.io.ConsolePipeline;
+import org.mark.llamacpp.server.io.ConsoleTail;
+import org.mark.llamacpp.server.replica.PrefixAffinity;
+import org.mark.llamacpp.server.replica.ReplicaRouter;
+import org.mark.llamacpp.server.route.RouteMatch;
+import org.mark.llamacpp.server.route.RouteTable;
+import org.mark.llamacpp.server.scheduler.ModelScheduler;
 import org.mark.llamacpp.server.struct.ApiResponse;
 import org.mark.llamacpp.server.tools.CommandLineRunner;
 import org.mark.llamacpp.server.tools.JsonUtil;
 import org.mark.llamacpp.server.tools.ParamTool;
+import org.mark.llamacpp.server.upstream.SingleFlight;
+import org.mark.llamacpp.server.upstream.StreamMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,63 +61,190 @@ public class SystemController implements BaseController {
 	
 	
 	
-	public boolean handleRequest(String uri, ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+	@Override
+	public void routes(RouteTable table) {
 		// 停止服务API
-		if (uri.startsWith("/api/shutdown")) {
-			this.handleShutdownRequest(ctx, request);
-			return true;
-		}
+		table.route("/api/shutdown", this::handleShutdownRequest);
 		// 控制台
-		if (uri.startsWith("/api/sys/console")) {
-			this.handleSysConsoleRequest(ctx, request);
-			return true;
-		}
-		
+		table.route("/api/sys/console", this::handleSysConsoleRequest);
+		// 控制台日志：按游标增量读取、SSE跟随
+		table.route(HttpMethod.GET, "/api/sys/console/tail", this::handleConsoleTailRequest);
+		table.route(HttpMethod.GET, "/api/sys/console/follow", this::handleConsoleFollowRequest);
+
 		// 列出可用的设备，基于当前选择的llamacpp
-		if (uri.startsWith("/api/model/device/list")) {
-			this.handleDeviceListRequest(ctx, request);
-			return true;
-		}
-		
+		table.route("/api/model/device/list", this::handleDeviceListRequest);
+
 		// 显存估算API
-		if (uri.startsWith("/api/models/vram/estimate")) {
-			this.handleVramEstimateRequest(ctx, request);
-			return true;
-		}
+		table.route("/api/models/vram/estimate", this::handleVramEstimateRequest);
 		// 启用、禁用ollama兼容api
-		if (uri.startsWith("/api/sys/ollama")) {
-			this.handleOllamaEnableRequest(ctx, request);
-			return true;
-		}
+		table.route("/api/sys/ollama", this::handleOllamaEnableRequest);
 		// 启用、禁用lmstudio
-		if (uri.startsWith("/api/sys/lmstudio")) {
-			this.handleLmstudioEnableRequest(ctx, request);
-			return true;
-		}
+		table.route("/api/sys/lmstudio", this::handleLmstudioEnableRequest);
 		// 获取兼容服务状态
-		if (uri.startsWith("/api/sys/compat/status")) {
-			this.handleCompatStatusRequest(ctx, request);
-			return true;
-		}
+		table.route("/api/sys/compat/status", this::handleCompatStatusRequest);
 		// 保存系统设置
-		if (uri.startsWith("/api/sys/setting")) {
-			this.handleSysSettingRequest(ctx, request);
-			return true;
-		}
+		table.route("/api/sys/setting", this::handleSysSettingRequest);
 		// 保存搜索设置
-		if (uri.startsWith("/api/search/setting")) {
-			this.handleSearchSettingRequest(ctx, request);
-			return true;
-		}
-		
+		table.route("/api/search/setting", this::handleSearchSettingRequest);
+
+		// 流式响应的flush统计
+		table.route("/api/sys/stream/metrics", this::handleStreamMetricsRequest);
+
+		table.route("/api/sys/scheduler/status", this::handleSchedulerStatusRequest);
+
+		table.route("/api/sys/affinity/status", this::handleAffinityStatusRequest);
+
+		table.route("/api/sys/replica/status", this::handleReplicaStatusRequest);
+
+		table.route("/api/sys/cache/status", this::handleResponseCacheStatusRequest);
+
+		table.route("/api/sys/embedding/status", this::handleEmbeddingStatusRequest);
+
+		table.route("/api/sys/rewrite/status", this::handleRewriteStatusRequest);
+
+		table.route(HttpMethod.GET, "/api/sys/route/metrics", this::handleRouteMetricsRequest);
+
+		table.route(HttpMethod.GET, "/api/sys/accesslog/status", this::handleAccessLogStatusRequest);
+
+		table.route(HttpMethod.GET, "/api/sys/console/status", this::handleConsoleStatusRequest);
+
 		// 文件系统：目录浏览
-		if (uri.startsWith("/api/sys/fs/list")) {
-			this.handleFsListRequest(ctx, request);
-			return true;
+		table.route("/api/sys/fs/list", this::handleFsListRequest);
+	}
+
+	/**
+	 * 	流式响应的flush次数（约等于写系统调用次数）、数据块数和字节数。
+	 * @param ctx
+	 * @param request
+	 * @throws RequestMethodException
+	 */
+	private void handleStreamMetricsRequest(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+		if (request.method() == HttpMethod.OPTIONS) {
+			LlamaServer.sendCorsResponse(ctx);
+			return;
 		}
-		
-		
-		return false;
+		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+		LlamaServer.sendJsonResponse(ctx, ApiResponse.success(StreamMetrics.getInstance().snapshot()));
+	}
+
+	/**
+	 * 	每个接口的调用次数、异常次数和耗时分布。
+	 * @param ctx
+	 * @param request
+	 */
+	private void handleRouteMetricsRequest(ChannelHandlerContext ctx, FullHttpRequest request) {
+		LlamaServer.sendJsonResponse(ctx, ApiResponse.success(RouteTable.snapshotAll()));
+	}
+
+	/**
+	 * 	各模型的slot数、正在处理和排队中的请求数。
+	 * @param ctx
+	 * @param request
+	 * @throws RequestMethodException
+	 */
+	private void handleSchedulerStatusRequest(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+		if (request.method() == HttpMethod.OPTIONS) {
+			LlamaServer.sendCorsResponse(ctx);
+			return;
+		}
+		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+		LlamaServer.sendJsonResponse(ctx, ApiResponse.success(ModelScheduler.getInstance().snapshotAll()));
+	}
+
+	/**
+	 * 	前缀亲和路由的命中统计。
+	 * @param ctx
+	 * @param request
+	 * @throws RequestMethodException
+	 */
+	private void handleAffinityStatusRequest(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+		if (request.method() == HttpMethod.OPTIONS) {
+			LlamaServer.sendCorsResponse(ctx);
+			return;
+		}
+		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+		LlamaServer.sendJsonResponse(ctx, ApiResponse.success(PrefixAffinity.getInstance().snapshot()));
+	}
+
+	/**
+	 * 	各模型副本的健康状态、slot数和请求计数。这些计数变化太频繁，不放在/api/models/loaded的快照里。
+	 * @param ctx
+	 * @param request
+	 * @throws RequestMethodException
+	 */
+	private void handleReplicaStatusRequest(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+		if (request.method() == HttpMethod.OPTIONS) {
+			LlamaServer.sendCorsResponse(ctx);
+			return;
+		}
+		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+		LlamaServer.sendJsonResponse(ctx, ApiResponse.success(ReplicaRouter.getInstance().snapshotAll()));
+	}
+
+	/**
+	 * 	访问日志的写入、丢弃和抽样统计。
+	 * @param ctx
+	 * @param request
+	 */
+	private void handleAccessLogStatusRequest(ChannelHandlerContext ctx, FullHttpRequest request) {
+		LlamaServer.sendJsonResponse(ctx, ApiResponse.success(AccessLog.getInstance().snapshot()));
+	}
+
+	/**
+	 * 	控制台输出的行数、丢弃行数和归档次数。
+	 * @param ctx
+	 * @param request
+	 */
+	private void handleConsoleStatusRequest(ChannelHandlerContext ctx, FullHttpRequest request) {
+		LlamaServer.sendJsonResponse(ctx, ApiResponse.success(ConsolePipeline.getInstance().snapshot()));
+	}
+
+	/**
+	 * 	响应缓存的命中率、占用内存，以及相同请求合并的统计。
+	 * @param ctx
+	 * @param request
+	 * @throws RequestMethodException
+	 */
+	private void handleResponseCacheStatusRequest(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+		if (request.method() == HttpMethod.OPTIONS) {
+			LlamaServer.sendCorsResponse(ctx);
+			return;
+		}
+		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+		Map<String, Object> data = ResponseCache.getInstance().snapshot();
+		data.put("singleFlight", SingleFlight.getInstance().snapshot());
+		data.put("apiSnapshots", ApiSnapshots.getInstance().snapshot());
+		LlamaServer.sendJsonResponse(ctx, ApiResponse.success(data));
+	}
+
+	/**
+	 * 	embeddings请求合并、拆分的统计。
+	 * @param ctx
+	 * @param request
+	 * @throws RequestMethodException
+	 */
+	private void handleEmbeddingStatusRequest(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+		if (request.method() == HttpMethod.OPTIONS) {
+			LlamaServer.sendCorsResponse(ctx);
+			return;
+		}
+		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+		LlamaServer.sendJsonResponse(ctx, ApiResponse.success(EmbeddingDispatcher.getInstance().snapshot()));
+	}
+
+	/**
+	 * 	请求改写规则的命中次数和耗时。
+	 * @param ctx
+	 * @param request
+	 * @throws RequestMethodException
+	 */
+	private void handleRewriteStatusRequest(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
+		if (request.method() == HttpMethod.OPTIONS) {
+			LlamaServer.sendCorsResponse(ctx);
+			return;
+		}
+		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
+		LlamaServer.sendJsonResponse(ctx, ApiResponse.success(RequestRewriter.getInstance().snapshot()));
 	}
 
 	private void handleFsListRequest(ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
@@ -568,6 +710,12 @@ public class SystemController implements BaseController {
 		// 断言一下请求方式
 		this.assertRequestMethod(request.method() != HttpMethod.GET, "只支持GET请求");
 		try {
+			ConsoleTail tail = ConsolePipeline.getInstance().getTail();
+			if (tail != null) {
+				// 最后256KB，从完整的一行开始
+				LlamaServer.sendTextResponse(ctx, tail.last(Integer.MAX_VALUE).getText());
+				return;
+			}
 			Path logPath = LlamaServer.getConsoleLogPath();
 			File file = logPath.toFile();
 			if (!file.exists()) {
@@ -595,6 +743,53 @@ public class SystemController implements BaseController {
 	}
 	
 	
+	/**
+	 * 	增量读取控制台日志。
+	 * 	带cursor和epoch时返回游标之后的内容（最多{@value ConsoleTail#MAX_BYTES}字节，more为true时用返回的cursor继续读），
+	 * 	否则返回最后lines行（默认200）。
+	 * @param ctx
+	 * @param request
+	 * @param match
+	 * @throws Exception
+	 */
+	private void handleConsoleTailRequest(ChannelHandlerContext ctx, FullHttpRequest request, RouteMatch match) throws Exception {
+		ConsoleTail tail = ConsolePipeline.getInstance().getTail();
+		if (tail == null) {
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("控制台日志没有启用"));
+			return;
+		}
+		int lines = (int) this.queryLong(match, "lines", 200);
+		long cursor = this.queryLong(match, "cursor", -1);
+		ConsoleTail.Chunk chunk = cursor < 0 ? tail.last(lines) : tail.since(this.queryLong(match, "epoch", 0), cursor, lines);
+		LlamaServer.sendJsonResponse(ctx, ApiResponse.success(chunk.toMap(tail.getEpoch())));
+	}
+
+	/**
+	 * 	用SSE跟随控制台日志，参数和/api/sys/console/tail相同。
+	 * @param ctx
+	 * @param request
+	 * @param match
+	 */
+	private void handleConsoleFollowRequest(ChannelHandlerContext ctx, FullHttpRequest request, RouteMatch match) {
+		if (ConsolePipeline.getInstance().getTail() == null) {
+			LlamaServer.sendJsonResponse(ctx, ApiResponse.error("控制台日志没有启用"));
+			return;
+		}
+		ConsoleFollower.start(ctx, this.queryLong(match, "epoch", 0), this.queryLong(match, "cursor", -1), (int) this.queryLong(match, "lines", 200));
+	}
+
+	private long queryLong(RouteMatch match, String name, long fallback) {
+		String v = match.query(name);
+		if (v == null || v.isBlank()) {
+			return fallback;
+		}
+		try {
+			return Long.parseLong(v.trim());
+		} catch (NumberFormatException e) {
+			return fallback;
+		}
+	}
+	
 	/**
 	 * 处理设备列表请求 执行 llama-bench --list-devices 命令获取可用设备列表
 	 * 
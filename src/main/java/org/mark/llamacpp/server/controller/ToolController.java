@@ -13,6 +13,7 @@ import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.exception.RequestMethodException;
 import org.mark.llamacpp.server.mcp.McpClientService;
 import org.mark.llamacpp.server.mcp.TimeServer;
+import org.mark.llamacpp.server.route.RouteTable;
 import org.mark.llamacpp.server.service.ToolExecutionService;
 import org.mark.llamacpp.server.struct.ApiResponse;
 import org.mark.llamacpp.server.tools.JsonUtil;
@@ -74,25 +75,12 @@ public class ToolController implements BaseController {
 	 * @throws RequestMethodException 请求方法不正确时抛出异常
 	 */
 	@Override
-	public boolean handleRequest(String uri, ChannelHandlerContext ctx, FullHttpRequest request) throws RequestMethodException {
-		if (uri.startsWith(PATH_TOOL_EXECUTE)) {
-			this.handleToolExecute(ctx, request);
-			return true;
-		} else if (uri.startsWith(PATH_MCP_ADD)) {
-			this.handleMcpAdd(ctx, request);
-			return true;
-		} else if (uri.startsWith(PATH_MCP_TOOLS)) {
-			this.handleMcpTools(ctx, request);
-			return true;
-		} else if (uri.startsWith(PATH_MCP_REMOVE)) {
-			this.handleMcpRemove(ctx, request);
-			return true;
-		} else if (uri.startsWith(PATH_MCP_RENAME)) {
-			this.handleMcpRename(ctx, request);
-			return true;
-		}
-
-		return false;
+	public void routes(RouteTable table) {
+		table.route(PATH_TOOL_EXECUTE, this::handleToolExecute);
+		table.route(PATH_MCP_ADD, this::handleMcpAdd);
+		table.route(PATH_MCP_TOOLS, this::handleMcpTools);
+		table.route(PATH_MCP_REMOVE, this::handleMcpRemove);
+		table.route(PATH_MCP_RENAME, this::handleMcpRename);
 	}
 
 	/**
@@ -0,0 +1,604 @@
+package org.mark.llamacpp.server.embedding;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import org.mark.llamacpp.server.LlamaCppProcess;
+import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.replica.ReplicaRouter;
+import org.mark.llamacpp.server.scheduler.AdmissionException;
+import org.mark.llamacpp.server.scheduler.AdmissionListener;
+import org.mark.llamacpp.server.scheduler.ModelScheduler;
+import org.mark.llamacpp.server.scheduler.Permit;
+import org.mark.llamacpp.server.scheduler.Priority;
+import org.mark.llamacpp.server.tools.JsonUtil;
+import org.mark.llamacpp.server.tools.ParamTool;
+import org.mark.llamacpp.server.upstream.UpstreamClient;
+import org.mark.llamacpp.server.upstream.UpstreamExchange;
+import org.mark.llamacpp.server.upstream.UpstreamResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+
+/**
+ * 	embeddings请求的合并与拆分。
+ * 	同一个模型、参数相同的小请求在很短的窗口内合并成一次上游调用，结果再按顺序拆回给各个请求；
+ * 	输入很多的请求按模型的--batch-size拆成若干批，每批单独排队，由空闲的slot（和副本）并行处理；
+ * 	一个任务同时在途的批数不超过模型的slot数，一批完成后再发出下一批，不会一次占满调度队列。
+ * 	所有的上游请求都是OpenAI格式的/v1/embeddings，结果以OpenAI格式回调。
+ */
+public class EmbeddingDispatcher {
+
+	private static final Logger logger = LoggerFactory.getLogger(EmbeddingDispatcher.class);
+
+	/**
+	 * 	转发到llama.cpp的超时时间，与llama-server的--timeout保持一致。
+	 */
+	private static final long LLAMA_TIMEOUT_MS = 36000L * 1000;
+
+	/**
+	 * 	llama-server的默认--batch-size和--ubatch-size。
+	 */
+	private static final int DEFAULT_BATCH_SIZE = 2048;
+
+	private static final int DEFAULT_UBATCH_SIZE = 512;
+
+	/**
+	 * 	还不知道模型的slot数量时，一个任务同时在途的批数。
+	 */
+	private static final int DEFAULT_IN_FLIGHT = 4;
+
+	private static final EmbeddingDispatcher INSTANCE = new EmbeddingDispatcher();
+
+	public static EmbeddingDispatcher getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * 	正在攒批的任务，按模型和其它参数区分。
+	 */
+	private final Map<String, Job> pending = new ConcurrentHashMap<>();
+
+	private final ScheduledExecutorService timer = new ScheduledThreadPoolExecutor(1, Thread.ofVirtual().name("llama-embedding-", 0).factory());
+
+	private final AtomicLong requests = new AtomicLong(0);
+
+	private final AtomicLong coalesced = new AtomicLong(0);
+
+	private final AtomicLong upstreamCalls = new AtomicLong(0);
+
+	private EmbeddingDispatcher() {
+
+	}
+
+	/**
+	 * 	提交一个embeddings请求。
+	 * @param modelId
+	 * @param port 模型主进程端口
+	 * @param priority
+	 * @param client 客户端连接，可以为null
+	 * @param request OpenAI格式的请求体
+	 * @param callback 成功或者上游返回错误时result不为null；排队被拒绝时error为{@link AdmissionException}
+	 */
+	public void submit(String modelId, int port, Priority priority, Channel client, JsonObject request, BiConsumer<UpstreamResult, Throwable> callback) {
+		this.requests.incrementAndGet();
+		List<JsonElement> inputs = inputsOf(request);
+		if (inputs == null) {
+			// 不认识的输入格式原样转发，让llama-server报错
+			Job job = new Job(modelId, port, request, null);
+			job.add(new Part(callback, priority, client, 0, 0, 0));
+			job.raw = true;
+			this.dispatch(job);
+			return;
+		}
+		int tokens = 0;
+		for (JsonElement e : inputs) {
+			tokens += estimateTokens(e);
+		}
+		int[] limits = this.batchLimits(modelId);
+		long windowMs = LlamaServer.getEmbeddingBatchWindowMs();
+		int maxInputs = LlamaServer.getEmbeddingMaxBatchInputs();
+		// 本身就够一批的请求直接拆分发出，不再等待
+		if (windowMs <= 0 || inputs.size() >= maxInputs || tokens >= limits[0]) {
+			Job job = new Job(modelId, port, request, inputs);
+			job.add(new Part(callback, priority, client, 0, inputs.size(), tokens));
+			this.dispatch(job);
+			return;
+		}
+		String key = modelId + "\n" + paramsKey(request);
+		while (true) {
+			Job job = this.pending.computeIfAbsent(key, k -> {
+				Job j = new Job(modelId, port, request, new ArrayList<>());
+				this.timer.schedule(() -> this.flush(k, j), windowMs, TimeUnit.MILLISECONDS);
+				return j;
+			});
+			boolean full;
+			synchronized (job) {
+				if (job.closed) {
+					continue;
+				}
+				job.add(new Part(callback, priority, client, job.inputs.size(), inputs.size(), tokens));
+				job.inputs.addAll(inputs);
+				job.tokens += tokens;
+				full = job.inputs.size() >= maxInputs || job.tokens >= limits[0];
+			}
+			if (full) {
+				this.flush(key, job);
+			}
+			return;
+		}
+	}
+
+	/**
+	 * 	统计。
+	 * @return
+	 */
+	public Map<String, Object> snapshot() {
+		Map<String, Object> data = new LinkedHashMap<>();
+		data.put("batchWindowMs", LlamaServer.getEmbeddingBatchWindowMs());
+		data.put("maxBatchInputs", LlamaServer.getEmbeddingMaxBatchInputs());
+		data.put("requests", this.requests.get());
+		data.put("coalesced", this.coalesced.get());
+		data.put("upstreamCalls", this.upstreamCalls.get());
+		return data;
+	}
+
+	//================================================================================================
+
+	private void flush(String key, Job job) {
+		synchronized (job) {
+			if (job.closed) {
+				return;
+			}
+			job.closed = true;
+		}
+		this.pending.remove(key, job);
+		if (job.parts.size() > 1) {
+			this.coalesced.addAndGet(job.parts.size());
+		}
+		this.dispatch(job);
+	}
+
+	/**
+	 * 	按token预算把输入切成若干批，每批单独排队发出，全部完成后合并结果再分发给各个请求。
+	 */
+	private void dispatch(Job job) {
+		if (job.raw) {
+			this.sendBatch(job, job.template, null, (result, error) -> job.deliverRaw(result, error));
+			return;
+		}
+		int[] limits = this.batchLimits(job.modelId);
+		int maxInputs = LlamaServer.getEmbeddingMaxBatchInputs();
+		List<int[]> batches = new ArrayList<>();
+		int start = 0;
+		int tokens = 0;
+		for (int i = 0; i < job.inputs.size(); i++) {
+			int t = estimateTokens(job.inputs.get(i));
+			// 超过ubatch-size的输入单独成批，不拖慢同一批的其它输入
+			if (i > start && (tokens + t > limits[0] || i - start >= maxInputs || t > limits[1])) {
+				batches.add(new int[] { start, i });
+				start = i;
+				tokens = 0;
+			}
+			tokens += t;
+			if (t > limits[1] && i + 1 < job.inputs.size()) {
+				batches.add(new int[] { start, i + 1 });
+				start = i + 1;
+				tokens = 0;
+			}
+		}
+		batches.add(new int[] { start, job.inputs.size() });
+		// 只有一个请求、一批就能发完时不用解析结果，直接透传
+		if (batches.size() == 1 && job.parts.size() == 1) {
+			this.sendBatch(job, job.template, null, (result, error) -> job.deliverRaw(result, error));
+			return;
+		}
+		if (batches.size() > 1) {
+			logger.info("embeddings请求拆分为 {} 批，模型: {}，输入数: {}", batches.size(), job.modelId, job.inputs.size());
+		}
+		int slots = ModelScheduler.getInstance().getSlots(job.modelId);
+		new Batches(job, batches).start(slots > 0 ? slots : DEFAULT_IN_FLIGHT);
+	}
+
+	/**
+	 * 	排队并发出一批。
+	 * @param batches 属于拆分任务时不为null，拿到许可时任务已经失败就不再发出
+	 */
+	private void sendBatch(Job job, JsonObject body, Batches batches, BiConsumer<UpstreamResult, Throwable> callback) {
+		byte[] bytes = JsonUtil.toJson(body).getBytes(StandardCharsets.UTF_8);
+		// 合并的任务可能来自多个连接，只有一个请求时才跟随它的连接状态
+		Channel client = job.parts.size() == 1 ? job.parts.get(0).client : null;
+		ModelScheduler.getInstance().submit(job.modelId, job.priority(), client, new AdmissionListener() {
+			@Override
+			public void onGranted(Permit permit) {
+				if (batches != null && batches.isFailed()) {
+					permit.release();
+					return;
+				}
+				upstreamCalls.incrementAndGet();
+				HttpHeaders headers = new DefaultHttpHeaders();
+				headers.set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
+				UpstreamExchange exchange = UpstreamClient.getInstance().sendAggregated(ReplicaRouter.getInstance().pick(job.modelId, job.port),
+						HttpMethod.POST, "/v1/embeddings", headers, Unpooled.wrappedBuffer(bytes), LLAMA_TIMEOUT_MS, callback);
+				exchange.whenDone(permit::release);
+				if (batches != null) {
+					batches.running(exchange);
+				}
+			}
+
+			@Override
+			public void onRejected(AdmissionException e) {
+				callback.accept(null, e);
+			}
+		});
+	}
+
+	/**
+	 * 	模型的--batch-size和--ubatch-size，从启动命令里读取。
+	 * @param modelId
+	 * @return [batch, ubatch]
+	 */
+	private int[] batchLimits(String modelId) {
+		int batch = DEFAULT_BATCH_SIZE;
+		int ubatch = DEFAULT_UBATCH_SIZE;
+		LlamaCppProcess process = LlamaServerManager.getInstance().getLoadedProcesses().get(modelId);
+		if (process != null && process.getCmd() != null) {
+			List<String> args = ParamTool.splitCmdArgs(process.getCmd());
+			for (int i = 0; i + 1 < args.size(); i++) {
+				String a = args.get(i);
+				try {
+					if ("-b".equals(a) || "--batch-size".equals(a)) {
+						batch = Integer.parseInt(args.get(i + 1));
+					} else if ("-ub".equals(a) || "--ubatch-size".equals(a)) {
+						ubatch = Integer.parseInt(args.get(i + 1));
+					}
+				} catch (NumberFormatException e) {
+				}
+			}
+		}
+		// 每批的token数不超过batch-size，一条输入最多占ubatch-size个token（embedding模型一次要处理完整条输入）
+		return new int[] { Math.max(1, batch), Math.max(1, Math.min(ubatch, batch)) };
+	}
+
+	/**
+	 * 	把input统一成输入列表：字符串、字符串数组、token数组、token数组的数组。
+	 * @return 不认识的格式返回null
+	 */
+	static List<JsonElement> inputsOf(JsonObject request) {
+		JsonElement input = request == null ? null : request.get("input");
+		if (input == null || input.isJsonNull()) {
+			input = request == null ? null : request.get("content");
+		}
+		if (input == null) {
+			return null;
+		}
+		List<JsonElement> list = new ArrayList<>();
+		if (input.isJsonPrimitive() && input.getAsJsonPrimitive().isString()) {
+			list.add(input);
+			return list;
+		}
+		if (!input.isJsonArray()) {
+			return null;
+		}
+		JsonArray arr = input.getAsJsonArray();
+		if (arr.size() == 0) {
+			return null;
+		}
+		// 一维的数字数组是一条token化的输入
+		if (arr.get(0).isJsonPrimitive() && arr.get(0).getAsJsonPrimitive().isNumber()) {
+			list.add(arr);
+			return list;
+		}
+		for (JsonElement e : arr) {
+			if (e.isJsonArray() || (e.isJsonPrimitive() && e.getAsJsonPrimitive().isString())) {
+				list.add(e);
+			} else {
+				return null;
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * 	估算一条输入的token数。字符串按UTF-8字节数的1/3估计，偏保守。
+	 */
+	static int estimateTokens(JsonElement input) {
+		if (input.isJsonArray()) {
+			return input.getAsJsonArray().size() + 2;
+		}
+		String s = input.getAsString();
+		int bytes = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			bytes += c < 0x80 ? 1 : (c < 0x800 ? 2 : 3);
+		}
+		return bytes / 3 + 2;
+	}
+
+	/**
+	 * 	除了input以外的参数，只有参数完全相同的请求才能合并。
+	 */
+	private static String paramsKey(JsonObject request) {
+		JsonObject copy = request.deepCopy();
+		copy.remove("input");
+		copy.remove("content");
+		return copy.toString();
+	}
+
+	//================================================================================================
+
+	/**
+	 * 	一次合并后的任务。
+	 */
+	private static class Job {
+		private final String modelId;
+		private final int port;
+		private final JsonObject template;
+		private final List<JsonElement> inputs;
+		private final List<Part> parts = new ArrayList<>();
+		private int tokens = 0;
+		private boolean closed = false;
+		private boolean raw = false;
+
+		private Job(String modelId, int port, JsonObject request, List<JsonElement> inputs) {
+			this.modelId = modelId;
+			this.port = port;
+			this.template = request;
+			this.inputs = inputs;
+		}
+
+		private void add(Part part) {
+			this.parts.add(part);
+		}
+
+		/**
+		 * 	合并的任务按其中最高的优先级排队。
+		 */
+		private Priority priority() {
+			Priority p = Priority.BULK;
+			for (Part part : this.parts) {
+				if (part.priority != null && part.priority.ordinal() < p.ordinal()) {
+					p = part.priority;
+				}
+			}
+			return p;
+		}
+
+		private void deliverRaw(UpstreamResult result, Throwable error) {
+			for (Part part : this.parts) {
+				part.callback.accept(result, error);
+			}
+		}
+	}
+
+	/**
+	 * 	任务中属于一个请求的那部分输入。
+	 */
+	private static class Part {
+		private final BiConsumer<UpstreamResult, Throwable> callback;
+		private final Priority priority;
+		private final Channel client;
+		private final int offset;
+		private final int count;
+		private final int tokens;
+
+		private Part(BiConsumer<UpstreamResult, Throwable> callback, Priority priority, Channel client, int offset, int count, int tokens) {
+			this.callback = callback;
+			this.priority = priority;
+			this.client = client;
+			this.offset = offset;
+			this.count = count;
+			this.tokens = tokens;
+		}
+	}
+
+	/**
+	 * 	一个任务拆出的各批。最多window批同时在途，一批成功后发出下一批；
+	 * 	任何一批失败后剩下的批不再发出，已经发出的取消掉，不浪费上游的计算。
+	 */
+	private class Batches {
+		private final Job job;
+		private final List<int[]> ranges;
+		private final Merger merger;
+		/**
+		 * 	除input以外的参数，每批共用，不用每批复制整个请求体。
+		 */
+		private final JsonObject params = new JsonObject();
+		private final List<UpstreamExchange> running = new ArrayList<>();
+		private int next = 0;
+		private boolean failed = false;
+
+		private Batches(Job job, List<int[]> ranges) {
+			this.job = job;
+			this.ranges = ranges;
+			this.merger = new Merger(job, ranges.size());
+			for (Map.Entry<String, JsonElement> e : job.template.entrySet()) {
+				if (!"input".equals(e.getKey()) && !"content".equals(e.getKey())) {
+					this.params.add(e.getKey(), e.getValue());
+				}
+			}
+		}
+
+		private void start(int window) {
+			for (int i = 0; i < window; i++) {
+				if (!this.sendNext()) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * 	@return 没有剩下的批，或者任务已经失败时返回false
+		 */
+		private boolean sendNext() {
+			int[] b;
+			synchronized (this) {
+				if (this.failed || this.next >= this.ranges.size()) {
+					return false;
+				}
+				b = this.ranges.get(this.next++);
+			}
+			JsonObject body = new JsonObject();
+			for (Map.Entry<String, JsonElement> e : this.params.entrySet()) {
+				body.add(e.getKey(), e.getValue());
+			}
+			JsonArray input = new JsonArray(b[1] - b[0]);
+			for (int i = b[0]; i < b[1]; i++) {
+				input.add(this.job.inputs.get(i));
+			}
+			body.add("input", input);
+			sendBatch(this.job, body, this, (result, error) -> {
+				if (this.merger.accept(b[0], result, error)) {
+					this.sendNext();
+				} else {
+					this.fail();
+				}
+			});
+			return true;
+		}
+
+		private synchronized boolean isFailed() {
+			return this.failed;
+		}
+
+		/**
+		 * 	记录发出的批，完成后移除。任务已经失败时立即取消。
+		 */
+		private void running(UpstreamExchange exchange) {
+			synchronized (this) {
+				if (!this.failed) {
+					this.running.add(exchange);
+					exchange.whenDone(() -> this.done(exchange));
+					return;
+				}
+			}
+			exchange.cancel();
+		}
+
+		private synchronized void done(UpstreamExchange exchange) {
+			this.running.remove(exchange);
+		}
+
+		private void fail() {
+			List<UpstreamExchange> list;
+			synchronized (this) {
+				if (this.failed) {
+					return;
+				}
+				this.failed = true;
+				list = new ArrayList<>(this.running);
+				this.running.clear();
+			}
+			for (UpstreamExchange exchange : list) {
+				exchange.cancel();
+			}
+		}
+	}
+
+	/**
+	 * 	收集各批的结果，全部到齐后按下标拆回给各个请求。任何一批失败则所有请求都返回这个错误。
+	 */
+	private static class Merger {
+		private final Job job;
+		private final JsonElement[] vectors;
+		private int remaining;
+		private long promptTokens = 0;
+		private String model;
+		private boolean failed = false;
+
+		private Merger(Job job, int batches) {
+			this.job = job;
+			this.vectors = new JsonElement[job.inputs.size()];
+			this.remaining = batches;
+		}
+
+		/**
+		 * 	@return 这一批成功并且之前没有失败的批
+		 */
+		private boolean accept(int offset, UpstreamResult result, Throwable error) {
+			synchronized (this) {
+				if (this.failed) {
+					return false;
+				}
+				JsonObject parsed = error == null && result.isSuccess() ? JsonUtil.tryParseObject(result.getBodyAsString()) : null;
+				JsonArray data = parsed != null && parsed.has("data") && parsed.get("data").isJsonArray() ? parsed.getAsJsonArray("data") : null;
+				if (data == null) {
+					this.failed = true;
+				} else {
+					for (int i = 0; i < data.size(); i++) {
+						JsonObject item = data.get(i).getAsJsonObject();
+						int index = offset + (item.has("index") ? item.get("index").getAsInt() : i);
+						if (index >= 0 && index < this.vectors.length) {
+							this.vectors[index] = item;
+						}
+					}
+					if (parsed.has("usage") && parsed.get("usage").isJsonObject() && parsed.getAsJsonObject("usage").has("prompt_tokens")) {
+						this.promptTokens += parsed.getAsJsonObject("usage").get("prompt_tokens").getAsLong();
+					}
+					if (this.model == null && parsed.has("model")) {
+						this.model = parsed.get("model").getAsString();
+					}
+					if (--this.remaining > 0) {
+						return true;
+					}
+				}
+			}
+			if (this.failed) {
+				this.job.deliverRaw(result, error);
+				return false;
+			}
+			int totalTokens = 0;
+			for (Part part : this.job.parts) {
+				totalTokens += part.tokens;
+			}
+			for (Part part : this.job.parts) {
+				JsonArray data = new JsonArray();
+				for (int i = 0; i < part.count; i++) {
+					JsonElement v = this.vectors[part.offset + i];
+					if (v == null) {
+						continue;
+					}
+					JsonObject item = v.getAsJsonObject().deepCopy();
+					item.addProperty("index", i);
+					data.add(item);
+				}
+				JsonObject out = new JsonObject();
+				if (this.model != null) {
+					out.addProperty("model", this.model);
+				}
+				out.addProperty("object", "list");
+				out.add("data", data);
+				// 合并请求的token用量按估算的比例分摊
+				long tokens = this.job.parts.size() == 1 || totalTokens == 0 ? this.promptTokens : Math.round((double) this.promptTokens * part.tokens / totalTokens);
+				JsonObject usage = new JsonObject();
+				usage.addProperty("prompt_tokens", tokens);
+				usage.addProperty("total_tokens", tokens);
+				out.add("usage", usage);
+				HttpHeaders headers = new DefaultHttpHeaders();
+				headers.set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
+				part.callback.accept(new UpstreamResult(200, headers, JsonUtil.toJson(out).getBytes(StandardCharsets.UTF_8)), null);
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,341 @@
+package org.mark.llamacpp.server.ingress;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.gson.JsonParser;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ByteProcessor;
+
+/**
+ * 	增量扫描JSON对象的顶层字段。
+ * 	数据可以分成任意多块输入，只记录关心的字段是否出现、以及它们的标量值（字符串、数字、true/false/null），
+ * 	嵌套的对象和数组只跳过不解析。内存占用和请求体大小无关。
+ * 	UTF-8的多字节字符不会和JSON的结构字符冲突，所以直接按字节扫描。非线程安全。
+ */
+public class JsonFieldScanner implements ByteProcessor {
+
+	/**
+	 * 	顶层字段名最多记录这么长，更长的字段名不可能是关心的字段。
+	 */
+	private static final int MAX_KEY_BYTES = 256;
+
+	/**
+	 * 	标量值最多记录这么长，超过的只记录出现过。
+	 */
+	private static final int MAX_VALUE_BYTES = 4096;
+
+	private static final int CAPTURE_NONE = 0;
+
+	private static final int CAPTURE_KEY = 1;
+
+	private static final int CAPTURE_STRING = 2;
+
+	private static final int CAPTURE_LITERAL = 3;
+
+	private final Set<String> fields;
+
+	private final Set<String> present = new HashSet<>();
+
+	private final Map<String, String> values = new HashMap<>();
+
+	private int depth = 0;
+
+	private boolean inString = false;
+
+	private boolean escaped = false;
+
+	private boolean keyExpected = false;
+
+	private String currentKey;
+
+	private int capture = CAPTURE_NONE;
+
+	private byte[] captured = new byte[64];
+
+	private int capturedLength = 0;
+
+	private boolean overflow = false;
+
+	private boolean complete = false;
+
+	private boolean invalid = false;
+
+	private int keyCount = 0;
+
+	private long position = 0;
+
+	public JsonFieldScanner(String... fields) {
+		this.fields = new HashSet<>(Arrays.asList(fields));
+	}
+
+	/**
+	 * 	输入一块数据，不改变buf的读写下标。
+	 * @param buf
+	 * @return 顶层对象的右花括号在buf里的下标；这一块里对象没有结束时返回-1
+	 */
+	public int feed(ByteBuf buf) {
+		if (this.complete || !buf.isReadable()) {
+			return -1;
+		}
+		int start = buf.readerIndex();
+		int end = buf.forEachByte(this);
+		if (end < 0) {
+			this.position += buf.readableBytes();
+			return -1;
+		}
+		this.position += end - start + 1;
+		return this.invalid ? -1 : end;
+	}
+
+	@Override
+	public boolean process(byte b) {
+		if (this.inString) {
+			if (this.escaped) {
+				this.escaped = false;
+			} else if (b == '\\') {
+				this.escaped = true;
+			} else if (b == '"') {
+				this.inString = false;
+				this.endCapture();
+				return true;
+			}
+			this.append(b);
+			return true;
+		}
+		if (this.capture == CAPTURE_LITERAL) {
+			if (b == ',' || b == '}' || b == ']' || isWhitespace(b)) {
+				this.endCapture();
+			} else {
+				this.append(b);
+				return true;
+			}
+		}
+		switch (b) {
+		case '"':
+			this.inString = true;
+			if (this.depth == 1) {
+				if (this.keyExpected) {
+					this.startCapture(CAPTURE_KEY);
+				} else if (this.isInteresting()) {
+					this.startCapture(CAPTURE_STRING);
+				}
+			}
+			return true;
+		case '{':
+		case '[':
+			if (this.depth == 0) {
+				if (b != '{') {
+					return this.fail();
+				}
+				this.keyExpected = true;
+			}
+			this.depth++;
+			return true;
+		case '}':
+		case ']':
+			this.depth--;
+			if (this.depth <= 0) {
+				this.complete = true;
+				return false;
+			}
+			return true;
+		case ':':
+			if (this.depth == 1) {
+				this.keyExpected = false;
+			}
+			return true;
+		case ',':
+			if (this.depth == 1) {
+				this.keyExpected = true;
+				this.currentKey = null;
+			}
+			return true;
+		default:
+			if (isWhitespace(b)) {
+				return true;
+			}
+			if (this.depth == 0) {
+				return this.fail();
+			}
+			if (this.depth == 1 && !this.keyExpected && this.isInteresting()) {
+				this.startCapture(CAPTURE_LITERAL);
+				this.append(b);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * 	顶层对象是否已经结束。
+	 * @return
+	 */
+	public boolean isComplete() {
+		return this.complete;
+	}
+
+	/**
+	 * 	是否遇到过非空白字符。
+	 * @return
+	 */
+	public boolean isStarted() {
+		return this.depth > 0 || this.complete;
+	}
+
+	/**
+	 * 	数据不是一个JSON对象。
+	 * @return
+	 */
+	public boolean isInvalid() {
+		return this.invalid;
+	}
+
+	/**
+	 * 	已经扫描的字节数。
+	 * @return
+	 */
+	public long getPosition() {
+		return this.position;
+	}
+
+	/**
+	 * 	顶层字段的数量。
+	 * @return
+	 */
+	public int getKeyCount() {
+		return this.keyCount;
+	}
+
+	/**
+	 * 	关心的字段是否出现过。
+	 * @param field
+	 * @return
+	 */
+	public boolean has(String field) {
+		return this.present.contains(field);
+	}
+
+	/**
+	 * 	字符串字段的值。
+	 * @param field
+	 * @return 没有出现、不是字符串或者太长时返回null
+	 */
+	public String getString(String field) {
+		String raw = this.values.get(field);
+		if (raw == null || raw.isEmpty() || raw.charAt(0) != '"') {
+			return null;
+		}
+		if (raw.indexOf('\\') < 0) {
+			return raw.substring(1, raw.length() - 1);
+		}
+		try {
+			return JsonParser.parseString(raw).getAsString();
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * 	布尔字段的值。
+	 * @param field
+	 * @return 没有出现或者不是true/false时返回null
+	 */
+	public Boolean getBoolean(String field) {
+		String raw = this.values.get(field);
+		if ("true".equals(raw)) {
+			return Boolean.TRUE;
+		}
+		if ("false".equals(raw)) {
+			return Boolean.FALSE;
+		}
+		return null;
+	}
+
+	/**
+	 * 	数字字段的值。
+	 * @param field
+	 * @return 没有出现或者不是数字时返回null
+	 */
+	public Double getNumber(String field) {
+		String raw = this.values.get(field);
+		if (raw == null || raw.isEmpty()) {
+			return null;
+		}
+		char c = raw.charAt(0);
+		if (c != '-' && (c < '0' || c > '9')) {
+			return null;
+		}
+		try {
+			return Double.valueOf(raw);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private boolean fail() {
+		this.invalid = true;
+		this.complete = true;
+		return false;
+	}
+
+	private boolean isInteresting() {
+		return this.currentKey != null && this.fields.contains(this.currentKey);
+	}
+
+	private void startCapture(int kind) {
+		this.capture = kind;
+		this.capturedLength = 0;
+		this.overflow = false;
+		if (kind == CAPTURE_STRING) {
+			this.append((byte) '"');
+		}
+	}
+
+	private void append(byte b) {
+		if (this.capture == CAPTURE_NONE || this.overflow) {
+			return;
+		}
+		int limit = this.capture == CAPTURE_KEY ? MAX_KEY_BYTES : MAX_VALUE_BYTES;
+		if (this.capturedLength >= limit) {
+			this.overflow = true;
+			return;
+		}
+		if (this.capturedLength == this.captured.length) {
+			this.captured = Arrays.copyOf(this.captured, Math.min(limit, this.captured.length * 2));
+		}
+		this.captured[this.capturedLength++] = b;
+	}
+
+	private void endCapture() {
+		int kind = this.capture;
+		if (kind == CAPTURE_NONE) {
+			return;
+		}
+		if (kind == CAPTURE_STRING) {
+			this.append((byte) '"');
+		}
+		this.capture = CAPTURE_NONE;
+		if (kind == CAPTURE_KEY) {
+			this.keyCount++;
+			this.currentKey = this.overflow ? null : new String(this.captured, 0, this.capturedLength, StandardCharsets.UTF_8);
+			if (this.isInteresting()) {
+				this.present.add(this.currentKey);
+			}
+			return;
+		}
+		if (this.overflow) {
+			this.values.remove(this.currentKey);
+			return;
+		}
+		this.values.put(this.currentKey, new String(this.captured, 0, this.capturedLength, StandardCharsets.UTF_8));
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+	}
+}
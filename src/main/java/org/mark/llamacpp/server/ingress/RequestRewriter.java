@@ -0,0 +1,275 @@
+package org.mark.llamacpp.server.ingress;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mark.llamacpp.server.tools.JsonUtil;
+
+import com.google.gson.JsonObject;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+/**
+ * 	推理请求的改写流水线。
+ * 	先用{@link JsonFieldScanner}扫描出路由需要的字段和各条规则关心的字段，
+ * 	没有规则生效时原始字节直接转发；只追加字段的规则在字节层面拼接，其它规则才完整解析后重新序列化。
+ */
+public class RequestRewriter {
+
+	/**
+	 * 	路由和缓存需要的字段。stop只用来判断流式响应要不要检查停止词，timeout是客户端指定的截止时间，
+	 * 	cache_prompt用来判断固定slot时能不能直接在末尾追加。
+	 */
+	private static final String[] ROUTING_FIELDS = { "model", "stream", "temperature", "top_k", "seed", "stop", "timeout", "cache_prompt" };
+
+	/**
+	 * 	单例
+	 */
+	private static final RequestRewriter INSTANCE = new RequestRewriter();
+
+	public static RequestRewriter getInstance() {
+		return INSTANCE;
+	}
+
+	private final List<RuleEntry> rules = new CopyOnWriteArrayList<>();
+
+	private volatile String[] fields = ROUTING_FIELDS;
+
+	private final AtomicLong requests = new AtomicLong();
+
+	private final AtomicLong passthrough = new AtomicLong();
+
+	private final AtomicLong pinned = new AtomicLong();
+
+	private final AtomicLong scanNanos = new AtomicLong();
+
+	private final AtomicLong parses = new AtomicLong();
+
+	private final AtomicLong parseNanos = new AtomicLong();
+
+	private RequestRewriter() {
+		this.register(new ThinkingKwargsRule());
+	}
+
+	/**
+	 * 	注册一条改写规则，按注册顺序执行。
+	 * @param rule
+	 */
+	public synchronized void register(RewriteRule rule) {
+		this.rules.add(new RuleEntry(rule));
+		Set<String> all = new LinkedHashSet<>();
+		Collections.addAll(all, ROUTING_FIELDS);
+		for (RuleEntry e : this.rules) {
+			Collections.addAll(all, e.rule.getFields());
+		}
+		this.fields = all.toArray(new String[0]);
+	}
+
+	/**
+	 * 	创建一个记录所有需要字段的扫描器，流式转发时使用。
+	 * @return
+	 */
+	public JsonFieldScanner newScanner() {
+		return new JsonFieldScanner(this.fields);
+	}
+
+	/**
+	 * 	处理完整的请求体，不改变content的读下标。
+	 * @param endpoint 转发给llama-server的路径
+	 * @param content
+	 * @return
+	 */
+	public RewrittenRequest rewrite(String endpoint, ByteBuf content) {
+		this.requests.incrementAndGet();
+		long t = System.nanoTime();
+		JsonFieldScanner scanner = this.newScanner();
+		int end = scanner.feed(content);
+		this.scanNanos.addAndGet(System.nanoTime() - t);
+		byte[] body = ByteBufUtil.getBytes(content);
+		if (end < 0) {
+			// 不是JSON对象，交给调用方报错
+			return new RewrittenRequest(scanner, body, null, Collections.emptyList(), false);
+		}
+		List<String> applied = new ArrayList<>(2);
+		StringBuilder tail = null;
+		JsonObject json = null;
+		for (RuleEntry e : this.rules) {
+			long t0 = System.nanoTime();
+			if (!e.rule.matches(endpoint, scanner)) {
+				e.nanos.addAndGet(System.nanoTime() - t0);
+				continue;
+			}
+			String fragment = e.rule.append(scanner);
+			if (fragment != null && json == null) {
+				tail = tail == null ? new StringBuilder() : tail.append(',');
+				tail.append(fragment);
+			} else {
+				if (json == null) {
+					json = this.parse(body, tail);
+					if (json == null) {
+						e.nanos.addAndGet(System.nanoTime() - t0);
+						break;
+					}
+				}
+				if (fragment != null) {
+					merge(json, fragment);
+				} else {
+					e.rule.rewrite(json);
+				}
+			}
+			applied.add(e.rule.getName());
+			e.hits.incrementAndGet();
+			e.nanos.addAndGet(System.nanoTime() - t0);
+		}
+		if (applied.isEmpty()) {
+			this.passthrough.incrementAndGet();
+			return new RewrittenRequest(scanner, body, null, applied, true);
+		}
+		if (json != null) {
+			return new RewrittenRequest(scanner, JsonUtil.toJson(json).getBytes(StandardCharsets.UTF_8), json, applied, false);
+		}
+		return new RewrittenRequest(scanner, splice(body, end - content.readerIndex(), scanner.getKeyCount() > 0, tail.toString()), null, applied, false);
+	}
+
+	/**
+	 * 	不经过改写规则，只扫描路由字段，给不需要改写的接口使用。
+	 * @param body
+	 * @return
+	 */
+	public RewrittenRequest wrap(byte[] body) {
+		JsonFieldScanner scanner = new JsonFieldScanner(ROUTING_FIELDS);
+		scanner.feed(Unpooled.wrappedBuffer(body));
+		return new RewrittenRequest(scanner, body, null, Collections.emptyList(), false);
+	}
+
+	/**
+	 * 	流式转发的请求在顶层对象结束时调用，返回要插在右花括号前面的内容（已经带好前导逗号）。
+	 * 	需要完整解析的规则在流式转发时无法执行，只计入跳过次数。
+	 * @param endpoint
+	 * @param scanner
+	 * @return 不需要追加时返回null
+	 */
+	public String tailFor(String endpoint, JsonFieldScanner scanner) {
+		this.requests.incrementAndGet();
+		StringBuilder tail = null;
+		for (RuleEntry e : this.rules) {
+			long t0 = System.nanoTime();
+			if (e.rule.matches(endpoint, scanner)) {
+				String fragment = e.rule.append(scanner);
+				if (fragment == null) {
+					e.skipped.incrementAndGet();
+				} else {
+					tail = tail == null ? new StringBuilder() : tail.append(',');
+					tail.append(fragment);
+					e.hits.incrementAndGet();
+				}
+			}
+			e.nanos.addAndGet(System.nanoTime() - t0);
+		}
+		if (tail == null) {
+			this.passthrough.incrementAndGet();
+			return null;
+		}
+		return (scanner.getKeyCount() > 0 ? "," : "") + tail;
+	}
+
+	/**
+	 * 	请求被固定到slot，追加了id_slot和cache_prompt。原来算作原样转发的改为算作改写。
+	 */
+	void recordPinned(boolean passthrough) {
+		this.pinned.incrementAndGet();
+		if (passthrough) {
+			this.passthrough.decrementAndGet();
+		}
+	}
+
+	void recordParse(long nanos) {
+		this.parses.incrementAndGet();
+		this.parseNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * 	统计：处理的请求数、原样转发数、固定到slot的请求数、扫描和解析耗时，以及每条规则的命中次数和耗时。
+	 * @return
+	 */
+	public Map<String, Object> snapshot() {
+		Map<String, Object> data = new LinkedHashMap<>();
+		data.put("requests", this.requests.get());
+		data.put("passthrough", this.passthrough.get());
+		data.put("pinned", this.pinned.get());
+		data.put("scanMillis", this.scanNanos.get() / 1_000_000.0);
+		data.put("parses", this.parses.get());
+		data.put("parseMillis", this.parseNanos.get() / 1_000_000.0);
+		List<Map<String, Object>> list = new ArrayList<>();
+		for (RuleEntry e : this.rules) {
+			Map<String, Object> item = new LinkedHashMap<>();
+			item.put("name", e.rule.getName());
+			item.put("hits", e.hits.get());
+			item.put("skipped", e.skipped.get());
+			item.put("millis", e.nanos.get() / 1_000_000.0);
+			list.add(item);
+		}
+		data.put("rules", list);
+		return data;
+	}
+
+	//================================================================================================
+
+	/**
+	 * 	前面的规则已经追加了字段时，解析的是追加之后的结果。
+	 */
+	private JsonObject parse(byte[] body, StringBuilder tail) {
+		long t = System.nanoTime();
+		JsonObject json = JsonUtil.tryParseObject(new String(body, StandardCharsets.UTF_8));
+		if (json != null && tail != null) {
+			merge(json, tail.toString());
+		}
+		this.recordParse(System.nanoTime() - t);
+		return json;
+	}
+
+	private static void merge(JsonObject json, String fields) {
+		JsonObject extra = JsonUtil.tryParseObject("{" + fields + "}");
+		if (extra != null) {
+			extra.entrySet().forEach(kv -> json.add(kv.getKey(), kv.getValue()));
+		}
+	}
+
+	/**
+	 * 	在下标end（顶层对象的右花括号）前插入字段。
+	 */
+	static byte[] splice(byte[] body, int end, boolean comma, String fields) {
+		byte[] insert = ((comma ? "," : "") + fields).getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(body.length + insert.length);
+		out.write(body, 0, end);
+		out.write(insert, 0, insert.length);
+		out.write(body, end, body.length - end);
+		return out.toByteArray();
+	}
+
+	private static class RuleEntry {
+
+		private final RewriteRule rule;
+
+		private final AtomicLong hits = new AtomicLong();
+
+		private final AtomicLong skipped = new AtomicLong();
+
+		private final AtomicLong nanos = new AtomicLong();
+
+		private RuleEntry(RewriteRule rule) {
+			this.rule = rule;
+		}
+	}
+}
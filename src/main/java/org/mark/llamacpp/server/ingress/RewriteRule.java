@@ -0,0 +1,46 @@
+package org.mark.llamacpp.server.ingress;
+
+import com.google.gson.JsonObject;
+
+/**
+ * 	请求体改写规则，注册到{@link RequestRewriter}。
+ * 	规则先只根据扫描出来的顶层字段判断是否需要改写，不需要时请求体原样转发。
+ */
+public interface RewriteRule {
+
+	/**
+	 * 	规则名称，用于统计。
+	 * @return
+	 */
+	public String getName();
+
+	/**
+	 * 	判断需要用到的顶层字段，扫描时会记录这些字段的值。
+	 * @return
+	 */
+	public String[] getFields();
+
+	/**
+	 * 	是否需要改写，只能使用扫描结果。
+	 * @param endpoint 转发给llama-server的路径
+	 * @param scanner
+	 * @return
+	 */
+	public boolean matches(String endpoint, JsonFieldScanner scanner);
+
+	/**
+	 * 	只需要在顶层对象末尾追加字段时，返回追加的JSON片段（例如"a":1,"b":2，前后不带逗号），
+	 * 	这样不用解析整个请求体，流式转发的请求也能使用。返回null表示需要调用{@link #rewrite(JsonObject)}。
+	 * @param scanner
+	 * @return
+	 */
+	public String append(JsonFieldScanner scanner);
+
+	/**
+	 * 	在完整解析的请求上改写。
+	 * @param request
+	 */
+	public default void rewrite(JsonObject request) {
+
+	}
+}
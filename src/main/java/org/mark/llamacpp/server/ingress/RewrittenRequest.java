@@ -0,0 +1,134 @@
+package org.mark.llamacpp.server.ingress;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.mark.llamacpp.server.tools.JsonUtil;
+
+import com.google.gson.JsonObject;
+
+/**
+ * 	经过{@link RequestRewriter}处理的请求体。
+ * 	没有规则生效时body就是客户端发来的原始字节；JsonObject只在调用{@link #getJson()}时才解析。
+ */
+public class RewrittenRequest {
+
+	private final JsonFieldScanner scanner;
+
+	private byte[] body;
+
+	private final List<String> appliedRules;
+
+	private JsonObject json;
+
+	private boolean parsed = false;
+
+	/**
+	 * 	在{@link RequestRewriter}的统计里算作原样转发。
+	 */
+	private boolean passthrough;
+
+	RewrittenRequest(JsonFieldScanner scanner, byte[] body, JsonObject json, List<String> appliedRules, boolean passthrough) {
+		this.scanner = scanner;
+		this.body = body;
+		this.json = json;
+		this.parsed = json != null;
+		this.appliedRules = appliedRules;
+		this.passthrough = passthrough;
+	}
+
+	/**
+	 * 	请求体为空或者只有空白字符。
+	 * @return
+	 */
+	public boolean isEmpty() {
+		return !this.scanner.isStarted();
+	}
+
+	/**
+	 * 	请求体不是JSON对象。
+	 * @return
+	 */
+	public boolean isInvalid() {
+		return this.scanner.isInvalid() || !this.scanner.isComplete();
+	}
+
+	/**
+	 * 	要转发的请求体。
+	 * @return
+	 */
+	public byte[] getBody() {
+		return this.body;
+	}
+
+	/**
+	 * 	是否有规则改写了请求体。
+	 * @return
+	 */
+	public boolean isRewritten() {
+		return !this.appliedRules.isEmpty();
+	}
+
+	public List<String> getAppliedRules() {
+		return this.appliedRules;
+	}
+
+	public String getModel() {
+		return this.scanner.getString("model");
+	}
+
+	public boolean isStream() {
+		return Boolean.TRUE.equals(this.scanner.getBoolean("stream"));
+	}
+
+	/**
+	 * 	扫描结果，只包含{@link RequestRewriter}关心的顶层字段。
+	 * @return
+	 */
+	public JsonFieldScanner getScanner() {
+		return this.scanner;
+	}
+
+	/**
+	 * 	解析后的请求。第一次调用时才解析，之后对返回对象的修改需要调用{@link #commit()}写回请求体。
+	 * @return 请求体不是合法的JSON对象时返回null
+	 */
+	public JsonObject getJson() {
+		if (!this.parsed) {
+			this.parsed = true;
+			long t = System.nanoTime();
+			this.json = JsonUtil.tryParseObject(new String(this.body, StandardCharsets.UTF_8));
+			RequestRewriter.getInstance().recordParse(System.nanoTime() - t);
+		}
+		return this.json;
+	}
+
+	/**
+	 * 	{@link org.mark.llamacpp.server.replica.PrefixAffinity}固定了slot之后调用，它已经把id_slot和cache_prompt写进了{@link #getJson()}的对象。
+	 * 	请求体只在右花括号前拼接这两个字段，不重新序列化；原来就有cache_prompt时才重新序列化，避免重复的字段。
+	 * @param slot
+	 */
+	public void pin(int slot) {
+		RequestRewriter.getInstance().recordPinned(this.passthrough);
+		this.passthrough = false;
+		int end = this.body.length - 1;
+		while (end >= 0 && (this.body[end] == ' ' || this.body[end] == '\n' || this.body[end] == '\r' || this.body[end] == '\t')) {
+			end--;
+		}
+		if (end < 0 || this.body[end] != '}' || this.scanner.has("cache_prompt")) {
+			this.commit();
+			return;
+		}
+		boolean comma = this.scanner.getKeyCount() > 0 || this.isRewritten();
+		this.body = RequestRewriter.splice(this.body, end, comma, "\"id_slot\":" + slot + ",\"cache_prompt\":true");
+	}
+
+	/**
+	 * 	把修改过的JsonObject重新序列化成请求体。
+	 */
+	public void commit() {
+		if (this.json != null) {
+			this.body = JsonUtil.toJson(this.json).getBytes(StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package org.mark.llamacpp.server.ingress;
+
+/**
+ * 	把顶层的enable_thinking转成llama-server认识的chat_template_kwargs。请求里已经有chat_template_kwargs时不处理。
+ */
+public class ThinkingKwargsRule implements RewriteRule {
+
+	@Override
+	public String getName() {
+		return "enable_thinking";
+	}
+
+	@Override
+	public String[] getFields() {
+		return new String[] { "enable_thinking", "chat_template_kwargs" };
+	}
+
+	@Override
+	public boolean matches(String endpoint, JsonFieldScanner scanner) {
+		return "/v1/chat/completions".equals(endpoint)
+				&& scanner.getBoolean("enable_thinking") != null
+				&& !scanner.has("chat_template_kwargs");
+	}
+
+	@Override
+	public String append(JsonFieldScanner scanner) {
+		return "\"chat_template_kwargs\":{\"enable_thinking\":" + scanner.getBoolean("enable_thinking") + "}";
+	}
+}
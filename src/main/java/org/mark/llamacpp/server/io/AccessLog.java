@@ -0,0 +1,422 @@
+package org.mark.llamacpp.server.io;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.tools.JsonUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+/**
+ * 	访问日志，每个请求一行JSON（JSONL），按大小滚动。
+ * 	请求线程只把结束的请求放进一个定长的环形队列，由后台线程批量序列化和写文件，不在请求线程里格式化字符串或者做IO。
+ * 	队列满时直接丢弃并计数，不阻塞请求。成功的请求可以按接口路径前缀抽样，出错和中断的请求总是记录。
+ */
+public class AccessLog {
+
+	private static final Logger logger = LoggerFactory.getLogger(AccessLog.class);
+
+	/**
+	 * 	连接（HTTP/2下是流）上正在处理的请求。
+	 */
+	public static final AttributeKey<Entry> CURRENT = AttributeKey.valueOf("accessLogEntry");
+
+	private static final AccessLog INSTANCE = new AccessLog();
+
+	public static AccessLog getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * 	一个请求的记录。请求线程、排队回调和写响应的线程都会修改，字段用volatile。
+	 */
+	public static class Entry {
+
+		private final long startMillis = System.currentTimeMillis();
+
+		private final long startNanos = System.nanoTime();
+
+		private final String method;
+
+		private final String path;
+
+		private final String protocol;
+
+		private final String remote;
+
+		private volatile String model;
+
+		private volatile int status;
+
+		private volatile long bytes;
+
+		private volatile long queueStartNanos;
+
+		private volatile long queueNanos = -1;
+
+		private volatile long firstByteNanos = -1;
+
+		private volatile long totalNanos = -1;
+
+		private volatile boolean aborted;
+
+		public Entry(String method, String path, String protocol, String remote) {
+			this.method = method;
+			this.path = path;
+			this.protocol = protocol;
+			this.remote = remote;
+		}
+
+		public String getPath() {
+			return this.path;
+		}
+
+		public void setModel(String model) {
+			this.model = model;
+		}
+
+		public void setStatus(int status) {
+			this.status = status;
+		}
+
+		public int getStatus() {
+			return this.status;
+		}
+
+		/**
+		 * 	写出了响应体，第一次写出非空内容时记下首字节时间。
+		 * @param n
+		 */
+		public void addBytes(long n) {
+			if (n <= 0) {
+				return;
+			}
+			if (this.firstByteNanos < 0) {
+				this.firstByteNanos = System.nanoTime() - this.startNanos;
+			}
+			this.bytes += n;
+		}
+
+		public void queueStarted() {
+			this.queueStartNanos = System.nanoTime();
+		}
+
+		public void queueEnded() {
+			if (this.queueStartNanos != 0 && this.queueNanos < 0) {
+				this.queueNanos = System.nanoTime() - this.queueStartNanos;
+			}
+		}
+
+		/**
+		 * 	请求结束。
+		 * @param aborted 响应没有完整写出
+		 */
+		public void finish(boolean aborted) {
+			this.aborted = aborted;
+			this.totalNanos = System.nanoTime() - this.startNanos;
+		}
+
+		public boolean isFinished() {
+			return this.totalNanos >= 0;
+		}
+
+		private Map<String, Object> toMap() {
+			Map<String, Object> out = new LinkedHashMap<>();
+			out.put("time", Instant.ofEpochMilli(this.startMillis).toString());
+			out.put("method", this.method);
+			out.put("path", this.path);
+			out.put("proto", this.protocol);
+			out.put("remote", this.remote);
+			if (this.model != null) {
+				out.put("model", this.model);
+			}
+			out.put("status", this.status);
+			out.put("bytes", this.bytes);
+			if (this.queueNanos >= 0) {
+				out.put("queueMs", millis(this.queueNanos));
+			}
+			if (this.firstByteNanos >= 0) {
+				out.put("ttftMs", millis(this.firstByteNanos));
+			}
+			out.put("totalMs", millis(this.totalNanos));
+			if (this.aborted) {
+				out.put("aborted", true);
+			}
+			return out;
+		}
+
+		private static double millis(long nanos) {
+			return Math.round(nanos / 1e4) / 100.0;
+		}
+	}
+
+	/**
+	 * 	请求线程写入、后台线程读出。
+	 */
+	private volatile RingBuffer<Entry> ring;
+
+	private final AtomicLong written = new AtomicLong(0);
+
+	private final AtomicLong dropped = new AtomicLong(0);
+
+	private final AtomicLong sampledOut = new AtomicLong(0);
+
+	private final AtomicLong rotations = new AtomicLong(0);
+
+	private final AtomicLong writeErrors = new AtomicLong(0);
+
+	private volatile Thread writer;
+
+	private OutputStream out;
+
+	private long fileBytes;
+
+	private AccessLog() {
+
+	}
+
+	/**
+	 * 	按配置启动后台写入线程，没有启用时什么都不做。
+	 */
+	public synchronized void start() {
+		if (!LlamaServer.isAccessLogEnabled() || this.writer != null) {
+			return;
+		}
+		this.ring = new RingBuffer<>(LlamaServer.getAccessLogBufferSize());
+		Thread t = new Thread(this::run, "llama-access-log");
+		t.setDaemon(true);
+		t.start();
+		this.writer = t;
+		Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "llama-access-log-flush"));
+		logger.info("访问日志已启用: {}，队列长度: {}", LlamaServer.getAccessLogPath(), this.ring.capacity());
+	}
+
+	public boolean isEnabled() {
+		return this.writer != null;
+	}
+
+	/**
+	 * 	开始记录一个请求，访问日志没有启用时返回null。
+	 * @param channel 处理这个请求的连接
+	 * @param method
+	 * @param path 不带查询参数的路径
+	 * @param protocol h1或者h2
+	 * @return
+	 */
+	public Entry begin(Channel channel, String method, String path, String protocol) {
+		if (this.writer == null) {
+			return null;
+		}
+		Object remote = channel.remoteAddress();
+		if (remote == null && channel.parent() != null) {
+			remote = channel.parent().remoteAddress();
+		}
+		Entry entry = new Entry(method, path, protocol, remote == null ? null : remote.toString());
+		channel.attr(CURRENT).set(entry);
+		return entry;
+	}
+
+	/**
+	 * 	连接上正在处理的请求，没有时返回null。
+	 * @param channel
+	 * @return
+	 */
+	public static Entry current(Channel channel) {
+		if (channel == null || INSTANCE.writer == null) {
+			return null;
+		}
+		return channel.attr(CURRENT).get();
+	}
+
+	/**
+	 * 	请求已经结束，按抽样率决定是否放进队列。
+	 * @param entry
+	 */
+	public void record(Entry entry) {
+		if (entry == null || this.writer == null) {
+			return;
+		}
+		if (!entry.aborted && entry.status < 400 && !this.sampled(entry.path)) {
+			this.sampledOut.incrementAndGet();
+			return;
+		}
+		if (!this.ring.offer(entry)) {
+			this.dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * 	写入统计。
+	 * @return
+	 */
+	public Map<String, Object> snapshot() {
+		Map<String, Object> data = new LinkedHashMap<>();
+		data.put("enabled", this.writer != null);
+		data.put("path", LlamaServer.getAccessLogPath());
+		data.put("capacity", this.ring == null ? 0 : this.ring.capacity());
+		data.put("pending", this.ring == null ? 0 : this.ring.size());
+		data.put("written", this.written.get());
+		data.put("dropped", this.dropped.get());
+		data.put("sampledOut", this.sampledOut.get());
+		data.put("rotations", this.rotations.get());
+		data.put("writeErrors", this.writeErrors.get());
+		return data;
+	}
+
+	//================================================================================================
+
+	/**
+	 * 	按最长的路径前缀取抽样率，没有配置的路径全部记录。
+	 */
+	private boolean sampled(String path) {
+		Map<String, String> rates = LlamaServer.getAccessLogSampleRates();
+		if (rates.isEmpty() || path == null) {
+			return true;
+		}
+		String best = null;
+		for (String prefix : rates.keySet()) {
+			if (path.startsWith(prefix) && (best == null || prefix.length() > best.length())) {
+				best = prefix;
+			}
+		}
+		if (best == null) {
+			return true;
+		}
+		double rate;
+		try {
+			rate = Double.parseDouble(rates.get(best).trim());
+		} catch (Exception e) {
+			return true;
+		}
+		return rate >= 1 || (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate);
+	}
+
+	private void run() {
+		while (true) {
+			int n = this.drain();
+			if (n == 0) {
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+			}
+		}
+	}
+
+	private synchronized void stop() {
+		this.drain();
+		this.closeFile();
+	}
+
+	/**
+	 * 	取出队列里所有已经写入的记录，写完一批后flush。
+	 * @return 写出的条数
+	 */
+	private synchronized int drain() {
+		int n = 0;
+		Entry entry;
+		while ((entry = this.ring.poll()) != null) {
+			this.write(entry);
+			n++;
+		}
+		if (n > 0 && this.out != null) {
+			try {
+				this.out.flush();
+			} catch (IOException e) {
+				this.writeFailed(e);
+			}
+		}
+		return n;
+	}
+
+	private void write(Entry entry) {
+		byte[] line = (JsonUtil.toJson(entry.toMap()) + "\n").getBytes(StandardCharsets.UTF_8);
+		try {
+			long max = LlamaServer.getAccessLogMaxBytes();
+			if (this.out != null && max > 0 && this.fileBytes + line.length > max) {
+				this.rotate();
+			}
+			if (this.out == null) {
+				this.openFile();
+			}
+			this.out.write(line);
+			this.fileBytes += line.length;
+			this.written.incrementAndGet();
+		} catch (IOException e) {
+			this.writeFailed(e);
+		}
+	}
+
+	private void openFile() throws IOException {
+		Path path = Paths.get(LlamaServer.getAccessLogPath());
+		if (path.getParent() != null) {
+			Files.createDirectories(path.getParent());
+		}
+		this.fileBytes = Files.exists(path) ? Files.size(path) : 0;
+		this.out = new BufferedOutputStream(Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND), 64 * 1024);
+	}
+
+	/**
+	 * 	access.log依次改名为access.log.1、access.log.2……，超出保留数量的删除。
+	 */
+	private void rotate() throws IOException {
+		this.closeFile();
+		Path path = Paths.get(LlamaServer.getAccessLogPath());
+		int keep = Math.max(1, LlamaServer.getAccessLogMaxFiles());
+		Files.deleteIfExists(Paths.get(path + "." + keep));
+		for (int i = keep - 1; i >= 1; i--) {
+			Path from = Paths.get(path + "." + i);
+			if (Files.exists(from)) {
+				Files.move(from, Paths.get(path + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		if (Files.exists(path)) {
+			Files.move(path, Paths.get(path + ".1"), StandardCopyOption.REPLACE_EXISTING);
+		}
+		this.rotations.incrementAndGet();
+	}
+
+	private void closeFile() {
+		if (this.out == null) {
+			return;
+		}
+		try {
+			this.out.close();
+		} catch (IOException e) {
+			this.writeFailed(e);
+		}
+		this.out = null;
+		this.fileBytes = 0;
+	}
+
+	/**
+	 * 	写文件出错时关闭文件，下一条记录重新打开，每100次错误打印一次日志。
+	 */
+	private void writeFailed(IOException e) {
+		if (this.writeErrors.getAndIncrement() % 100 == 0) {
+			logger.info("写访问日志失败: {}", e.getMessage());
+		}
+		if (this.out != null) {
+			try {
+				this.out.close();
+			} catch (IOException ignore) {
+			}
+			this.out = null;
+		}
+	}
+}
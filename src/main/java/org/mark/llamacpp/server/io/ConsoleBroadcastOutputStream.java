@@ -3,70 +3,85 @@ package org.mark.llamacpp.server.io;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
-
-import org.mark.llamacpp.server.LlamaServer;
+import java.util.Arrays;
 
 
 /**
  * 	重定向用的输出流。
+ * 	只负责按换行切分，整行交给{@link ConsolePipeline}，写文件、回显和广播都在后台线程做。
+ * 	按字节切分再解码，多字节字符不会被拆坏；超长的行按{@value #MAX_LINE}字节截断成多行。
  */
 public class ConsoleBroadcastOutputStream extends OutputStream {
-    private final OutputStream delegate;
+    private static final int MAX_LINE = 64 * 1024;
+    private final ConsolePipeline pipeline;
     private final Charset charset;
-    private final StringBuilder buffer = new StringBuilder();
+    private byte[] buffer = new byte[256];
+    private int length = 0;
     private volatile boolean closed = false;
-    
-    public ConsoleBroadcastOutputStream(OutputStream delegate, Charset charset) {
-        this.delegate = delegate;
+
+    public ConsoleBroadcastOutputStream(ConsolePipeline pipeline, Charset charset) {
+        this.pipeline = pipeline;
         this.charset = charset;
     }
 
     @Override
     public synchronized void write(int b) throws IOException {
-        delegate.write(b);
-        char c = (char) (b & 0xFF);
-        if (c == '\n') {
-            String line = buffer.toString();
-            LlamaServer.sendConsoleLineEvent(null, line);
-            LlamaServer.out.println(line);
-            buffer.setLength(0);
-        } else if (c != '\r') {
-            buffer.append(c);
+        if (b == '\n') {
+            emit();
+        } else if (b != '\r') {
+            append((byte) b);
         }
     }
 
     @Override
     public synchronized void write(byte[] b, int off, int len) throws IOException {
-        delegate.write(b, off, len);
-        String text = new String(b, off, len, charset);
-        int start = 0;
-        for (int i = 0; i < text.length(); i++) {
-            char c = text.charAt(i);
-            if (c == '\n') {
-                if (i > start) buffer.append(text, start, i);
-                String line = buffer.toString();
-                LlamaServer.sendConsoleLineEvent(null, line);
-                LlamaServer.out.println(line);
-                buffer.setLength(0);
-                start = i + 1;
-            } else if (c == '\r') {
-                if (i > start) buffer.append(text, start, i);
+        int end = off + len;
+        int start = off;
+        for (int i = off; i < end; i++) {
+            byte c = b[i];
+            if (c == '\n' || c == '\r') {
+                append(b, start, i - start);
+                if (c == '\n') emit();
                 start = i + 1;
             }
         }
-        if (start < text.length()) buffer.append(text.substring(start));
+        append(b, start, end - start);
     }
 
     @Override
     public void flush() throws IOException {
-        delegate.flush();
+        // 后台线程按批写出
     }
 
     @Override
     public synchronized void close() throws IOException {
         if (!closed) {
             closed = true;
-            delegate.close();
+            if (length > 0) emit();
+        }
+    }
+
+    private void emit() {
+        pipeline.offer(new String(buffer, 0, length, charset));
+        length = 0;
+        if (buffer.length > 4096) buffer = new byte[256];
+    }
+
+    private void append(byte b) {
+        if (length == MAX_LINE) emit();
+        if (length == buffer.length) buffer = Arrays.copyOf(buffer, Math.min(MAX_LINE, buffer.length * 2));
+        buffer[length++] = b;
+    }
+
+    private void append(byte[] b, int off, int len) {
+        while (len > 0) {
+            if (length == MAX_LINE) emit();
+            int n = Math.min(len, MAX_LINE - length);
+            if (length + n > buffer.length) buffer = Arrays.copyOf(buffer, Math.min(MAX_LINE, Math.max(length + n, buffer.length * 2)));
+            System.arraycopy(b, off, buffer, length, n);
+            length += n;
+            off += n;
+            len -= n;
         }
     }
 }
@@ -0,0 +1,100 @@
+package org.mark.llamacpp.server.io;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.mark.llamacpp.server.tools.JsonUtil;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * 	用SSE跟随控制台输出。每个事件是{@link ConsoleTail.Chunk#toMap(long)}的JSON。
+ * 	每批写完后从客户端自己的游标读到文件结尾再发送，客户端读得慢时跳过通知，下一批一起补上，不会丢行，也不会在内存里积压。
+ */
+public class ConsoleFollower implements Runnable {
+
+	/**
+	 * 	开始跟随：先发送游标之后（或者最后n行）的内容，之后每批写完推送新内容，连接断开时结束。
+	 * @param ctx
+	 * @param epoch 没有游标时为0
+	 * @param cursor 小于0时从最后n行开始
+	 * @param lines
+	 */
+	public static void start(ChannelHandlerContext ctx, long epoch, long cursor, int lines) {
+		ConsolePipeline pipeline = ConsolePipeline.getInstance();
+		ConsoleTail tail = pipeline.getTail();
+		HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+		response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/event-stream; charset=UTF-8");
+		response.headers().set(HttpHeaderNames.CACHE_CONTROL, "no-cache");
+		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+		ctx.writeAndFlush(response);
+		ConsoleFollower follower = new ConsoleFollower(ctx, tail, epoch, cursor, lines);
+		pipeline.addListener(follower);
+		ctx.channel().closeFuture().addListener(f -> pipeline.removeListener(follower));
+		ctx.executor().execute(follower::pump);
+	}
+
+	private final ChannelHandlerContext ctx;
+
+	private final ConsoleTail tail;
+
+	private final int lines;
+
+	private long epoch;
+
+	private long cursor;
+
+	/**
+	 * 	已经安排了一次推送还没执行。
+	 */
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+	private ConsoleFollower(ChannelHandlerContext ctx, ConsoleTail tail, long epoch, long cursor, int lines) {
+		this.ctx = ctx;
+		this.tail = tail;
+		this.epoch = epoch;
+		this.cursor = cursor;
+		this.lines = lines;
+	}
+
+	/**
+	 * 	写入线程每批写完后调用，只安排推送。
+	 */
+	@Override
+	public void run() {
+		if (this.scheduled.compareAndSet(false, true)) {
+			this.ctx.executor().execute(this::pump);
+		}
+	}
+
+	/**
+	 * 	在连接的线程里推送游标之后的内容。
+	 */
+	private void pump() {
+		this.scheduled.set(false);
+		try {
+			while (this.ctx.channel().isActive() && this.ctx.channel().isWritable()) {
+				ConsoleTail.Chunk chunk = this.cursor < 0 ? this.tail.last(this.lines) : this.tail.since(this.epoch, this.cursor, this.lines);
+				this.epoch = this.tail.getEpoch();
+				this.cursor = chunk.getCursor();
+				if (chunk.getText().isEmpty() && !chunk.isMore()) {
+					return;
+				}
+				String event = "data: " + JsonUtil.toJson(chunk.toMap(this.epoch)) + "\n\n";
+				this.ctx.writeAndFlush(new DefaultHttpContent(Unpooled.wrappedBuffer(event.getBytes(StandardCharsets.UTF_8))));
+				if (!chunk.isMore()) {
+					return;
+				}
+			}
+		} catch (Exception e) {
+			this.ctx.close();
+		}
+	}
+}
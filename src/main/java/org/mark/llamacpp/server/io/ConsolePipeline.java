@@ -0,0 +1,323 @@
+package org.mark.llamacpp.server.io;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+
+import org.mark.llamacpp.server.LlamaServer;
+
+/**
+ * 	控制台输出的后台管道。
+ * 	写日志的线程只把整行放进定长的环形队列，满了就丢弃并计数，不会因为写文件、广播WebSocket或者慢客户端而阻塞。
+ * 	后台线程每隔{@link LlamaServer#getConsoleFlushIntervalMs()}毫秒取出一批：一次写入console.log，一次回显到原来的标准输出，合并成一个WebSocket消息广播。
+ * 	console.log超过{@link LlamaServer#getConsoleMaxBytes()}字节后改名并压缩成.gz，只保留最近几个。
+ * 	写入的同时维护{@link ConsoleTail}的行索引，每批写完通知跟随输出的客户端。
+ */
+public class ConsolePipeline {
+
+	/**
+	 * 	等待写出的行数上限。
+	 */
+	private static final int CAPACITY = 16384;
+
+	/**
+	 * 	一批最多的字符数，超过后立刻开始下一批。
+	 */
+	private static final int MAX_BATCH_CHARS = 256 * 1024;
+
+	private static final DateTimeFormatter ROTATE_SUFFIX = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+	private static final ConsolePipeline INSTANCE = new ConsolePipeline();
+
+	public static ConsolePipeline getInstance() {
+		return INSTANCE;
+	}
+
+	private final RingBuffer<String> ring = new RingBuffer<>(CAPACITY);
+
+	private final AtomicLong lines = new AtomicLong(0);
+
+	private final AtomicLong dropped = new AtomicLong(0);
+
+	/**
+	 * 	上一批之后新丢弃的行数，下一批开头写一行提示。
+	 */
+	private final AtomicLong droppedSinceBatch = new AtomicLong(0);
+
+	private final AtomicLong batches = new AtomicLong(0);
+
+	private final AtomicLong rotations = new AtomicLong(0);
+
+	/**
+	 * 	压缩旧日志，不占用写入线程。
+	 */
+	private final ExecutorService compressor = Executors.newSingleThreadExecutor(Thread.ofVirtual().name("llama-console-gzip-", 0).factory());
+
+	/**
+	 * 	每批写完之后调用，不能阻塞。
+	 */
+	private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+	private volatile ConsoleTail tail;
+
+	private volatile Thread writer;
+
+	private Path path;
+
+	private OutputStream file;
+
+	private long fileBytes;
+
+	private ConsolePipeline() {
+
+	}
+
+	/**
+	 * 	启动后台线程。
+	 * @param path 控制台日志文件
+	 */
+	public synchronized void start(Path path) {
+		if (this.writer != null) {
+			return;
+		}
+		this.path = path;
+		this.tail = new ConsoleTail(path);
+		try {
+			// 先建好已有内容的行索引，启动之后马上就能读取
+			this.openFile();
+		} catch (IOException e) {
+			LlamaServer.out.println("打开控制台日志失败: " + e.getMessage());
+		}
+		Thread t = new Thread(this::run, "llama-console");
+		t.setDaemon(true);
+		t.start();
+		this.writer = t;
+		Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "llama-console-flush"));
+	}
+
+	/**
+	 * 	放入一行，不含换行符。队列满时丢弃。
+	 * @param line
+	 */
+	public void offer(String line) {
+		this.lines.incrementAndGet();
+		if (!this.ring.offer(line)) {
+			this.dropped.incrementAndGet();
+			this.droppedSinceBatch.incrementAndGet();
+		}
+	}
+
+	/**
+	 * 	console.log的增量读取，没有启动时为null。
+	 * @return
+	 */
+	public ConsoleTail getTail() {
+		return this.tail;
+	}
+
+	public void addListener(Runnable listener) {
+		this.listeners.add(listener);
+	}
+
+	public void removeListener(Runnable listener) {
+		this.listeners.remove(listener);
+	}
+
+	/**
+	 * 	统计。
+	 * @return
+	 */
+	public Map<String, Object> snapshot() {
+		Map<String, Object> data = new LinkedHashMap<>();
+		data.put("capacity", this.ring.capacity());
+		data.put("pending", this.ring.size());
+		data.put("lines", this.lines.get());
+		data.put("dropped", this.dropped.get());
+		data.put("batches", this.batches.get());
+		data.put("rotations", this.rotations.get());
+		data.put("followers", this.listeners.size());
+		return data;
+	}
+
+	//================================================================================================
+
+	private void run() {
+		while (true) {
+			long next = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(10, LlamaServer.getConsoleFlushIntervalMs()));
+			boolean full;
+			do {
+				full = this.drain();
+			} while (full);
+			long wait = next - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+		}
+	}
+
+	private synchronized void stop() {
+		while (this.drain()) {
+		}
+		this.closeFile();
+	}
+
+	/**
+	 * 	取出一批写出。
+	 * @return 这一批到了字符上限，队列里可能还有
+	 */
+	private synchronized boolean drain() {
+		StringBuilder sb = null;
+		int count = 0;
+		long lost = this.droppedSinceBatch.getAndSet(0);
+		if (lost > 0) {
+			sb = new StringBuilder();
+			sb.append("[控制台输出过快，丢弃了 ").append(lost).append(" 行]\n");
+			count++;
+		}
+		String line;
+		while ((sb == null || sb.length() < MAX_BATCH_CHARS) && (line = this.ring.poll()) != null) {
+			if (sb == null) {
+				sb = new StringBuilder(Math.max(256, line.length() * 2));
+			}
+			sb.append(line).append('\n');
+			count++;
+		}
+		if (sb == null) {
+			return false;
+		}
+		String text = sb.toString();
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		long start = this.tail.end();
+		this.writeFile(bytes);
+		LlamaServer.out.write(bytes, 0, bytes.length);
+		LlamaServer.out.flush();
+		LlamaServer.sendConsoleBatchEvent(text, count, this.tail.getEpoch(), start, this.tail.end());
+		for (Runnable listener : this.listeners) {
+			listener.run();
+		}
+		this.batches.incrementAndGet();
+		return sb.length() >= MAX_BATCH_CHARS;
+	}
+
+	private void writeFile(byte[] bytes) {
+		try {
+			long max = LlamaServer.getConsoleMaxBytes();
+			if (this.file != null && max > 0 && this.fileBytes + bytes.length > max) {
+				this.rotate();
+			}
+			if (this.file == null) {
+				this.openFile();
+			}
+			this.file.write(bytes);
+			this.file.flush();
+			this.fileBytes += bytes.length;
+			this.tail.appended(bytes);
+		} catch (IOException e) {
+			// 不能再往控制台打印，否则会回到这里
+			LlamaServer.out.println("写控制台日志失败: " + e.getMessage());
+			this.closeFile();
+		}
+	}
+
+	private void openFile() throws IOException {
+		if (this.path.getParent() != null) {
+			Files.createDirectories(this.path.getParent());
+		}
+		this.fileBytes = Files.exists(this.path) ? Files.size(this.path) : 0;
+		this.tail.opened(this.fileBytes);
+		this.file = new BufferedOutputStream(Files.newOutputStream(this.path, StandardOpenOption.CREATE, StandardOpenOption.APPEND), 64 * 1024);
+	}
+
+	private void closeFile() {
+		if (this.file == null) {
+			return;
+		}
+		try {
+			this.file.close();
+		} catch (IOException ignore) {
+		}
+		this.file = null;
+		this.fileBytes = 0;
+	}
+
+	/**
+	 * 	console.log改名为console.log.时间，交给压缩线程压缩成.gz并清理多余的旧文件。
+	 */
+	private void rotate() throws IOException {
+		this.closeFile();
+		String base = this.path.getFileName().toString() + "." + LocalDateTime.now().format(ROTATE_SUFFIX);
+		Path rotated = this.path.resolveSibling(base);
+		for (int i = 1; Files.exists(rotated) || Files.exists(rotated.resolveSibling(rotated.getFileName() + ".gz")); i++) {
+			rotated = this.path.resolveSibling(base + "-" + i);
+		}
+		Files.move(this.path, rotated, StandardCopyOption.REPLACE_EXISTING);
+		this.tail.rotated();
+		this.rotations.incrementAndGet();
+		Path target = rotated;
+		this.compressor.execute(() -> this.compress(target));
+	}
+
+	private void compress(Path source) {
+		Path gz = source.resolveSibling(source.getFileName() + ".gz");
+		try (InputStream in = Files.newInputStream(source);
+				OutputStream out = new GZIPOutputStream(Files.newOutputStream(gz), 64 * 1024)) {
+			in.transferTo(out);
+		} catch (IOException e) {
+			LlamaServer.out.println("压缩控制台日志失败: " + e.getMessage());
+			try {
+				Files.deleteIfExists(gz);
+			} catch (IOException ignore) {
+			}
+			return;
+		}
+		try {
+			Files.deleteIfExists(source);
+			this.prune();
+		} catch (IOException e) {
+			LlamaServer.out.println("清理控制台日志失败: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * 	只保留最近{@link LlamaServer#getConsoleMaxFiles()}个压缩文件，按修改时间排序。
+	 */
+	private void prune() throws IOException {
+		String prefix = this.path.getFileName().toString() + ".";
+		List<Path> old = new ArrayList<>();
+		Map<Path, FileTime> times = new HashMap<>();
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(this.path.toAbsolutePath().getParent(), prefix + "*.gz")) {
+			for (Path p : ds) {
+				old.add(p);
+				times.put(p, Files.getLastModifiedTime(p));
+			}
+		}
+		old.sort(Comparator.comparing((Path p) -> times.get(p)).thenComparing(Comparator.naturalOrder()));
+		int keep = Math.max(1, LlamaServer.getConsoleMaxFiles());
+		for (int i = 0; i < old.size() - keep; i++) {
+			Files.deleteIfExists(old.get(i));
+		}
+	}
+}
@@ -0,0 +1,342 @@
+package org.mark.llamacpp.server.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 	console.log的增量读取。
+ * 	游标是字节偏移，从这次启动时文件的开头算起，滚动之后继续累加，不会回退；{@link #getEpoch()}每次启动不同，客户端据此发现重启。
+ * 	文件只由{@link ConsolePipeline}写入，写入时顺便记下每{@value #STRIDE}行的起始位置（稀疏行索引），
+ * 	“最后N行”和“游标之后的内容”都只读取结果本身附近的字节，和文件大小无关。
+ */
+public class ConsoleTail {
+
+	/**
+	 * 	行索引的间隔。
+	 */
+	private static final int STRIDE = 128;
+
+	/**
+	 * 	一次最多返回的字节数。
+	 */
+	public static final int MAX_BYTES = 256 * 1024;
+
+	private final Path path;
+
+	private final long epoch = System.currentTimeMillis();
+
+	/**
+	 * 	当前文件开头的游标。
+	 */
+	private long base = 0;
+
+	/**
+	 * 	当前文件已经写出的字节数。
+	 */
+	private long length = 0;
+
+	/**
+	 * 	当前文件的完整行数。
+	 */
+	private long lines = 0;
+
+	/**
+	 * 	marks[k]是第k*STRIDE行的起始位置（文件内偏移）。
+	 */
+	private long[] marks = new long[64];
+
+	private int markCount = 1;
+
+	ConsoleTail(Path path) {
+		this.path = path;
+	}
+
+	public long getEpoch() {
+		return this.epoch;
+	}
+
+	/**
+	 * 	读取的结果。
+	 */
+	public static class Chunk {
+
+		private final long start;
+
+		private final long cursor;
+
+		private final String text;
+
+		private final boolean more;
+
+		private final boolean truncated;
+
+		private Chunk(long start, long cursor, String text, boolean more, boolean truncated) {
+			this.start = start;
+			this.cursor = cursor;
+			this.text = text;
+			this.more = more;
+			this.truncated = truncated;
+		}
+
+		/**
+		 * 	下一次请求用的游标。
+		 * @return
+		 */
+		public long getCursor() {
+			return this.cursor;
+		}
+
+		public String getText() {
+			return this.text;
+		}
+
+		/**
+		 * 	还有没返回的内容，用新的游标接着读。
+		 * @return
+		 */
+		public boolean isMore() {
+			return this.more;
+		}
+
+		public Map<String, Object> toMap(long epoch) {
+			Map<String, Object> data = new LinkedHashMap<>();
+			data.put("epoch", epoch);
+			data.put("start", this.start);
+			data.put("cursor", this.cursor);
+			data.put("more", this.more);
+			// 游标指向的内容已经滚动掉，或者是上一次启动的游标，或者最后N行超过了MAX_BYTES只返回了结尾
+			data.put("truncated", this.truncated);
+			data.put("text", this.text);
+			return data;
+		}
+	}
+
+	/**
+	 * 	最后n行。
+	 * @param n
+	 * @return
+	 * @throws IOException
+	 */
+	public Chunk last(int n) throws IOException {
+		// 读取期间文件滚动了就重读，滚动要写满一个文件，很快就能读到一致的结果
+		Chunk c;
+		while ((c = this.readLast(n)) == null) {
+		}
+		return c;
+	}
+
+	/**
+	 * 	游标之后的内容。
+	 * @param epoch 客户端拿到游标时的epoch，和当前不同时按最后n行处理
+	 * @param cursor
+	 * @param n 游标无效时返回的行数
+	 * @return
+	 * @throws IOException
+	 */
+	public Chunk since(long epoch, long cursor, int n) throws IOException {
+		Chunk c;
+		while ((c = this.readSince(epoch, cursor, n)) == null) {
+		}
+		return c;
+	}
+
+	/**
+	 * 	当前文件结尾的游标。
+	 * @return
+	 */
+	public synchronized long end() {
+		return this.base + this.length;
+	}
+
+	//================================================================================================
+
+	/**
+	 * 	@return 读取期间文件滚动了，返回null
+	 */
+	private Chunk readLast(int n) throws IOException {
+		long base, length, from, skip;
+		synchronized (this) {
+			base = this.base;
+			length = this.length;
+			long target = Math.max(0, this.lines - Math.max(0, n));
+			int k = (int) Math.min(target / STRIDE, this.markCount - 1);
+			from = this.marks[k];
+			skip = target - (long) k * STRIDE;
+		}
+		// 文件在滚动之前只会追加，锁外读取已经写出的部分
+		if (skip > 0) {
+			from = this.skipLines(from, length, skip);
+		}
+		boolean cut = length - from > MAX_BYTES;
+		if (cut) {
+			// 只要结尾的部分，从完整的一行开始，标记为截断
+			from = this.skipLines(length - MAX_BYTES - 1, length, 1);
+		}
+		Chunk c = this.read(base, from, length, false);
+		if (!this.stable(base)) {
+			return null;
+		}
+		return cut ? new Chunk(c.start, c.cursor, c.text, c.more, true) : c;
+	}
+
+	private Chunk readSince(long epoch, long cursor, int n) throws IOException {
+		long base, length;
+		synchronized (this) {
+			base = this.base;
+			length = this.length;
+		}
+		if (epoch != this.epoch || cursor > base + length) {
+			Chunk c = this.last(n);
+			return new Chunk(c.start, c.cursor, c.text, c.more, true);
+		}
+		boolean truncated = cursor < base;
+		long from = truncated ? 0 : cursor - base;
+		Chunk c;
+		if (length - from > MAX_BYTES) {
+			// 只返回完整的行，一行都放不下时直接截断
+			byte[] a = this.readBytes(from, from + MAX_BYTES);
+			int end = a.length;
+			for (int i = a.length - 1; i >= 0; i--) {
+				if (a[i] == '\n') {
+					end = i + 1;
+					break;
+				}
+			}
+			c = new Chunk(base + from, base + from + end, new String(a, 0, end, StandardCharsets.UTF_8), true, false);
+		} else {
+			c = this.read(base, from, length, false);
+		}
+		if (!this.stable(base)) {
+			return null;
+		}
+		return truncated ? new Chunk(c.start, c.cursor, c.text, c.more, true) : c;
+	}
+
+	private synchronized boolean stable(long base) {
+		return this.base == base;
+	}
+
+	/**
+	 * 	打开文件时调用：文件里已有的内容扫描一遍建立索引，只在启动时发生一次。
+	 */
+	synchronized void opened(long existing) throws IOException {
+		this.length = 0;
+		this.lines = 0;
+		this.markCount = 1;
+		this.marks[0] = 0;
+		if (existing <= 0) {
+			return;
+		}
+		try (FileChannel ch = FileChannel.open(this.path, StandardOpenOption.READ)) {
+			ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+			long pos = 0;
+			while (pos < existing) {
+				buf.clear();
+				if (existing - pos < buf.capacity()) {
+					buf.limit((int) (existing - pos));
+				}
+				int r = ch.read(buf, pos);
+				if (r <= 0) {
+					break;
+				}
+				this.index(buf.array(), 0, r);
+				pos += r;
+			}
+		}
+	}
+
+	/**
+	 * 	写入之后调用。
+	 */
+	synchronized void appended(byte[] bytes) {
+		this.index(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * 	文件滚动之后调用，游标继续累加。
+	 */
+	synchronized void rotated() {
+		this.base += this.length;
+		this.length = 0;
+		this.lines = 0;
+		this.markCount = 1;
+		this.marks[0] = 0;
+	}
+
+	private void index(byte[] b, int off, int len) {
+		for (int i = off; i < off + len; i++) {
+			if (b[i] == '\n') {
+				this.lines++;
+				if (this.lines % STRIDE == 0) {
+					if (this.markCount == this.marks.length) {
+						this.marks = Arrays.copyOf(this.marks, this.marks.length * 2);
+					}
+					this.marks[this.markCount++] = this.length + (i - off) + 1;
+				}
+			}
+		}
+		this.length += len;
+	}
+
+	/**
+	 * 	从from开始跳过n行，返回之后那一行的起始位置。
+	 */
+	private long skipLines(long from, long limit, long n) throws IOException {
+		try (FileChannel ch = FileChannel.open(this.path, StandardOpenOption.READ)) {
+			ByteBuffer buf = ByteBuffer.allocate(16 * 1024);
+			long pos = from;
+			while (pos < limit) {
+				buf.clear();
+				if (limit - pos < buf.capacity()) {
+					buf.limit((int) (limit - pos));
+				}
+				int r = ch.read(buf, pos);
+				if (r <= 0) {
+					break;
+				}
+				byte[] a = buf.array();
+				for (int i = 0; i < r; i++) {
+					if (a[i] == '\n' && --n == 0) {
+						return pos + i + 1;
+					}
+				}
+				pos += r;
+			}
+			return limit;
+		}
+	}
+
+	private Chunk read(long base, long from, long to, boolean more) throws IOException {
+		if (to <= from) {
+			return new Chunk(base + from, base + from, "", more, false);
+		}
+		byte[] a = this.readBytes(from, to);
+		return new Chunk(base + from, base + from + a.length, new String(a, StandardCharsets.UTF_8), more, false);
+	}
+
+	private byte[] readBytes(long from, long to) throws IOException {
+		if (!Files.exists(this.path)) {
+			return new byte[0];
+		}
+		try (FileChannel ch = FileChannel.open(this.path, StandardOpenOption.READ)) {
+			ByteBuffer buf = ByteBuffer.allocate((int) (to - from));
+			long pos = from;
+			while (buf.hasRemaining()) {
+				int r = ch.read(buf, pos);
+				if (r <= 0) {
+					break;
+				}
+				pos += r;
+			}
+			return Arrays.copyOf(buf.array(), buf.position());
+		}
+	}
+}
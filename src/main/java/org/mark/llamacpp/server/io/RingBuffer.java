@@ -0,0 +1,84 @@
+package org.mark.llamacpp.server.io;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 	多个线程写入、一个线程读出的定长环形队列。
+ * 	写入方用CAS占位，满了直接返回false，不加锁也不阻塞；读出方只能有一个线程。
+ * @param <E>
+ */
+public class RingBuffer<E> {
+
+	private final AtomicReferenceArray<E> slots;
+
+	private final int mask;
+
+	/**
+	 * 	下一个写入位置。
+	 */
+	private final AtomicLong head = new AtomicLong(0);
+
+	/**
+	 * 	下一个读出位置，只有读出线程修改。
+	 */
+	private volatile long tail = 0;
+
+	/**
+	 * 	@param capacity 容量，向上取整到2的幂
+	 */
+	public RingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1) << 1);
+		this.slots = new AtomicReferenceArray<>(size);
+		this.mask = size - 1;
+	}
+
+	/**
+	 * 	放入一个元素。
+	 * @param e 不能为null
+	 * @return 队列已满时返回false
+	 */
+	public boolean offer(E e) {
+		for (;;) {
+			long h = this.head.get();
+			if (h - this.tail > this.mask) {
+				return false;
+			}
+			if (this.head.compareAndSet(h, h + 1)) {
+				this.slots.lazySet((int) (h & this.mask), e);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * 	取出一个元素，只能在读出线程调用。
+	 * @return 没有元素，或者写入方占了位置还没放进来时返回null
+	 */
+	public E poll() {
+		long t = this.tail;
+		if (t >= this.head.get()) {
+			return null;
+		}
+		int idx = (int) (t & this.mask);
+		E e = this.slots.get(idx);
+		if (e == null) {
+			return null;
+		}
+		this.slots.lazySet(idx, null);
+		this.tail = t + 1;
+		return e;
+	}
+
+	/**
+	 * 	等待读出的元素数量，近似值。
+	 * @return
+	 */
+	public int size() {
+		return (int) Math.max(0, this.head.get() - this.tail);
+	}
+
+	public int capacity() {
+		return this.mask + 1;
+	}
+}
@@ -0,0 +1,245 @@
+package org.mark.llamacpp.server.replica;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mark.llamacpp.server.LlamaServer;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * 	前缀亲和路由。
+ * 	同一个对话的后续请求尽量发给上一次使用的副本和slot，让llama.cpp直接复用slot里的KV缓存，不必重新处理整段历史。
+ * 	按消息（或者按固定长度切分的prompt）逐段计算前缀哈希，记录最近的前缀哈希对应的副本和slot，
+ * 	新请求从最长的前缀开始查找；找不到或者那个slot正忙时退回到负载最低的副本，选它最久没用的空闲slot。
+ */
+public class PrefixAffinity {
+
+	/**
+	 * 	prompt按多少个字符切成一段计算前缀。
+	 */
+	private static final int PROMPT_CHUNK_CHARS = 512;
+
+	/**
+	 * 	每个请求记录最长的几个前缀。
+	 */
+	private static final int RECORD_TAIL = 3;
+
+	private static final PrefixAffinity INSTANCE = new PrefixAffinity();
+
+	public static PrefixAffinity getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * 	前缀哈希 -> 端口和slot，按访问顺序淘汰。
+	 */
+	private final Map<Long, Long> prefixes = new LinkedHashMap<>(1024, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+			return this.size() > LlamaServer.getAffinityMaxEntries();
+		}
+	};
+
+	private final AtomicLong hits = new AtomicLong(0);
+
+	private final AtomicLong misses = new AtomicLong(0);
+
+	private final AtomicLong fallbacks = new AtomicLong(0);
+
+	private PrefixAffinity() {
+
+	}
+
+	/**
+	 * 	路由结果。请求结束后要调用{@link #release()}释放占用的slot。
+	 */
+	public static class Route {
+
+		private final int port;
+
+		private final Replica replica;
+
+		private final int slot;
+
+		private Route(int port, Replica replica, int slot) {
+			this.port = port;
+			this.replica = replica;
+			this.slot = slot;
+		}
+
+		public int getPort() {
+			return this.port;
+		}
+
+		/**
+		 * 	是否通过id_slot指定了slot（请求体已经被修改）。
+		 * @return
+		 */
+		public boolean isPinned() {
+			return this.slot >= 0;
+		}
+
+		/**
+		 * 	指定的slot，没有指定时为-1。
+		 * @return
+		 */
+		public int getSlot() {
+			return this.slot;
+		}
+
+		public void release() {
+			if (this.replica != null && this.slot >= 0) {
+				this.replica.releaseSlot(this.slot);
+			}
+		}
+	}
+
+	/**
+	 * 	为请求选择副本和slot。指定了slot时会在请求里写入id_slot和cache_prompt。
+	 * @param modelId
+	 * @param fallbackPort 没有副本信息时使用的端口
+	 * @param request chat/completions或completions的请求体，为null时只按负载选择副本
+	 * @return
+	 */
+	public Route route(String modelId, int fallbackPort, JsonObject request) {
+		ReplicaRouter router = ReplicaRouter.getInstance();
+		long[] keys = !LlamaServer.isAffinityEnabled() || request == null || request.has("id_slot") ? null : prefixKeys(modelId, request);
+		if (keys == null || keys.length == 0) {
+			return new Route(router.pick(modelId, fallbackPort), null, -1);
+		}
+		// 从最长的前缀开始找之前用过的slot
+		Replica replica = null;
+		int slot = -1;
+		boolean matched = false;
+		for (int i = keys.length - 1; i >= 0 && !matched; i--) {
+			Long target;
+			synchronized (this.prefixes) {
+				target = this.prefixes.get(keys[i]);
+			}
+			if (target == null) {
+				continue;
+			}
+			matched = true;
+			Replica r = router.getReplica((int) (target >>> 32));
+			if (r != null && r.isHealthy() && modelId.equals(r.getModelId())) {
+				slot = r.acquireSlot((int) (target & 0xffffffffL), true);
+				if (slot >= 0) {
+					replica = r;
+				}
+			}
+		}
+		if (replica != null) {
+			this.hits.incrementAndGet();
+		} else {
+			if (matched) {
+				this.fallbacks.incrementAndGet();
+			} else {
+				this.misses.incrementAndGet();
+			}
+			replica = router.pickReplica(modelId);
+			if (replica == null) {
+				return new Route(fallbackPort, null, -1);
+			}
+			slot = replica.acquireSlot(-1, false);
+			if (slot < 0) {
+				// slot数量未知或者都被占用，交给llama-server自己分配
+				return new Route(replica.getPort(), null, -1);
+			}
+		}
+		long target = ((long) replica.getPort() << 32) | slot;
+		synchronized (this.prefixes) {
+			for (int i = Math.max(0, keys.length - RECORD_TAIL); i < keys.length; i++) {
+				this.prefixes.put(keys[i], target);
+			}
+			// 第一段（通常是系统提示词）也记下来，新对话可以复用同一个系统提示词的缓存
+			this.prefixes.put(keys[0], target);
+		}
+		request.addProperty("id_slot", slot);
+		request.addProperty("cache_prompt", true);
+		return new Route(replica.getPort(), replica, slot);
+	}
+
+	/**
+	 * 	命中统计。
+	 * @return
+	 */
+	public Map<String, Object> snapshot() {
+		Map<String, Object> data = new LinkedHashMap<>();
+		data.put("enabled", LlamaServer.isAffinityEnabled());
+		synchronized (this.prefixes) {
+			data.put("entries", this.prefixes.size());
+		}
+		data.put("hits", this.hits.get());
+		data.put("misses", this.misses.get());
+		data.put("fallbacks", this.fallbacks.get());
+		return data;
+	}
+
+	//================================================================================================
+
+	/**
+	 * 	逐段计算前缀哈希：chat请求每条消息一段，completions请求按固定长度切分prompt。
+	 * 	第i个值是前i+1段的哈希。
+	 */
+	static long[] prefixKeys(String modelId, JsonObject request) {
+		long seed = hash(FNV_OFFSET, modelId);
+		JsonElement tools = request.get("tools");
+		if (tools != null && !tools.isJsonNull()) {
+			seed = hash(seed, tools.toString());
+		}
+		JsonElement messages = request.get("messages");
+		if (messages != null && messages.isJsonArray()) {
+			JsonArray arr = messages.getAsJsonArray();
+			long[] keys = new long[arr.size()];
+			long h = seed;
+			for (int i = 0; i < arr.size(); i++) {
+				h = mix(h, hash(FNV_OFFSET, arr.get(i).toString()));
+				keys[i] = h;
+			}
+			return keys;
+		}
+		JsonElement prompt = request.get("prompt");
+		if (prompt != null && prompt.isJsonPrimitive()) {
+			String text = prompt.getAsString();
+			int n = (text.length() + PROMPT_CHUNK_CHARS - 1) / PROMPT_CHUNK_CHARS;
+			long[] keys = new long[n];
+			long h = seed;
+			for (int i = 0; i < n; i++) {
+				int end = Math.min(text.length(), (i + 1) * PROMPT_CHUNK_CHARS);
+				h = mix(h, hash(FNV_OFFSET, text.substring(i * PROMPT_CHUNK_CHARS, end)));
+				keys[i] = h;
+			}
+			return keys;
+		}
+		return null;
+	}
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private static long hash(long h, String s) {
+		if (s == null) {
+			return h;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		for (byte b : bytes) {
+			h ^= (b & 0xff);
+			h *= FNV_PRIME;
+		}
+		return h;
+	}
+
+	private static long mix(long h, long v) {
+		h ^= v;
+		h *= 0x9e3779b97f4a7c15L;
+		return Long.rotateLeft(h, 31);
+	}
+}
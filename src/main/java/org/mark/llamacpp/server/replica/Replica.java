@@ -0,0 +1,182 @@
+package org.mark.llamacpp.server.replica;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 	同一个模型的一个llama-server副本。
+ */
+public class Replica {
+
+	private final String modelId;
+
+	/**
+	 * 	副本序号，0是主进程。
+	 */
+	private final int index;
+
+	private final int port;
+
+	/**
+	 * 	正在处理的请求数（包括对冲请求）。
+	 */
+	private final AtomicInteger inFlight = new AtomicInteger(0);
+
+	/**
+	 * 	连续失败次数。
+	 */
+	private final AtomicInteger failureStreak = new AtomicInteger(0);
+
+	private final AtomicLong completed = new AtomicLong(0);
+
+	private final AtomicLong failures = new AtomicLong(0);
+
+	private final AtomicLong hedges = new AtomicLong(0);
+
+	private volatile boolean healthy = true;
+
+	/**
+	 * 	slot数量，0表示还不知道。
+	 */
+	private volatile int slots = 0;
+
+	/**
+	 * 	通过id_slot指定了slot、还没有结束的请求占用的slot。
+	 */
+	private boolean[] slotBusy = new boolean[0];
+
+	/**
+	 * 	每个slot最后一次被分配的时间，用于挑选最久没用的slot。
+	 */
+	private long[] slotUsedNanos = new long[0];
+
+	Replica(String modelId, int index, int port) {
+		this.modelId = modelId;
+		this.index = index;
+		this.port = port;
+	}
+
+	public String getModelId() {
+		return this.modelId;
+	}
+
+	public int getIndex() {
+		return this.index;
+	}
+
+	public int getPort() {
+		return this.port;
+	}
+
+	public int getInFlight() {
+		return this.inFlight.get();
+	}
+
+	public boolean isHealthy() {
+		return this.healthy;
+	}
+
+	public int getSlots() {
+		return this.slots;
+	}
+
+	/**
+	 * 	还有空闲slot。slot数量未知时只看是否空闲。
+	 * @return
+	 */
+	boolean hasSpareSlot() {
+		return this.inFlight.get() < Math.max(1, this.slots);
+	}
+
+	void begin() {
+		this.inFlight.incrementAndGet();
+	}
+
+	/**
+	 * 	请求结束。
+	 * @param failed
+	 * @return 当前连续失败次数
+	 */
+	int end(boolean failed) {
+		this.inFlight.updateAndGet(n -> Math.max(0, n - 1));
+		if (failed) {
+			this.failures.incrementAndGet();
+			return this.failureStreak.incrementAndGet();
+		}
+		this.completed.incrementAndGet();
+		this.failureStreak.set(0);
+		return 0;
+	}
+
+	void hedged() {
+		this.hedges.incrementAndGet();
+	}
+
+	void setHealthy(boolean healthy) {
+		this.healthy = healthy;
+		if (healthy) {
+			this.failureStreak.set(0);
+		}
+	}
+
+	void setSlots(int slots) {
+		this.slots = Math.max(0, slots);
+		synchronized (this) {
+			if (this.slotBusy.length != this.slots) {
+				this.slotBusy = Arrays.copyOf(this.slotBusy, this.slots);
+				this.slotUsedNanos = Arrays.copyOf(this.slotUsedNanos, this.slots);
+			}
+		}
+	}
+
+	/**
+	 * 	占用一个slot。指定的slot空闲时使用它，否则使用最久没用的空闲slot。
+	 * @param preferred 小于0表示不指定
+	 * @param strict 为true时只接受指定的slot
+	 * @return 占用的slot，没有空闲slot时返回-1
+	 */
+	synchronized int acquireSlot(int preferred, boolean strict) {
+		int n = this.slotBusy.length;
+		if (preferred >= 0 && preferred < n && !this.slotBusy[preferred]) {
+			return this.occupy(preferred);
+		}
+		if (strict) {
+			return -1;
+		}
+		int best = -1;
+		for (int i = 0; i < n; i++) {
+			if (!this.slotBusy[i] && (best < 0 || this.slotUsedNanos[i] < this.slotUsedNanos[best])) {
+				best = i;
+			}
+		}
+		return best < 0 ? -1 : this.occupy(best);
+	}
+
+	synchronized void releaseSlot(int slot) {
+		if (slot >= 0 && slot < this.slotBusy.length) {
+			this.slotBusy[slot] = false;
+		}
+	}
+
+	private int occupy(int slot) {
+		this.slotBusy[slot] = true;
+		this.slotUsedNanos[slot] = System.nanoTime();
+		return slot;
+	}
+
+	Map<String, Object> snapshot() {
+		Map<String, Object> data = new LinkedHashMap<>();
+		data.put("index", this.index);
+		data.put("port", this.port);
+		data.put("healthy", this.healthy);
+		data.put("slots", this.slots);
+		data.put("inFlight", this.inFlight.get());
+		data.put("completed", this.completed.get());
+		data.put("failures", this.failures.get());
+		data.put("hedges", this.hedges.get());
+		return data;
+	}
+}
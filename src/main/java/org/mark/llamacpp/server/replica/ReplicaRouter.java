@@ -0,0 +1,304 @@
+package org.mark.llamacpp.server.replica;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.upstream.HedgePolicy;
+import org.mark.llamacpp.server.upstream.UpstreamClient;
+import org.mark.llamacpp.server.upstream.UpstreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 	多副本路由。
+ * 	同一个模型可以启动多个llama-server副本，每个请求发给正在处理请求数最少的健康副本；
+ * 	连续失败的副本移出轮换，等slots轮询恢复后再加回来。开启对冲时，长时间没有响应的请求会再发给一个空闲的副本。
+ */
+public class ReplicaRouter implements UpstreamObserver, HedgePolicy {
+
+	private static final Logger logger = LoggerFactory.getLogger(ReplicaRouter.class);
+
+	/**
+	 * 	可以对冲的接口，都是没有副作用的推理请求。
+	 */
+	private static final String[] HEDGE_PATHS = {
+			"/v1/chat/completions", "/v1/completions", "/completion", "/v1/embeddings", "/embedding", "/v1/rerank", "/rerank"
+	};
+
+	private static final ReplicaRouter INSTANCE = new ReplicaRouter();
+
+	public static ReplicaRouter getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * 	模型ID -> 副本列表。列表本身不修改，变化时整个替换。
+	 */
+	private final Map<String, List<Replica>> replicas = new ConcurrentHashMap<>();
+
+	/**
+	 * 	端口 -> 副本
+	 */
+	private final Map<Integer, Replica> byPort = new ConcurrentHashMap<>();
+
+	/**
+	 * 	请求数相同时轮流选择。
+	 */
+	private final AtomicInteger cursor = new AtomicInteger(0);
+
+	private ReplicaRouter() {
+		UpstreamClient.getInstance().setObserver(this);
+		UpstreamClient.getInstance().setHedgePolicy(this);
+	}
+
+	/**
+	 * 	添加一个副本。
+	 * @param modelId
+	 * @param index
+	 * @param port
+	 */
+	public void addReplica(String modelId, int index, int port) {
+		Replica replica = new Replica(modelId, index, port);
+		synchronized (this.replicas) {
+			List<Replica> list = new ArrayList<>(this.replicas.getOrDefault(modelId, Collections.emptyList()));
+			list.removeIf(r -> r.getPort() == port);
+			list.add(replica);
+			list.sort((a, b) -> Integer.compare(a.getIndex(), b.getIndex()));
+			this.replicas.put(modelId, Collections.unmodifiableList(list));
+			this.byPort.put(port, replica);
+		}
+		logger.info("模型 {} 添加副本 #{}，端口: {}", modelId, index, port);
+	}
+
+	/**
+	 * 	移除一个副本。
+	 * @param port
+	 */
+	public void removeReplica(int port) {
+		synchronized (this.replicas) {
+			Replica replica = this.byPort.remove(port);
+			if (replica == null) {
+				return;
+			}
+			List<Replica> list = new ArrayList<>(this.replicas.getOrDefault(replica.getModelId(), Collections.emptyList()));
+			list.remove(replica);
+			if (list.isEmpty()) {
+				this.replicas.remove(replica.getModelId());
+			} else {
+				this.replicas.put(replica.getModelId(), Collections.unmodifiableList(list));
+			}
+			logger.info("模型 {} 移除副本 #{}，端口: {}", replica.getModelId(), replica.getIndex(), port);
+		}
+	}
+
+	/**
+	 * 	移除模型的所有副本。
+	 * @param modelId
+	 */
+	public void removeModel(String modelId) {
+		synchronized (this.replicas) {
+			List<Replica> list = this.replicas.remove(modelId);
+			if (list != null) {
+				for (Replica r : list) {
+					this.byPort.remove(r.getPort());
+				}
+			}
+		}
+	}
+
+	/**
+	 * 	模型的所有副本。
+	 * @param modelId
+	 * @return
+	 */
+	public List<Replica> getReplicas(String modelId) {
+		return modelId == null ? Collections.emptyList() : this.replicas.getOrDefault(modelId, Collections.emptyList());
+	}
+
+	/**
+	 * 	为请求选择端口：正在处理请求数最少的健康副本。
+	 * @param modelId
+	 * @param fallbackPort 没有副本信息或者没有健康副本时使用的端口
+	 * @return
+	 */
+	public int pick(String modelId, int fallbackPort) {
+		Replica r = this.pickReplica(modelId);
+		return r == null ? fallbackPort : r.getPort();
+	}
+
+	/**
+	 * 	正在处理请求数最少的健康副本。
+	 * @param modelId
+	 * @return 没有副本信息或者没有健康副本时返回null
+	 */
+	public Replica pickReplica(String modelId) {
+		List<Replica> list = this.getReplicas(modelId);
+		int n = list.size();
+		if (n == 0) {
+			return null;
+		}
+		if (n == 1) {
+			return list.get(0);
+		}
+		int start = Math.floorMod(this.cursor.getAndIncrement(), n);
+		Replica best = null;
+		for (int i = 0; i < n; i++) {
+			Replica r = list.get((start + i) % n);
+			if (!r.isHealthy()) {
+				continue;
+			}
+			if (best == null || r.getInFlight() < best.getInFlight()) {
+				best = r;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * 	端口对应的副本。
+	 * @param port
+	 * @return
+	 */
+	public Replica getReplica(int port) {
+		return this.byPort.get(port);
+	}
+
+	/**
+	 * 	更新副本的健康状态和slot数量，由slots轮询调用。
+	 * @param port
+	 * @param healthy
+	 * @param slots
+	 */
+	public void updateHealth(int port, boolean healthy, int slots) {
+		Replica r = this.byPort.get(port);
+		if (r == null) {
+			return;
+		}
+		if (healthy != r.isHealthy()) {
+			logger.info("模型 {} 的副本 #{}（端口 {}）{}", r.getModelId(), r.getIndex(), port, healthy ? "恢复，重新加入轮换" : "不可用，移出轮换");
+		}
+		r.setHealthy(healthy);
+		if (healthy) {
+			r.setSlots(slots);
+		}
+	}
+
+	/**
+	 * 	模型所有健康副本的slot总数。
+	 * @param modelId
+	 * @return
+	 */
+	public int getHealthySlots(String modelId) {
+		int total = 0;
+		for (Replica r : this.getReplicas(modelId)) {
+			if (r.isHealthy()) {
+				total += r.getSlots();
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * 	模型的副本状态。
+	 * @param modelId
+	 * @return
+	 */
+	public List<Map<String, Object>> snapshot(String modelId) {
+		List<Map<String, Object>> list = new ArrayList<>();
+		for (Replica r : this.getReplicas(modelId)) {
+			list.add(r.snapshot());
+		}
+		return list;
+	}
+
+	/**
+	 * 	所有模型的副本状态。
+	 * @return
+	 */
+	public Map<String, Object> snapshotAll() {
+		Map<String, Object> data = new LinkedHashMap<>();
+		for (String modelId : this.replicas.keySet()) {
+			data.put(modelId, this.snapshot(modelId));
+		}
+		return data;
+	}
+
+	//================================================================================================
+
+	@Override
+	public void onAttemptStart(int port) {
+		Replica r = this.byPort.get(port);
+		if (r != null) {
+			r.begin();
+		}
+	}
+
+	@Override
+	public void onAttemptEnd(int port, boolean failed) {
+		Replica r = this.byPort.get(port);
+		if (r == null) {
+			return;
+		}
+		int streak = r.end(failed);
+		// 只有一个副本时没有可以切换的目标，不移出轮换
+		if (failed && r.isHealthy() && streak >= LlamaServer.getReplicaFailureThreshold() && this.getReplicas(r.getModelId()).size() > 1) {
+			this.updateHealth(port, false, 0);
+		}
+	}
+
+	@Override
+	public long getHedgeDelayMs(int port, String uri) {
+		long delayMs = LlamaServer.getReplicaHedgeAfterMs();
+		if (delayMs <= 0) {
+			return 0;
+		}
+		Replica r = this.byPort.get(port);
+		if (r == null || this.getReplicas(r.getModelId()).size() < 2 || !isHedgeable(uri)) {
+			return 0;
+		}
+		return delayMs;
+	}
+
+	@Override
+	public int selectHedgePort(int port, String uri) {
+		Replica origin = this.byPort.get(port);
+		if (origin == null) {
+			return -1;
+		}
+		// 只对冲到还有空闲slot的副本，避免在过载时放大负载
+		Replica best = null;
+		for (Replica r : this.getReplicas(origin.getModelId())) {
+			if (r == origin || !r.isHealthy() || !r.hasSpareSlot()) {
+				continue;
+			}
+			if (best == null || r.getInFlight() < best.getInFlight()) {
+				best = r;
+			}
+		}
+		if (best == null) {
+			return -1;
+		}
+		origin.hedged();
+		return best.getPort();
+	}
+
+	private static boolean isHedgeable(String uri) {
+		if (uri == null) {
+			return false;
+		}
+		int q = uri.indexOf('?');
+		String path = q >= 0 ? uri.substring(0, q) : uri;
+		for (String p : HEDGE_PATHS) {
+			if (path.equals(p)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,29 @@
+package org.mark.llamacpp.server.route;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+
+/**
+ * 	路由表里的一个接口。
+ */
+@FunctionalInterface
+public interface RouteHandler {
+
+	/**
+	 * 	处理请求。
+	 * @param ctx
+	 * @param request
+	 * @param match 匹配结果，包含路径参数和解析好的查询参数
+	 * @throws Exception
+	 */
+	public void handle(ChannelHandlerContext ctx, FullHttpRequest request, RouteMatch match) throws Exception;
+
+	/**
+	 * 	不需要匹配结果的接口，各个控制器原有的处理方法可以直接注册。
+	 */
+	@FunctionalInterface
+	public interface Plain {
+
+		public void handle(ChannelHandlerContext ctx, FullHttpRequest request) throws Exception;
+	}
+}
@@ -0,0 +1,76 @@
+package org.mark.llamacpp.server.route;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+/**
+ * 	一次路由匹配的结果。查询参数在匹配时解析一次，同名参数取第一个。
+ */
+public class RouteMatch {
+
+	private final String path;
+
+	private final String pattern;
+
+	private final Map<String, String> params;
+
+	private final Map<String, String> query;
+
+	RouteMatch(String path, String pattern, Map<String, String> params, QueryStringDecoder decoder) {
+		this.path = path;
+		this.pattern = pattern;
+		this.params = params == null ? Collections.emptyMap() : params;
+		Map<String, List<String>> raw = decoder.parameters();
+		if (raw.isEmpty()) {
+			this.query = Collections.emptyMap();
+		} else {
+			Map<String, String> q = new HashMap<>();
+			for (Map.Entry<String, List<String>> e : raw.entrySet()) {
+				q.put(e.getKey(), e.getValue().isEmpty() ? "" : e.getValue().get(0));
+			}
+			this.query = q;
+		}
+	}
+
+	/**
+	 * 	解码后的路径，不带查询参数。
+	 * @return
+	 */
+	public String path() {
+		return this.path;
+	}
+
+	/**
+	 * 	注册时的路径模板。
+	 * @return
+	 */
+	public String pattern() {
+		return this.pattern;
+	}
+
+	/**
+	 * 	路径参数，模板里的{name}。
+	 * @param name
+	 * @return
+	 */
+	public String param(String name) {
+		return this.params.get(name);
+	}
+
+	/**
+	 * 	查询参数，没有时为null。
+	 * @param name
+	 * @return
+	 */
+	public String query(String name) {
+		return this.query.get(name);
+	}
+
+	public Map<String, String> queryParams() {
+		return this.query;
+	}
+}
@@ -0,0 +1,303 @@
+package org.mark.llamacpp.server.route;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.mark.llamacpp.server.exception.RequestMethodException;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+/**
+ * 	声明式的路由表。路径按/切分后编译成前缀树，每个节点再按请求方式分发，查找只和路径段数有关，和注册了多少接口无关，也不依赖注册顺序。
+ * 	路径模板由字面量和{name}参数组成，字面量优先于参数。路径必须完全一致，查询参数在匹配时解析好交给接口。
+ * 	每个接口记录调用次数、异常次数和耗时分布，见{@link #snapshotAll()}。耗时是处理方法本身的执行时间，流式接口只包含开始转发之前的部分。
+ * 	路由表在类初始化时注册完成，之后只读。
+ */
+public class RouteTable {
+
+	/**
+	 * 	耗时分布的上界，毫秒。
+	 */
+	private static final long[] BUCKETS_MS = { 1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+
+	private static final Map<String, RouteTable> TABLES = new LinkedHashMap<>();
+
+	/**
+	 * 	按名字取路由表，不存在时创建。不同端口上的服务使用各自的路由表。
+	 * @param name
+	 * @return
+	 */
+	public static RouteTable named(String name) {
+		synchronized (TABLES) {
+			return TABLES.computeIfAbsent(name, RouteTable::new);
+		}
+	}
+
+	/**
+	 * 	所有路由表的统计。
+	 * @return
+	 */
+	public static List<Map<String, Object>> snapshotAll() {
+		List<RouteTable> tables;
+		synchronized (TABLES) {
+			tables = new ArrayList<>(TABLES.values());
+		}
+		List<Map<String, Object>> out = new ArrayList<>();
+		for (RouteTable t : tables) {
+			out.add(t.snapshot());
+		}
+		return out;
+	}
+
+	private final String name;
+
+	private final Node root = new Node();
+
+	private final List<Route> routes = new ArrayList<>();
+
+	private final LongAdder unmatched = new LongAdder();
+
+	private RouteTable(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * 	注册一个接受任意请求方式的接口。
+	 * @param pattern
+	 * @param handler
+	 * @return
+	 */
+	public RouteTable route(String pattern, RouteHandler handler) {
+		return this.route(null, pattern, handler);
+	}
+
+	public RouteTable route(String pattern, RouteHandler.Plain handler) {
+		return this.route(null, pattern, handler);
+	}
+
+	public RouteTable route(HttpMethod method, String pattern, RouteHandler.Plain handler) {
+		return this.route(method, pattern, (ctx, request, match) -> handler.handle(ctx, request));
+	}
+
+	/**
+	 * 	注册接口。
+	 * @param method 请求方式，为null时接受任意方式
+	 * @param pattern 路径模板，例如/api/models/list、/api/items/{id}
+	 * @param handler
+	 * @return
+	 */
+	public synchronized RouteTable route(HttpMethod method, String pattern, RouteHandler handler) {
+		Node node = this.root;
+		for (String seg : segments(pattern)) {
+			if (seg.length() > 2 && seg.startsWith("{") && seg.endsWith("}")) {
+				String param = seg.substring(1, seg.length() - 1);
+				if (node.param == null) {
+					node.param = new Node();
+					node.paramName = param;
+				} else if (!node.paramName.equals(param)) {
+					throw new IllegalArgumentException("路径参数名冲突: " + pattern);
+				}
+				node = node.param;
+			} else {
+				node = node.children.computeIfAbsent(seg, k -> new Node());
+			}
+		}
+		Route route = new Route(method, pattern, handler);
+		if (method == null) {
+			if (node.any != null) {
+				throw new IllegalArgumentException("重复注册: " + pattern);
+			}
+			node.any = route;
+		} else if (node.methods.putIfAbsent(method, route) != null) {
+			throw new IllegalArgumentException("重复注册: " + method + " " + pattern);
+		}
+		this.routes.add(route);
+		return this;
+	}
+
+	/**
+	 * 	查找并调用接口。
+	 * @param ctx
+	 * @param request
+	 * @return 路径没有注册时返回false，由调用方继续处理
+	 * @throws RequestMethodException 路径存在但不支持这个请求方式
+	 * @throws Exception 接口抛出的异常
+	 */
+	public boolean dispatch(ChannelHandlerContext ctx, FullHttpRequest request) throws Exception {
+		QueryStringDecoder decoder = new QueryStringDecoder(request.uri());
+		String path = decoder.path();
+		Map<String, String> params = new HashMap<>(2);
+		Node node = find(this.root, segments(path), 0, params);
+		if (node == null || (node.any == null && node.methods.isEmpty())) {
+			this.unmatched.increment();
+			return false;
+		}
+		Route route = node.methods.get(request.method());
+		if (route == null) {
+			route = node.any;
+		}
+		if (route == null) {
+			this.unmatched.increment();
+			throw new RequestMethodException("不支持的请求方式: " + request.method() + "，支持: " + node.methods.keySet());
+		}
+		RouteMatch match = new RouteMatch(path, route.pattern, params, decoder);
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			route.handler.handle(ctx, request, match);
+			failed = false;
+		} finally {
+			route.record(System.nanoTime() - start, failed);
+		}
+		return true;
+	}
+
+	/**
+	 * 	这个路由表的统计。
+	 * @return
+	 */
+	public Map<String, Object> snapshot() {
+		List<Route> copy;
+		synchronized (this) {
+			copy = new ArrayList<>(this.routes);
+		}
+		List<Map<String, Object>> list = new ArrayList<>();
+		for (Route r : copy) {
+			list.add(r.snapshot());
+		}
+		Map<String, Object> out = new LinkedHashMap<>();
+		out.put("name", this.name);
+		out.put("unmatched", this.unmatched.sum());
+		out.put("routes", list);
+		return out;
+	}
+
+	//================================================================================================
+
+	private static Node find(Node node, List<String> segs, int i, Map<String, String> params) {
+		if (i == segs.size()) {
+			return node;
+		}
+		String seg = segs.get(i);
+		Node child = node.children.get(seg);
+		if (child != null) {
+			Node found = find(child, segs, i + 1, params);
+			if (found != null && (found.any != null || !found.methods.isEmpty())) {
+				return found;
+			}
+		}
+		if (node.param != null) {
+			Node found = find(node.param, segs, i + 1, params);
+			if (found != null && (found.any != null || !found.methods.isEmpty())) {
+				params.put(node.paramName, seg);
+				return found;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 	按/切分路径，忽略空段。
+	 */
+	private static List<String> segments(String path) {
+		List<String> out = new ArrayList<>(6);
+		int start = 0;
+		int n = path.length();
+		for (int i = 0; i <= n; i++) {
+			if (i == n || path.charAt(i) == '/') {
+				if (i > start) {
+					out.add(path.substring(start, i));
+				}
+				start = i + 1;
+			}
+		}
+		return out;
+	}
+
+	private static class Node {
+
+		private final Map<String, Node> children = new HashMap<>();
+
+		private final Map<HttpMethod, Route> methods = new LinkedHashMap<>(2);
+
+		private Node param;
+
+		private String paramName;
+
+		private Route any;
+	}
+
+	private static class Route {
+
+		private final HttpMethod method;
+
+		private final String pattern;
+
+		private final RouteHandler handler;
+
+		private final LongAdder count = new LongAdder();
+
+		private final LongAdder errors = new LongAdder();
+
+		private final LongAdder totalNanos = new LongAdder();
+
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		/**
+		 * 	最后一格是超过最大上界的次数。
+		 */
+		private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS_MS.length + 1);
+
+		private Route(HttpMethod method, String pattern, RouteHandler handler) {
+			this.method = method;
+			this.pattern = pattern;
+			this.handler = handler;
+		}
+
+		private void record(long nanos, boolean failed) {
+			this.count.increment();
+			if (failed) {
+				this.errors.increment();
+			}
+			this.totalNanos.add(nanos);
+			this.maxNanos.accumulateAndGet(nanos, Math::max);
+			long ms = nanos / 1_000_000L;
+			int b = 0;
+			while (b < BUCKETS_MS.length && ms >= BUCKETS_MS[b]) {
+				b++;
+			}
+			this.histogram.incrementAndGet(b);
+		}
+
+		private Map<String, Object> snapshot() {
+			long n = this.count.sum();
+			Map<String, Object> out = new LinkedHashMap<>();
+			out.put("method", this.method == null ? "*" : this.method.name());
+			out.put("path", this.pattern);
+			out.put("count", n);
+			out.put("errors", this.errors.sum());
+			out.put("avgMs", n == 0 ? 0.0 : this.totalNanos.sum() / 1e6 / n);
+			out.put("maxMs", this.maxNanos.get() / 1e6);
+			Map<String, Long> hist = new LinkedHashMap<>();
+			for (int i = 0; i < BUCKETS_MS.length; i++) {
+				hist.put("<" + BUCKETS_MS[i] + "ms", this.histogram.get(i));
+			}
+			hist.put(">=" + BUCKETS_MS[BUCKETS_MS.length - 1] + "ms", this.histogram.get(BUCKETS_MS.length));
+			out.put("latency", hist);
+			return out;
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package org.mark.llamacpp.server.scheduler;
+
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+/**
+ * 	请求没有拿到执行许可：队列已满（429）、排队超时或模型已卸载（503）、排队期间超过请求的截止时间（504）。
+ */
+public class AdmissionException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * 	HTTP状态码。HttpResponseStatus不能序列化，这里只存数值。
+	 */
+	private final int status;
+
+	private final int retryAfterSeconds;
+
+	public AdmissionException(HttpResponseStatus status, int retryAfterSeconds, String message) {
+		super(message);
+		this.status = status.code();
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	public HttpResponseStatus getStatus() {
+		return HttpResponseStatus.valueOf(this.status);
+	}
+
+	/**
+	 * 	建议客户端多少秒后重试，用于Retry-After响应头，0表示不带。
+	 * @return
+	 */
+	public int getRetryAfterSeconds() {
+		return this.retryAfterSeconds;
+	}
+}
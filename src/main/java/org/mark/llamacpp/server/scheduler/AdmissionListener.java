@@ -0,0 +1,19 @@
+package org.mark.llamacpp.server.scheduler;
+
+/**
+ * 	排队结果的回调。可能在提交请求的线程里直接回调，也可能在释放许可的线程或超时线程里回调。
+ */
+public interface AdmissionListener {
+
+	/**
+	 * 	拿到了执行许可。请求结束后必须调用{@link Permit#release()}。
+	 * @param permit
+	 */
+	public void onGranted(Permit permit);
+
+	/**
+	 * 	被拒绝。
+	 * @param e
+	 */
+	public void onRejected(AdmissionException e);
+}
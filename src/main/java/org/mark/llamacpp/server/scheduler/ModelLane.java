@@ -0,0 +1,411 @@
+package org.mark.llamacpp.server.scheduler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+/**
+ * 	单个模型的排队状态：slot数量、正在执行的请求数和按优先级划分的等待队列。
+ * 	空出slot时优先放行高优先级的请求，同一优先级内先进先出；低优先级队列连续被跳过太多次时放行一个，避免一直饿死。
+ */
+class ModelLane {
+
+	private static final Logger logger = LoggerFactory.getLogger(ModelLane.class);
+
+	/**
+	 * 	还没有统计数据时，估算Retry-After使用的单个请求耗时。
+	 */
+	private static final double DEFAULT_HOLD_MS = 5000;
+
+	private final String modelId;
+
+	private final EnumMap<Priority, ArrayDeque<Waiter>> queues = new EnumMap<>(Priority.class);
+
+	/**
+	 * 	各优先级队列在非空的情况下被跳过的次数。
+	 */
+	private final EnumMap<Priority, Integer> skipped = new EnumMap<>(Priority.class);
+
+	/**
+	 * 	低优先级队列最多连续被跳过多少次，小于等于0表示严格按优先级。
+	 */
+	private int starvationLimit = 0;
+
+	private int queued = 0;
+
+	/**
+	 * 	slot数量，0表示还不知道，此时不限制并发。
+	 */
+	private int slots = 0;
+
+	private int active = 0;
+
+	private boolean closed = false;
+
+	private long granted = 0;
+
+	private long rejected = 0;
+
+	private long timeouts = 0;
+
+	private long cancelled = 0;
+
+	/**
+	 * 	被更高优先级的请求挤出队列的次数。
+	 */
+	private long preempted = 0;
+
+	private long lastWaitMs = 0;
+
+	private double avgWaitMs = 0;
+
+	private double avgHoldMs = 0;
+
+	ModelLane(String modelId) {
+		this.modelId = modelId;
+		for (Priority p : Priority.values()) {
+			this.queues.put(p, new ArrayDeque<>());
+			this.skipped.put(p, 0);
+		}
+	}
+
+	String getModelId() {
+		return this.modelId;
+	}
+
+	/**
+	 * 	提交一个请求。队列已满时，如果有比它优先级低的请求在排队，挤掉其中最晚进入的一个。
+	 */
+	void submit(Channel client, Priority priority, AdmissionListener listener, int maxQueue, long maxWaitMs, int starvationLimit, ScheduledExecutorService timer) {
+		Permit permit = null;
+		AdmissionException reject = null;
+		Waiter waiter = null;
+		Waiter evicted = null;
+		int evictedRetryAfter = 0;
+		synchronized (this) {
+			this.starvationLimit = starvationLimit;
+			if (this.closed) {
+				reject = new AdmissionException(HttpResponseStatus.SERVICE_UNAVAILABLE, this.retryAfterSeconds(priority), "模型已停止: " + this.modelId);
+			} else if (this.queued == 0 && this.hasFreeSlot()) {
+				this.active++;
+				this.granted++;
+				this.recordWait(0);
+				permit = new Permit(this, priority, 0);
+			} else {
+				if (this.queued >= maxQueue) {
+					evicted = this.evictLowerThan(priority);
+					if (evicted != null) {
+						this.preempted++;
+						evictedRetryAfter = this.retryAfterSeconds(evicted.priority);
+					}
+				}
+				if (this.queued >= maxQueue) {
+					this.rejected++;
+					reject = new AdmissionException(HttpResponseStatus.TOO_MANY_REQUESTS, this.retryAfterSeconds(priority),
+							"模型 " + this.modelId + " 的排队请求已满: " + this.queued);
+				} else {
+					waiter = new Waiter(client, priority, listener);
+					Waiter w = waiter;
+					// 放进队列之前设置好，其它线程一拿到这个请求就能移除监听
+					waiter.closeListener = future -> this.cancel(w);
+					this.queues.get(priority).addLast(waiter);
+					this.queued++;
+					waiter.timeoutTask = timer.schedule(() -> this.timeout(w), maxWaitMs, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+		if (evicted != null) {
+			evicted.detach();
+			logger.info("排队中的{}请求被更高优先级的请求挤出，模型: {}", evicted.priority.getName(), this.modelId);
+			evicted.listener.onRejected(new AdmissionException(HttpResponseStatus.TOO_MANY_REQUESTS, evictedRetryAfter,
+					"模型 " + this.modelId + " 繁忙，排队中的请求被更高优先级的请求取代"));
+		}
+		if (permit != null) {
+			grant(listener, permit);
+			return;
+		}
+		if (reject != null) {
+			listener.onRejected(reject);
+			return;
+		}
+		// 客户端在排队期间断开，直接移出队列
+		if (client != null) {
+			client.closeFuture().addListener(waiter.closeListener);
+			// 加上监听之前可能已经被其它线程调度、超时或挤出，那时detach还没有可以移除的监听
+			if (waiter.detached) {
+				client.closeFuture().removeListener(waiter.closeListener);
+			}
+		}
+	}
+
+	/**
+	 * 	释放许可，并把空出来的slot交给队列里的请求。
+	 */
+	void release(Permit permit) {
+		List<Waiter> ready;
+		synchronized (this) {
+			this.active = Math.max(0, this.active - 1);
+			double holdMs = (System.nanoTime() - permit.getGrantedNanos()) / 1_000_000.0;
+			this.avgHoldMs = this.avgHoldMs == 0 ? holdMs : this.avgHoldMs * 0.8 + holdMs * 0.2;
+			ready = this.drain();
+		}
+		this.dispatch(ready);
+	}
+
+	/**
+	 * 	更新slot数量，变多时立即放行排队的请求。
+	 */
+	void setSlots(int slots) {
+		List<Waiter> ready;
+		synchronized (this) {
+			if (this.slots == slots) {
+				return;
+			}
+			this.slots = Math.max(0, slots);
+			ready = this.drain();
+		}
+		this.dispatch(ready);
+	}
+
+	synchronized int getSlots() {
+		return this.slots;
+	}
+
+	/**
+	 * 	模型停止，拒绝所有排队中的请求。
+	 */
+	void close() {
+		List<Waiter> waiters;
+		int retryAfter;
+		synchronized (this) {
+			this.closed = true;
+			waiters = new ArrayList<>(this.queued);
+			for (ArrayDeque<Waiter> q : this.queues.values()) {
+				waiters.addAll(q);
+				q.clear();
+			}
+			this.queued = 0;
+			retryAfter = this.retryAfterSeconds(Priority.BULK);
+		}
+		for (Waiter w : waiters) {
+			w.detach();
+			w.listener.onRejected(new AdmissionException(HttpResponseStatus.SERVICE_UNAVAILABLE, retryAfter, "模型已停止: " + this.modelId));
+		}
+	}
+
+	synchronized Map<String, Object> snapshot() {
+		Map<String, Object> data = new LinkedHashMap<>();
+		data.put("modelId", this.modelId);
+		data.put("slots", this.slots);
+		data.put("active", this.active);
+		data.put("queued", this.queued);
+		Map<String, Object> byPriority = new LinkedHashMap<>();
+		long oldest = 0;
+		for (Map.Entry<Priority, ArrayDeque<Waiter>> e : this.queues.entrySet()) {
+			byPriority.put(e.getKey().getName(), e.getValue().size());
+			Waiter head = e.getValue().peekFirst();
+			if (head != null) {
+				oldest = Math.max(oldest, (System.nanoTime() - head.enqueuedNanos) / 1_000_000);
+			}
+		}
+		data.put("queuedByPriority", byPriority);
+		data.put("oldestWaitMs", oldest);
+		data.put("lastWaitMs", this.lastWaitMs);
+		data.put("avgWaitMs", Math.round(this.avgWaitMs));
+		data.put("avgHoldMs", Math.round(this.avgHoldMs));
+		data.put("granted", this.granted);
+		data.put("rejected", this.rejected);
+		data.put("timeouts", this.timeouts);
+		data.put("cancelled", this.cancelled);
+		data.put("preempted", this.preempted);
+		return data;
+	}
+
+	//================================================================================================
+
+	private boolean hasFreeSlot() {
+		return this.slots <= 0 || this.active < this.slots;
+	}
+
+	/**
+	 * 	在锁内取出可以放行的请求。
+	 */
+	private List<Waiter> drain() {
+		List<Waiter> ready = null;
+		while (this.queued > 0 && this.hasFreeSlot()) {
+			Waiter w = this.queues.get(this.nextPriority()).pollFirst();
+			this.queued--;
+			long waitMs = (System.nanoTime() - w.enqueuedNanos) / 1_000_000;
+			this.active++;
+			this.granted++;
+			this.recordWait(waitMs);
+			w.permit = new Permit(this, w.priority, waitMs);
+			if (ready == null) {
+				ready = new ArrayList<>(2);
+			}
+			ready.add(w);
+		}
+		return ready;
+	}
+
+	/**
+	 * 	选出下一个放行的优先级：默认是最高的非空队列，但被跳过次数达到上限的低优先级队列先放行一个。
+	 */
+	private Priority nextPriority() {
+		Priority chosen = null;
+		for (Priority p : Priority.values()) {
+			if (this.queues.get(p).isEmpty()) {
+				continue;
+			}
+			if (chosen == null) {
+				chosen = p;
+			} else if (this.starvationLimit > 0 && this.skipped.get(p) >= this.starvationLimit) {
+				chosen = p;
+				break;
+			}
+		}
+		for (Priority p : Priority.values()) {
+			if (p == chosen) {
+				this.skipped.put(p, 0);
+			} else if (p.ordinal() > chosen.ordinal() && !this.queues.get(p).isEmpty()) {
+				this.skipped.put(p, this.skipped.get(p) + 1);
+			}
+		}
+		return chosen;
+	}
+
+	/**
+	 * 	从比指定优先级低的队列里取出最晚进入的请求，从最低优先级开始找。
+	 */
+	private Waiter evictLowerThan(Priority priority) {
+		Priority[] all = Priority.values();
+		for (int i = all.length - 1; i > priority.ordinal(); i--) {
+			Waiter w = this.queues.get(all[i]).pollLast();
+			if (w != null) {
+				this.queued--;
+				return w;
+			}
+		}
+		return null;
+	}
+
+	private void dispatch(List<Waiter> ready) {
+		if (ready == null) {
+			return;
+		}
+		for (Waiter w : ready) {
+			w.detach();
+			if (w.client != null && !w.client.isActive()) {
+				w.permit.release();
+				continue;
+			}
+			grant(w.listener, w.permit);
+		}
+	}
+
+	private void timeout(Waiter w) {
+		int retryAfter;
+		synchronized (this) {
+			if (!this.queues.get(w.priority).remove(w)) {
+				return;
+			}
+			this.queued--;
+			this.timeouts++;
+			retryAfter = this.retryAfterSeconds(w.priority);
+		}
+		w.detach();
+		logger.info("请求排队超时，模型: {}", this.modelId);
+		w.listener.onRejected(new AdmissionException(HttpResponseStatus.SERVICE_UNAVAILABLE, retryAfter, "模型 " + this.modelId + " 繁忙，排队超时"));
+	}
+
+	private void cancel(Waiter w) {
+		synchronized (this) {
+			if (!this.queues.get(w.priority).remove(w)) {
+				return;
+			}
+			this.queued--;
+			this.cancelled++;
+		}
+		w.detach();
+	}
+
+	private void recordWait(long waitMs) {
+		this.lastWaitMs = waitMs;
+		this.avgWaitMs = this.granted <= 1 ? waitMs : this.avgWaitMs * 0.8 + waitMs * 0.2;
+	}
+
+	/**
+	 * 	按排在前面的请求数、slot数量和平均占用时间估算多久后重试。
+	 */
+	private int retryAfterSeconds(Priority priority) {
+		int ahead = 0;
+		for (Priority p : Priority.values()) {
+			if (p.ordinal() <= priority.ordinal()) {
+				ahead += this.queues.get(p).size();
+			}
+		}
+		double hold = this.avgHoldMs > 0 ? this.avgHoldMs : DEFAULT_HOLD_MS;
+		double seconds = (ahead + 1) * hold / Math.max(1, this.slots) / 1000.0;
+		return (int) Math.max(1, Math.min(600, Math.ceil(seconds)));
+	}
+
+	private static void grant(AdmissionListener listener, Permit permit) {
+		try {
+			listener.onGranted(permit);
+		} catch (Exception e) {
+			logger.info("处理排队许可时发生错误", e);
+			permit.release();
+		}
+	}
+
+	/**
+	 * 	排队中的请求。
+	 */
+	private static class Waiter {
+
+		private final Channel client;
+
+		private final Priority priority;
+
+		private final AdmissionListener listener;
+
+		private final long enqueuedNanos = System.nanoTime();
+
+		private ScheduledFuture<?> timeoutTask;
+
+		private volatile ChannelFutureListener closeListener;
+
+		private volatile boolean detached = false;
+
+		private Permit permit;
+
+		private Waiter(Channel client, Priority priority, AdmissionListener listener) {
+			this.client = client;
+			this.priority = priority;
+			this.listener = listener;
+		}
+
+		private void detach() {
+			this.detached = true;
+			if (this.timeoutTask != null) {
+				this.timeoutTask.cancel(false);
+			}
+			if (this.client != null && this.closeListener != null) {
+				this.client.closeFuture().removeListener(this.closeListener);
+			}
+		}
+	}
+}
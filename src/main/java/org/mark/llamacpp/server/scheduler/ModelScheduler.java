@@ -0,0 +1,274 @@
+package org.mark.llamacpp.server.scheduler;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.io.AccessLog;
+import org.mark.llamacpp.server.tools.JsonUtil;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * 	按模型排队。
+ * 	每个模型同时执行的请求数不超过llama-server的slot数量（来自slots轮询），多出来的请求按优先级进入有界的队列，
+ * 	队列满时返回429，排队超时返回503，两者都带Retry-After。
+ * 	优先级依次按API Key、请求头{@value #PRIORITY_HEADER}、接口路径决定，都没有配置时为{@link Priority#NORMAL}。
+ */
+public class ModelScheduler {
+
+	/**
+	 * 	客户端指定优先级的请求头。
+	 */
+	public static final String PRIORITY_HEADER = "X-Priority";
+
+	private static final ModelScheduler INSTANCE = new ModelScheduler();
+
+	public static ModelScheduler getInstance() {
+		return INSTANCE;
+	}
+
+	private final Map<String, ModelLane> lanes = new ConcurrentHashMap<>();
+
+	private final ScheduledExecutorService timer = new ScheduledThreadPoolExecutor(1, Thread.ofVirtual().name("llama-scheduler-", 0).factory());
+
+	private ModelScheduler() {
+
+	}
+
+	/**
+	 * 	提交一个要发往指定模型的请求，拿到许可或被拒绝时回调listener。
+	 * @param modelId
+	 * @param priority
+	 * @param client 客户端连接，排队期间断开会自动移出队列，可以为null
+	 * @param listener
+	 */
+	public void submit(String modelId, Priority priority, Channel client, AdmissionListener listener) {
+		if (priority == null) {
+			priority = Priority.NORMAL;
+		}
+		AccessLog.Entry entry = AccessLog.current(client);
+		if (entry != null) {
+			entry.setModel(modelId);
+			listener = queueTimed(entry, listener);
+		}
+		if (!LlamaServer.isSchedulerEnabled() || modelId == null) {
+			listener.onGranted(new Permit(null, priority, 0));
+			return;
+		}
+		ModelLane lane = this.lanes.computeIfAbsent(modelId, ModelLane::new);
+		lane.submit(client, priority, listener, LlamaServer.getSchedulerMaxQueue(), LlamaServer.getSchedulerMaxWaitMs(),
+				LlamaServer.getSchedulerStarvationLimit(), this.timer);
+	}
+
+	/**
+	 * 	访问日志记录排队时间：从提交到拿到许可或被拒绝。
+	 */
+	private static AdmissionListener queueTimed(AccessLog.Entry entry, AdmissionListener listener) {
+		entry.queueStarted();
+		return new AdmissionListener() {
+			@Override
+			public void onGranted(Permit permit) {
+				entry.queueEnded();
+				listener.onGranted(permit);
+			}
+
+			@Override
+			public void onRejected(AdmissionException e) {
+				entry.queueEnded();
+				listener.onRejected(e);
+			}
+		};
+	}
+
+	/**
+	 * 	阻塞等待执行许可，给同步执行的内部任务（例如基准测试）使用。
+	 * @param modelId
+	 * @param priority
+	 * @param client 可以为null
+	 * @return
+	 * @throws AdmissionException 被拒绝时抛出
+	 * @throws InterruptedException
+	 */
+	public Permit acquire(String modelId, Priority priority, Channel client) throws AdmissionException, InterruptedException {
+		CompletableFuture<Permit> future = new CompletableFuture<>();
+		this.submit(modelId, priority, client, new AdmissionListener() {
+			@Override
+			public void onGranted(Permit permit) {
+				if (!future.complete(permit)) {
+					permit.release();
+				}
+			}
+
+			@Override
+			public void onRejected(AdmissionException e) {
+				future.completeExceptionally(e);
+			}
+		});
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			throw (AdmissionException) e.getCause();
+		} catch (InterruptedException e) {
+			// 已经拿到的许可要还回去
+			future.cancel(false);
+			if (future.isDone() && !future.isCancelled()) {
+				future.getNow(null).release();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * 	确定请求的优先级：API Key映射 > {@value #PRIORITY_HEADER}请求头 > 接口路径映射 > 默认。
+	 * @param request
+	 * @return
+	 */
+	public static Priority resolvePriority(HttpRequest request) {
+		if (request == null) {
+			return Priority.NORMAL;
+		}
+		HttpHeaders headers = request.headers();
+		String key = apiKeyOf(headers);
+		if (key != null) {
+			Priority p = Priority.parse(LlamaServer.getSchedulerApiKeyPriorities().get(key));
+			if (p != null) {
+				return p;
+			}
+		}
+		Priority p = Priority.parse(headers.get(PRIORITY_HEADER));
+		if (p != null) {
+			return p;
+		}
+		String path = request.uri();
+		int q = path.indexOf('?');
+		if (q >= 0) {
+			path = path.substring(0, q);
+		}
+		// 取最长的匹配前缀
+		String best = null;
+		for (Map.Entry<String, String> e : LlamaServer.getSchedulerEndpointPriorities().entrySet()) {
+			if (path.startsWith(e.getKey()) && (best == null || e.getKey().length() > best.length())) {
+				best = e.getKey();
+			}
+		}
+		if (best != null) {
+			p = Priority.parse(LlamaServer.getSchedulerEndpointPriorities().get(best));
+			if (p != null) {
+				return p;
+			}
+		}
+		return Priority.NORMAL;
+	}
+
+	/**
+	 * 	OpenAI格式的Authorization: Bearer，或者Anthropic格式的x-api-key。
+	 */
+	private static String apiKeyOf(HttpHeaders headers) {
+		String auth = headers.get(HttpHeaderNames.AUTHORIZATION);
+		if (auth != null) {
+			auth = auth.trim();
+			if (auth.regionMatches(true, 0, "Bearer ", 0, 7)) {
+				auth = auth.substring(7).trim();
+			}
+			if (!auth.isEmpty()) {
+				return auth;
+			}
+		}
+		String key = headers.get("x-api-key");
+		return key == null || key.isBlank() ? null : key.trim();
+	}
+
+	/**
+	 * 	更新模型的slot数量。
+	 * @param modelId
+	 * @param slots
+	 */
+	public void updateSlots(String modelId, int slots) {
+		if (modelId == null) {
+			return;
+		}
+		this.lanes.computeIfAbsent(modelId, ModelLane::new).setSlots(slots);
+	}
+
+	/**
+	 * 	模型当前的slot数量（多副本时是健康副本的总数）。
+	 * @param modelId
+	 * @return 还不知道时返回0
+	 */
+	public int getSlots(String modelId) {
+		ModelLane lane = modelId == null ? null : this.lanes.get(modelId);
+		return lane == null ? 0 : lane.getSlots();
+	}
+
+	/**
+	 * 	模型停止后调用，拒绝还在排队的请求。
+	 * @param modelId
+	 */
+	public void removeModel(String modelId) {
+		if (modelId == null) {
+			return;
+		}
+		ModelLane lane = this.lanes.remove(modelId);
+		if (lane != null) {
+			lane.close();
+		}
+	}
+
+	/**
+	 * 	指定模型的排队状态。
+	 * @param modelId
+	 * @return 没有排队数据时返回null
+	 */
+	public Map<String, Object> snapshot(String modelId) {
+		ModelLane lane = modelId == null ? null : this.lanes.get(modelId);
+		return lane == null ? null : lane.snapshot();
+	}
+
+	/**
+	 * 	所有模型的排队状态。
+	 * @return
+	 */
+	public List<Map<String, Object>> snapshotAll() {
+		List<Map<String, Object>> list = new ArrayList<>();
+		for (ModelLane lane : this.lanes.values()) {
+			list.add(lane.snapshot());
+		}
+		return list;
+	}
+
+	/**
+	 * 	返回拒绝响应，有建议的重试时间时带上Retry-After。
+	 * @param ctx
+	 * @param e
+	 * @param body 各个接口自己格式的错误内容
+	 */
+	public static void sendRejection(ChannelHandlerContext ctx, AdmissionException e, Object body) {
+		byte[] content = JsonUtil.toJson(body).getBytes(StandardCharsets.UTF_8);
+		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, e.getStatus());
+		response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
+		response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.length);
+		if (e.getRetryAfterSeconds() > 0) {
+			response.headers().set(HttpHeaderNames.RETRY_AFTER, e.getRetryAfterSeconds());
+		}
+		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "*");
+		response.content().writeBytes(content);
+		ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+	}
+}
@@ -0,0 +1,57 @@
+package org.mark.llamacpp.server.scheduler;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 	一个请求占用的执行许可，对应llama-server的一个slot。
+ */
+public class Permit {
+
+	private final ModelLane lane;
+
+	private final Priority priority;
+
+	private final long waitMillis;
+
+	private final long grantedNanos = System.nanoTime();
+
+	private final AtomicBoolean released = new AtomicBoolean(false);
+
+	Permit(ModelLane lane, Priority priority, long waitMillis) {
+		this.lane = lane;
+		this.priority = priority;
+		this.waitMillis = waitMillis;
+	}
+
+	public String getModelId() {
+		return this.lane == null ? null : this.lane.getModelId();
+	}
+
+	public Priority getPriority() {
+		return this.priority;
+	}
+
+	/**
+	 * 	排队等待的毫秒数。
+	 * @return
+	 */
+	public long getWaitMillis() {
+		return this.waitMillis;
+	}
+
+	long getGrantedNanos() {
+		return this.grantedNanos;
+	}
+
+	/**
+	 * 	释放许可，可以重复调用。
+	 */
+	public void release() {
+		if (!this.released.compareAndSet(false, true)) {
+			return;
+		}
+		if (this.lane != null) {
+			this.lane.release(this);
+		}
+	}
+}
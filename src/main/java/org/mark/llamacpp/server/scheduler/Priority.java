@@ -0,0 +1,57 @@
+package org.mark.llamacpp.server.scheduler;
+
+/**
+ * 	请求优先级，数值越小越优先。
+ */
+public enum Priority {
+
+	/**
+	 * 	交互式请求，例如聊天界面。
+	 */
+	INTERACTIVE,
+
+	/**
+	 * 	默认优先级。
+	 */
+	NORMAL,
+
+	/**
+	 * 	批量任务、基准测试等，可以被推迟或挤出队列。
+	 */
+	BULK;
+
+	/**
+	 * 	解析优先级名称，不区分大小写，也接受high/low之类的别名。
+	 * @param name
+	 * @return 无法识别时返回null
+	 */
+	public static Priority parse(String name) {
+		if (name == null) {
+			return null;
+		}
+		switch (name.trim().toLowerCase()) {
+		case "interactive":
+		case "high":
+		case "realtime":
+			return INTERACTIVE;
+		case "normal":
+		case "default":
+			return NORMAL;
+		case "bulk":
+		case "low":
+		case "batch":
+		case "background":
+			return BULK;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * 	配置和接口里使用的名称。
+	 * @return
+	 */
+	public String getName() {
+		return this.name().toLowerCase();
+	}
+}
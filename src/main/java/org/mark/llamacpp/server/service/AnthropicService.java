@@ -2,6 +2,7 @@ package org.mark.llamacpp.server.service;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
@@ -11,21 +12,29 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.*;
 import io.netty.util.CharsetUtil;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.replica.ReplicaRouter;
+import org.mark.llamacpp.server.scheduler.AdmissionException;
+import org.mark.llamacpp.server.scheduler.AdmissionListener;
+import org.mark.llamacpp.server.scheduler.ModelScheduler;
+import org.mark.llamacpp.server.scheduler.Permit;
+import org.mark.llamacpp.server.stream.AnthropicSseWriter;
+import org.mark.llamacpp.server.stream.ChunkReader;
+import org.mark.llamacpp.server.stream.StopStringStage;
+import org.mark.llamacpp.server.stream.TokenStream;
+import org.mark.llamacpp.server.stream.UsageStage;
+import org.mark.llamacpp.server.stream.WallTimeStage;
+import org.mark.llamacpp.server.upstream.CancelRegistry;
+import org.mark.llamacpp.server.upstream.StreamFlusher;
+import org.mark.llamacpp.server.upstream.UpstreamClient;
+import org.mark.llamacpp.server.upstream.UpstreamExchange;
+import org.mark.llamacpp.server.upstream.UpstreamListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URI;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
 
 import org.mark.llamacpp.server.LlamaCppProcess;
 
@@ -39,14 +48,9 @@ public class AnthropicService {
     private static final Gson gson = new Gson();
     private static final String ANTHROPIC_API_KEY = "123456";
 	/**
-	 * 	线程池。
+	 * 	转发到llama.cpp的超时时间，与llama-server的--timeout保持一致。
 	 */
-	private static final ExecutorService worker = Executors.newVirtualThreadPerTaskExecutor();
-    
-	/**
-	 * 	存储当前通道正在处理的模型链接，用于在连接关闭时停止对应的模型进程
-	 */
-	private final Map<ChannelHandlerContext, HttpURLConnection> channelConnectionMap = new HashMap<>();
+	private static final long LLAMA_TIMEOUT_MS = 36000L * 1000;
 
 	public AnthropicService() {
 		
@@ -169,7 +173,7 @@ public class AnthropicService {
             isStream = anthropicReq.get("stream").getAsBoolean();
         }
         // 开始转发
-        this.forwardRequestToLlamaCpp(ctx, request, content, port, "/v1/complete", isStream);
+        this.forwardRequestToLlamaCpp(ctx, request, modelName, content, port, "/v1/complete", isStream, null);
     }
     
     /**
@@ -231,7 +235,7 @@ public class AnthropicService {
             isStream = anthropicReq.get("stream").getAsBoolean();
         }
 
-        this.forwardRequestToLlamaCpp(ctx, request, content, port, "/v1/messages", isStream);
+        this.forwardRequestToLlamaCpp(ctx, request, modelName, content, port, "/v1/messages", isStream, anthropicReq.get("stop_sequences"));
     }
     
     
@@ -288,7 +292,8 @@ public class AnthropicService {
             return;
         }
 
-        forwardRequestToLlamaCpp(ctx, request, content, port, "/v1/messages/count_tokens", false);
+        // 计算token不占用slot，不需要排队
+        forwardRequestToLlamaCpp(ctx, request, null, content, port, "/v1/messages/count_tokens", false, null);
     }
     
     
@@ -296,209 +301,230 @@ public class AnthropicService {
      * 	转发操作。
      * @param ctx
      * @param request
+     * @param modelName 用于排队，为null时不排队
      * @param requestBody
      * @param port
      * @param endpoint
      * @param isStream
+     * @param stopSequences 请求里的stop_sequences，流式响应按它检查停止词
      */
-    private void forwardRequestToLlamaCpp(ChannelHandlerContext ctx, FullHttpRequest request, String requestBody, int port, String endpoint, boolean isStream) {
+    private void forwardRequestToLlamaCpp(ChannelHandlerContext ctx, FullHttpRequest request, String modelName, String requestBody, int port, String endpoint, boolean isStream, JsonElement stopSequences) {
         HttpMethod method = request.method();
-        Map<String, String> headers = new HashMap<>();
-        for (Map.Entry<String, String> entry : request.headers()) {
-            headers.put(entry.getKey(), entry.getValue());
-        }
+        HttpHeaders headers = UpstreamClient.copyHeaders(request.headers());
+        CancelRegistry.getInstance().begin(ctx, endpoint, headers, null, AnthropicService::rejectionBody);
+        ModelScheduler.getInstance().submit(modelName, ModelScheduler.resolvePriority(request), ctx.channel(), new AdmissionListener() {
+            @Override
+            public void onGranted(Permit permit) {
+                ByteBuf body = null;
+                if (method == HttpMethod.POST && requestBody != null && !requestBody.isEmpty()) {
+                    body = Unpooled.wrappedBuffer(requestBody.getBytes(StandardCharsets.UTF_8));
+                }
+                UpstreamListener listener = isStream ? new StreamListener(ctx, headers, endpoint, stopSequences) : new NonStreamListener(ctx);
+                UpstreamExchange exchange = UpstreamClient.getInstance().send(ReplicaRouter.getInstance().pick(modelName, port), method, endpoint, headers, body, LLAMA_TIMEOUT_MS, listener);
+                exchange.whenDone(permit::release);
+                CancelRegistry.getInstance().track(ctx, exchange);
+            }
 
-        worker.execute(() -> {
-            HttpURLConnection connection = null;
-            try {
-                String targetUrl = String.format("http://localhost:%d%s", port, endpoint);
-                URL url = URI.create(targetUrl).toURL();
-                connection = (HttpURLConnection) url.openConnection();
+            @Override
+            public void onRejected(AdmissionException e) {
+                logger.info("Anthropic 请求被拒绝，模型: {}，原因: {}", modelName, e.getMessage());
+                untrack(ctx);
+                ModelScheduler.sendRejection(ctx, e, rejectionBody(e));
+            }
+        });
+    }
 
-                synchronized (this.channelConnectionMap) {
-                    this.channelConnectionMap.put(ctx, connection);
-                }
+    /**
+     * 	没有拿到执行许可时回复的错误内容，Anthropic格式。
+     */
+    private static Map<String, Object> rejectionBody(AdmissionException e) {
+        return rejectionBody(e.getStatus().code(), e.getMessage());
+    }
 
-                connection.setRequestMethod(method.name());
+    /**
+     * 	排队被拒绝或者超过截止时间（504）时回复的错误内容，Anthropic格式。
+     */
+    private static Map<String, Object> rejectionBody(int code, String message) {
+        Map<String, Object> errorDetail = new HashMap<>();
+        errorDetail.put("type", code == 429 ? "rate_limit_error" : code == 504 ? "timeout_error" : "overloaded_error");
+        errorDetail.put("message", message);
+        Map<String, Object> err = new HashMap<>();
+        err.put("type", "error");
+        err.put("error", errorDetail);
+        return err;
+    }
 
-                for (Map.Entry<String, String> entry : headers.entrySet()) {
-                    if (!entry.getKey().equalsIgnoreCase("Connection") &&
-                        !entry.getKey().equalsIgnoreCase("Content-Length") &&
-                        !entry.getKey().equalsIgnoreCase("Transfer-Encoding")) {
-                        connection.setRequestProperty(entry.getKey(), entry.getValue());
-                    }
-                }
+    private void untrack(ChannelHandlerContext ctx) {
+        CancelRegistry.getInstance().untrack(ctx);
+    }
 
-                connection.setConnectTimeout(36000 * 1000);
-                connection.setReadTimeout(36000 * 1000);
+    /**
+     * 	非流式响应，聚合后一次性返回。
+     */
+    private class NonStreamListener implements UpstreamListener {
 
-                if (method == HttpMethod.POST && requestBody != null && !requestBody.isEmpty()) {
-                    connection.setDoOutput(true);
-                    try (OutputStream os = connection.getOutputStream()) {
-                        byte[] input = requestBody.getBytes(StandardCharsets.UTF_8);
-                        os.write(input, 0, input.length);
-                    }
-                }
+        private final ChannelHandlerContext ctx;
 
-                int responseCode = connection.getResponseCode();
+        private int responseCode;
 
-                if (isStream) {
-                	this.handleStreamResponse(ctx, connection, responseCode);
-                } else {
-                	this.handleNonStreamResponse(ctx, connection, responseCode);
-                }
-            } catch (Exception e) {
-                logger.info("Error forwarding Anthropic request to llama.cpp", e);
-                this.sendError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, e.getMessage());
-            } finally {
-                if (connection != null) {
-                    connection.disconnect();
-                }
-                synchronized (this.channelConnectionMap) {
-                    this.channelConnectionMap.remove(ctx);
-                }
-            }
-        });
-    }
+        private ByteBuf body;
 
-    private void handleNonStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode) throws IOException {
-        String responseBody;
-        if (responseCode >= 200 && responseCode < 300) {
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
-                StringBuilder response = new StringBuilder();
-                String responseLine;
-                while ((responseLine = br.readLine()) != null) {
-                    response.append(responseLine.trim());
-                }
-                responseBody = response.toString();
-            }
-        } else {
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getErrorStream(), StandardCharsets.UTF_8))) {
-                StringBuilder response = new StringBuilder();
-                String responseLine;
-                while ((responseLine = br.readLine()) != null) {
-                    response.append(responseLine.trim());
-                }
-                responseBody = response.toString();
-            }
+        private NonStreamListener(ChannelHandlerContext ctx) {
+            this.ctx = ctx;
         }
 
-        FullHttpResponse response = new DefaultFullHttpResponse(
-            HttpVersion.HTTP_1_1,
-            HttpResponseStatus.valueOf(responseCode)
-        );
+        @Override
+        public void onResponse(HttpResponse response) {
+            this.responseCode = response.status().code();
+        }
 
-        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
-        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, responseBody.getBytes(StandardCharsets.UTF_8).length);
+        @Override
+        public void onContent(ByteBuf content) {
+            if (this.body == null) {
+                this.body = this.ctx.alloc().buffer(content.readableBytes());
+            }
+            this.body.writeBytes(content);
+        }
 
-        response.content().writeBytes(responseBody.getBytes(StandardCharsets.UTF_8));
+        @Override
+        public void onComplete() {
+            untrack(this.ctx);
+            FullHttpResponse response = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1,
+                HttpResponseStatus.valueOf(this.responseCode),
+                this.body == null ? Unpooled.EMPTY_BUFFER : this.body
+            );
+            this.body = null;
+
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
+            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+
+            this.ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) {
+                    ctx.close();
+                }
+            });
+        }
 
-        ctx.writeAndFlush(response).addListener(new ChannelFutureListener() {
-            @Override
-            public void operationComplete(ChannelFuture future) {
-                ctx.close();
+        @Override
+        public void onError(Throwable cause) {
+            if (this.body != null) {
+                this.body.release();
+                this.body = null;
             }
-        });
+            untrack(this.ctx);
+            logger.info("Error forwarding Anthropic request to llama.cpp", cause);
+            sendUpstreamError(this.ctx, cause);
+        }
     }
 
-    private void handleStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode) throws IOException {
-        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(responseCode));
-        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/event-stream; charset=UTF-8");
-        response.headers().set(HttpHeaderNames.CACHE_CONTROL, "no-cache");
-        response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
-        response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
-        response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "*");
-
-        ctx.write(response);
-        ctx.flush();
-
-        logger.info("开始处理 Anthropic 流式响应，响应码: {}", responseCode);
-
-        try (BufferedReader br = new BufferedReader(
-            new InputStreamReader(
-                responseCode >= 200 && responseCode < 300 ?
-                    connection.getInputStream() : connection.getErrorStream(),
-                StandardCharsets.UTF_8
-            )
-        )) {
-            String line;
-            int chunkCount = 0;
-            while ((line = br.readLine()) != null) {
-                if (!ctx.channel().isActive()) {
-                    logger.info("检测到客户端连接已断开，停止流式响应处理");
-                    if (connection != null) {
-                        connection.disconnect();
-                    }
-                    break;
-                }
+    /**
+     * 	流式响应，上游数据到达后逐行转发。
+     */
+    private class StreamListener implements UpstreamListener {
 
-                if (line.startsWith("data: ")) {
-                    String data = line.substring(6);
+        private final ChannelHandlerContext ctx;
 
-                    if (data.equals("[DONE]")) {
-                        logger.info("收到流式响应结束标记");
-                        break;
-                    }
+        private final TokenStream stream;
 
-                    ByteBuf content = ctx.alloc().buffer();
-                    content.writeBytes(line.getBytes(StandardCharsets.UTF_8));
-                    content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
+        private final StreamFlusher flusher;
 
-                    HttpContent httpContent = new DefaultHttpContent(content);
+        private boolean headerSent = false;
 
-                    ChannelFuture future = ctx.writeAndFlush(httpContent);
+        private volatile boolean finished = false;
 
-                    future.addListener((ChannelFutureListener) channelFuture -> {
-                        if (!channelFuture.isSuccess()) {
-                            logger.info("写入流式数据失败，可能是客户端断开连接: {}", channelFuture.cause().getMessage());
-                            ctx.close();
-                        }
-                    });
+        private int chunkCount = 0;
 
-                    chunkCount++;
-                } else if (line.startsWith("event: ")) {
-                    ByteBuf content = ctx.alloc().buffer();
-                    content.writeBytes(line.getBytes(StandardCharsets.UTF_8));
-                    content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
+        private StreamListener(ChannelHandlerContext ctx, HttpHeaders requestHeaders, String endpoint, JsonElement stopSequences) {
+            this.ctx = ctx;
+            this.flusher = new StreamFlusher(ctx, requestHeaders, this::abort);
+            this.stream = new TokenStream(ChunkReader.anthropic(), new AnthropicSseWriter(), ctx.alloc(), this::write);
+            if ("/v1/messages".equals(endpoint)) {
+                this.stream.add(WallTimeStage.fromConfig()).add(StopStringStage.of(stopSequences));
+            }
+            this.stream.add(new UsageStage());
+        }
 
-                    HttpContent httpContent = new DefaultHttpContent(content);
-                    ctx.writeAndFlush(httpContent);
-                } else if (line.isEmpty()) {
-                    ByteBuf content = ctx.alloc().buffer();
-                    content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
+        @Override
+        public void onResponse(HttpResponse upstream) {
+            int responseCode = upstream.status().code();
+            HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(responseCode));
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/event-stream; charset=UTF-8");
+            response.headers().set(HttpHeaderNames.CACHE_CONTROL, "no-cache");
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+            response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+            response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "*");
+
+            this.ctx.writeAndFlush(response);
+            this.headerSent = true;
+        }
 
-                    HttpContent httpContent = new DefaultHttpContent(content);
-                    ctx.writeAndFlush(httpContent);
-                }
+        @Override
+        public void onContent(ByteBuf content) {
+            if (this.finished) {
+                return;
+            }
+            if (!this.ctx.channel().isActive()) {
+                logger.info("检测到客户端连接已断开，停止流式响应处理");
+                this.abort();
+                return;
             }
+            this.stream.feed(content);
+            if (this.stream.isStopped()) {
+                this.stopUpstream();
+            }
+        }
 
-            logger.info("Anthropic 流式响应处理完成，共发送 {} 个数据块", chunkCount);
-        } catch (Exception e) {
-            logger.info("处理 Anthropic 流式响应时发生错误", e);
-            if (e.getMessage() != null &&
-                (e.getMessage().contains("Connection reset by peer") ||
-                 e.getMessage().contains("Broken pipe") ||
-                 e.getMessage().contains("Connection closed"))) {
-                logger.info("检测到客户端断开连接，尝试断开与llama.cpp的连接");
-                if (connection != null) {
-                    connection.disconnect();
+        @Override
+        public void onComplete() {
+            untrack(this.ctx);
+            this.stream.finish();
+            this.flusher.flush();
+            this.ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) {
+                    ctx.close();
                 }
-            }
-            throw e;
+            });
         }
 
-        LastHttpContent lastContent = LastHttpContent.EMPTY_LAST_CONTENT;
-        ctx.writeAndFlush(lastContent).addListener(new ChannelFutureListener() {
-            @Override
-            public void operationComplete(ChannelFuture future) {
-                ctx.close();
+        @Override
+        public void onError(Throwable cause) {
+            untrack(this.ctx);
+            this.stream.release();
+            logger.info("处理 Anthropic 流式响应时发生错误", cause);
+            if (this.headerSent) {
+                this.ctx.close();
+            } else {
+                sendUpstreamError(this.ctx, cause);
             }
-        });
+        }
+
+        private void abort() {
+            this.finished = true;
+            CancelRegistry.getInstance().cancel(this.ctx);
+            this.ctx.close();
+        }
+
+        /**
+         * 	流水线提前结束了流：取消上游请求释放slot，结尾事件已经写出，按正常结束收尾。
+         */
+        private void stopUpstream() {
+            logger.info("Anthropic 流式响应提前结束，原因: {}", this.stream.getStopReason());
+            this.finished = true;
+            CancelRegistry.getInstance().cancel(this.ctx);
+            this.onComplete();
+        }
+
+        private void write(ByteBuf buf) {
+            this.flusher.write(buf);
+            this.chunkCount++;
+        }
     }
 
     private void sendJsonResponse(ChannelHandlerContext ctx, JsonObject json, HttpResponseStatus status) {
         String jsonStr = gson.toJson(json);
-        logger.info("Anthropic response status={} body={}", status.code(), jsonStr);
         FullHttpResponse response = new DefaultFullHttpResponse(
                 HttpVersion.HTTP_1_1, 
                 status,
@@ -512,6 +538,17 @@ public class AnthropicService {
         ctx.writeAndFlush(response);
     }
 
+    /**
+     * 	上游请求失败时回复错误：超过截止时间或者上游响应超时返回504，和排队期间到期的格式一样。
+     */
+    private void sendUpstreamError(ChannelHandlerContext ctx, Throwable cause) {
+        if (cause instanceof TimeoutException) {
+            sendJsonResponse(ctx, gson.toJsonTree(rejectionBody(504, cause.getMessage())).getAsJsonObject(), HttpResponseStatus.GATEWAY_TIMEOUT);
+        } else {
+            sendError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, cause.getMessage());
+        }
+    }
+
     private void sendError(ChannelHandlerContext ctx, HttpResponseStatus status, String msg) {
         JsonObject err = new JsonObject();
         JsonObject errorDetail = new JsonObject();
@@ -525,22 +562,12 @@ public class AnthropicService {
     
     
 	/**
-	 * 	当连接断开时调用，用于清理{@link #channelConnectionMap}
+	 * 	当连接断开时调用，取消正在进行的上游请求
 	 * 
 	 * @param ctx
 	 * @throws Exception
 	 */
 	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-		// 关闭正在进行的链接
-		synchronized (this.channelConnectionMap) {
-			HttpURLConnection conn = this.channelConnectionMap.remove(ctx);
-			if (conn != null) {
-				try {
-					conn.disconnect();
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-			}
-		}
+		CancelRegistry.getInstance().cancel(ctx);
 	}
 }
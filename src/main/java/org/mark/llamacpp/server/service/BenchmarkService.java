@@ -1,24 +1,25 @@
 package org.mark.llamacpp.server.service;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URI;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.mark.llamacpp.server.LlamaCppProcess;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.replica.ReplicaRouter;
+import org.mark.llamacpp.server.scheduler.ModelScheduler;
+import org.mark.llamacpp.server.scheduler.Permit;
+import org.mark.llamacpp.server.scheduler.Priority;
 import org.mark.llamacpp.server.tools.JsonUtil;
+import org.mark.llamacpp.server.upstream.UpstreamClient;
+import org.mark.llamacpp.server.upstream.UpstreamExchange;
+import org.mark.llamacpp.server.upstream.UpstreamResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,6 +28,7 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpMethod;
 
 
 /**
@@ -59,7 +61,12 @@ public class BenchmarkService {
 	/**
 	 * 	和llamacpp之间建立的连接。
 	 */
-	private ConcurrentHashMap<ChannelHandlerContext, HttpURLConnection> connections = new ConcurrentHashMap<>();
+	private ConcurrentHashMap<ChannelHandlerContext, UpstreamExchange> connections = new ConcurrentHashMap<>();
+	
+	/**
+	 * 	基准测试请求的超时时间。
+	 */
+	private static final long BENCHMARK_TIMEOUT_MS = 3600L * 7 * 24 * 1000;
 	
 	
 	public BenchmarkService() {
@@ -68,7 +75,8 @@ public class BenchmarkService {
 	
 
 	public Map<String, Object> handleBenchmark(ChannelHandlerContext ctx, JsonObject json) {
-		HttpURLConnection connection = null;
+		AtomicReference<UpstreamExchange> connection = new AtomicReference<>();
+		Permit permit = null;
 		try {
 			if (json == null) {
 				throw new IllegalArgumentException("请求体解析失败");
@@ -112,26 +120,18 @@ public class BenchmarkService {
 			forward.addProperty("max_tokens", maxTokens.intValue());
 			forward.addProperty("stream", false);
 
-			String targetUrl = String.format("http://localhost:%d/v1/chat/completions", port.intValue());
-			URL url = URI.create(targetUrl).toURL();
-			connection = (HttpURLConnection) url.openConnection();
-			connection.setRequestMethod("POST");
-			connection.setDoOutput(true);
-			connection.setConnectTimeout(3600 * 7 * 24 * 1000);
-			connection.setReadTimeout(3600 * 7 * 24 * 1000);
-			connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-			
-			if (ctx != null) {
-				this.connections.put(ctx, connection);
-			}
-
 			byte[] outBytes = JsonUtil.toJson(forward).getBytes(StandardCharsets.UTF_8);
-			try (OutputStream os = connection.getOutputStream()) {
-				os.write(outBytes);
-			}
+			// 基准测试按批量任务排队，不和交互请求抢slot
+			permit = ModelScheduler.getInstance().acquire(modelId, Priority.BULK, ctx == null ? null : ctx.channel());
+			UpstreamResult result = UpstreamClient.getInstance().execute(ReplicaRouter.getInstance().pick(modelId, port.intValue()), HttpMethod.POST, "/v1/chat/completions", outBytes, BENCHMARK_TIMEOUT_MS, exchange -> {
+				connection.set(exchange);
+				if (ctx != null) {
+					this.connections.put(ctx, exchange);
+				}
+			});
 
-			int responseCode = connection.getResponseCode();
-			String responseBody = readBody(connection, responseCode >= 200 && responseCode < 300);
+			int responseCode = result.getStatusCode();
+			String responseBody = result.getBodyAsString();
 			if (!(responseCode >= 200 && responseCode < 300)) {
 				throw new IllegalStateException("模型返回错误: " + responseBody);
 			}
@@ -184,14 +184,12 @@ public class BenchmarkService {
 			logger.info("执行模型基准测试V2时发生错误", e);
 			throw new RuntimeException("执行模型基准测试失败: " + e.getMessage(), e);
 		} finally {
-			if (ctx != null) {
-				this.connections.remove(ctx, connection);
+			if (permit != null) {
+				permit.release();
 			}
-			if (connection != null) {
-				try {
-					connection.disconnect();
-				} catch (Exception ignore) {
-				}
+			UpstreamExchange exchange = connection.get();
+			if (ctx != null && exchange != null) {
+				this.connections.remove(ctx, exchange);
 			}
 		}
 	}
@@ -388,28 +386,15 @@ public class BenchmarkService {
 	 * @return
 	 */
 	private JsonObject postJson(String modelId, String path, JsonObject payload) {
-		HttpURLConnection connection = null;
 		try {
 			LlamaServerManager manager = LlamaServerManager.getInstance();
 			Integer port = manager.getModelPort(modelId);
 			if (port == null) {
 				throw new IllegalStateException("未找到模型端口: " + modelId);
 			}
-			String targetUrl = String.format("http://localhost:%d%s", port.intValue(), path);
-			URL url = URI.create(targetUrl).toURL();
-			connection = (HttpURLConnection) url.openConnection();
-			connection.setRequestMethod("POST");
-			connection.setDoOutput(true);
-			connection.setConnectTimeout(30000);
-			connection.setReadTimeout(30000);
-			connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
 			byte[] outBytes = JsonUtil.toJson(payload).getBytes(StandardCharsets.UTF_8);
-			connection.setRequestProperty("Content-Length", String.valueOf(outBytes.length));
-			try (OutputStream os = connection.getOutputStream()) {
-				os.write(outBytes);
-			}
-			int responseCode = connection.getResponseCode();
-			String responseBody = readBody(connection, responseCode >= 200 && responseCode < 300);
+			UpstreamResult result = UpstreamClient.getInstance().execute(port.intValue(), HttpMethod.POST, path, outBytes, 30000);
+			String responseBody = result.getBodyAsString();
 			JsonElement parsed = null;
 			try {
 				parsed = JsonUtil.fromJson(responseBody, JsonElement.class);
@@ -425,32 +410,6 @@ public class BenchmarkService {
 		} catch (Exception e) {
 			logger.info("调用模型接口失败: " + path, e);
 			throw new RuntimeException("调用模型接口失败: " + e.getMessage(), e);
-		} finally {
-			if (connection != null) {
-				try {
-					connection.disconnect();
-				} catch (Exception ignore) {
-				}
-			}
-		}
-	}
-	
-	private static String readBody(HttpURLConnection connection, boolean ok) {
-		if (connection == null) return "";
-		InputStream in = null;
-		try {
-			in = ok ? connection.getInputStream() : connection.getErrorStream();
-			if (in == null) return "";
-			try (BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
-				StringBuilder sb = new StringBuilder();
-				String line;
-				while ((line = br.readLine()) != null) {
-					sb.append(line);
-				}
-				return sb.toString();
-			}
-		} catch (Exception e) {
-			return "";
 		}
 	}
 
@@ -532,11 +491,8 @@ public class BenchmarkService {
 	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
 		// 如果不为null，就关闭连接
 		if (ctx == null) return;
-		HttpURLConnection conn = this.connections.remove(ctx);
-		if (conn == null) return;
-		try {
-			conn.disconnect();
-		} catch (Exception ignore) {
-		}
+		UpstreamExchange exchange = this.connections.remove(ctx);
+		if (exchange == null) return;
+		exchange.cancel();
 	}
 }
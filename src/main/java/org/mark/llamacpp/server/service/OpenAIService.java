@@ -1,35 +1,54 @@
 package org.mark.llamacpp.server.service;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URI;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
-import java.util.Locale;
 import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
 
 import org.mark.llamacpp.server.LlamaCppProcess;
+import org.mark.llamacpp.server.LlamaServer;
 import org.mark.llamacpp.server.LlamaServerManager;
+import org.mark.llamacpp.server.cache.ApiSnapshots;
+import org.mark.llamacpp.server.cache.ResponseCache;
+import org.mark.llamacpp.server.embedding.EmbeddingDispatcher;
+import org.mark.llamacpp.server.ingress.RequestRewriter;
+import org.mark.llamacpp.server.ingress.RewrittenRequest;
+import org.mark.llamacpp.server.replica.PrefixAffinity;
+import org.mark.llamacpp.server.replica.PrefixAffinity.Route;
+import org.mark.llamacpp.server.scheduler.AdmissionException;
+import org.mark.llamacpp.server.scheduler.AdmissionListener;
+import org.mark.llamacpp.server.scheduler.ModelScheduler;
+import org.mark.llamacpp.server.scheduler.Permit;
+import org.mark.llamacpp.server.stream.ChunkReader;
+import org.mark.llamacpp.server.stream.SseWriter;
+import org.mark.llamacpp.server.stream.StopStringStage;
+import org.mark.llamacpp.server.stream.TokenStream;
+import org.mark.llamacpp.server.stream.ToolCallIdStage;
+import org.mark.llamacpp.server.stream.UsageStage;
+import org.mark.llamacpp.server.stream.WallTimeStage;
 import org.mark.llamacpp.server.tools.JsonUtil;
+import org.mark.llamacpp.server.tools.ParamTool;
+import org.mark.llamacpp.server.upstream.Backpressure;
+import org.mark.llamacpp.server.upstream.CancelRegistry;
+import org.mark.llamacpp.server.upstream.SingleFlight;
+import org.mark.llamacpp.server.upstream.StreamFlusher;
+import org.mark.llamacpp.server.upstream.StreamingBody;
+import org.mark.llamacpp.server.upstream.UpstreamClient;
+import org.mark.llamacpp.server.upstream.UpstreamExchange;
+import org.mark.llamacpp.server.upstream.UpstreamListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
@@ -38,10 +57,11 @@ import io.netty.handler.codec.http.DefaultHttpContent;
 import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
-import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
@@ -55,17 +75,11 @@ public class OpenAIService {
 	
 	private static final Logger logger = LoggerFactory.getLogger(OpenAIService.class);
 	
-	/**
-	 * 	存储当前通道正在处理的模型链接，用于在连接关闭时停止对应的模型进程
-	 */
-	private final Map<ChannelHandlerContext, HttpURLConnection> channelConnectionMap = new HashMap<>();
 	
 	/**
-	 * 	线程池。
+	 * 	转发到llama.cpp的超时时间，与llama-server的--timeout保持一致。
 	 */
-	private static final ExecutorService worker = Executors.newVirtualThreadPerTaskExecutor();
-
-	private SimpleDateFormat sdf = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH);
+	private static final long LLAMA_TIMEOUT_MS = 36000L * 1000;
 	
 	public OpenAIService() {
 		
@@ -121,85 +135,100 @@ public class OpenAIService {
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 405, null, "Only GET method is supported", "method");
 				return;
 			}
-			LlamaServerManager manager = LlamaServerManager.getInstance();
-			Map<String, LlamaCppProcess> loaded = manager.getLoadedProcesses();
+			ApiSnapshots snapshots = ApiSnapshots.getInstance();
+			String etag = snapshots.etag(ApiSnapshots.MODELS);
+			if (snapshots.isNotModified(request, etag)) {
+				LlamaServer.sendNotModified(ctx, etag);
+				return;
+			}
+			ApiSnapshots.Snapshot snapshot = snapshots.get("/v1/models", ApiSnapshots.MODELS, this::buildOpenAIModels);
+			this.sendOpenAIJsonResponse(ctx, snapshot.getBody(), snapshot.getEtag());
+		} catch (Exception e) {
+			logger.info("获取模型列表时发生错误", e);
+			this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
+		}
+	}
+	
+	/**
+	 * 	生成/v1/models的内容，按模型版本缓存。
+	 * @return
+	 */
+	private JsonObject buildOpenAIModels() {
+		LlamaServerManager manager = LlamaServerManager.getInstance();
+		Map<String, LlamaCppProcess> loaded = manager.getLoadedProcesses();
 
-			Map<String, JsonObject> modelsByKey = new LinkedHashMap<>();
-			Map<String, JsonObject> dataById = new LinkedHashMap<>();
+		Map<String, JsonObject> modelsByKey = new LinkedHashMap<>();
+		Map<String, JsonObject> dataById = new LinkedHashMap<>();
 
-			for (Map.Entry<String, LlamaCppProcess> e : loaded.entrySet()) {
-				String modelId = e.getKey();
-				if (modelId == null || modelId.isBlank()) {
-					continue;
-				}
-				// 取出配置的上下文长度
-				int runtimeCtx = e.getValue().getCtxSize();
-				
-				JsonObject info = manager.getLoadedModelInfo(modelId);
-				if (info == null) {
-					try {
-						info = manager.handleModelInfo(modelId);
-					} catch (Exception ignore) {
-						info = null;
-					}
-				}
-				if (info == null) {
-					continue;
+		for (Map.Entry<String, LlamaCppProcess> e : loaded.entrySet()) {
+			String modelId = e.getKey();
+			if (modelId == null || modelId.isBlank()) {
+				continue;
+			}
+			// 取出配置的上下文长度
+			int runtimeCtx = e.getValue().getCtxSize();
+			
+			JsonObject info = manager.getLoadedModelInfo(modelId);
+			if (info == null) {
+				try {
+					info = manager.handleModelInfo(modelId);
+				} catch (Exception ignore) {
+					info = null;
 				}
+			}
+			if (info == null) {
+				continue;
+			}
 
-				if (!info.has("items") || !info.get("items").isJsonArray()) {
+			if (!info.has("items") || !info.get("items").isJsonArray()) {
+				continue;
+			}
+			JsonArray items = info.getAsJsonArray("items");
+			for (JsonElement itemEl : items) {
+				if (itemEl == null || itemEl.isJsonNull() || !itemEl.isJsonObject()) {
 					continue;
 				}
-				JsonArray items = info.getAsJsonArray("items");
-				for (JsonElement itemEl : items) {
-					if (itemEl == null || itemEl.isJsonNull() || !itemEl.isJsonObject()) {
-						continue;
+				JsonObject item = itemEl.getAsJsonObject();
+
+				if (item.has("model") && item.get("model").isJsonObject()) {
+					JsonObject m = item.getAsJsonObject("model");
+					String key = JsonUtil.getJsonString(m, "model");
+					if (key.isEmpty()) {
+						key = JsonUtil.getJsonString(m, "name");
 					}
-					JsonObject item = itemEl.getAsJsonObject();
-
-					if (item.has("model") && item.get("model").isJsonObject()) {
-						JsonObject m = item.getAsJsonObject("model");
-						String key = JsonUtil.getJsonString(m, "model");
-						if (key.isEmpty()) {
-							key = JsonUtil.getJsonString(m, "name");
-						}
-						if (!key.isEmpty() && !modelsByKey.containsKey(key)) {
-							JsonObject mCopy = m.deepCopy();
-							mCopy.addProperty("runtimeCtx", runtimeCtx);
-							modelsByKey.put(key, mCopy);
-						}
+					if (!key.isEmpty() && !modelsByKey.containsKey(key)) {
+						JsonObject mCopy = m.deepCopy();
+						mCopy.addProperty("runtimeCtx", runtimeCtx);
+						modelsByKey.put(key, mCopy);
 					}
+				}
 
-					if (item.has("data") && item.get("data").isJsonObject()) {
-						JsonObject d = item.getAsJsonObject("data");
-						String id = JsonUtil.getJsonString(d, "id");
-						if (!id.isEmpty() && !dataById.containsKey(id)) {
-							JsonObject dCopy = d.deepCopy();
-							dCopy.addProperty("runtimeCtx", runtimeCtx);
-							dataById.put(id, dCopy);
-						}
+				if (item.has("data") && item.get("data").isJsonObject()) {
+					JsonObject d = item.getAsJsonObject("data");
+					String id = JsonUtil.getJsonString(d, "id");
+					if (!id.isEmpty() && !dataById.containsKey(id)) {
+						JsonObject dCopy = d.deepCopy();
+						dCopy.addProperty("runtimeCtx", runtimeCtx);
+						dataById.put(id, dCopy);
 					}
 				}
 			}
+		}
 
-			JsonArray models = new JsonArray();
-			for (JsonObject m : modelsByKey.values()) {
-				models.add(m);
-			}
-			JsonArray data = new JsonArray();
-			for (JsonObject d : dataById.values()) {
-				data.add(d);
-			}
-
-			JsonObject response = new JsonObject();
-			response.addProperty("object", "list");
-			response.add("models", models);
-			response.add("data", data);
-			sendOpenAIJsonResponse(ctx, response);
-		} catch (Exception e) {
-			logger.info("获取模型列表时发生错误", e);
-			this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
+		JsonArray models = new JsonArray();
+		for (JsonObject m : modelsByKey.values()) {
+			models.add(m);
+		}
+		JsonArray data = new JsonArray();
+		for (JsonObject d : dataById.values()) {
+			data.add(d);
 		}
+
+		JsonObject response = new JsonObject();
+		response.addProperty("object", "list");
+		response.add("models", models);
+		response.add("data", data);
+		return response;
 	}
 	
 	
@@ -215,37 +244,26 @@ public class OpenAIService {
 				return;
 			}
 
-			// 读取请求体
-			String content = request.content().toString(CharsetUtil.UTF_8);
-			if (content == null || content.trim().isEmpty()) {
+			// 扫描请求体，enable_thinking之类的改写由RequestRewriter的规则处理，没有规则生效时原样转发
+			RewrittenRequest rewritten = RequestRewriter.getInstance().rewrite("/v1/chat/completions", request.content());
+			if (rewritten.isEmpty()) {
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 400, null, "Request body is empty", "messages");
 				return;
 			}
-
-			// 解析JSON请求体
-			JsonObject requestJson = JsonUtil.fromJson(content, JsonObject.class);
+			if (rewritten.isInvalid()) {
+				this.sendOpenAIErrorResponseWithCleanup(ctx, 400, null, "Request body must be a JSON object", null);
+				return;
+			}
 			
 			// 获取模型名称
-			if (!requestJson.has("model")) {
+			String modelName = rewritten.getModel();
+			if (modelName == null) {
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 400, null, "Missing required parameter: model", "model");
 				return;
 			}
 			
-			String modelName = requestJson.get("model").getAsString();
-			
 			// 检查是否为流式请求
-			boolean isStream = false;
-			if (requestJson.has("stream")) {
-				isStream = requestJson.get("stream").getAsBoolean();
-			}
-			// 这个东西暂时用于控制enable_thinking，实际上是不完善的，临时解决吧。
-			if (requestJson.has("enable_thinking") && !requestJson.has("chat_template_kwargs")) {
-				// 拼接一个chat_template_kwargs进去： "chat_template_kwargs" : {"enable_thinking": false},
-				JsonObject chatTemplateKwargs = new JsonObject();
-				chatTemplateKwargs.addProperty("enable_thinking", requestJson.get("enable_thinking").getAsBoolean());
-				// 添加到主 JsonObject
-				requestJson.add("chat_template_kwargs", chatTemplateKwargs);
-			}
+			boolean isStream = rewritten.isStream();
 			// 获取LlamaServerManager实例
 			LlamaServerManager manager = LlamaServerManager.getInstance();
 			
@@ -254,10 +272,6 @@ public class OpenAIService {
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 404, null, "Model not found: " + modelName, "model");
 				return;
 			}
-
-			String body = JsonUtil.toJson(requestJson);
-			
-			//logger.info("请求内容：" + body);
 			
 			// 获取模型端口
 			Integer modelPort = manager.getModelPort(modelName);
@@ -266,7 +280,7 @@ public class OpenAIService {
 				return;
 			}
 			// 转发请求到对应的llama.cpp进程
-			this.forwardRequestToLlamaCpp(ctx, request, modelName, modelPort, "/v1/chat/completions", isStream, body);
+			this.forwardRequestToLlamaCpp(ctx, request, modelName, modelPort, "/v1/chat/completions", isStream, rewritten, true);
 		} catch (Exception e) {
 			logger.info("处理OpenAI聊天补全请求时发生错误", e);
 			this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
@@ -284,37 +298,32 @@ public class OpenAIService {
 				return;
 			}
 
-			// 读取请求体
-			String content = request.content().toString(CharsetUtil.UTF_8);
-			if (content == null || content.trim().isEmpty()) {
+			// 扫描请求体，没有规则生效时原样转发
+			RewrittenRequest rewritten = RequestRewriter.getInstance().rewrite("/v1/completions", request.content());
+			if (rewritten.isEmpty()) {
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 400, null, "Request body is empty", "messages");
 				return;
 			}
-
-			// 解析JSON请求体
-			JsonObject requestJson = JsonUtil.fromJson(content, JsonObject.class);
+			if (rewritten.isInvalid()) {
+				this.sendOpenAIErrorResponseWithCleanup(ctx, 400, null, "Request body must be a JSON object", null);
+				return;
+			}
 
 			// 获取LlamaServerManager实例
 			LlamaServerManager manager = LlamaServerManager.getInstance();
 
-			String modelName = null;
-
 			// 搜索模型的名字，如果没有这个字段，则直接取用第一个模型。
-			if (!requestJson.has("model")) {
+			String modelName = rewritten.getModel();
+			if (modelName == null) {
 				modelName = manager.getFirstModelName();
 				if (modelName == null) {
 					this.sendOpenAIErrorResponseWithCleanup(ctx, 404, null, "No models are currently loaded", null);
 					return;
 				}
-			} else {
-				modelName = requestJson.get("model").getAsString();
 			}
 
 			// 检查是否为流式请求
-			boolean isStream = false;
-			if (requestJson.has("stream")) {
-				isStream = requestJson.get("stream").getAsBoolean();
-			}
+			boolean isStream = rewritten.isStream();
 
 			// 检查模型是否已加载
 			if (!manager.getLoadedProcesses().containsKey(modelName)) {
@@ -333,7 +342,7 @@ public class OpenAIService {
 				return;
 			}
 			// 转发请求到对应的llama.cpp进程
-			this.forwardRequestToLlamaCpp(ctx, request, modelName, modelPort, "/v1/completions", isStream, JsonUtil.toJson(requestJson));
+			this.forwardRequestToLlamaCpp(ctx, request, modelName, modelPort, "/v1/completions", isStream, rewritten, true);
 		} catch (Exception e) {
 			logger.info("处理OpenAI文本补全请求时发生错误", e);
 			this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
@@ -375,7 +384,7 @@ public class OpenAIService {
 				this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, "Model port not found: " + modelName, null);
 				return;
 			}
-			this.forwardRequestToLlamaCpp(ctx, request, modelName, modelPort, "/v1/embeddings", false, request.content().toString(StandardCharsets.UTF_8));
+			this.forwardEmbeddingsToLlamaCpp(ctx, request, modelName, modelPort, requestJson);
 		} catch (Exception e) {
 			logger.info("处理OpenAI嵌入请求时发生错误", e);
 			this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
@@ -438,122 +447,313 @@ public class OpenAIService {
 	}
 	
 	
+	/**
+	 * 转发embeddings请求，经过合并/拆分后发往llama.cpp进程
+	 */
+	private void forwardEmbeddingsToLlamaCpp(ChannelHandlerContext ctx, FullHttpRequest request, String modelName, int port, JsonObject requestJson) {
+		ResponseCache cache = ResponseCache.getInstance();
+		String cacheKey = cache.keyFor(modelName, "/v1/embeddings", requestJson, null);
+		String cached = cacheKey == null ? null : cache.get(cacheKey);
+		if (cached != null) {
+			this.handleNonStreamResponse(ctx, 200, cached);
+			return;
+		}
+		EmbeddingDispatcher.getInstance().submit(modelName, port, ModelScheduler.resolvePriority(request), ctx.channel(), requestJson, (result, error) -> {
+			if (error instanceof AdmissionException) {
+				AdmissionException e = (AdmissionException) error;
+				logger.info("请求被拒绝，模型: {}，原因: {}", modelName, e.getMessage());
+				ModelScheduler.sendRejection(ctx, e, rejectionBody(e));
+				return;
+			}
+			if (error != null) {
+				this.handleUpstreamError(ctx, error, false);
+				return;
+			}
+			String responseBody = result.getBodyAsString();
+			if (cacheKey != null && result.getStatusCode() == 200) {
+				cache.put(cacheKey, modelName, responseBody);
+			}
+			this.handleNonStreamResponse(ctx, result.getStatusCode(), responseBody);
+		});
+	}
+	
 	/**
 	 * 转发请求到对应的llama.cpp进程
 	 */
 	private void forwardRequestToLlamaCpp(ChannelHandlerContext ctx, FullHttpRequest request, String modelName, int port, String endpoint, boolean isStream, String requestBody) {
-		// 在异步执行前先读取请求体，避免ByteBuf引用计数问题
+		byte[] input = requestBody == null ? new byte[0] : requestBody.getBytes(StandardCharsets.UTF_8);
+		this.forwardRequestToLlamaCpp(ctx, request, modelName, port, endpoint, isStream, RequestRewriter.getInstance().wrap(input), false);
+	}
+	
+	/**
+	 * 转发请求到对应的llama.cpp进程，affinity为true时按提示词前缀选择副本和slot
+	 */
+	private void forwardRequestToLlamaCpp(ChannelHandlerContext ctx, FullHttpRequest request, String modelName, int port, String endpoint, boolean isStream, RewrittenRequest rewritten, boolean affinity) {
 		HttpMethod method = request.method();
-		// 复制请求头，避免在异步任务中访问已释放的请求对象
-		Map<String, String> headers = new HashMap<>();
-		for (Map.Entry<String, String> entry : request.headers()) {
-			headers.put(entry.getKey(), entry.getValue());
-		}
 
-		int requestBodyLength = requestBody == null ? 0 : requestBody.length();
-		logger.info("转发请求到llama.cpp进程: {} {} 端口: {} 请求体长度: {}", method.name(), endpoint, port, requestBodyLength);
-		
-		worker.execute(() -> {
-			// 添加断开连接的事件监听
-			HttpURLConnection connection = null;
-			try {
-				// 构建目标URL
-				String targetUrl = String.format("http://localhost:%d%s", port, endpoint);
-				logger.info("连接到llama.cpp进程: {}", targetUrl);
-				
-				URL url = URI.create(targetUrl).toURL();
-				connection = (HttpURLConnection) url.openConnection();
-				
-				// 保存本次请求的链接到缓存
-				synchronized (this.channelConnectionMap) {
-					this.channelConnectionMap.put(ctx, connection);
-				}
-				
-				// 设置请求方法
-				connection.setRequestMethod(method.name());
-				
-				// 设置必要的请求头
-				for (Map.Entry<String, String> entry : headers.entrySet()) {
-					// 跳过一些可能导致问题的头
-					if (!entry.getKey().equalsIgnoreCase("Connection") &&
-						!entry.getKey().equalsIgnoreCase("Content-Length") &&
-						!entry.getKey().equalsIgnoreCase("Transfer-Encoding")) {
-						connection.setRequestProperty(entry.getKey(), entry.getValue());
-					}
+		// 结果确定的请求先查响应缓存，命中就不用排队了；命中和合并只计数（见/api/sys/cache/status），不在请求线程里打日志
+		ResponseCache cache = ResponseCache.getInstance();
+		String requestKey = method == HttpMethod.POST ? cache.requestKey(modelName, endpoint, rewritten) : null;
+		String cacheKey = LlamaServer.isResponseCacheEnabled() ? requestKey : null;
+		if (cacheKey != null) {
+			String cached = cache.get(cacheKey);
+			if (cached != null && !isStream) {
+				this.handleNonStreamResponse(ctx, 200, cached);
+				return;
+			}
+			String sse = cached == null ? null : ResponseCache.toSse(endpoint, cached);
+			if (sse != null) {
+				this.sendCachedStream(ctx, sse);
+				return;
+			}
+		}
+		// 请求头在这里同步复制，排队结束时请求对象可能已经释放了
+		HttpHeaders headers = UpstreamClient.copyHeaders(request.headers());
+		UpstreamListener listener = isStream ? new StreamListener(ctx, modelName, headers, endpoint, stopOf(rewritten)) : new NonStreamListener(ctx, modelName, cacheKey);
+		// 完全相同的请求正在执行时直接挂上去，不占用slot
+		String flightKey = SingleFlight.keyOf(requestKey, isStream);
+		CancelRegistry.getInstance().begin(ctx, endpoint, headers, timeoutOf(rewritten), OpenAIService::rejectionBody);
+		UpstreamExchange joined = SingleFlight.getInstance().join(flightKey, listener);
+		if (joined != null) {
+			this.track(ctx, joined);
+			return;
+		}
+		// 按模型的slot数量排队，拿到许可后才真正转发
+		ModelScheduler.getInstance().submit(modelName, ModelScheduler.resolvePriority(request), ctx.channel(), new AdmissionListener() {
+			@Override
+			public void onGranted(Permit permit) {
+				// 固定到slot时在请求体末尾拼接id_slot和cache_prompt
+				Route route = PrefixAffinity.getInstance().route(modelName, port, affinity && LlamaServer.isAffinityEnabled() ? rewritten.getJson() : null);
+				if (route.isPinned()) {
+					rewritten.pin(route.getSlot());
 				}
-				
-				// 设置连接和读取超时
-				connection.setConnectTimeout(36000 * 1000);
-				connection.setReadTimeout(36000 * 1000);
-				
-				// 对于POST请求，设置请求体
-				if (method == HttpMethod.POST && requestBody != null && !requestBody.isEmpty()) {
-					connection.setDoOutput(true);
-					try (OutputStream os = connection.getOutputStream()) {
-						byte[] input = requestBody.getBytes(StandardCharsets.UTF_8);
-						os.write(input, 0, input.length);
-						logger.info("已发送请求体到llama.cpp进程，大小: {} 字节", input.length);
-					}
+				byte[] payload = rewritten.getBody();
+				// 只有POST请求才带请求体
+				ByteBuf body = method == HttpMethod.POST && payload.length > 0 ? Unpooled.wrappedBuffer(payload) : null;
+				UpstreamExchange exchange = SingleFlight.getInstance().send(flightKey, route.getPort(), method, endpoint, headers, body, LLAMA_TIMEOUT_MS, listener);
+				// 合并到已有的相同请求时不占用slot，许可立即归还
+				exchange.whenUpstreamDone(permit::release);
+				exchange.whenUpstreamDone(route::release);
+				track(ctx, exchange);
+			}
+
+			@Override
+			public void onRejected(AdmissionException e) {
+				logger.info("请求被拒绝，模型: {}，原因: {}", modelName, e.getMessage());
+				untrack(ctx);
+				ModelScheduler.sendRejection(ctx, e, rejectionBody(e));
+			}
+		});
+	}
+	
+	/**
+	 * 	转发边收边发的请求。模型名已经从请求体里扫描出来，请求体还在继续接收；
+	 * 	stream字段要等请求体收完才能确定，所以收到响应头时再决定按流式还是非流式返回。
+	 * 	这条路径不查响应缓存，也不按前缀固定slot，这些都需要完整的请求体。
+	 * @param ctx
+	 * @param request 请求头
+	 * @param modelName
+	 * @param endpoint
+	 * @param body
+	 * @param isStream
+	 * @return 已经回复错误时返回false，请求体不用再收了
+	 */
+	public boolean forwardStreamingRequest(ChannelHandlerContext ctx, HttpRequest request, String modelName, String endpoint, StreamingBody body, BooleanSupplier isStream) {
+		LlamaServerManager manager = LlamaServerManager.getInstance();
+		if (!manager.getLoadedProcesses().containsKey(modelName)) {
+			this.sendOpenAIErrorResponseWithCleanup(ctx, 404, null, "Model not found: " + modelName, "model");
+			return false;
+		}
+		Integer port = manager.getModelPort(modelName);
+		if (port == null) {
+			this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, "Model port not found: " + modelName, null);
+			return false;
+		}
+		HttpHeaders headers = UpstreamClient.copyHeaders(request.headers());
+		UpstreamListener listener = new UpstreamListener() {
+			
+			private UpstreamListener delegate;
+			
+			@Override
+			public void onResponse(HttpResponse response) {
+				this.delegate = isStream.getAsBoolean() ? new StreamListener(ctx, modelName, headers, endpoint, null) : new NonStreamListener(ctx, modelName, null);
+				this.delegate.onResponse(response);
+			}
+
+			@Override
+			public void onContent(ByteBuf content) {
+				this.delegate.onContent(content);
+			}
+
+			@Override
+			public void onComplete() {
+				if (this.delegate == null) {
+					this.onError(new IOException("llama.cpp进程没有返回响应"));
+					return;
 				}
-				long t = System.currentTimeMillis();
-				// 获取响应码
-				int responseCode = connection.getResponseCode();
-				logger.info("llama.cpp进程响应码: {}，等待时间：{}", responseCode, System.currentTimeMillis() - t);
-				
-				if (isStream) {
-					// 处理流式响应
-					this.handleStreamResponse(ctx, connection, responseCode, modelName);
+				this.delegate.onComplete();
+			}
+
+			@Override
+			public void onError(Throwable cause) {
+				if (this.delegate == null) {
+					handleUpstreamError(ctx, cause, false);
 				} else {
-					// 处理非流式响应
-					this.handleNonStreamResponse(ctx, connection, responseCode);
-				}
-			} catch (Exception e) {
-				logger.info("转发请求到llama.cpp进程时发生错误", e);
-				// 检查是否是客户端断开连接导致的异常
-				if (e.getMessage() != null && e.getMessage().contains("Connection reset by peer")) {
-					
-				}
-				this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, e.getMessage(), null);
-			} finally {
-				// 关闭连接
-				if (connection != null) {
-					connection.disconnect();
-				}
-				// 清理 
-				synchronized (this.channelConnectionMap) {
-					this.channelConnectionMap.remove(ctx);
+					this.delegate.onError(cause);
 				}
 			}
+		};
+		CancelRegistry.getInstance().begin(ctx, endpoint, headers, null, OpenAIService::rejectionBody);
+		ModelScheduler.getInstance().submit(modelName, ModelScheduler.resolvePriority(request), ctx.channel(), new AdmissionListener() {
+			@Override
+			public void onGranted(Permit permit) {
+				Route route = PrefixAffinity.getInstance().route(modelName, port, null);
+				UpstreamExchange exchange = UpstreamClient.getInstance().sendStreaming(route.getPort(), HttpMethod.POST, endpoint, headers, body, LLAMA_TIMEOUT_MS, listener);
+				exchange.whenDone(permit::release);
+				exchange.whenDone(route::release);
+				track(ctx, exchange);
+			}
+
+			@Override
+			public void onRejected(AdmissionException e) {
+				logger.info("请求被拒绝，模型: {}，原因: {}", modelName, e.getMessage());
+				untrack(ctx);
+				body.close();
+				ModelScheduler.sendRejection(ctx, e, rejectionBody(e));
+			}
 		});
+		return true;
 	}
 	
 	/**
-	 * 处理非流式响应
+	 * 	没有拿到执行许可时回复的错误内容，OpenAI格式。
 	 */
-	private void handleNonStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode) throws IOException {
-		// 读取响应
-		String responseBody;
-		if (responseCode >= 200 && responseCode < 300) {
-			try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
-				StringBuilder response = new StringBuilder();
-				String responseLine;
-				while ((responseLine = br.readLine()) != null) {
-					response.append(responseLine.trim());
-				}
-				responseBody = response.toString();
-			}
+	private static Map<String, Object> rejectionBody(AdmissionException e) {
+		return rejectionBody(e.getStatus().code(), e.getMessage());
+	}
+	
+	/**
+	 * 	排队被拒绝或者超过截止时间（504）时回复的错误内容，OpenAI格式。
+	 */
+	private static Map<String, Object> rejectionBody(int code, String message) {
+		Map<String, Object> error = new HashMap<>();
+		error.put("message", message);
+		error.put("type", code == 429 ? "rate_limit_error" : "server_error");
+		error.put("code", code == 429 ? "queue_full" : code == 504 ? "deadline_exceeded" : "server_busy");
+		error.put("param", null);
+		Map<String, Object> response = new HashMap<>();
+		response.put("error", error);
+		return response;
+	}
+	
+	/**
+	 * 	记录连接对应的上游请求，客户端断开时用来取消。
+	 * @param ctx
+	 * @param exchange
+	 */
+	private void track(ChannelHandlerContext ctx, UpstreamExchange exchange) {
+		CancelRegistry.getInstance().track(ctx, exchange);
+	}
+	
+	/**
+	 * 	请求结束后从缓存里移除。
+	 * @param ctx
+	 */
+	private void untrack(ChannelHandlerContext ctx) {
+		CancelRegistry.getInstance().untrack(ctx);
+	}
+	
+	/**
+	 * 	当前连接上正在进行的上游请求。
+	 * @param ctx
+	 * @return
+	 */
+	private UpstreamExchange tracked(ChannelHandlerContext ctx) {
+		return CancelRegistry.getInstance().tracked(ctx);
+	}
+	
+	/**
+	 * 	上游请求失败时的统一处理：响应头还没发出去就返回错误，否则直接断开。
+	 * 	超过截止时间或者上游响应超时返回504，和排队期间到期的格式一样。
+	 */
+	private void handleUpstreamError(ChannelHandlerContext ctx, Throwable cause, boolean headerSent) {
+		logger.info("转发请求到llama.cpp进程时发生错误", cause);
+		this.untrack(ctx);
+		if (headerSent) {
+			ctx.close();
+		} else if (cause instanceof TimeoutException) {
+			this.sendOpenAIJsonResponseWithCleanup(ctx, rejectionBody(504, cause.getMessage()), HttpResponseStatus.GATEWAY_TIMEOUT);
 		} else {
-			// 读取错误响应
-			try (BufferedReader br = new BufferedReader(new InputStreamReader(connection.getErrorStream(), StandardCharsets.UTF_8))) {
-				StringBuilder response = new StringBuilder();
-				String responseLine;
-				while ((responseLine = br.readLine()) != null) {
-					response.append(responseLine.trim());
-				}
-				responseBody = response.toString();
+			this.sendOpenAIErrorResponseWithCleanup(ctx, 500, null, cause.getMessage(), null);
+		}
+	}
+	
+	/**
+	 * 	非流式响应：聚合完整响应体后一次性返回。
+	 */
+	private class NonStreamListener implements UpstreamListener {
+		
+		private final ChannelHandlerContext ctx;
+		
+		private final String modelName;
+		
+		/**
+		 * 	不为null时把成功的响应存入响应缓存。
+		 */
+		private final String cacheKey;
+		
+		private int responseCode;
+		
+		private ByteBuf body;
+		
+		private NonStreamListener(ChannelHandlerContext ctx, String modelName, String cacheKey) {
+			this.ctx = ctx;
+			this.modelName = modelName;
+			this.cacheKey = cacheKey;
+		}
+
+		@Override
+		public void onResponse(HttpResponse response) {
+			this.responseCode = response.status().code();
+		}
+
+		@Override
+		public void onContent(ByteBuf content) {
+			if (this.body == null) {
+				this.body = this.ctx.alloc().buffer(content.readableBytes());
+			}
+			this.body.writeBytes(content);
+		}
+
+		@Override
+		public void onComplete() {
+			untrack(this.ctx);
+			String responseBody = "";
+			if (this.body != null) {
+				responseBody = this.body.toString(StandardCharsets.UTF_8);
+				this.body.release();
+				this.body = null;
 			}
+			if (this.cacheKey != null && this.responseCode == 200) {
+				ResponseCache.getInstance().put(this.cacheKey, this.modelName, responseBody);
+			}
+			handleNonStreamResponse(this.ctx, this.responseCode, responseBody);
 		}
 
+		@Override
+		public void onError(Throwable cause) {
+			if (this.body != null) {
+				this.body.release();
+				this.body = null;
+			}
+			handleUpstreamError(this.ctx, cause, false);
+		}
+	}
+	
+	/**
+	 * 处理非流式响应
+	 */
+	private void handleNonStreamResponse(ChannelHandlerContext ctx, int responseCode, String responseBody) {
 		if (responseCode >= 200 && responseCode < 300) {
 			JsonObject parsed = JsonUtil.tryParseObject(responseBody);
 			if (parsed != null) {
@@ -578,7 +778,7 @@ public class OpenAIService {
 		// 添加CORS头
 		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
 		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_METHODS, "GET, POST, PUT, DELETE, OPTIONS");
-		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "Content-Type, Authorization");
+		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "Content-Type, Authorization, X-Priority");
 		
 		// 设置响应体
 		response.content().writeBytes(responseBytes);
@@ -593,130 +793,173 @@ public class OpenAIService {
 	}
 	
 	/**
-	 * 处理流式响应
+	 * 	把缓存的结果以SSE形式一次性发给流式请求。
 	 */
-	private void handleStreamResponse(ChannelHandlerContext ctx, HttpURLConnection connection, int responseCode, String modelName) throws IOException {
-		// 创建响应头
-		HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(responseCode));
+	private void sendCachedStream(ChannelHandlerContext ctx, String sse) {
+		byte[] bytes = sse.getBytes(StandardCharsets.UTF_8);
+		HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
 		response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/event-stream; charset=UTF-8");
 		response.headers().set(HttpHeaderNames.CACHE_CONTROL, "no-cache");
 		response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
 		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
 		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "*");
-		response.headers().set(HttpHeaderNames.ETAG, buildEtag((modelName + ":" + responseCode + ":" + System.nanoTime()).getBytes(StandardCharsets.UTF_8)));
-		
-		// 发送响应头
+		response.headers().set(HttpHeaderNames.ETAG, buildEtag(bytes));
 		ctx.write(response);
-		ctx.flush();
+		ctx.write(new DefaultHttpContent(Unpooled.wrappedBuffer(bytes)));
+		ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) {
+				ctx.close();
+			}
+		});
+	}
+	
+	/**
+	 * 	请求体里的timeout字段（秒），扫描时已经读出来了，不用解析请求体。
+	 * @param rewritten
+	 * @return
+	 */
+	private static JsonElement timeoutOf(RewrittenRequest rewritten) {
+		Double timeout = rewritten.getScanner().getNumber("timeout");
+		return timeout == null ? null : new JsonPrimitive(timeout);
+	}
+	
+	/**
+	 * 	请求里的停止词。只有扫描时看到了stop字段才解析请求体。
+	 * @param rewritten
+	 * @return
+	 */
+	private static JsonElement stopOf(RewrittenRequest rewritten) {
+		if (!rewritten.getScanner().has("stop")) {
+			return null;
+		}
+		JsonObject json = rewritten.getJson();
+		return json == null ? null : json.get("stop");
+	}
+	
+	/**
+	 * 	流式响应：上游的SSE数据经过{@link TokenStream}转发给客户端，没有被修改的数据块按原样复制。
+	 * 	聊天补全会给缺少id的工具调用补上id；聊天补全和文本补全会检查停止词和生成时间上限，提前结束时取消上游请求。
+	 */
+	private class StreamListener implements UpstreamListener {
 		
-		logger.info("开始处理流式响应，响应码: {}", responseCode);
+		private final ChannelHandlerContext ctx;
 		
-		// 读取流式响应
-		try (BufferedReader br = new BufferedReader(
-			new InputStreamReader(
-				responseCode >= 200 && responseCode < 300 ?
-					connection.getInputStream() : connection.getErrorStream(),
-				StandardCharsets.UTF_8
-			)
-		)) {
-			String line;
-			int chunkCount = 0;
-			Map<Integer, String> toolCallIds = new HashMap<>();
-			while ((line = br.readLine()) != null) {
-				// 检查客户端连接是否仍然活跃
-				if (!ctx.channel().isActive() || !ctx.channel().isWritable()) {
-					logger.info("检测到客户端连接已断开，停止流式响应处理");
-					if (connection != null) {
-						connection.disconnect();
-					}
-					break;
-				}
-				// 处理SSE格式的数据行
-				if (line.startsWith("data: ")) {
-					String data = line.substring(6); // 去掉 "data: " 前缀
-					
-					// 检查是否为结束标记
-					if (data.equals("[DONE]")) {
-						logger.info("收到流式响应结束标记");
-						break;
-					}
-					
-					String outLine = line;
-					JsonObject parsed = JsonUtil.tryParseObject(data);
-					if (parsed != null) {
-						boolean changed = JsonUtil.ensureToolCallIds(parsed, toolCallIds);
-						if (changed) {
-							outLine = "data: " + JsonUtil.toJson(parsed);
-						}
-					}
-					
-					// 创建数据块
-					ByteBuf content = ctx.alloc().buffer();
-					content.writeBytes(outLine.getBytes(StandardCharsets.UTF_8));
-					content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-					
-					// 创建HTTP内容块
-					HttpContent httpContent = new DefaultHttpContent(content);
-					
-					// 发送数据块，并添加监听器检查写入是否成功
-					ChannelFuture future = ctx.writeAndFlush(httpContent);
-					
-					// 检查写入是否失败，如果失败可能是客户端断开连接
-					future.addListener((ChannelFutureListener) channelFuture -> {
-						if (!channelFuture.isSuccess()) {
-							logger.info("写入流式数据失败，可能是客户端断开连接: {}", channelFuture.cause().getMessage());
-							ctx.close();
-						}
-					});
-					
-					chunkCount++;
-					
-					// 每发送10个数据块记录一次日志
-					if (chunkCount % 10 == 0) {
-						//logger.info("已发送 {} 个流式数据块", chunkCount);
-					}
-				} else if (line.startsWith("event: ")) {
-					// 处理事件行
-					ByteBuf content = ctx.alloc().buffer();
-					content.writeBytes(line.getBytes(StandardCharsets.UTF_8));
-					content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-					
-					HttpContent httpContent = new DefaultHttpContent(content);
-					ctx.writeAndFlush(httpContent);
-				} else if (line.isEmpty()) {
-					// 发送空行作为分隔符
-					ByteBuf content = ctx.alloc().buffer();
-					content.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
-					
-					HttpContent httpContent = new DefaultHttpContent(content);
-					ctx.writeAndFlush(httpContent);
-				}
+		private final String modelName;
+		
+		private final TokenStream stream;
+		
+		private final StreamFlusher flusher;
+		
+		private boolean headerSent = false;
+		
+		private volatile boolean finished = false;
+		
+		private int chunkCount = 0;
+		
+		/**
+		 * 
+		 * @param ctx
+		 * @param modelName
+		 * @param requestHeaders
+		 * @param endpoint 上游接口，决定按哪种格式读取数据块
+		 * @param stop 请求里的停止词，没有时为null
+		 */
+		private StreamListener(ChannelHandlerContext ctx, String modelName, HttpHeaders requestHeaders, String endpoint, JsonElement stop) {
+			this.ctx = ctx;
+			this.modelName = modelName;
+			this.flusher = new StreamFlusher(ctx, requestHeaders, this::abort);
+			boolean chat = "/v1/chat/completions".equals(endpoint);
+			boolean text = "/v1/completions".equals(endpoint);
+			this.stream = new TokenStream(text ? ChunkReader.openAIText() : ChunkReader.openAIChat(), SseWriter.openAI(), ctx.alloc(), this::write);
+			if (chat || text) {
+				this.stream.add(WallTimeStage.fromConfig()).add(StopStringStage.of(stop));
 			}
-			
-			logger.info("流式响应处理完成，共发送 {} 个数据块", chunkCount);
-		} catch (Exception e) {
-			logger.info("处理流式响应时发生错误", e);
-			// 检查是否是客户端断开连接导致的异常
-			if (e.getMessage() != null &&
-				(e.getMessage().contains("Connection reset by peer") ||
-				 e.getMessage().contains("Broken pipe") ||
-				 e.getMessage().contains("Connection closed"))) {
-				logger.info("检测到客户端断开连接，尝试断开与llama.cpp的连接");
-				if (connection != null) {
-					connection.disconnect();
-				}
+			if (!text) {
+				this.stream.add(new ToolCallIdStage());
 			}
-			throw e;
+			this.stream.add(new UsageStage());
 		}
-		
-		// 发送结束标记
-		LastHttpContent lastContent = LastHttpContent.EMPTY_LAST_CONTENT;
-		ctx.writeAndFlush(lastContent).addListener(new ChannelFutureListener() {
-			@Override
-			public void operationComplete(ChannelFuture future) {
-				ctx.close();
+
+		@Override
+		public void onResponse(HttpResponse upstream) {
+			int responseCode = upstream.status().code();
+			// 创建响应头
+			HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(responseCode));
+			response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/event-stream; charset=UTF-8");
+			response.headers().set(HttpHeaderNames.CACHE_CONTROL, "no-cache");
+			response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+			response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+			response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "*");
+			response.headers().set(HttpHeaderNames.ETAG, buildEtag((this.modelName + ":" + responseCode + ":" + System.nanoTime()).getBytes(StandardCharsets.UTF_8)));
+			// 发送响应头
+			this.ctx.writeAndFlush(response);
+			this.headerSent = true;
+		}
+
+		@Override
+		public void onContent(ByteBuf content) {
+			if (this.finished) {
+				return;
 			}
-		});
+			// 检查客户端连接是否仍然活跃
+			if (!this.ctx.channel().isActive()) {
+				logger.info("检测到客户端连接已断开，停止流式响应处理");
+				this.abort();
+				return;
+			}
+			this.stream.feed(content);
+			if (this.stream.isStopped()) {
+				this.stopUpstream();
+				return;
+			}
+			// 客户端读得慢时暂停读取上游，而不是断开
+			if (!this.ctx.channel().isWritable() && !Backpressure.afterWrite(this.ctx.channel(), tracked(this.ctx))) {
+				logger.info("客户端读取过慢，积压数据超过上限，停止流式响应处理");
+				this.abort();
+			}
+		}
+
+		@Override
+		public void onComplete() {
+			untrack(this.ctx);
+			this.stream.finish();
+			this.flusher.flush();
+			// 发送结束标记
+			this.ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT).addListener(new ChannelFutureListener() {
+				@Override
+				public void operationComplete(ChannelFuture future) {
+					ctx.close();
+				}
+			});
+		}
+
+		@Override
+		public void onError(Throwable cause) {
+			this.stream.release();
+			handleUpstreamError(this.ctx, cause, this.headerSent);
+		}
+		
+		private void abort() {
+			this.finished = true;
+			CancelRegistry.getInstance().cancel(this.ctx);
+			this.ctx.close();
+		}
+		
+		/**
+		 * 	流水线提前结束了流：取消上游请求释放slot，结尾已经写出，按正常结束收尾。
+		 */
+		private void stopUpstream() {
+			logger.info("流式响应提前结束，原因: {}", this.stream.getStopReason());
+			this.finished = true;
+			CancelRegistry.getInstance().cancel(this.ctx);
+			this.onComplete();
+		}
+		
+		private void write(ByteBuf buf) {
+			this.chunkCount++;
+			this.flusher.write(buf);
+		}
 	}
 
 //	private static String safeString(JsonObject obj, String key) {
@@ -735,19 +978,7 @@ public class OpenAIService {
 //	}
 
 	private static String buildEtag(byte[] content) {
-		try {
-			MessageDigest digest = MessageDigest.getInstance("SHA-256");
-			byte[] hash = digest.digest(content == null ? new byte[0] : content);
-			StringBuilder sb = new StringBuilder(hash.length * 2 + 2);
-			sb.append('"');
-			for (byte b : hash) {
-				sb.append(String.format("%02x", b));
-			}
-			sb.append('"');
-			return sb.toString();
-		} catch (Exception e) {
-			return "\"" + UUID.randomUUID().toString().replace("-", "") + "\"";
-		}
+		return ParamTool.buildEtag(content);
 	}
 
 	/**
@@ -756,18 +987,21 @@ public class OpenAIService {
 	private void sendOpenAIJsonResponse(ChannelHandlerContext ctx, Object data) {
 		String json = JsonUtil.toJson(data);
 		byte[] content = json.getBytes(StandardCharsets.UTF_8);
+		this.sendOpenAIJsonResponse(ctx, content, buildEtag(content));
+	}
 
+	private void sendOpenAIJsonResponse(ChannelHandlerContext ctx, byte[] content, String etag) {
 		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
 		response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=utf-8");
 		response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.length);
-		response.headers().set(HttpHeaderNames.ETAG, buildEtag(content));
+		response.headers().set(HttpHeaderNames.ETAG, etag);
 		response.headers().set("X-Powered-By", "Express");
 		// 添加CORS头
 		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
 		//response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_METHODS, "GET, POST, PUT, DELETE, OPTIONS");
 		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "*");
 		response.headers().set(HttpHeaderNames.CONNECTION, "alive");
-		response.headers().set(HttpHeaderNames.DATE, this.sdf.format(new Date()));
+		response.headers().set(HttpHeaderNames.DATE, ParamTool.getDate());
 		
 		response.content().writeBytes(content);
 
@@ -783,7 +1017,7 @@ public class OpenAIService {
 	/**
 	 * 发送OpenAI格式的错误响应并清理资源
 	 */
-	private void sendOpenAIErrorResponseWithCleanup(ChannelHandlerContext ctx, int httpStatus, String openAiErrorCode, String message, String param) {
+	public void sendOpenAIErrorResponseWithCleanup(ChannelHandlerContext ctx, int httpStatus, String openAiErrorCode, String message, String param) {
 		String type = "invalid_request_error";
 		// 通过code判断错误类型
 		if(httpStatus == 401) {
@@ -831,7 +1065,7 @@ public class OpenAIService {
 		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_METHODS, "GET, POST, PUT, DELETE, OPTIONS");
 		response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_HEADERS, "*");
 		response.headers().set(HttpHeaderNames.CONNECTION, "alive");
-		response.headers().set(HttpHeaderNames.DATE, this.sdf.format(new Date()));
+		response.headers().set(HttpHeaderNames.DATE, ParamTool.getDate());
 		
 		
 		response.content().writeBytes(content);
@@ -845,22 +1079,20 @@ public class OpenAIService {
 	}
 	
 	/**
-	 * 	当连接断开时调用，用于清理{@link #channelConnectionMap}
+	 * 	客户端连接可写状态变化时调用，写缓冲降到低水位以下后恢复读取上游。
+	 * @param ctx
+	 */
+	public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+		Backpressure.writabilityChanged(ctx.channel(), this.tracked(ctx));
+	}
+	
+	/**
+	 * 	当连接断开时调用，取消正在进行的上游请求
 	 * 
 	 * @param ctx
 	 * @throws Exception
 	 */
 	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-		// 关闭正在进行的链接
-		synchronized (this.channelConnectionMap) {
-			HttpURLConnection conn = this.channelConnectionMap.remove(ctx);
-			if (conn != null) {
-				try {
-					conn.disconnect();
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-			}
-		}
+		CancelRegistry.getInstance().cancel(ctx);
 	}
 }
@@ -0,0 +1,132 @@
+package org.mark.llamacpp.server.stream;
+
+import org.mark.llamacpp.server.tools.JsonUtil;
+import org.mark.llamacpp.server.transcode.JsonPullReader;
+import org.mark.llamacpp.server.transcode.JsonPullReader.Token;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * 	Anthropic格式的事件：content_block_delta里的text和thinking，message_delta里的stop_reason和usage。
+ */
+final class AnthropicChunkReader extends ChunkReader {
+
+	private static final byte[] TYPE = ascii("type");
+	private static final byte[] INDEX = ascii("index");
+	private static final byte[] DELTA = ascii("delta");
+	private static final byte[] USAGE = ascii("usage");
+	private static final byte[] TEXT = ascii("text");
+	private static final byte[] THINKING = ascii("thinking");
+	private static final byte[] STOP_REASON = ascii("stop_reason");
+
+	@Override
+	void read(StreamChunk c) {
+		JsonPullReader r = this.reader.reset(c.buf, c.index, c.length);
+		if (r.next() != Token.BEGIN_OBJECT) {
+			throw fallback();
+		}
+		Token t;
+		while ((t = r.next()) != Token.END_OBJECT) {
+			if (t != Token.NAME) {
+				throw fallback();
+			}
+			if (r.nameIs(TYPE)) {
+				if (r.next() != Token.STRING) {
+					throw fallback();
+				}
+				c.typeStart = r.start();
+				c.typeEnd = r.end();
+			} else if (r.nameIs(INDEX)) {
+				if (r.next() != Token.NUMBER) {
+					throw fallback();
+				}
+				c.blockIndex = r.longValue();
+			} else if (r.nameIs(DELTA)) {
+				t = r.next();
+				if (t == Token.BEGIN_OBJECT) {
+					this.readDelta(c);
+				} else if (t != Token.NULL) {
+					throw fallback();
+				}
+			} else if (r.nameIs(USAGE)) {
+				r.skipValue();
+				if (c.buf.getByte(r.rawStart()) == '{') {
+					c.usageStart = r.rawStart();
+					c.usageEnd = r.rawEnd();
+				}
+			} else {
+				r.skipValue();
+			}
+		}
+	}
+
+	@Override
+	void readJson(StreamChunk c, JsonObject json) {
+		c.initType(JsonUtil.getJsonString(json, "type", null));
+		JsonElement index = json.get("index");
+		if (index != null && index.isJsonPrimitive() && index.getAsJsonPrimitive().isNumber()) {
+			c.blockIndex = index.getAsLong();
+		}
+		JsonObject delta = json.has("delta") && json.get("delta").isJsonObject() ? json.getAsJsonObject("delta") : null;
+		if (delta != null) {
+			c.initContent(JsonUtil.getJsonString(delta, "text", null));
+			c.initReasoning(JsonUtil.getJsonString(delta, "thinking", null));
+			c.initFinishReason(JsonUtil.getJsonString(delta, "stop_reason", null));
+		}
+	}
+
+	@Override
+	void apply(JsonObject json, StreamChunk c) {
+		JsonObject delta = json.has("delta") && json.get("delta").isJsonObject() ? json.getAsJsonObject("delta") : null;
+		if (delta == null) {
+			return;
+		}
+		if (c.isContentChanged()) {
+			delta.addProperty("text", c.content());
+		}
+		if (c.isReasoningChanged()) {
+			delta.addProperty("thinking", c.reasoning());
+		}
+		// 结束原因只出现在message_delta里，其它事件由AnthropicSseWriter在结束时补上
+		if (c.isFinishChanged() && "message_delta".equals(c.type())) {
+			delta.addProperty("stop_reason", c.finishReason());
+		}
+	}
+
+	private void readDelta(StreamChunk c) {
+		JsonPullReader r = this.reader;
+		Token t;
+		while ((t = r.next()) != Token.END_OBJECT) {
+			if (t != Token.NAME) {
+				throw fallback();
+			}
+			if (r.nameIs(TEXT)) {
+				if (r.next() != Token.STRING) {
+					throw fallback();
+				}
+				c.contentStart = r.start();
+				c.contentEnd = r.end();
+			} else if (r.nameIs(THINKING)) {
+				if (r.next() != Token.STRING) {
+					throw fallback();
+				}
+				c.reasoningStart = r.start();
+				c.reasoningEnd = r.end();
+			} else if (r.nameIs(STOP_REASON)) {
+				t = r.next();
+				if (t == Token.STRING) {
+					c.finishStart = r.start() - 1;
+					c.finishEnd = r.end() + 1;
+				} else if (t == Token.NULL) {
+					c.finishStart = r.start();
+					c.finishEnd = r.end();
+				} else {
+					throw fallback();
+				}
+			} else {
+				r.skipValue();
+			}
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package org.mark.llamacpp.server.stream;
+
+import java.nio.charset.StandardCharsets;
+
+import org.mark.llamacpp.server.transcode.ByteBufJsonWriter;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * 	Anthropic格式（/v1/messages）：事件原样转发，不转发[DONE]。
+ * 	提前结束时按协议补上content_block_stop、message_delta和message_stop。
+ */
+public class AnthropicSseWriter extends SseWriter {
+
+	private static final byte[] NAME_TYPE = ByteBufJsonWriter.encodeName("type");
+	private static final byte[] NAME_INDEX = ByteBufJsonWriter.encodeName("index");
+	private static final byte[] NAME_DELTA = ByteBufJsonWriter.encodeName("delta");
+	private static final byte[] NAME_STOP_REASON = ByteBufJsonWriter.encodeName("stop_reason");
+	private static final byte[] NAME_STOP_SEQUENCE = ByteBufJsonWriter.encodeName("stop_sequence");
+	private static final byte[] NAME_USAGE = ByteBufJsonWriter.encodeName("usage");
+	private static final byte[] NAME_OUTPUT_TOKENS = ByteBufJsonWriter.encodeName("output_tokens");
+
+	private static final byte[] EVENT_PREFIX = "event: ".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * 	还没有结束的内容块，-1表示没有。
+	 */
+	private long openBlock = -1;
+
+	/**
+	 * 	content_block_delta的个数，llama-server每个token发一个，提前结束时当作output_tokens。
+	 */
+	private long deltas = 0;
+
+	public AnthropicSseWriter() {
+		super(CRLF, false);
+	}
+
+	@Override
+	public ByteBuf onChunk(StreamChunk chunk, ByteBufAllocator alloc) {
+		String type = chunk.type();
+		if ("content_block_delta".equals(type)) {
+			this.deltas++;
+		} else if ("content_block_start".equals(type)) {
+			this.openBlock = chunk.blockIndex();
+		} else if ("content_block_stop".equals(type)) {
+			this.openBlock = -1;
+		}
+		return super.onChunk(chunk, alloc);
+	}
+
+	@Override
+	public ByteBuf onStop(TokenStream stream, ByteBufAllocator alloc) {
+		ByteBuf out = alloc.buffer(384);
+		out.writeBytes(this.newline);
+		if (this.openBlock >= 0) {
+			this.beginEvent(out, "content_block_stop");
+			this.writer.name(NAME_INDEX).value(this.openBlock);
+			this.endEvent(out);
+			this.openBlock = -1;
+		}
+		String sequence = stream.getStopSequence();
+		String reason = TokenStream.LENGTH.equals(stream.getStopReason()) ? "max_tokens" : sequence != null ? "stop_sequence" : "end_turn";
+		this.beginEvent(out, "message_delta");
+		this.writer.name(NAME_DELTA).beginObject();
+		this.writer.name(NAME_STOP_REASON).value(reason);
+		this.writer.name(NAME_STOP_SEQUENCE).value(sequence);
+		this.writer.endObject();
+		this.writer.name(NAME_USAGE).beginObject().name(NAME_OUTPUT_TOKENS).value(this.deltas).endObject();
+		this.endEvent(out);
+		this.beginEvent(out, "message_stop");
+		this.endEvent(out);
+		return out;
+	}
+
+	private void beginEvent(ByteBuf out, String type) {
+		out.writeBytes(EVENT_PREFIX).writeCharSequence(type, StandardCharsets.US_ASCII);
+		out.writeBytes(this.newline).writeBytes(DATA_PREFIX);
+		this.writer.target(out).beginObject().name(NAME_TYPE).value(type);
+	}
+
+	private void endEvent(ByteBuf out) {
+		this.writer.endObject();
+		out.writeBytes(this.newline).writeBytes(this.newline);
+	}
+}
@@ -0,0 +1,86 @@
+package org.mark.llamacpp.server.stream;
+
+import java.nio.charset.StandardCharsets;
+
+import org.mark.llamacpp.server.transcode.JsonPullReader;
+
+import com.google.gson.JsonObject;
+
+/**
+ * 	从上游的一行data里读出流水线需要的字段，每种上游格式一个实现，每个流一个实例。
+ * 	快速路径用{@link JsonPullReader}在原始字节上记下字段位置；遇到不认识的结构时抛出{@link #fallback()}，改用完整解析的结果。
+ */
+public abstract class ChunkReader {
+
+	protected final JsonPullReader reader = new JsonPullReader();
+
+	/**
+	 * 	llama-server的OpenAI格式聊天补全（/v1/chat/completions）。
+	 * @return
+	 */
+	public static ChunkReader openAIChat() {
+		return new OpenAIChunkReader(false);
+	}
+
+	/**
+	 * 	llama-server的OpenAI格式文本补全（/v1/completions），内容在choices[0].text。
+	 * @return
+	 */
+	public static ChunkReader openAIText() {
+		return new OpenAIChunkReader(true);
+	}
+
+	/**
+	 * 	llama-server的Anthropic格式（/v1/messages）。
+	 * @return
+	 */
+	public static ChunkReader anthropic() {
+		return new AnthropicChunkReader();
+	}
+
+	/**
+	 * 	快速读取，只记录位置，不修改chunk以外的状态。
+	 * @param chunk
+	 */
+	abstract void read(StreamChunk chunk);
+
+	/**
+	 * 	从完整解析的对象里读取字段，用{@link StreamChunk}的init方法填入。
+	 * @param chunk
+	 * @param json
+	 */
+	abstract void readJson(StreamChunk chunk, JsonObject json);
+
+	/**
+	 * 	把阶段对chunk字段的修改写回json，之后会重新序列化。
+	 * @param json
+	 * @param chunk
+	 */
+	abstract void apply(JsonObject json, StreamChunk chunk);
+
+	/**
+	 * 	放弃快速路径。
+	 * @return
+	 */
+	protected static FallbackException fallback() {
+		return FallbackException.INSTANCE;
+	}
+
+	protected static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * 	快速路径无法处理，不带堆栈，反复抛出也没有开销。
+	 */
+	static final class FallbackException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		private static final FallbackException INSTANCE = new FallbackException();
+
+		private FallbackException() {
+			super("fallback", null, false, false);
+		}
+	}
+}
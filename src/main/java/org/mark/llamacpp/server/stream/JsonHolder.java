@@ -0,0 +1,79 @@
+package org.mark.llamacpp.server.stream;
+
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * 	保存最近一次出现的JSON值（timings、usage之类），平时只复制原始字节，用到时才解析。
+ * 	缓冲是非池化的，可以反复使用，不需要释放。
+ */
+public final class JsonHolder {
+
+	private ByteBuf raw;
+
+	private JsonElement value;
+
+	/**
+	 * 	保存src的[start, end)。
+	 * @param src
+	 * @param start
+	 * @param end
+	 */
+	public void keep(ByteBuf src, int start, int end) {
+		int length = end - start;
+		if (this.raw == null) {
+			this.raw = Unpooled.buffer(Math.max(256, length));
+		}
+		this.raw.clear();
+		this.raw.writeBytes(src, start, length);
+		this.value = null;
+	}
+
+	/**
+	 * 	保存已经解析好的值。
+	 * @param value
+	 */
+	public void keep(JsonElement value) {
+		this.value = value;
+		if (this.raw != null) {
+			this.raw.clear();
+		}
+	}
+
+	public boolean isEmpty() {
+		return this.value == null && (this.raw == null || !this.raw.isReadable());
+	}
+
+	/**
+	 * 	保存的值，没有或者解析失败时返回null。
+	 * @return
+	 */
+	public JsonElement get() {
+		if (this.value == null && this.raw != null && this.raw.isReadable()) {
+			try {
+				this.value = JsonParser.parseString(this.raw.toString(StandardCharsets.UTF_8));
+			} catch (Exception e) {
+				this.value = null;
+			}
+			this.raw.clear();
+		}
+		return this.value;
+	}
+
+	public JsonObject getObject() {
+		JsonElement el = this.get();
+		return el != null && el.isJsonObject() ? el.getAsJsonObject() : null;
+	}
+
+	public JsonArray getArray() {
+		JsonElement el = this.get();
+		return el != null && el.isJsonArray() ? el.getAsJsonArray() : null;
+	}
+}
@@ -0,0 +1,292 @@
+package org.mark.llamacpp.server.stream;
+
+import org.mark.llamacpp.server.tools.JsonUtil;
+import org.mark.llamacpp.server.transcode.JsonPullReader;
+import org.mark.llamacpp.server.transcode.JsonPullReader.Token;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * 	OpenAI格式的数据块。只看第一个choice；聊天补全有delta时忽略message。
+ */
+final class OpenAIChunkReader extends ChunkReader {
+
+	private static final byte[] ID = ascii("id");
+	private static final byte[] CREATED = ascii("created");
+	private static final byte[] TIMINGS = ascii("timings");
+	private static final byte[] USAGE = ascii("usage");
+	private static final byte[] CHOICES = ascii("choices");
+	private static final byte[] DELTA = ascii("delta");
+	private static final byte[] MESSAGE = ascii("message");
+	private static final byte[] CONTENT = ascii("content");
+	private static final byte[] REASONING_CONTENT = ascii("reasoning_content");
+	private static final byte[] TOOL_CALLS = ascii("tool_calls");
+	private static final byte[] FUNCTION_CALL = ascii("function_call");
+	private static final byte[] TEXT = ascii("text");
+	private static final byte[] FINISH_REASON = ascii("finish_reason");
+
+	/**
+	 * 	true：文本补全，内容在choices[0].text。
+	 */
+	private final boolean text;
+
+	private boolean sawDelta;
+
+	OpenAIChunkReader(boolean text) {
+		this.text = text;
+	}
+
+	@Override
+	void read(StreamChunk c) {
+		JsonPullReader r = this.reader.reset(c.buf, c.index, c.length);
+		if (r.next() != Token.BEGIN_OBJECT) {
+			throw fallback();
+		}
+		Token t;
+		while ((t = r.next()) != Token.END_OBJECT) {
+			if (t != Token.NAME) {
+				throw fallback();
+			}
+			if (r.nameIs(CHOICES)) {
+				this.readChoices(c);
+			} else if (r.nameIs(ID)) {
+				if (r.next() == Token.STRING) {
+					c.idStart = r.start();
+					c.idEnd = r.end();
+				} else if (r.token() != Token.NULL) {
+					throw fallback();
+				}
+			} else if (r.nameIs(CREATED)) {
+				if (r.next() == Token.NUMBER) {
+					c.createdStart = r.start();
+					c.createdEnd = r.end();
+				} else if (r.token() != Token.NULL) {
+					throw fallback();
+				}
+			} else if (r.nameIs(TIMINGS)) {
+				r.skipValue();
+				if (c.buf.getByte(r.rawStart()) == '{') {
+					c.timingsStart = r.rawStart();
+					c.timingsEnd = r.rawEnd();
+				}
+			} else if (r.nameIs(USAGE)) {
+				r.skipValue();
+				if (c.buf.getByte(r.rawStart()) == '{') {
+					c.usageStart = r.rawStart();
+					c.usageEnd = r.rawEnd();
+				}
+			} else {
+				r.skipValue();
+			}
+		}
+	}
+
+	@Override
+	void readJson(StreamChunk c, JsonObject json) {
+		c.initId(JsonUtil.getJsonString(json, "id", null));
+		JsonElement created = json.get("created");
+		if (created != null && created.isJsonPrimitive() && created.getAsJsonPrimitive().isNumber()) {
+			c.initCreated(created.getAsLong());
+		}
+		JsonObject c0 = firstChoice(json);
+		if (c0 == null) {
+			return;
+		}
+		if (this.text) {
+			c.initContent(string(c0.get("text")));
+		} else {
+			JsonObject msg = message(c0, false);
+			if (msg != null) {
+				c.initContent(string(msg.get("content")));
+				c.initReasoning(string(msg.get("reasoning_content")));
+				c.toolCalls = isPresent(msg.get("tool_calls")) || isPresent(msg.get("function_call"));
+			}
+		}
+		c.initFinishReason(string(c0.get("finish_reason")));
+	}
+
+	@Override
+	void apply(JsonObject json, StreamChunk c) {
+		JsonObject c0 = firstChoice(json);
+		if (c0 == null) {
+			return;
+		}
+		if (this.text) {
+			if (c.isContentChanged()) {
+				c0.addProperty("text", c.content());
+			}
+		} else if (c.isContentChanged() || c.isReasoningChanged()) {
+			JsonObject msg = message(c0, true);
+			if (c.isContentChanged()) {
+				msg.addProperty("content", c.content());
+			}
+			if (c.isReasoningChanged()) {
+				msg.addProperty("reasoning_content", c.reasoning());
+			}
+		}
+		if (c.isFinishChanged()) {
+			c0.addProperty("finish_reason", c.finishReason());
+		}
+	}
+
+	//================================================================================================
+
+	private void readChoices(StreamChunk c) {
+		JsonPullReader r = this.reader;
+		Token t = r.next();
+		if (t == Token.NULL) {
+			return;
+		}
+		if (t != Token.BEGIN_ARRAY) {
+			throw fallback();
+		}
+		int start = r.start();
+		t = r.next();
+		if (t != Token.END_ARRAY) {
+			if (t != Token.BEGIN_OBJECT) {
+				throw fallback();
+			}
+			this.sawDelta = false;
+			this.readChoice(c);
+			while ((t = r.next()) != Token.END_ARRAY) {
+				if (t == Token.BEGIN_OBJECT || t == Token.BEGIN_ARRAY) {
+					r.skipContainer();
+				} else if (t == Token.END) {
+					throw fallback();
+				}
+			}
+		}
+		c.choicesStart = start;
+		c.choicesEnd = r.end();
+	}
+
+	private void readChoice(StreamChunk c) {
+		JsonPullReader r = this.reader;
+		Token t;
+		while ((t = r.next()) != Token.END_OBJECT) {
+			if (t != Token.NAME) {
+				throw fallback();
+			}
+			if (r.nameIs(FINISH_REASON)) {
+				t = r.next();
+				if (t == Token.STRING) {
+					c.finishStart = r.start() - 1;
+					c.finishEnd = r.end() + 1;
+				} else if (t == Token.NULL) {
+					c.finishStart = r.start();
+					c.finishEnd = r.end();
+				} else {
+					throw fallback();
+				}
+			} else if (this.text && r.nameIs(TEXT)) {
+				if (r.next() == Token.STRING) {
+					c.contentStart = r.start();
+					c.contentEnd = r.end();
+				} else if (r.token() != Token.NULL) {
+					throw fallback();
+				}
+			} else if (!this.text && r.nameIs(DELTA)) {
+				t = r.next();
+				if (t == Token.BEGIN_OBJECT) {
+					this.sawDelta = true;
+					c.contentStart = c.reasoningStart = -1;
+					c.toolCalls = false;
+					this.readMessage(c);
+				} else if (t != Token.NULL) {
+					throw fallback();
+				}
+			} else if (!this.text && r.nameIs(MESSAGE)) {
+				t = r.next();
+				if (t == Token.BEGIN_OBJECT) {
+					if (this.sawDelta) {
+						r.skipContainer();
+					} else {
+						this.readMessage(c);
+					}
+				} else if (t != Token.NULL) {
+					throw fallback();
+				}
+			} else {
+				r.skipValue();
+			}
+		}
+	}
+
+	/**
+	 * 	delta或者message对象。
+	 */
+	private void readMessage(StreamChunk c) {
+		JsonPullReader r = this.reader;
+		Token t;
+		while ((t = r.next()) != Token.END_OBJECT) {
+			if (t != Token.NAME) {
+				throw fallback();
+			}
+			if (r.nameIs(CONTENT)) {
+				if (r.next() == Token.STRING) {
+					c.contentStart = r.start();
+					c.contentEnd = r.end();
+				} else if (r.token() != Token.NULL) {
+					throw fallback();
+				}
+			} else if (r.nameIs(REASONING_CONTENT)) {
+				if (r.next() == Token.STRING) {
+					c.reasoningStart = r.start();
+					c.reasoningEnd = r.end();
+				} else if (r.token() != Token.NULL) {
+					throw fallback();
+				}
+			} else if (r.nameIs(TOOL_CALLS) || r.nameIs(FUNCTION_CALL)) {
+				t = r.next();
+				if (t != Token.NULL) {
+					c.toolCalls = true;
+					if (t == Token.BEGIN_OBJECT || t == Token.BEGIN_ARRAY) {
+						r.skipContainer();
+					}
+				}
+			} else {
+				r.skipValue();
+			}
+		}
+	}
+
+	private static JsonObject firstChoice(JsonObject json) {
+		JsonElement choices = json.get("choices");
+		if (choices == null || !choices.isJsonArray()) {
+			return null;
+		}
+		JsonArray arr = choices.getAsJsonArray();
+		return arr.size() > 0 && arr.get(0).isJsonObject() ? arr.get(0).getAsJsonObject() : null;
+	}
+
+	/**
+	 * 	choice里的delta，没有delta时用message。
+	 * @param create 都没有时是否创建delta
+	 */
+	private static JsonObject message(JsonObject c0, boolean create) {
+		JsonElement delta = c0.get("delta");
+		if (delta != null && delta.isJsonObject()) {
+			return delta.getAsJsonObject();
+		}
+		JsonElement message = c0.get("message");
+		if (message != null && message.isJsonObject()) {
+			return message.getAsJsonObject();
+		}
+		if (!create) {
+			return null;
+		}
+		JsonObject d = new JsonObject();
+		c0.add("delta", d);
+		return d;
+	}
+
+	private static String string(JsonElement el) {
+		return el == null || el.isJsonNull() ? null : JsonUtil.jsonValueToString(el);
+	}
+
+	private static boolean isPresent(JsonElement el) {
+		return el != null && !el.isJsonNull();
+	}
+}
@@ -0,0 +1,83 @@
+package org.mark.llamacpp.server.stream;
+
+import java.nio.charset.StandardCharsets;
+
+import org.mark.llamacpp.server.transcode.ByteBufJsonWriter;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * 	上游和客户端是同一种SSE格式时使用：数据块没有被修改就原样复制，其它行也原样转发。
+ */
+public class SseWriter implements StreamWriter {
+
+	protected static final byte[] DATA_PREFIX = "data: ".getBytes(StandardCharsets.US_ASCII);
+
+	protected static final byte[] LF = { '\n' };
+
+	protected static final byte[] CRLF = { '\r', '\n' };
+
+	private static final byte[] DONE = "data: [DONE]".getBytes(StandardCharsets.US_ASCII);
+
+	protected final ByteBufJsonWriter writer = new ByteBufJsonWriter();
+
+	/**
+	 * 	输出的换行符。
+	 */
+	protected final byte[] newline;
+
+	/**
+	 * 	是否转发上游的[DONE]。
+	 */
+	private final boolean forwardDone;
+
+	/**
+	 * 	OpenAI格式。
+	 * @return
+	 */
+	public static SseWriter openAI() {
+		return new SseWriter(LF, true);
+	}
+
+	protected SseWriter(byte[] newline, boolean forwardDone) {
+		this.newline = newline;
+		this.forwardDone = forwardDone;
+	}
+
+	@Override
+	public ByteBuf onChunk(StreamChunk chunk, ByteBufAllocator alloc) {
+		ByteBuf out = alloc.buffer(DATA_PREFIX.length + chunk.length() + this.newline.length + (chunk.isChanged() ? 64 : 0));
+		out.writeBytes(DATA_PREFIX);
+		chunk.writeTo(out, this.writer);
+		out.writeBytes(this.newline);
+		return out;
+	}
+
+	@Override
+	public ByteBuf onOtherLine(ByteBuf line, int index, int length, ByteBufAllocator alloc) {
+		ByteBuf out = alloc.buffer(length + this.newline.length);
+		out.writeBytes(line, index, length).writeBytes(this.newline);
+		return out;
+	}
+
+	@Override
+	public ByteBuf onDone(ByteBufAllocator alloc) {
+		if (!this.forwardDone) {
+			return null;
+		}
+		ByteBuf out = alloc.buffer(DONE.length + this.newline.length);
+		out.writeBytes(DONE).writeBytes(this.newline);
+		return out;
+	}
+
+	/**
+	 * 	结束当前事件，再补一个[DONE]。
+	 */
+	@Override
+	public ByteBuf onStop(TokenStream stream, ByteBufAllocator alloc) {
+		ByteBuf out = alloc.buffer(DONE.length + this.newline.length * 3);
+		out.writeBytes(this.newline).writeBytes(DONE).writeBytes(this.newline).writeBytes(this.newline);
+		return out;
+	}
+}
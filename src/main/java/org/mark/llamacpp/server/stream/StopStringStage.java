@@ -0,0 +1,119 @@
+package org.mark.llamacpp.server.stream;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+
+/**
+ * 	停止词：输出里出现任意一个停止词时截断到它之前，以finish_reason=stop结束流。
+ * 	停止词可能被拆在几个数据块里，所以文本末尾可能是停止词开头的部分先留着，下一个数据块再决定；
+ * 	留下的最多是最长停止词的长度减一，带结束原因的数据块会把它补回去。
+ */
+public class StopStringStage implements StreamStage {
+
+	private final String[] stops;
+
+	/**
+	 * 	还没有输出的文本。
+	 */
+	private final StringBuilder pending = new StringBuilder();
+
+	public StopStringStage(List<String> stops) {
+		this.stops = stops.toArray(new String[0]);
+	}
+
+	/**
+	 * 	请求里的stop或stop_sequences，没有停止词时返回null。
+	 * @param stop 字符串或字符串数组
+	 * @return
+	 */
+	public static StopStringStage of(JsonElement stop) {
+		List<String> stops = parse(stop);
+		return stops.isEmpty() ? null : new StopStringStage(stops);
+	}
+
+	/**
+	 * 	读取停止词，忽略空字符串，不去掉首尾空白。
+	 * @param stop
+	 * @return
+	 */
+	public static List<String> parse(JsonElement stop) {
+		List<String> out = new ArrayList<>();
+		if (stop == null || stop.isJsonNull()) {
+			return out;
+		}
+		if (stop.isJsonPrimitive()) {
+			String s = stop.getAsString();
+			if (!s.isEmpty()) {
+				out.add(s);
+			}
+		} else if (stop.isJsonArray()) {
+			JsonArray arr = stop.getAsJsonArray();
+			for (int i = 0; i < arr.size(); i++) {
+				JsonElement el = arr.get(i);
+				if (el != null && el.isJsonPrimitive() && !el.getAsString().isEmpty()) {
+					out.add(el.getAsString());
+				}
+			}
+		}
+		return out;
+	}
+
+	@Override
+	public void onChunk(StreamChunk chunk, TokenStream stream) {
+		boolean last = chunk.finishReason() != null;
+		if (!chunk.hasContent() && (this.pending.length() == 0 || !last)) {
+			return;
+		}
+		String piece = chunk.content();
+		String text;
+		if (this.pending.length() == 0) {
+			text = piece;
+		} else {
+			text = this.pending.append(piece == null ? "" : piece).toString();
+			this.pending.setLength(0);
+		}
+		// 最早出现的停止词
+		int hit = -1;
+		String matched = null;
+		for (String s : this.stops) {
+			int p = text.indexOf(s);
+			if (p >= 0 && (hit < 0 || p < hit)) {
+				hit = p;
+				matched = s;
+			}
+		}
+		if (hit >= 0) {
+			chunk.setContent(text.substring(0, hit));
+			chunk.setFinishReason(TokenStream.STOP);
+			stream.stop(TokenStream.STOP, matched);
+			return;
+		}
+		int keep = last ? 0 : this.partialSuffix(text);
+		String emit = keep == 0 ? text : text.substring(0, text.length() - keep);
+		if (keep > 0) {
+			this.pending.append(text, text.length() - keep, text.length());
+		}
+		if (emit != piece) {
+			chunk.setContent(emit);
+		}
+	}
+
+	/**
+	 * 	text末尾是某个停止词开头的最长长度。
+	 */
+	private int partialSuffix(String text) {
+		int best = 0;
+		for (String s : this.stops) {
+			for (int k = Math.min(text.length(), s.length() - 1); k > best; k--) {
+				if (text.regionMatches(text.length() - k, s, 0, k)) {
+					best = k;
+					break;
+				}
+			}
+		}
+		return best;
+	}
+}
@@ -0,0 +1,494 @@
+package org.mark.llamacpp.server.stream;
+
+import java.nio.charset.StandardCharsets;
+
+import org.mark.llamacpp.server.tools.JsonUtil;
+import org.mark.llamacpp.server.transcode.ByteBufJsonWriter;
+import org.mark.llamacpp.server.transcode.JsonPullReader;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * 	流水线里的一个数据块，对应上游的一行data。
+ * 	{@link ChunkReader}只记下各字段在原始字节里的位置，字段值在用到时才解码。
+ * 	阶段通过setter修改内容：没有修改的数据块原样输出，只改了字符串字段时直接在原始字节上替换，结构性的修改才重新序列化。
+ * 	每个流复用一个实例，只在上游的EventLoop里使用。
+ */
+public final class StreamChunk {
+
+	private final ChunkReader reader;
+
+	private final JsonPullReader scratch = new JsonPullReader();
+
+	ByteBuf buf;
+
+	int index;
+
+	int length;
+
+	// 字段在原始字节里的位置，-1表示没有。字符串是不含引号的范围，finish_reason是原始值（可能是null）
+	int contentStart, contentEnd;
+	int reasoningStart, reasoningEnd;
+	int finishStart, finishEnd;
+	int idStart, idEnd;
+	int createdStart, createdEnd;
+	int typeStart, typeEnd;
+	int timingsStart, timingsEnd;
+	int usageStart, usageEnd;
+	int choicesStart, choicesEnd;
+
+	/**
+	 * 	Anthropic事件的index。
+	 */
+	long blockIndex;
+
+	/**
+	 * 	带有工具调用。
+	 */
+	boolean toolCalls;
+
+	/**
+	 * 	快速读取失败，字段值来自完整解析的{@link #json}。
+	 */
+	private boolean fallback;
+
+	/**
+	 * 	不是合法的JSON对象。
+	 */
+	private boolean invalid;
+
+	private JsonObject json;
+
+	private boolean parsed;
+
+	private boolean dirty;
+
+	private boolean dropped;
+
+	private String content;
+	private boolean contentKnown;
+	private boolean contentChanged;
+
+	private String reasoning;
+	private boolean reasoningKnown;
+	private boolean reasoningChanged;
+
+	private String finishReason;
+	private boolean finishKnown;
+	private boolean finishChanged;
+
+	private String id;
+	private boolean idKnown;
+
+	private Long created;
+	private boolean createdKnown;
+
+	private String type;
+	private boolean typeKnown;
+
+	StreamChunk(ChunkReader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * 	开始处理buf的[index, index + length)，即data:后面的JSON。
+	 */
+	void reset(ByteBuf buf, int index, int length) {
+		this.buf = buf;
+		this.index = index;
+		this.length = length;
+		this.contentStart = this.reasoningStart = this.finishStart = this.idStart = this.createdStart = -1;
+		this.typeStart = this.timingsStart = this.usageStart = this.choicesStart = -1;
+		this.blockIndex = -1;
+		this.toolCalls = false;
+		this.fallback = false;
+		this.invalid = false;
+		this.json = null;
+		this.parsed = false;
+		this.dirty = false;
+		this.dropped = false;
+		this.content = this.reasoning = this.finishReason = this.id = this.type = null;
+		this.created = null;
+		this.contentKnown = this.contentChanged = false;
+		this.reasoningKnown = this.reasoningChanged = false;
+		this.finishKnown = this.finishChanged = false;
+		this.idKnown = this.createdKnown = this.typeKnown = false;
+	}
+
+	/**
+	 * 	改用完整解析的结果，json为null表示这一行不是JSON对象。
+	 */
+	void fallback(JsonObject json) {
+		this.fallback = true;
+		this.parsed = true;
+		this.json = json;
+		this.invalid = json == null;
+		this.contentKnown = this.reasoningKnown = this.finishKnown = this.idKnown = this.createdKnown = this.typeKnown = true;
+	}
+
+	// 完整解析时由ChunkReader填入
+	void initContent(String v) { this.content = v; }
+	void initReasoning(String v) { this.reasoning = v; }
+	void initFinishReason(String v) { this.finishReason = v; }
+	void initId(String v) { this.id = v; }
+	void initCreated(Long v) { this.created = v; }
+	void initType(String v) { this.type = v; }
+
+	/**
+	 * 	原始数据所在的缓冲，下标见{@link #index()}。
+	 * @return
+	 */
+	public ByteBuf buffer() {
+		return this.buf;
+	}
+
+	public int index() {
+		return this.index;
+	}
+
+	public int length() {
+		return this.length;
+	}
+
+	/**
+	 * 	是否是合法的JSON对象。不合法的数据行没有任何字段，按原样输出。
+	 * @return
+	 */
+	public boolean isValid() {
+		return !this.invalid;
+	}
+
+	/**
+	 * 	是否经过了完整解析。
+	 * @return
+	 */
+	public boolean isFallback() {
+		return this.fallback;
+	}
+
+	//================================================================================================
+
+	/**
+	 * 	本次生成的文本：聊天补全的delta.content、文本补全的text、Anthropic的text_delta。没有时返回null。
+	 * @return
+	 */
+	public String content() {
+		if (!this.contentKnown) {
+			this.contentKnown = true;
+			this.content = this.contentStart < 0 ? null : this.decode(this.contentStart, this.contentEnd);
+		}
+		return this.content;
+	}
+
+	public void setContent(String content) {
+		this.content = content;
+		this.contentKnown = true;
+		this.contentChanged = true;
+	}
+
+	public boolean hasContent() {
+		if (!this.contentKnown) {
+			return this.contentStart >= 0 && this.contentEnd > this.contentStart;
+		}
+		return this.content != null && !this.content.isEmpty();
+	}
+
+	/**
+	 * 	文本在原始字节里的起始下标（不含引号），被修改过或者没有时返回-1，可以直接复制转义好的字节。
+	 * @return
+	 */
+	public int contentStart() {
+		return this.contentChanged ? -1 : this.contentStart;
+	}
+
+	public int contentEnd() {
+		return this.contentEnd;
+	}
+
+	/**
+	 * 	把文本解码后追加到sb。
+	 * @param sb
+	 */
+	public void appendContent(StringBuilder sb) {
+		if (this.contentKnown) {
+			if (this.content != null) {
+				sb.append(this.content);
+			}
+		} else if (this.contentStart >= 0) {
+			this.scratch.reset(this.buf, this.contentStart - 1, this.contentEnd - this.contentStart + 2).next();
+			this.scratch.appendString(sb);
+		}
+	}
+
+	/**
+	 * 	思考内容：reasoning_content或Anthropic的thinking_delta。没有时返回null。
+	 * @return
+	 */
+	public String reasoning() {
+		if (!this.reasoningKnown) {
+			this.reasoningKnown = true;
+			this.reasoning = this.reasoningStart < 0 ? null : this.decode(this.reasoningStart, this.reasoningEnd);
+		}
+		return this.reasoning;
+	}
+
+	public void setReasoning(String reasoning) {
+		this.reasoning = reasoning;
+		this.reasoningKnown = true;
+		this.reasoningChanged = true;
+	}
+
+	public boolean hasReasoning() {
+		if (!this.reasoningKnown) {
+			return this.reasoningStart >= 0 && this.reasoningEnd > this.reasoningStart;
+		}
+		return this.reasoning != null && !this.reasoning.isEmpty();
+	}
+
+	/**
+	 * 	思考内容是否只有空白字符。
+	 * @return
+	 */
+	public boolean isReasoningBlank() {
+		if (!this.reasoningKnown) {
+			this.scratch.reset(this.buf, this.reasoningStart - 1, this.reasoningEnd - this.reasoningStart + 2).next();
+			return this.scratch.isBlankString();
+		}
+		return this.reasoning == null || this.reasoning.isBlank();
+	}
+
+	public int reasoningStart() {
+		return this.reasoningChanged ? -1 : this.reasoningStart;
+	}
+
+	public int reasoningEnd() {
+		return this.reasoningEnd;
+	}
+
+	/**
+	 * 	结束原因：finish_reason或Anthropic的stop_reason。没有或者为null时返回null。
+	 * @return
+	 */
+	public String finishReason() {
+		if (!this.finishKnown) {
+			this.finishKnown = true;
+			if (this.finishStart >= 0 && this.buf.getByte(this.finishStart) == '"') {
+				this.finishReason = this.decode(this.finishStart + 1, this.finishEnd - 1);
+			}
+		}
+		return this.finishReason;
+	}
+
+	public void setFinishReason(String finishReason) {
+		this.finishReason = finishReason;
+		this.finishKnown = true;
+		this.finishChanged = true;
+	}
+
+	public String id() {
+		if (!this.idKnown) {
+			this.idKnown = true;
+			this.id = this.idStart < 0 ? null : this.decode(this.idStart, this.idEnd);
+		}
+		return this.id;
+	}
+
+	public Long created() {
+		if (!this.createdKnown) {
+			this.createdKnown = true;
+			if (this.createdStart >= 0) {
+				this.scratch.reset(this.buf, this.createdStart, this.createdEnd - this.createdStart).next();
+				this.created = Long.valueOf(this.scratch.longValue());
+			}
+		}
+		return this.created;
+	}
+
+	/**
+	 * 	Anthropic事件的type。
+	 * @return
+	 */
+	public String type() {
+		if (!this.typeKnown) {
+			this.typeKnown = true;
+			this.type = this.typeStart < 0 ? null : this.decode(this.typeStart, this.typeEnd);
+		}
+		return this.type;
+	}
+
+	/**
+	 * 	Anthropic事件的index，没有时返回-1。
+	 * @return
+	 */
+	public long blockIndex() {
+		return this.blockIndex;
+	}
+
+	/**
+	 * 	是否带有工具调用（tool_calls或function_call不为null）。
+	 * @return
+	 */
+	public boolean hasToolCalls() {
+		return this.toolCalls;
+	}
+
+	/**
+	 * 	把timings保存到holder。
+	 * @param holder
+	 * @return 这个数据块里有没有timings
+	 */
+	public boolean keepTimings(JsonHolder holder) {
+		return this.keep(holder, this.timingsStart, this.timingsEnd, "timings");
+	}
+
+	public boolean keepUsage(JsonHolder holder) {
+		return this.keep(holder, this.usageStart, this.usageEnd, "usage");
+	}
+
+	public boolean keepChoices(JsonHolder holder) {
+		return this.keep(holder, this.choicesStart, this.choicesEnd, "choices");
+	}
+
+	//================================================================================================
+
+	/**
+	 * 	解析后的JSON对象，第一次调用时才解析。修改之后需要调用{@link #markDirty()}。
+	 * @return 不是合法的JSON对象时返回null
+	 */
+	public JsonObject json() {
+		if (!this.parsed) {
+			this.parsed = true;
+			this.json = JsonUtil.tryParseObject(this.buf.toString(this.index, this.length, StandardCharsets.UTF_8));
+		}
+		return this.json;
+	}
+
+	/**
+	 * 	{@link #json()}返回的对象被修改过，输出时需要重新序列化。
+	 */
+	public void markDirty() {
+		this.dirty = true;
+	}
+
+	/**
+	 * 	不输出这个数据块，后面的阶段也不再处理。
+	 */
+	public void drop() {
+		this.dropped = true;
+	}
+
+	public boolean isDropped() {
+		return this.dropped;
+	}
+
+	/**
+	 * 	是否被修改过。
+	 * @return
+	 */
+	public boolean isChanged() {
+		return this.dirty || this.contentChanged || this.reasoningChanged || this.finishChanged;
+	}
+
+	/**
+	 * 	写出这个数据块的JSON（不含data:前缀）。
+	 * @param out
+	 * @param writer
+	 */
+	public void writeTo(ByteBuf out, ByteBufJsonWriter writer) {
+		if (this.invalid || !this.isChanged()) {
+			out.writeBytes(this.buf, this.index, this.length);
+			return;
+		}
+		if (!this.dirty && (!this.contentChanged || this.contentStart >= 0)
+				&& (!this.reasoningChanged || this.reasoningStart >= 0)
+				&& (!this.finishChanged || this.finishStart >= 0)) {
+			this.splice(out, writer);
+			return;
+		}
+		JsonObject j = this.json();
+		if (j == null) {
+			out.writeBytes(this.buf, this.index, this.length);
+			return;
+		}
+		this.reader.apply(j, this);
+		writer.target(out).value(j);
+	}
+
+	boolean isContentChanged() {
+		return this.contentChanged;
+	}
+
+	boolean isReasoningChanged() {
+		return this.reasoningChanged;
+	}
+
+	boolean isFinishChanged() {
+		return this.finishChanged;
+	}
+
+	//================================================================================================
+
+	/**
+	 * 	在原始字节上替换被修改的字符串字段，其它部分原样复制。
+	 */
+	private void splice(ByteBuf out, ByteBufJsonWriter writer) {
+		int[] starts = new int[3];
+		int[] ends = new int[3];
+		String[] values = new String[3];
+		int n = 0;
+		if (this.contentChanged) {
+			starts[n] = this.contentStart - 1;
+			ends[n] = this.contentEnd + 1;
+			values[n++] = this.content;
+		}
+		if (this.reasoningChanged) {
+			starts[n] = this.reasoningStart - 1;
+			ends[n] = this.reasoningEnd + 1;
+			values[n++] = this.reasoning;
+		}
+		if (this.finishChanged) {
+			starts[n] = this.finishStart;
+			ends[n] = this.finishEnd;
+			values[n++] = this.finishReason;
+		}
+		// 按位置排序
+		for (int i = 1; i < n; i++) {
+			for (int k = i; k > 0 && starts[k] < starts[k - 1]; k--) {
+				int s = starts[k]; starts[k] = starts[k - 1]; starts[k - 1] = s;
+				int e = ends[k]; ends[k] = ends[k - 1]; ends[k - 1] = e;
+				String v = values[k]; values[k] = values[k - 1]; values[k - 1] = v;
+			}
+		}
+		int p = this.index;
+		writer.target(out);
+		for (int i = 0; i < n; i++) {
+			out.writeBytes(this.buf, p, starts[i] - p);
+			writer.value(values[i]);
+			p = ends[i];
+		}
+		out.writeBytes(this.buf, p, this.index + this.length - p);
+	}
+
+	private boolean keep(JsonHolder holder, int start, int end, String key) {
+		if (start >= 0) {
+			holder.keep(this.buf, start, end);
+			return true;
+		}
+		if (this.fallback && this.json != null) {
+			JsonElement el = this.json.get(key);
+			if (el != null && (el.isJsonObject() || el.isJsonArray())) {
+				holder.keep(el);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private String decode(int start, int end) {
+		this.scratch.reset(this.buf, start - 1, end - start + 2).next();
+		return this.scratch.stringValue();
+	}
+}
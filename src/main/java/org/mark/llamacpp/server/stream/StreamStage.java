@@ -0,0 +1,23 @@
+package org.mark.llamacpp.server.stream;
+
+/**
+ * 	流水线里的一个处理阶段。每个流一个实例，按添加的顺序处理每个数据块，只在上游的EventLoop里调用。
+ * 	每次处理的开销应该只和当前数据块的大小有关，需要跨数据块的状态（例如被拆开的停止词）只保留最少的部分。
+ */
+public interface StreamStage {
+
+	/**
+	 * 	处理一个数据块。可以修改内容、{@link StreamChunk#drop()}丢弃，或者{@link TokenStream#stop(String, String)}提前结束整个流。
+	 * @param chunk
+	 * @param stream
+	 */
+	public void onChunk(StreamChunk chunk, TokenStream stream);
+
+	/**
+	 * 	流结束（正常结束、提前结束或者出错），只调用一次。
+	 * @param stream
+	 */
+	public default void onEnd(TokenStream stream) {
+
+	}
+}
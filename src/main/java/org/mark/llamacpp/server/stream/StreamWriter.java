@@ -0,0 +1,45 @@
+package org.mark.llamacpp.server.stream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * 	把流水线处理后的数据块写成客户端协议的格式。返回的缓冲交给客户端连接，没有输出时返回null。
+ */
+public interface StreamWriter {
+
+	/**
+	 * 	一个数据块。
+	 * @param chunk
+	 * @param alloc
+	 * @return
+	 */
+	public ByteBuf onChunk(StreamChunk chunk, ByteBufAllocator alloc);
+
+	/**
+	 * 	data以外的行（event:、空行等），默认丢弃。
+	 * @param line
+	 * @param index
+	 * @param length
+	 * @param alloc
+	 * @return
+	 */
+	public default ByteBuf onOtherLine(ByteBuf line, int index, int length, ByteBufAllocator alloc) {
+		return null;
+	}
+
+	/**
+	 * 	上游发来了[DONE]。
+	 * @param alloc
+	 * @return
+	 */
+	public ByteBuf onDone(ByteBufAllocator alloc);
+
+	/**
+	 * 	某个阶段提前结束了流，写出协议要求的结尾。原因见{@link TokenStream#getStopReason()}。
+	 * @param stream
+	 * @param alloc
+	 * @return
+	 */
+	public ByteBuf onStop(TokenStream stream, ByteBufAllocator alloc);
+}
@@ -0,0 +1,87 @@
+package org.mark.llamacpp.server.stream;
+
+/**
+ * 	模型把思考过程用&lt;think&gt;标签直接写在正文里时（llama-server没有拆分reasoning_content），把标签里的内容移到思考内容。
+ * 	只看输出开头：第一段非空白文本不是&lt;think&gt;就不再处理。标签可能被拆在几个数据块里，末尾可能是标签开头的部分先留着。
+ */
+public class ThinkTagStage implements StreamStage {
+
+	private static final String OPEN = "<think>";
+
+	private static final String CLOSE = "</think>";
+
+	private enum State {
+		/**
+		 * 	还没有看到正文。
+		 */
+		START,
+		THINKING,
+		/**
+		 * 	不再处理。
+		 */
+		PASS
+	}
+
+	private State state = State.START;
+
+	private final StringBuilder pending = new StringBuilder();
+
+	@Override
+	public void onChunk(StreamChunk chunk, TokenStream stream) {
+		if (this.state == State.PASS) {
+			return;
+		}
+		boolean last = chunk.finishReason() != null;
+		if (!chunk.hasContent() && (this.pending.length() == 0 || !last)) {
+			return;
+		}
+		String piece = chunk.content();
+		String text = this.pending.append(piece == null ? "" : piece).toString();
+		this.pending.setLength(0);
+		if (this.state == State.START) {
+			String head = text.stripLeading();
+			if (head.startsWith(OPEN)) {
+				this.state = State.THINKING;
+				text = head.substring(OPEN.length());
+			} else if (!last && OPEN.startsWith(head)) {
+				// 可能是被拆开的开始标签
+				this.pending.append(text);
+				chunk.setContent("");
+				return;
+			} else {
+				this.state = State.PASS;
+				if (!text.equals(piece)) {
+					chunk.setContent(text);
+				}
+				return;
+			}
+		}
+		String reasoning = chunk.reasoning();
+		int close = text.indexOf(CLOSE);
+		if (close >= 0) {
+			this.state = State.PASS;
+			chunk.setReasoning(concat(reasoning, text.substring(0, close)));
+			chunk.setContent(text.substring(close + CLOSE.length()).stripLeading());
+			return;
+		}
+		int keep = last ? 0 : partialSuffix(text);
+		if (keep > 0) {
+			this.pending.append(text, text.length() - keep, text.length());
+		}
+		chunk.setReasoning(concat(reasoning, text.substring(0, text.length() - keep)));
+		chunk.setContent("");
+	}
+
+	private static String concat(String a, String b) {
+		return a == null || a.isEmpty() ? b : a + b;
+	}
+
+	private static int partialSuffix(String text) {
+		for (int k = Math.min(text.length(), CLOSE.length() - 1); k > 0; k--) {
+			if (text.regionMatches(text.length() - k, CLOSE, 0, k)) {
+				return k;
+			}
+		}
+		return 0;
+	}
+}
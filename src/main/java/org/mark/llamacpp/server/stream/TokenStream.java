@@ -0,0 +1,234 @@
+package org.mark.llamacpp.server.stream;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.mark.llamacpp.server.tools.JsonUtil;
+import org.mark.llamacpp.server.upstream.SseLineDecoder;
+import org.mark.llamacpp.server.upstream.StreamMetrics;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * 	上游流式响应和客户端协议之间的处理流水线，OpenAI、Anthropic、Ollama和LM Studio的流式接口共用。
+ * 	上游数据按行切开，data行由{@link ChunkReader}读成{@link StreamChunk}，依次经过各个{@link StreamStage}，最后由{@link StreamWriter}写成客户端的格式。
+ * 	整条流水线在上游的EventLoop里同步执行，不额外排队；下游写不过来时由调用方暂停读取上游（见Backpressure）。
+ * 	非线程安全。
+ */
+public final class TokenStream implements SseLineDecoder.LineHandler {
+
+	public static final String STOP = "stop";
+
+	public static final String LENGTH = "length";
+
+	private static final byte[] DATA_PREFIX = "data: ".getBytes(StandardCharsets.US_ASCII);
+
+	private static final byte[] DONE_MARKER = "[DONE]".getBytes(StandardCharsets.US_ASCII);
+
+	private final SseLineDecoder decoder = new SseLineDecoder(this);
+
+	private final ChunkReader reader;
+
+	private final StreamWriter writer;
+
+	private final ByteBufAllocator alloc;
+
+	private final Consumer<ByteBuf> sink;
+
+	private final StreamChunk chunk;
+
+	private final List<StreamStage> stages = new ArrayList<>(4);
+
+	private final long startNanos = System.nanoTime();
+
+	/**
+	 * 	收到了[DONE]。
+	 */
+	private boolean done = false;
+
+	private boolean ended = false;
+
+	private String stopReason;
+
+	private String stopSequence;
+
+	private int fastChunks = 0;
+
+	private int slowChunks = 0;
+
+	/**
+	 *
+	 * @param reader 上游格式
+	 * @param writer 客户端格式
+	 * @param alloc 输出缓冲的分配器，一般是客户端Channel的
+	 * @param sink 输出，缓冲的所有权交给sink
+	 */
+	public TokenStream(ChunkReader reader, StreamWriter writer, ByteBufAllocator alloc, Consumer<ByteBuf> sink) {
+		this.reader = reader;
+		this.writer = writer;
+		this.alloc = alloc;
+		this.sink = sink;
+		this.chunk = new StreamChunk(reader);
+	}
+
+	/**
+	 * 	在末尾添加一个阶段，为null时忽略。
+	 * @param stage
+	 * @return
+	 */
+	public TokenStream add(StreamStage stage) {
+		if (stage != null) {
+			this.stages.add(stage);
+		}
+		return this;
+	}
+
+	/**
+	 * 	输入一段上游数据。
+	 * @param content
+	 */
+	public void feed(ByteBuf content) {
+		this.decoder.feed(content);
+	}
+
+	/**
+	 * 	上游结束，处理最后不完整的一行。
+	 */
+	public void finish() {
+		this.decoder.finish();
+		this.end();
+	}
+
+	/**
+	 * 	放弃这个流（出错或者客户端断开）。
+	 */
+	public void release() {
+		this.decoder.release();
+		this.end();
+	}
+
+	/**
+	 * 	提前结束流。当前数据块照常输出，之后由{@link StreamWriter#onStop}写出结尾，后面的上游数据全部忽略。
+	 * 	调用方看到{@link #isStopped()}后应该取消上游请求，让llama-server释放slot。
+	 * @param reason {@link #STOP}或{@link #LENGTH}
+	 * @param stopSequence 命中的停止词，没有时为null
+	 */
+	public void stop(String reason, String stopSequence) {
+		if (this.stopReason == null) {
+			this.stopReason = reason;
+			this.stopSequence = stopSequence;
+		}
+	}
+
+	public boolean isStopped() {
+		return this.stopReason != null;
+	}
+
+	public String getStopReason() {
+		return this.stopReason;
+	}
+
+	public String getStopSequence() {
+		return this.stopSequence;
+	}
+
+	/**
+	 * 	是否收到了上游的[DONE]。
+	 * @return
+	 */
+	public boolean isDone() {
+		return this.done;
+	}
+
+	/**
+	 * 	从创建到现在经过的毫秒数。
+	 * @return
+	 */
+	public long elapsedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.startNanos);
+	}
+
+	public int getFastChunks() {
+		return this.fastChunks;
+	}
+
+	public int getSlowChunks() {
+		return this.slowChunks;
+	}
+
+	@Override
+	public void onLine(ByteBuf line, int index, int length) {
+		if (this.done || this.stopReason != null) {
+			return;
+		}
+		if (!startsWith(line, index, length, DATA_PREFIX)) {
+			this.emit(this.writer.onOtherLine(line, index, length, this.alloc));
+			return;
+		}
+		int start = index + DATA_PREFIX.length;
+		int n = length - DATA_PREFIX.length;
+		if (n == DONE_MARKER.length && startsWith(line, start, n, DONE_MARKER)) {
+			this.done = true;
+			this.emit(this.writer.onDone(this.alloc));
+			return;
+		}
+		StreamChunk c = this.chunk;
+		c.reset(line, start, n);
+		try {
+			this.reader.read(c);
+			this.fastChunks++;
+		} catch (ChunkReader.FallbackException | IllegalArgumentException e) {
+			// 交给完整解析
+			c.reset(line, start, n);
+			c.fallback(JsonUtil.tryParseObject(line.toString(start, n, StandardCharsets.UTF_8)));
+			if (c.isValid()) {
+				this.reader.readJson(c, c.json());
+			}
+			this.slowChunks++;
+		}
+		for (int i = 0; i < this.stages.size() && !c.isDropped(); i++) {
+			this.stages.get(i).onChunk(c, this);
+		}
+		if (!c.isDropped()) {
+			this.emit(this.writer.onChunk(c, this.alloc));
+		}
+		if (this.stopReason != null) {
+			this.emit(this.writer.onStop(this, this.alloc));
+		}
+	}
+
+	//================================================================================================
+
+	private void end() {
+		if (this.ended) {
+			return;
+		}
+		this.ended = true;
+		for (StreamStage stage : this.stages) {
+			stage.onEnd(this);
+		}
+		StreamMetrics.getInstance().recordPipeline(this.fastChunks, this.slowChunks, this.stopReason);
+	}
+
+	private void emit(ByteBuf buf) {
+		if (buf != null) {
+			this.sink.accept(buf);
+		}
+	}
+
+	private static boolean startsWith(ByteBuf buf, int index, int length, byte[] prefix) {
+		if (length < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (buf.getByte(index + i) != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,28 @@
+package org.mark.llamacpp.server.stream;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mark.llamacpp.server.tools.JsonUtil;
+
+import com.google.gson.JsonObject;
+
+/**
+ * 	给没有id的工具调用补上id，同一个index在后续数据块里沿用同一个id。只有带工具调用的数据块才解析。
+ */
+public class ToolCallIdStage implements StreamStage {
+
+	private final Map<Integer, String> toolCallIds = new HashMap<>();
+
+	@Override
+	public void onChunk(StreamChunk chunk, TokenStream stream) {
+		if (!chunk.hasToolCalls()) {
+			return;
+		}
+		// 即使没有改写也要解析，以便记下已有的id供后续分块复用
+		JsonObject json = chunk.json();
+		if (json != null && JsonUtil.ensureToolCallIds(json, this.toolCallIds)) {
+			chunk.markDirty();
+		}
+	}
+}
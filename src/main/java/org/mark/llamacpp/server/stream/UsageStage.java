@@ -0,0 +1,54 @@
+package org.mark.llamacpp.server.stream;
+
+import org.mark.llamacpp.server.tools.JsonUtil;
+import org.mark.llamacpp.server.upstream.StreamMetrics;
+
+import com.google.gson.JsonObject;
+
+/**
+ * 	用量统计：数据块数、输出的文本字节数，结束时从最后的usage或timings里取生成的token数，记入{@link StreamMetrics}。
+ */
+public class UsageStage implements StreamStage {
+
+	private final JsonHolder usage = new JsonHolder();
+
+	private final JsonHolder timings = new JsonHolder();
+
+	private long chunks = 0;
+
+	private long contentBytes = 0;
+
+	@Override
+	public void onChunk(StreamChunk chunk, TokenStream stream) {
+		this.chunks++;
+		if (chunk.contentStart() >= 0) {
+			this.contentBytes += chunk.contentEnd() - chunk.contentStart();
+		} else if (chunk.hasContent()) {
+			this.contentBytes += chunk.content().length();
+		}
+		chunk.keepUsage(this.usage);
+		chunk.keepTimings(this.timings);
+	}
+
+	@Override
+	public void onEnd(TokenStream stream) {
+		StreamMetrics.getInstance().recordUsage(this.chunks, this.contentBytes, this.completionTokens(), stream.elapsedMillis());
+	}
+
+	/**
+	 * 	生成的token数：OpenAI的usage.completion_tokens、Anthropic的usage.output_tokens或者llama-server的timings.predicted_n。
+	 */
+	private long completionTokens() {
+		JsonObject u = this.usage.getObject();
+		if (u != null) {
+			if (u.has("completion_tokens")) {
+				return JsonUtil.getJsonLong(u, "completion_tokens", 0L);
+			}
+			if (u.has("output_tokens")) {
+				return JsonUtil.getJsonLong(u, "output_tokens", 0L);
+			}
+		}
+		JsonObject t = this.timings.getObject();
+		return t == null ? 0 : JsonUtil.getJsonLong(t, "predicted_n", 0L);
+	}
+}
@@ -0,0 +1,34 @@
+package org.mark.llamacpp.server.stream;
+
+import org.mark.llamacpp.server.LlamaServer;
+
+/**
+ * 	生成时间上限：超过之后当前数据块以finish_reason=length结束整个流。
+ * 	只在收到数据块时检查，上游完全没有输出的情况由上游请求的超时处理。
+ */
+public class WallTimeStage implements StreamStage {
+
+	private final long maxMillis;
+
+	public WallTimeStage(long maxMillis) {
+		this.maxMillis = maxMillis;
+	}
+
+	/**
+	 * 	按配置创建，没有限制时返回null。
+	 * @return
+	 */
+	public static WallTimeStage fromConfig() {
+		long ms = LlamaServer.getStreamMaxWallTimeMs();
+		return ms > 0 ? new WallTimeStage(ms) : null;
+	}
+
+	@Override
+	public void onChunk(StreamChunk chunk, TokenStream stream) {
+		if (stream.elapsedMillis() < this.maxMillis) {
+			return;
+		}
+		chunk.setFinishReason(TokenStream.LENGTH);
+		stream.stop(TokenStream.LENGTH, null);
+	}
+}
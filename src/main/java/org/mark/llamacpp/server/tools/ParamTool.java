@@ -4,9 +4,9 @@ import java.net.URI;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
-import java.text.SimpleDateFormat;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
@@ -19,13 +19,18 @@ import org.mark.llamacpp.gguf.GGUFModel;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
+import io.netty.buffer.ByteBufUtil;
+
 
 /**
  * 	从URL中提取参数。
  */
 public class ParamTool {
 	
-	private static final SimpleDateFormat SDF = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH);
+	/**
+	 * 	线程安全，多个连接可以同时使用。
+	 */
+	private static final DateTimeFormatter SDF = DateTimeFormatter.ofPattern("EEE, d MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH);
 	
 	
 	//private static final Pattern CTX_SIZE = Pattern.compile("(?:(?:--ctx-size)|(?:-c))\\s+(\\d+)");
@@ -86,7 +91,7 @@ public class ParamTool {
 	 * @return
 	 */
 	public static String getDate() {
-		return SDF.format(new Date());
+		return SDF.format(ZonedDateTime.now());
 	}
 	
 	
@@ -224,13 +229,7 @@ public class ParamTool {
 		try {
 			MessageDigest digest = MessageDigest.getInstance("SHA-256");
 			byte[] hash = digest.digest(content == null ? new byte[0] : content);
-			StringBuilder sb = new StringBuilder(hash.length * 2 + 2);
-			sb.append('"');
-			for (byte b : hash) {
-				sb.append(String.format("%02x", b));
-			}
-			sb.append('"');
-			return sb.toString();
+			return "\"" + ByteBufUtil.hexDump(hash) + "\"";
 		} catch (Exception e) {
 			return "\"" + UUID.randomUUID().toString().replace("-", "") + "\"";
 		}
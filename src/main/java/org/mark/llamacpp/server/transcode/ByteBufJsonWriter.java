@@ -0,0 +1,343 @@
+package org.mark.llamacpp.server.transcode;
+
+import java.nio.charset.StandardCharsets;
+
+import org.mark.llamacpp.server.tools.JsonUtil;
+
+import com.google.gson.JsonElement;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+/**
+ * 	把JSON直接写进ByteBuf，自动处理逗号，不经过Map和Gson。
+ * 	一个实例可以反复{@link #target(ByteBuf)}使用，目标缓冲一般来自Channel的池化分配器。
+ * 	字段名预先用{@link #encodeName(String)}编码好，写入时只是复制字节。
+ */
+public final class ByteBufJsonWriter {
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+
+	private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+
+	private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * 	最大嵌套层数。
+	 */
+	private static final int MAX_DEPTH = 63;
+
+	private ByteBuf out;
+
+	/**
+	 * 	每一层是否已经写过元素，写下一个元素前需要逗号。
+	 */
+	private long nonEmpty;
+
+	private int depth;
+
+	/**
+	 * 	刚写完名字，下一个值前面不需要逗号。
+	 */
+	private boolean afterName;
+
+	/**
+	 * 	编码字段名，结果形如"name":。
+	 * @param name 不需要转义的字段名
+	 * @return
+	 */
+	public static byte[] encodeName(String name) {
+		return ("\"" + name + "\":").getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * 	开始向out写入一个新的JSON值。
+	 * @param out
+	 * @return
+	 */
+	public ByteBufJsonWriter target(ByteBuf out) {
+		this.out = out;
+		this.nonEmpty = 0;
+		this.depth = 0;
+		this.afterName = false;
+		return this;
+	}
+
+	public ByteBuf buffer() {
+		return this.out;
+	}
+
+	public ByteBufJsonWriter beginObject() {
+		this.separator();
+		this.out.writeByte('{');
+		return this.push();
+	}
+
+	public ByteBufJsonWriter endObject() {
+		this.pop();
+		this.out.writeByte('}');
+		return this;
+	}
+
+	public ByteBufJsonWriter beginArray() {
+		this.separator();
+		this.out.writeByte('[');
+		return this.push();
+	}
+
+	public ByteBufJsonWriter endArray() {
+		this.pop();
+		this.out.writeByte(']');
+		return this;
+	}
+
+	/**
+	 * 	写入字段名。
+	 * @param encodedName {@link #encodeName(String)}的结果
+	 * @return
+	 */
+	public ByteBufJsonWriter name(byte[] encodedName) {
+		this.separator();
+		this.out.writeBytes(encodedName);
+		this.afterName = true;
+		return this;
+	}
+
+	public ByteBufJsonWriter value(String s) {
+		this.separator();
+		if (s == null) {
+			this.out.writeBytes(NULL);
+			return this;
+		}
+		this.out.writeByte('"');
+		writeEscaped(this.out, s);
+		this.out.writeByte('"');
+		return this;
+	}
+
+	public ByteBufJsonWriter value(long v) {
+		this.separator();
+		if (v == Long.MIN_VALUE) {
+			this.out.writeCharSequence(Long.toString(v), StandardCharsets.US_ASCII);
+			return this;
+		}
+		if (v < 0) {
+			this.out.writeByte('-');
+			v = -v;
+		}
+		writeDigits(this.out, v);
+		return this;
+	}
+
+	public ByteBufJsonWriter value(double v) {
+		if (Double.isNaN(v) || Double.isInfinite(v)) {
+			return this.nullValue();
+		}
+		this.separator();
+		this.out.writeCharSequence(Double.toString(v), StandardCharsets.US_ASCII);
+		return this;
+	}
+
+	public ByteBufJsonWriter value(boolean v) {
+		this.separator();
+		this.out.writeBytes(v ? TRUE : FALSE);
+		return this;
+	}
+
+	public ByteBufJsonWriter nullValue() {
+		this.separator();
+		this.out.writeBytes(NULL);
+		return this;
+	}
+
+	/**
+	 * 	写入任意值：字符串、数字、布尔和{@link JsonElement}，其它类型交给Gson。不在逐token的路径上使用。
+	 * @param v
+	 * @return
+	 */
+	public ByteBufJsonWriter value(Object v) {
+		if (v == null) {
+			return this.nullValue();
+		}
+		if (v instanceof String) {
+			return this.value((String) v);
+		}
+		if (v instanceof Boolean) {
+			return this.value(((Boolean) v).booleanValue());
+		}
+		if (v instanceof Long || v instanceof Integer || v instanceof Short || v instanceof Byte) {
+			return this.value(((Number) v).longValue());
+		}
+		if (v instanceof Double || v instanceof Float) {
+			return this.value(((Number) v).doubleValue());
+		}
+		this.separator();
+		ByteBufUtil.writeUtf8(this.out, JsonUtil.toJson(v));
+		return this;
+	}
+
+	/**
+	 * 	写入已经转义好的字符串内容（不含引号），例如从上游JSON里原样取出的字符串。
+	 * @param src
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public ByteBufJsonWriter rawString(ByteBuf src, int start, int end) {
+		this.separator();
+		this.out.writeByte('"');
+		this.out.writeBytes(src, start, end - start);
+		this.out.writeByte('"');
+		return this;
+	}
+
+	/**
+	 * 	写入一段完整的JSON文本作为值。
+	 * @param src
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public ByteBufJsonWriter rawValue(ByteBuf src, int start, int end) {
+		this.separator();
+		this.out.writeBytes(src, start, end - start);
+		return this;
+	}
+
+	/**
+	 * 	写入预先编码好的JSON值。
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public ByteBufJsonWriter rawValue(byte[] bytes, int offset, int length) {
+		this.separator();
+		this.out.writeBytes(bytes, offset, length);
+		return this;
+	}
+
+	public ByteBufJsonWriter rawValue(byte[] bytes) {
+		return this.rawValue(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * 	编码一个字符串值（带引号），用于反复写入的固定值。
+	 * @param value
+	 * @return
+	 */
+	public static byte[] encodeString(String value) {
+		ByteBuf buf = Unpooled.buffer(value.length() + 8);
+		try {
+			buf.writeByte('"');
+			writeEscaped(buf, value);
+			buf.writeByte('"');
+			return ByteBufUtil.getBytes(buf);
+		} finally {
+			buf.release();
+		}
+	}
+
+	/**
+	 * 	在当前位置直接写入字节，不处理逗号，用于写换行等分隔符。
+	 * @param bytes
+	 * @return
+	 */
+	public ByteBufJsonWriter raw(byte[] bytes) {
+		this.out.writeBytes(bytes);
+		return this;
+	}
+
+	//================================================================================================
+
+	private void separator() {
+		if (this.afterName) {
+			this.afterName = false;
+			return;
+		}
+		if (this.depth == 0) {
+			return;
+		}
+		long bit = 1L << this.depth;
+		if ((this.nonEmpty & bit) != 0) {
+			this.out.writeByte(',');
+		} else {
+			this.nonEmpty |= bit;
+		}
+	}
+
+	private ByteBufJsonWriter push() {
+		if (this.depth >= MAX_DEPTH) {
+			throw new IllegalStateException("json nesting too deep");
+		}
+		this.depth++;
+		this.nonEmpty &= ~(1L << this.depth);
+		return this;
+	}
+
+	private void pop() {
+		this.nonEmpty &= ~(1L << this.depth);
+		this.depth--;
+	}
+
+	private static void writeDigits(ByteBuf out, long v) {
+		if (v >= 10) {
+			writeDigits(out, v / 10);
+		}
+		out.writeByte((int) ('0' + v % 10));
+	}
+
+	/**
+	 * 	转义并按UTF-8写入字符串内容。
+	 */
+	static void writeEscaped(ByteBuf out, String s) {
+		int n = s.length();
+		int i = 0;
+		// 常见情况：没有需要转义的字符，整段写入
+		while (i < n) {
+			char c = s.charAt(i);
+			if (c < 0x20 || c == '"' || c == '\\' || c == '\u2028' || c == '\u2029') {
+				break;
+			}
+			i++;
+		}
+		if (i == n) {
+			ByteBufUtil.writeUtf8(out, s);
+			return;
+		}
+		for (i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"': out.writeByte('\\').writeByte('"'); break;
+			case '\\': out.writeByte('\\').writeByte('\\'); break;
+			case '\n': out.writeByte('\\').writeByte('n'); break;
+			case '\r': out.writeByte('\\').writeByte('r'); break;
+			case '\t': out.writeByte('\\').writeByte('t'); break;
+			case '\b': out.writeByte('\\').writeByte('b'); break;
+			case '\f': out.writeByte('\\').writeByte('f'); break;
+			default:
+				if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+					out.writeByte('\\').writeByte('u')
+						.writeByte(HEX[(c >> 12) & 0xF]).writeByte(HEX[(c >> 8) & 0xF])
+						.writeByte(HEX[(c >> 4) & 0xF]).writeByte(HEX[c & 0xF]);
+				} else if (c < 0x80) {
+					out.writeByte(c);
+				} else if (c < 0x800) {
+					out.writeByte(0xC0 | (c >> 6)).writeByte(0x80 | (c & 0x3F));
+				} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, s.charAt(++i));
+					out.writeByte(0xF0 | (cp >> 18)).writeByte(0x80 | ((cp >> 12) & 0x3F))
+						.writeByte(0x80 | ((cp >> 6) & 0x3F)).writeByte(0x80 | (cp & 0x3F));
+				} else if (Character.isSurrogate(c)) {
+					out.writeByte('?');
+				} else {
+					out.writeByte(0xE0 | (c >> 12)).writeByte(0x80 | ((c >> 6) & 0x3F)).writeByte(0x80 | (c & 0x3F));
+				}
+				break;
+			}
+		}
+	}
+}
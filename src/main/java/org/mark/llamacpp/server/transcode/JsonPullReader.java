@@ -0,0 +1,377 @@
+package org.mark.llamacpp.server.transcode;
+
+import java.nio.charset.StandardCharsets;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * 	直接在ByteBuf上逐个读取JSON记号，不建对象树，字符串也只在调用方需要时才解码。
+ * 	一个实例可以反复{@link #reset(ByteBuf, int, int)}使用。
+ * 	只做转码需要的最低限度校验（逗号和冒号被当作分隔符跳过），遇到无法识别的内容抛出{@link IllegalArgumentException}。
+ */
+public final class JsonPullReader {
+
+	public enum Token {
+		BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, TRUE, FALSE, NULL, END
+	}
+
+	private ByteBuf buf;
+
+	private int pos;
+
+	private int limit;
+
+	private Token token;
+
+	/**
+	 * 	当前记号的内容，字符串不含引号。
+	 */
+	private int start;
+
+	private int end;
+
+	/**
+	 * 	当前字符串里是否有转义字符。
+	 */
+	private boolean escaped;
+
+	/**
+	 * 	最近一次{@link #skipValue()}跳过的完整JSON文本。
+	 */
+	private int rawStart;
+
+	private int rawEnd;
+
+	/**
+	 * 	读取buf的[index, index + length)，不改变buf的下标。
+	 * @param buf
+	 * @param index
+	 * @param length
+	 * @return
+	 */
+	public JsonPullReader reset(ByteBuf buf, int index, int length) {
+		this.buf = buf;
+		this.pos = index;
+		this.limit = index + length;
+		this.token = null;
+		return this;
+	}
+
+	/**
+	 * 	读取下一个记号。
+	 * @return
+	 */
+	public Token next() {
+		int p = this.pos;
+		while (p < this.limit) {
+			byte b = this.buf.getByte(p);
+			if (b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == ',' || b == ':') {
+				p++;
+				continue;
+			}
+			break;
+		}
+		if (p >= this.limit) {
+			this.pos = p;
+			this.start = this.end = p;
+			return this.token = Token.END;
+		}
+		byte b = this.buf.getByte(p);
+		this.start = p;
+		switch (b) {
+		case '{':
+			this.end = this.pos = p + 1;
+			return this.token = Token.BEGIN_OBJECT;
+		case '}':
+			this.end = this.pos = p + 1;
+			return this.token = Token.END_OBJECT;
+		case '[':
+			this.end = this.pos = p + 1;
+			return this.token = Token.BEGIN_ARRAY;
+		case ']':
+			this.end = this.pos = p + 1;
+			return this.token = Token.END_ARRAY;
+		case '"':
+			return this.token = this.readString(p);
+		case 't':
+			return this.token = this.literal(p, 4, Token.TRUE);
+		case 'f':
+			return this.token = this.literal(p, 5, Token.FALSE);
+		case 'n':
+			return this.token = this.literal(p, 4, Token.NULL);
+		default:
+			if (b == '-' || (b >= '0' && b <= '9')) {
+				int q = p + 1;
+				while (q < this.limit) {
+					byte c = this.buf.getByte(q);
+					if ((c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+						q++;
+					} else {
+						break;
+					}
+				}
+				this.end = this.pos = q;
+				return this.token = Token.NUMBER;
+			}
+			throw new IllegalArgumentException("unexpected character at " + p);
+		}
+	}
+
+	/**
+	 * 	跳过下一个值（读完名字之后调用），对象和数组整个跳过。跳过的文本范围见{@link #rawStart()}和{@link #rawEnd()}。
+	 */
+	public void skipValue() {
+		Token t = this.next();
+		this.rawStart = this.start;
+		if (t == Token.STRING) {
+			this.rawStart = this.start - 1;
+			this.rawEnd = this.end + 1;
+			return;
+		}
+		if (t == Token.END || t == Token.END_OBJECT || t == Token.END_ARRAY || t == Token.NAME) {
+			throw new IllegalArgumentException("value expected at " + this.start);
+		}
+		if (t == Token.BEGIN_OBJECT || t == Token.BEGIN_ARRAY) {
+			this.skipContainer();
+		}
+		this.rawEnd = this.end;
+	}
+
+	/**
+	 * 	刚读到{@link Token#BEGIN_OBJECT}或{@link Token#BEGIN_ARRAY}时调用，跳到对应的结束记号之后。
+	 */
+	public void skipContainer() {
+		int depth = 1;
+		while (depth > 0) {
+			Token t = this.next();
+			if (t == Token.BEGIN_OBJECT || t == Token.BEGIN_ARRAY) {
+				depth++;
+			} else if (t == Token.END_OBJECT || t == Token.END_ARRAY) {
+				depth--;
+			} else if (t == Token.END) {
+				throw new IllegalArgumentException("unterminated value");
+			}
+		}
+	}
+
+	public Token token() {
+		return this.token;
+	}
+
+	public ByteBuf buffer() {
+		return this.buf;
+	}
+
+	/**
+	 * 	当前记号内容的起始下标，字符串不含引号。
+	 * @return
+	 */
+	public int start() {
+		return this.start;
+	}
+
+	public int end() {
+		return this.end;
+	}
+
+	public int rawStart() {
+		return this.rawStart;
+	}
+
+	public int rawEnd() {
+		return this.rawEnd;
+	}
+
+	/**
+	 * 	当前字符串是否包含转义字符。
+	 * @return
+	 */
+	public boolean isEscaped() {
+		return this.escaped;
+	}
+
+	/**
+	 * 	当前记号是名字，并且和给定的ASCII字节相同。
+	 * @param name
+	 * @return
+	 */
+	public boolean nameIs(byte[] name) {
+		if (this.token != Token.NAME || this.escaped || this.end - this.start != name.length) {
+			return false;
+		}
+		for (int i = 0; i < name.length; i++) {
+			if (this.buf.getByte(this.start + i) != name[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 	解码当前字符串。
+	 * @return
+	 */
+	public String stringValue() {
+		if (!this.escaped) {
+			return this.buf.toString(this.start, this.end - this.start, StandardCharsets.UTF_8);
+		}
+		StringBuilder sb = new StringBuilder(this.end - this.start);
+		this.appendString(sb);
+		return sb.toString();
+	}
+
+	/**
+	 * 	把当前字符串解码后追加到sb，不产生中间对象。
+	 * @param sb
+	 */
+	public void appendString(StringBuilder sb) {
+		int p = this.start;
+		while (p < this.end) {
+			int b = this.buf.getByte(p) & 0xFF;
+			if (b == '\\') {
+				byte e = this.buf.getByte(p + 1);
+				switch (e) {
+				case 'n': sb.append('\n'); break;
+				case 'r': sb.append('\r'); break;
+				case 't': sb.append('\t'); break;
+				case 'b': sb.append('\b'); break;
+				case 'f': sb.append('\f'); break;
+				case 'u':
+					sb.append((char) this.hex(p + 2));
+					p += 4;
+					break;
+				default: sb.append((char) e); break;
+				}
+				p += 2;
+			} else if (b < 0x80) {
+				sb.append((char) b);
+				p++;
+			} else if (b < 0xE0) {
+				sb.append((char) (((b & 0x1F) << 6) | (this.buf.getByte(p + 1) & 0x3F)));
+				p += 2;
+			} else if (b < 0xF0) {
+				sb.append((char) (((b & 0x0F) << 12) | ((this.buf.getByte(p + 1) & 0x3F) << 6) | (this.buf.getByte(p + 2) & 0x3F)));
+				p += 3;
+			} else {
+				int cp = ((b & 0x07) << 18) | ((this.buf.getByte(p + 1) & 0x3F) << 12) | ((this.buf.getByte(p + 2) & 0x3F) << 6) | (this.buf.getByte(p + 3) & 0x3F);
+				sb.append(Character.highSurrogate(cp)).append(Character.lowSurrogate(cp));
+				p += 4;
+			}
+		}
+	}
+
+	/**
+	 * 	当前字符串是否为空。
+	 * @return
+	 */
+	public boolean isEmptyString() {
+		return this.end == this.start;
+	}
+
+	/**
+	 * 	当前字符串是否只包含空白字符（包括转义的\n、\r、\t）。
+	 * @return
+	 */
+	public boolean isBlankString() {
+		int p = this.start;
+		while (p < this.end) {
+			byte b = this.buf.getByte(p);
+			if (b == ' ' || b == '\t' || b == '\n' || b == '\r') {
+				p++;
+			} else if (b == '\\') {
+				byte e = this.buf.getByte(p + 1);
+				if (e != 'n' && e != 'r' && e != 't' && e != 'f') {
+					return false;
+				}
+				p += 2;
+			} else {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 	当前数字的整数值，带小数或指数时截断。
+	 * @return
+	 */
+	public long longValue() {
+		long v = 0;
+		boolean negative = false;
+		for (int p = this.start; p < this.end; p++) {
+			byte b = this.buf.getByte(p);
+			if (b == '-' && p == this.start) {
+				negative = true;
+			} else if (b >= '0' && b <= '9') {
+				v = v * 10 + (b - '0');
+			} else {
+				return (long) Double.parseDouble(this.buf.toString(this.start, this.end - this.start, StandardCharsets.US_ASCII));
+			}
+		}
+		return negative ? -v : v;
+	}
+
+	//================================================================================================
+
+	private Token readString(int quote) {
+		int p = quote + 1;
+		boolean esc = false;
+		while (true) {
+			if (p >= this.limit) {
+				throw new IllegalArgumentException("unterminated string");
+			}
+			byte b = this.buf.getByte(p);
+			if (b == '"') {
+				break;
+			}
+			if (b == '\\') {
+				esc = true;
+				p += 2;
+			} else {
+				p++;
+			}
+		}
+		this.start = quote + 1;
+		this.end = p;
+		this.escaped = esc;
+		this.pos = p + 1;
+		// 后面紧跟冒号的是名字
+		int q = this.pos;
+		while (q < this.limit) {
+			byte b = this.buf.getByte(q);
+			if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+				q++;
+				continue;
+			}
+			return b == ':' ? Token.NAME : Token.STRING;
+		}
+		return Token.STRING;
+	}
+
+	private Token literal(int p, int length, Token t) {
+		if (p + length > this.limit) {
+			throw new IllegalArgumentException("unexpected end of input");
+		}
+		this.end = this.pos = p + length;
+		return t;
+	}
+
+	private int hex(int p) {
+		int v = 0;
+		for (int i = 0; i < 4; i++) {
+			byte b = this.buf.getByte(p + i);
+			int d;
+			if (b >= '0' && b <= '9') {
+				d = b - '0';
+			} else if (b >= 'a' && b <= 'f') {
+				d = b - 'a' + 10;
+			} else if (b >= 'A' && b <= 'F') {
+				d = b - 'A' + 10;
+			} else {
+				throw new IllegalArgumentException("invalid unicode escape at " + p);
+			}
+			v = (v << 4) | d;
+		}
+		return v;
+	}
+}
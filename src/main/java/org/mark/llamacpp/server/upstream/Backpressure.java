@@ -0,0 +1,52 @@
+package org.mark.llamacpp.server.upstream;
+
+import org.mark.llamacpp.server.LlamaServer;
+
+import io.netty.channel.Channel;
+
+/**
+ * 	流式转发的背压控制。
+ * 	客户端连接的写缓冲超过高水位（{@link Channel#isWritable()}变为false）时暂停读取上游，
+ * 	降到低水位以下触发channelWritabilityChanged后再恢复。这样慢速客户端既不会被断开，也不会让内存无限堆积。
+ */
+public final class Backpressure {
+
+	private Backpressure() {
+
+	}
+
+	/**
+	 * 	每次向客户端写完数据后调用。
+	 * @param downstream 客户端连接
+	 * @param exchange 对应的上游请求，可以为null
+	 * @return 积压超过{@link LlamaServer#getStreamMaxPendingBytes()}时返回false，调用方应当放弃这个流
+	 */
+	public static boolean afterWrite(Channel downstream, UpstreamExchange exchange) {
+		if (downstream.isWritable()) {
+			return true;
+		}
+		long pending = downstream.bytesBeforeWritable() + LlamaServer.getStreamLowWaterMark();
+		if (pending > LlamaServer.getStreamMaxPendingBytes()) {
+			return false;
+		}
+		if (exchange != null && !exchange.isReadPaused()) {
+			exchange.pauseRead();
+			// 暂停期间客户端可能已经读完了，这时候不会再有可写事件，需要自己恢复
+			if (downstream.isWritable()) {
+				exchange.resumeRead();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 	客户端连接可写状态变化时调用。
+	 * @param downstream
+	 * @param exchange
+	 */
+	public static void writabilityChanged(Channel downstream, UpstreamExchange exchange) {
+		if (exchange != null && downstream.isWritable() && exchange.isReadPaused()) {
+			exchange.resumeRead();
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package org.mark.llamacpp.server.upstream;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.mark.llamacpp.server.LlamaServer;
+import org.mark.llamacpp.server.scheduler.AdmissionException;
+import org.mark.llamacpp.server.scheduler.ModelScheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonElement;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/**
+ * 	客户端连接和它正在进行的上游请求的对应关系，所有接口共用。
+ * 	客户端断开、请求到达截止时间或者流水线提前结束时，通过这里找到上游请求并立即关闭上游连接，让llama-server释放slot。
+ * 	截止时间从请求到达时开始计算，包括排队的时间：客户端可以用请求头{@value #TIMEOUT_HEADER}或请求体里的timeout字段（秒）指定，
+ * 	没有指定时按接口使用服务端的默认值（见{@link LlamaServer#getDeadlineEndpointMs()}），客户端的值不能超过服务端的默认值。
+ */
+public class CancelRegistry {
+
+	private static final Logger logger = LoggerFactory.getLogger(CancelRegistry.class);
+
+	/**
+	 * 	客户端指定截止时间的请求头，单位秒，可以是小数。
+	 */
+	public static final String TIMEOUT_HEADER = "X-Request-Timeout";
+
+	private static final CancelRegistry INSTANCE = new CancelRegistry();
+
+	public static CancelRegistry getInstance() {
+		return INSTANCE;
+	}
+
+	private final Map<ChannelHandlerContext, Entry> entries = new ConcurrentHashMap<>();
+
+	private CancelRegistry() {
+
+	}
+
+	/**
+	 * 	请求开始，按截止时间设置定时器。没有截止时间时什么也不做。
+	 * @param ctx 客户端连接
+	 * @param endpoint 接口路径，用于查找服务端的默认值
+	 * @param headers 请求头
+	 * @param timeout 请求体里的timeout字段，没有时为null
+	 * @param rejection 排队期间到期时回复的错误内容，和被调度器拒绝时的格式一样；为null时直接断开
+	 */
+	public void begin(ChannelHandlerContext ctx, String endpoint, HttpHeaders headers, JsonElement timeout, Function<AdmissionException, Object> rejection) {
+		long deadlineMs = resolveDeadline(endpoint, headers, timeout);
+		Entry old = this.entries.remove(ctx);
+		if (old != null) {
+			old.cancelTimer();
+		}
+		if (deadlineMs <= 0) {
+			return;
+		}
+		Entry entry = new Entry(deadlineMs);
+		entry.rejection = rejection;
+		this.entries.put(ctx, entry);
+		entry.timer = ctx.executor().schedule(() -> this.expire(ctx, entry), deadlineMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 	记录连接对应的上游请求。已经到期或者客户端已经断开时直接取消。
+	 * @param ctx
+	 * @param exchange
+	 */
+	public void track(ChannelHandlerContext ctx, UpstreamExchange exchange) {
+		if (exchange.isDone()) {
+			return;
+		}
+		Entry entry = this.entries.computeIfAbsent(ctx, k -> new Entry(0));
+		boolean expired;
+		synchronized (entry) {
+			entry.exchange = exchange;
+			expired = entry.expired;
+		}
+		if (expired) {
+			// 排队期间已经到期并回复过504，只取消上游请求
+			this.entries.remove(ctx, entry);
+			exchange.cancel();
+		} else if (!ctx.channel().isActive()) {
+			this.cancel(ctx);
+		}
+	}
+
+	/**
+	 * 	请求正常结束，移除记录。
+	 * @param ctx
+	 */
+	public void untrack(ChannelHandlerContext ctx) {
+		Entry entry = this.entries.remove(ctx);
+		if (entry != null) {
+			entry.cancelTimer();
+		}
+	}
+
+	/**
+	 * 	连接上正在进行的上游请求，没有时为null。
+	 * @param ctx
+	 * @return
+	 */
+	public UpstreamExchange tracked(ChannelHandlerContext ctx) {
+		Entry entry = this.entries.get(ctx);
+		return entry == null ? null : entry.exchange;
+	}
+
+	/**
+	 * 	取消连接上的上游请求并移除记录。客户端断开和提前结束时调用。
+	 * @param ctx
+	 * @return 是否有请求被取消
+	 */
+	public boolean cancel(ChannelHandlerContext ctx) {
+		Entry entry = this.entries.remove(ctx);
+		if (entry == null) {
+			return false;
+		}
+		entry.cancelTimer();
+		UpstreamExchange exchange = entry.exchange;
+		if (exchange == null || exchange.isDone()) {
+			return false;
+		}
+		exchange.cancel();
+		StreamMetrics.getInstance().recordCancel(false);
+		return true;
+	}
+
+	//================================================================================================
+
+	/**
+	 * 	到达截止时间。已经发给上游的请求以超时失败结束，由各接口按自己的格式回复错误；
+	 * 	还在排队的按接口的格式回复504后断开客户端，排队的许可随之作废。
+	 */
+	private void expire(ChannelHandlerContext ctx, Entry entry) {
+		UpstreamExchange exchange;
+		synchronized (entry) {
+			entry.expired = true;
+			exchange = entry.exchange;
+		}
+		StreamMetrics.getInstance().recordCancel(true);
+		if (exchange != null) {
+			this.entries.remove(ctx, entry);
+			logger.info("请求超过截止时间{}ms，关闭上游连接，端口: {}", entry.deadlineMs, exchange.getPort());
+			exchange.expire(entry.deadlineMs);
+			return;
+		}
+		logger.info("请求排队超过截止时间{}ms，断开客户端连接", entry.deadlineMs);
+		Function<AdmissionException, Object> rejection = entry.rejection;
+		if (rejection == null || !ctx.channel().isActive()) {
+			ctx.close();
+			return;
+		}
+		AdmissionException e = new AdmissionException(HttpResponseStatus.GATEWAY_TIMEOUT, 0, "请求排队超过截止时间: " + entry.deadlineMs + "ms");
+		ModelScheduler.sendRejection(ctx, e, rejection.apply(e));
+	}
+
+	/**
+	 * 	计算截止时间（毫秒），小于等于0表示没有。
+	 */
+	static long resolveDeadline(String endpoint, HttpHeaders headers, JsonElement timeout) {
+		long server = LlamaServer.getDeadlineDefaultMs();
+		String best = null;
+		if (endpoint != null) {
+			for (String prefix : LlamaServer.getDeadlineEndpointMs().keySet()) {
+				if (endpoint.startsWith(prefix) && (best == null || prefix.length() > best.length())) {
+					best = prefix;
+				}
+			}
+		}
+		if (best != null) {
+			long v = parseMillis(LlamaServer.getDeadlineEndpointMs().get(best), 1);
+			if (v >= 0) {
+				server = v;
+			}
+		}
+		long client = headers == null ? -1 : parseMillis(headers.get(TIMEOUT_HEADER), 1000);
+		if (client <= 0 && timeout != null && timeout.isJsonPrimitive()) {
+			client = parseMillis(timeout.getAsString(), 1000);
+		}
+		if (client <= 0) {
+			return server;
+		}
+		return server > 0 ? Math.min(client, server) : client;
+	}
+
+	private static long parseMillis(String value, long scale) {
+		if (value == null || value.isBlank()) {
+			return -1;
+		}
+		try {
+			double v = Double.parseDouble(value.trim());
+			return v < 0 || Double.isNaN(v) ? -1 : (long) Math.ceil(v * scale);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static class Entry {
+
+		private final long deadlineMs;
+
+		private volatile UpstreamExchange exchange;
+
+		private ScheduledFuture<?> timer;
+
+		private Function<AdmissionException, Object> rejection;
+
+		private boolean expired = false;
+
+		private Entry(long deadlineMs) {
+			this.deadlineMs = deadlineMs;
+		}
+
+		private void cancelTimer() {
+			ScheduledFuture<?> t = this.timer;
+			if (t != null) {
+				t.cancel(false);
+			}
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package org.mark.llamacpp.server.upstream;
+
+/**
+ * 	对冲策略：请求在一段时间内没有收到响应头时，把同一个请求再发给另一个端口。
+ */
+public interface HedgePolicy {
+
+	/**
+	 * 	等待多少毫秒后对冲。
+	 * @param port
+	 * @param uri
+	 * @return 小于等于0表示这个请求不对冲
+	 */
+	public long getHedgeDelayMs(int port, String uri);
+
+	/**
+	 * 	选择对冲的目标端口。
+	 * @param port 原请求的端口
+	 * @param uri
+	 * @return 没有合适的端口时返回-1
+	 */
+	public int selectHedgePort(int port, String uri);
+}
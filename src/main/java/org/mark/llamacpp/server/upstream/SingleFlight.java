@@ -0,0 +1,445 @@
+package org.mark.llamacpp.server.upstream;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mark.llamacpp.server.LlamaServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+
+/**
+ * 	相同请求的合并（singleflight）。
+ * 	结果确定的请求如果已经有一个完全相同的正在执行，后来的请求不再占用slot，而是挂到这个上游请求上，
+ * 	收到和它一样的响应头和响应体（已经收到的部分会先补发）。每个请求拿到的是各自的{@link UpstreamExchange}，
+ * 	取消时只是自己脱离，所有请求都脱离后才真正取消上游请求。
+ */
+public class SingleFlight {
+
+	private static final Logger logger = LoggerFactory.getLogger(SingleFlight.class);
+
+	private static final SingleFlight INSTANCE = new SingleFlight();
+
+	public static SingleFlight getInstance() {
+		return INSTANCE;
+	}
+
+	private final Map<String, Flight> flights = new HashMap<>();
+
+	private final AtomicLong leaders = new AtomicLong(0);
+
+	private final AtomicLong followers = new AtomicLong(0);
+
+	private final AtomicLong detached = new AtomicLong(0);
+
+	private SingleFlight() {
+
+	}
+
+	/**
+	 * 	合并用的键：同一个请求的流式和非流式版本上游响应不同，不能合并。
+	 * @param requestKey 规范化后的请求摘要，为null表示不能合并
+	 * @param stream
+	 * @return 未启用或者不能合并时返回null
+	 */
+	public static String keyOf(String requestKey, boolean stream) {
+		if (requestKey == null || !LlamaServer.isSingleFlightEnabled()) {
+			return null;
+		}
+		return (stream ? "s:" : "n:") + requestKey;
+	}
+
+	/**
+	 * 	挂到一个正在执行的相同请求上。
+	 * @param key
+	 * @param listener
+	 * @return 没有可以挂靠的请求时返回null
+	 */
+	public UpstreamExchange join(String key, UpstreamListener listener) {
+		if (key == null) {
+			return null;
+		}
+		Flight flight;
+		synchronized (this.flights) {
+			flight = this.flights.get(key);
+		}
+		UpstreamExchange view = flight == null ? null : flight.join(listener, false);
+		if (view != null) {
+			this.followers.incrementAndGet();
+		}
+		return view;
+	}
+
+	/**
+	 * 	发送请求。已经有相同的请求在执行时挂到它上面，否则发出新的上游请求，后来的相同请求可以挂到这个请求上。
+	 * 	参数同{@link UpstreamClient#send}。
+	 * @param key 为null时直接发送，不参与合并
+	 * @return
+	 */
+	public UpstreamExchange send(String key, int port, HttpMethod method, String uri, HttpHeaders headers, ByteBuf body, long timeoutMs, UpstreamListener listener) {
+		if (key == null) {
+			return UpstreamClient.getInstance().send(port, method, uri, headers, body, timeoutMs, listener);
+		}
+		Flight flight;
+		synchronized (this.flights) {
+			Flight existing = this.flights.get(key);
+			UpstreamExchange view = existing == null ? null : existing.join(listener, false);
+			if (view != null) {
+				this.followers.incrementAndGet();
+				if (body != null) {
+					body.release();
+				}
+				return view;
+			}
+			flight = new Flight(key);
+			this.flights.put(key, flight);
+		}
+		this.leaders.incrementAndGet();
+		// 先挂上自己再发请求，避免漏掉最早的回调
+		SharedExchange view = flight.join(listener, true);
+		flight.exchange = UpstreamClient.getInstance().send(port, method, uri, headers, body, timeoutMs, flight);
+		if (view.isCancelled()) {
+			flight.exchange.cancel();
+		}
+		return view;
+	}
+
+	/**
+	 * 	统计。
+	 * @return
+	 */
+	public Map<String, Object> snapshot() {
+		Map<String, Object> data = new LinkedHashMap<>();
+		data.put("enabled", LlamaServer.isSingleFlightEnabled());
+		synchronized (this.flights) {
+			data.put("inFlight", this.flights.size());
+		}
+		data.put("leaders", this.leaders.get());
+		data.put("followers", this.followers.get());
+		data.put("detached", this.detached.get());
+		return data;
+	}
+
+	private void remove(Flight flight) {
+		synchronized (this.flights) {
+			this.flights.remove(flight.key, flight);
+		}
+	}
+
+	//================================================================================================
+
+	/**
+	 * 	一个正在执行的上游请求，把收到的数据转发给所有挂在上面的请求，并记录下来补发给后来的请求。
+	 */
+	private class Flight implements UpstreamListener {
+
+		private final String key;
+
+		private volatile UpstreamExchange exchange;
+
+		private final List<SharedExchange> subscribers = new ArrayList<>();
+
+		private HttpResponse response;
+
+		/**
+		 * 	已经收到的响应体，超过上限后不再记录，也不再接受新的请求挂靠。
+		 */
+		private List<ByteBuf> recorded = new ArrayList<>();
+
+		private long recordedBytes = 0;
+
+		private boolean joinable = true;
+
+		private Flight(String key) {
+			this.key = key;
+		}
+
+		private synchronized SharedExchange join(UpstreamListener listener, boolean owner) {
+			if (!this.joinable) {
+				return null;
+			}
+			SharedExchange view = new SharedExchange(this, listener, owner);
+			try {
+				if (this.response != null) {
+					listener.onResponse(this.response);
+				}
+				for (ByteBuf buf : this.recorded) {
+					listener.onContent(buf.duplicate());
+				}
+			} catch (Exception e) {
+				logger.info("补发合并请求的数据时发生错误", e);
+			}
+			this.subscribers.add(view);
+			return view;
+		}
+
+		/**
+		 * 	一个请求脱离。最后一个也脱离时取消上游请求。
+		 */
+		private void detach(SharedExchange view) {
+			boolean last;
+			synchronized (this) {
+				if (!this.subscribers.remove(view)) {
+					return;
+				}
+				last = this.subscribers.isEmpty();
+				if (last) {
+					this.close();
+				}
+			}
+			detached.incrementAndGet();
+			UpstreamExchange ex = this.exchange;
+			if (last && ex != null) {
+				ex.cancel();
+			}
+		}
+
+		private synchronized int subscriberCount() {
+			return this.subscribers.size();
+		}
+
+		/**
+		 * 	不再接受挂靠，释放记录的数据。
+		 */
+		private void close() {
+			if (!this.joinable) {
+				return;
+			}
+			this.joinable = false;
+			remove(this);
+			for (ByteBuf buf : this.recorded) {
+				buf.release();
+			}
+			this.recorded = new ArrayList<>(0);
+		}
+
+		@Override
+		public synchronized void onResponse(HttpResponse response) {
+			this.response = response;
+			for (SharedExchange view : this.subscribers.toArray(new SharedExchange[0])) {
+				try {
+					view.listener.onResponse(response);
+				} catch (Exception e) {
+					logger.info("转发合并请求的响应头时发生错误", e);
+				}
+			}
+		}
+
+		@Override
+		public synchronized void onContent(ByteBuf content) {
+			if (this.joinable) {
+				this.recordedBytes += content.readableBytes();
+				if (this.recordedBytes > LlamaServer.getSingleFlightMaxReplayBytes()) {
+					// 太大了，后来的请求自己去请求上游
+					this.close();
+				} else {
+					this.recorded.add(Unpooled.copiedBuffer(content));
+				}
+			}
+			for (SharedExchange view : this.subscribers.toArray(new SharedExchange[0])) {
+				try {
+					view.listener.onContent(content.duplicate());
+				} catch (Exception e) {
+					logger.info("转发合并请求的响应体时发生错误", e);
+				}
+			}
+		}
+
+		@Override
+		public void onComplete() {
+			for (SharedExchange view : this.finish()) {
+				try {
+					view.listener.onComplete();
+				} catch (Exception e) {
+					logger.info("转发合并请求的结束事件时发生错误", e);
+				}
+				view.finish();
+			}
+		}
+
+		@Override
+		public void onError(Throwable cause) {
+			for (SharedExchange view : this.finish()) {
+				try {
+					view.listener.onError(cause);
+				} catch (Exception e) {
+					logger.info("转发合并请求的错误时发生错误", e);
+				}
+				view.finish();
+			}
+		}
+
+		private synchronized SharedExchange[] finish() {
+			this.close();
+			SharedExchange[] views = this.subscribers.toArray(new SharedExchange[0]);
+			this.subscribers.clear();
+			return views;
+		}
+	}
+
+	/**
+	 * 	挂在合并请求上的一个请求。
+	 */
+	private static class SharedExchange extends UpstreamExchange {
+
+		private final Flight flight;
+
+		private final UpstreamListener listener;
+
+		/**
+		 * 	是否是发出上游请求的那一个。它的结束回调（释放排队许可、slot等）跟随真正的上游请求。
+		 */
+		private final boolean owner;
+
+		private volatile boolean finished = false;
+
+		private volatile boolean cancelled = false;
+
+		private List<Runnable> hooks;
+
+		private SharedExchange(Flight flight, UpstreamListener listener, boolean owner) {
+			super(0, null, null, listener, 0, null);
+			this.flight = flight;
+			this.listener = listener;
+			this.owner = owner;
+		}
+
+		@Override
+		public int getPort() {
+			UpstreamExchange ex = this.flight.exchange;
+			return ex == null ? 0 : ex.getPort();
+		}
+
+		@Override
+		public boolean isDone() {
+			return this.finished;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return this.cancelled;
+		}
+
+		@Override
+		public boolean isResponded() {
+			UpstreamExchange ex = this.flight.exchange;
+			return ex != null && ex.isResponded();
+		}
+
+		/**
+		 * 	脱离合并的请求，所有请求都脱离后才取消上游请求。
+		 */
+		@Override
+		public void cancel() {
+			if (this.finished) {
+				return;
+			}
+			this.cancelled = true;
+			this.flight.detach(this);
+			this.finish();
+		}
+
+		/**
+		 * 	只让这一个请求超时，其它挂在上面的请求不受影响。
+		 */
+		@Override
+		public void expire(long deadlineMs) {
+			if (this.finished) {
+				return;
+			}
+			this.cancel();
+			try {
+				this.listener.onError(new TimeoutException("请求超过截止时间: " + deadlineMs + "ms"));
+			} catch (Exception e) {
+				logger.info("处理合并请求的超时事件时发生错误", e);
+			}
+		}
+
+		/**
+		 * 	只有一个请求时才暂停上游，否则一个慢客户端会拖住其它所有客户端。
+		 */
+		@Override
+		public void pauseRead() {
+			UpstreamExchange ex = this.flight.exchange;
+			if (ex != null && this.flight.subscriberCount() <= 1) {
+				ex.pauseRead();
+			}
+		}
+
+		@Override
+		public void resumeRead() {
+			UpstreamExchange ex = this.flight.exchange;
+			if (ex != null && ex.isReadPaused()) {
+				ex.resumeRead();
+			}
+		}
+
+		@Override
+		public boolean isReadPaused() {
+			UpstreamExchange ex = this.flight.exchange;
+			return ex != null && ex.isReadPaused();
+		}
+
+		@Override
+		public void whenDone(Runnable hook) {
+			UpstreamExchange ex = this.flight.exchange;
+			if (this.owner && ex != null) {
+				ex.whenDone(hook);
+				return;
+			}
+			synchronized (this) {
+				if (!this.finished) {
+					if (this.hooks == null) {
+						this.hooks = new ArrayList<>(2);
+					}
+					this.hooks.add(hook);
+					return;
+				}
+			}
+			hook.run();
+		}
+
+		/**
+		 * 	挂上来的请求不占用上游资源，立即释放。
+		 */
+		@Override
+		public void whenUpstreamDone(Runnable hook) {
+			if (this.owner) {
+				this.whenDone(hook);
+			} else {
+				hook.run();
+			}
+		}
+
+		private void finish() {
+			List<Runnable> list;
+			synchronized (this) {
+				if (this.finished) {
+					return;
+				}
+				this.finished = true;
+				list = this.hooks;
+				this.hooks = null;
+			}
+			if (list != null) {
+				for (Runnable r : list) {
+					try {
+						r.run();
+					} catch (Exception e) {
+						logger.info("执行合并请求的结束回调时发生错误", e);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package org.mark.llamacpp.server.upstream;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * 	把上游分块到达的响应体切成一行一行的文本，用于逐行处理SSE。
+ * 	非线程安全，只在同一个上游EventLoop里使用。缓冲使用非池化内存，中途放弃时不调用{@link #release()}也不会泄漏。
+ */
+public class SseLineDecoder {
+
+	/**
+	 * 	按字节处理一行，不解码成字符串。
+	 */
+	@FunctionalInterface
+	public interface LineHandler {
+
+		/**
+		 * 	buf的[index, index + length)是一行（不含换行符和行尾的\r）。回调返回后这段数据可能被覆盖，不能保留引用。
+		 * @param buf
+		 * @param index
+		 * @param length
+		 */
+		public void onLine(ByteBuf buf, int index, int length);
+	}
+
+	private final LineHandler handler;
+
+	/**
+	 * 	上一块数据里没有换行结尾的剩余部分。
+	 */
+	private ByteBuf pending;
+
+	public SseLineDecoder(Consumer<String> lineConsumer) {
+		this.handler = (buf, index, length) -> lineConsumer.accept(buf.toString(index, length, StandardCharsets.UTF_8));
+	}
+
+	public SseLineDecoder(LineHandler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * 	输入一段数据，回调其中所有完整的行（不含换行符）。
+	 * @param content
+	 */
+	public void feed(ByteBuf content) {
+		int start = content.readerIndex();
+		int end = content.writerIndex();
+		int i = start;
+		while (i < end) {
+			int nl = content.indexOf(i, end, (byte) '\n');
+			if (nl < 0) {
+				break;
+			}
+			this.emit(content, i, nl - i);
+			i = nl + 1;
+		}
+		if (i < end) {
+			if (this.pending == null) {
+				this.pending = Unpooled.buffer(Math.max(256, end - i));
+			}
+			this.pending.writeBytes(content, i, end - i);
+		}
+	}
+
+	/**
+	 * 	输入结束，把最后一行（没有换行结尾）也交出去，并释放缓冲。
+	 */
+	public void finish() {
+		if (this.pending != null) {
+			ByteBuf buf = this.pending;
+			this.pending = null;
+			try {
+				if (buf.isReadable()) {
+					this.accept(buf, buf.readerIndex(), buf.readableBytes());
+				}
+			} finally {
+				buf.release();
+			}
+		}
+	}
+
+	/**
+	 * 	丢弃缓冲内容。
+	 */
+	public void release() {
+		if (this.pending != null) {
+			this.pending.release();
+			this.pending = null;
+		}
+	}
+
+	private void emit(ByteBuf content, int index, int length) {
+		if (this.pending != null && this.pending.isReadable()) {
+			this.pending.writeBytes(content, index, length);
+			try {
+				this.accept(this.pending, this.pending.readerIndex(), this.pending.readableBytes());
+			} finally {
+				this.pending.clear();
+			}
+		} else {
+			this.accept(content, index, length);
+		}
+	}
+
+	private void accept(ByteBuf buf, int index, int length) {
+		if (length > 0 && buf.getByte(index + length - 1) == '\r') {
+			length--;
+		}
+		this.handler.onLine(buf, index, length);
+	}
+}
@@ -0,0 +1,115 @@
+package org.mark.llamacpp.server.upstream;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mark.llamacpp.server.LlamaServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/**
+ * 	流式响应的合并刷新。
+ * 	数据块先write进出站缓冲，攒够{@link LlamaServer#getStreamFlushMaxEvents()}个，
+ * 	或者第一个未刷新的数据块等待超过{@link LlamaServer#getStreamFlushMaxDelayMs()}毫秒后统一flush，
+ * 	把每行一次系统调用变成每批一次。请求头带{@value #FLUSH_HEADER}: immediate 时每个数据块立即刷新。
+ */
+public class StreamFlusher {
+
+	private static final Logger logger = LoggerFactory.getLogger(StreamFlusher.class);
+
+	/**
+	 * 	控制刷新方式的请求头。
+	 */
+	public static final String FLUSH_HEADER = "X-Stream-Flush";
+
+	private final ChannelHandlerContext ctx;
+
+	private final int maxEvents;
+
+	private final long maxDelayMs;
+
+	private final Runnable onWriteFailure;
+
+	private int pendingEvents = 0;
+
+	private long pendingBytes = 0;
+
+	private ScheduledFuture<?> flushTask;
+
+	/**
+	 * 	
+	 * @param ctx 客户端连接
+	 * @param requestHeaders 客户端请求头，用于判断是否关闭合并
+	 * @param onWriteFailure 写入失败时的回调
+	 */
+	public StreamFlusher(ChannelHandlerContext ctx, HttpHeaders requestHeaders, Runnable onWriteFailure) {
+		this.ctx = ctx;
+		this.onWriteFailure = onWriteFailure;
+		boolean immediate = requestHeaders != null && "immediate".equalsIgnoreCase(requestHeaders.get(FLUSH_HEADER));
+		int events = LlamaServer.getStreamFlushMaxEvents();
+		long delay = LlamaServer.getStreamFlushMaxDelayMs();
+		if (immediate || events <= 1 || delay <= 0) {
+			this.maxEvents = 1;
+			this.maxDelayMs = 0;
+		} else {
+			this.maxEvents = events;
+			this.maxDelayMs = delay;
+		}
+	}
+
+	/**
+	 * 	是否每个数据块都立即刷新。
+	 * @return
+	 */
+	public boolean isImmediate() {
+		return this.maxEvents <= 1;
+	}
+
+	/**
+	 * 	写入一个数据块，buf的所有权交给这里。
+	 * @param buf
+	 */
+	public synchronized void write(ByteBuf buf) {
+		int bytes = buf.readableBytes();
+		this.ctx.write(new DefaultHttpContent(buf)).addListener((ChannelFutureListener) future -> {
+			if (!future.isSuccess()) {
+				logger.info("写入流式数据失败，可能是客户端断开连接: {}", future.cause().getMessage());
+				if (this.onWriteFailure != null) {
+					this.onWriteFailure.run();
+				}
+			}
+		});
+		this.pendingEvents++;
+		this.pendingBytes += bytes;
+		if (this.pendingEvents >= this.maxEvents) {
+			this.flush();
+			return;
+		}
+		if (this.flushTask == null) {
+			this.flushTask = this.ctx.executor().schedule(this::flush, this.maxDelayMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * 	立即刷新已写入的数据。
+	 */
+	public synchronized void flush() {
+		if (this.flushTask != null) {
+			this.flushTask.cancel(false);
+			this.flushTask = null;
+		}
+		if (this.pendingEvents == 0) {
+			return;
+		}
+		StreamMetrics.getInstance().recordFlush(this.pendingEvents, this.pendingBytes, this.isImmediate());
+		this.pendingEvents = 0;
+		this.pendingBytes = 0;
+		this.ctx.flush();
+	}
+}
@@ -0,0 +1,160 @@
+package org.mark.llamacpp.server.upstream;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 	流式响应的写出统计。一次flush大致对应一次写系统调用。
+ */
+public class StreamMetrics {
+
+	private static final StreamMetrics INSTANCE = new StreamMetrics();
+
+	public static StreamMetrics getInstance() {
+		return INSTANCE;
+	}
+
+	private final AtomicLong flushes = new AtomicLong();
+
+	private final AtomicLong events = new AtomicLong();
+
+	private final AtomicLong bytes = new AtomicLong();
+
+	private final AtomicLong immediateFlushes = new AtomicLong();
+
+	private final AtomicLong streams = new AtomicLong();
+
+	private final AtomicLong fastChunks = new AtomicLong();
+
+	private final AtomicLong slowChunks = new AtomicLong();
+
+	private final AtomicLong stoppedByStop = new AtomicLong();
+
+	private final AtomicLong stoppedByLength = new AtomicLong();
+
+	private final AtomicLong chunks = new AtomicLong();
+
+	private final AtomicLong contentBytes = new AtomicLong();
+
+	private final AtomicLong completionTokens = new AtomicLong();
+
+	private final AtomicLong streamMillis = new AtomicLong();
+
+	private final AtomicLong cancelled = new AtomicLong();
+
+	private final AtomicLong expired = new AtomicLong();
+
+	private final AtomicLong slotReleases = new AtomicLong();
+
+	private final AtomicLong slotReleaseNanos = new AtomicLong();
+
+	private final AtomicLong slotReleaseMaxNanos = new AtomicLong();
+
+	private StreamMetrics() {
+
+	}
+
+	/**
+	 * 	记录一次flush。
+	 * @param eventCount 这次flush包含的数据块数
+	 * @param byteCount 这次flush包含的字节数
+	 * @param immediate 是否为关闭合并的请求
+	 */
+	public void recordFlush(int eventCount, long byteCount, boolean immediate) {
+		this.flushes.incrementAndGet();
+		this.events.addAndGet(eventCount);
+		this.bytes.addAndGet(byteCount);
+		if (immediate) {
+			this.immediateFlushes.incrementAndGet();
+		}
+	}
+
+	/**
+	 * 	记录一个流式响应经过处理流水线的情况。
+	 * @param fast 直接在字节上读取的数据块数
+	 * @param slow 退回完整解析的数据块数
+	 * @param stopReason 被提前结束的原因，没有时为null
+	 */
+	public void recordPipeline(int fast, int slow, String stopReason) {
+		this.streams.incrementAndGet();
+		this.fastChunks.addAndGet(fast);
+		this.slowChunks.addAndGet(slow);
+		if ("stop".equals(stopReason)) {
+			this.stoppedByStop.incrementAndGet();
+		} else if ("length".equals(stopReason)) {
+			this.stoppedByLength.incrementAndGet();
+		}
+	}
+
+	/**
+	 * 	记录一个流式响应的用量。
+	 * @param chunkCount 数据块数
+	 * @param byteCount 输出文本的字节数
+	 * @param tokens 生成的token数
+	 * @param millis 持续时间
+	 */
+	public void recordUsage(long chunkCount, long byteCount, long tokens, long millis) {
+		this.chunks.addAndGet(chunkCount);
+		this.contentBytes.addAndGet(byteCount);
+		this.completionTokens.addAndGet(tokens);
+		this.streamMillis.addAndGet(millis);
+	}
+
+	/**
+	 * 	记录一次上游请求被取消。
+	 * @param deadline true：到达截止时间；false：客户端断开或提前结束
+	 */
+	public void recordCancel(boolean deadline) {
+		(deadline ? this.expired : this.cancelled).incrementAndGet();
+	}
+
+	/**
+	 * 	记录从决定取消到上游连接关闭完成的耗时。
+	 * @param nanos
+	 */
+	public void recordSlotRelease(long nanos) {
+		this.slotReleases.incrementAndGet();
+		this.slotReleaseNanos.addAndGet(nanos);
+		this.slotReleaseMaxNanos.accumulateAndGet(nanos, Math::max);
+	}
+
+	/**
+	 * 	当前的统计数据。
+	 * @return
+	 */
+	public Map<String, Object> snapshot() {
+		long f = this.flushes.get();
+		long e = this.events.get();
+		long b = this.bytes.get();
+		Map<String, Object> data = new LinkedHashMap<>();
+		data.put("flushes", f);
+		data.put("immediateFlushes", this.immediateFlushes.get());
+		data.put("events", e);
+		data.put("bytes", b);
+		data.put("eventsPerFlush", f == 0 ? 0 : (double) e / f);
+		data.put("bytesPerFlush", f == 0 ? 0 : (double) b / f);
+		Map<String, Object> pipeline = new LinkedHashMap<>();
+		long ms = this.streamMillis.get();
+		long tokens = this.completionTokens.get();
+		pipeline.put("streams", this.streams.get());
+		pipeline.put("fastChunks", this.fastChunks.get());
+		pipeline.put("slowChunks", this.slowChunks.get());
+		pipeline.put("stoppedByStopString", this.stoppedByStop.get());
+		pipeline.put("stoppedByWallTime", this.stoppedByLength.get());
+		pipeline.put("chunks", this.chunks.get());
+		pipeline.put("contentBytes", this.contentBytes.get());
+		pipeline.put("completionTokens", tokens);
+		pipeline.put("tokensPerSecond", ms == 0 ? 0 : tokens * 1000.0 / ms);
+		data.put("pipeline", pipeline);
+		Map<String, Object> cancel = new LinkedHashMap<>();
+		long n = this.slotReleases.get();
+		cancel.put("cancelled", this.cancelled.get());
+		cancel.put("expired", this.expired.get());
+		cancel.put("slotReleases", n);
+		cancel.put("slotReleaseAvgMs", n == 0 ? 0 : this.slotReleaseNanos.get() / 1e6 / n);
+		cancel.put("slotReleaseMaxMs", this.slotReleaseMaxNanos.get() / 1e6);
+		data.put("cancellation", cancel);
+		return data;
+	}
+}
@@ -0,0 +1,210 @@
+package org.mark.llamacpp.server.upstream;
+
+import java.util.ArrayDeque;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.LastHttpContent;
+
+/**
+ * 	边收边发的请求体。
+ * 	客户端的数据块写进来以后，连上llama-server之前先排队，连上以后按顺序直接写到上游连接。
+ * 	排队和正在发送的数据超过高水位时暂停读取客户端，降到低水位以下再恢复，所以同时留在内存里的只有一小段。
+ */
+public class StreamingBody {
+
+	/**
+	 * 	留在内存里的请求体超过这个大小时暂停读取客户端。
+	 */
+	public static final long HIGH_WATER_MARK = 1024L * 1024;
+
+	private static final long LOW_WATER_MARK = 256L * 1024;
+
+	/**
+	 * 	客户端连接，用来做背压，可以为null。
+	 */
+	private final Channel source;
+
+	private final ArrayDeque<ByteBuf> queue = new ArrayDeque<>();
+
+	private long queuedBytes = 0;
+
+	private long inflightBytes = 0;
+
+	private long sentBytes = 0;
+
+	private Channel target;
+
+	private boolean ended = false;
+
+	private boolean endSent = false;
+
+	private boolean endWritten = false;
+
+	private boolean closed = false;
+
+	private boolean paused = false;
+
+	public StreamingBody(Channel source) {
+		this.source = source;
+	}
+
+	/**
+	 * 	写入一块数据，所有权转移给本对象。
+	 * @param chunk
+	 */
+	public synchronized void write(ByteBuf chunk) {
+		if (this.closed || this.ended || !chunk.isReadable()) {
+			chunk.release();
+			return;
+		}
+		if (this.target == null) {
+			this.queue.add(chunk);
+			this.queuedBytes += chunk.readableBytes();
+		} else {
+			this.send(chunk);
+		}
+		this.checkWaterMark();
+	}
+
+	/**
+	 * 	请求体结束。
+	 */
+	public synchronized void end() {
+		if (this.closed || this.ended) {
+			return;
+		}
+		this.ended = true;
+		if (this.target != null) {
+			this.sendEnd();
+		}
+	}
+
+	/**
+	 * 	已经写到上游连接的字节数。
+	 * @return
+	 */
+	public synchronized long getSentBytes() {
+		return this.sentBytes;
+	}
+
+	/**
+	 * 	是否已经有数据发到上游，发出后就不能再换连接重试了。
+	 * @return
+	 */
+	synchronized boolean isStarted() {
+		return this.sentBytes > 0 || this.endSent;
+	}
+
+	/**
+	 * 	请求体是否已经完整写到上游连接。
+	 * @return
+	 */
+	synchronized boolean isFinished() {
+		return this.endWritten && this.inflightBytes == 0;
+	}
+
+	/**
+	 * 	连接到上游，请求头已经写出。把排队的数据发出去。
+	 * @param ch
+	 */
+	synchronized void attach(Channel ch) {
+		if (this.closed) {
+			return;
+		}
+		this.target = ch;
+		ByteBuf chunk;
+		while ((chunk = this.queue.poll()) != null) {
+			this.queuedBytes -= chunk.readableBytes();
+			this.send(chunk);
+		}
+		if (this.ended) {
+			this.sendEnd();
+		}
+		this.checkWaterMark();
+	}
+
+	/**
+	 * 	请求结束或者放弃转发，丢弃还没发出的数据，之后写入的数据直接释放。
+	 */
+	public synchronized void close() {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		this.target = null;
+		ByteBuf chunk;
+		while ((chunk = this.queue.poll()) != null) {
+			chunk.release();
+		}
+		this.queuedBytes = 0;
+		this.resumeSource();
+	}
+
+	private void send(ByteBuf chunk) {
+		int length = chunk.readableBytes();
+		this.inflightBytes += length;
+		this.sentBytes += length;
+		this.enqueue(new DefaultHttpContent(chunk), length);
+	}
+
+	private void sendEnd() {
+		if (this.endSent) {
+			return;
+		}
+		this.endSent = true;
+		this.enqueue(LastHttpContent.EMPTY_LAST_CONTENT, -1);
+	}
+
+	/**
+	 * 	统一放到上游连接的EventLoop里写，保证不同线程写入的数据块按顺序发出。length为-1表示结束标记。
+	 */
+	private void enqueue(HttpContent content, int length) {
+		Channel ch = this.target;
+		ch.eventLoop().execute(() -> {
+			synchronized (this) {
+				if (this.target != ch) {
+					// 请求已经结束，连接可能已经还给连接池了
+					content.release();
+					this.written(length);
+					return;
+				}
+			}
+			ch.writeAndFlush(content).addListener(f -> this.written(length));
+		});
+	}
+
+	private synchronized void written(int length) {
+		if (length < 0) {
+			this.endWritten = true;
+			return;
+		}
+		this.inflightBytes -= length;
+		this.checkWaterMark();
+	}
+
+	private void checkWaterMark() {
+		long pending = this.queuedBytes + this.inflightBytes;
+		// 还没连上上游时客户端的数据只能先排队，排到高水位就不再读取
+		if (!this.paused && pending > HIGH_WATER_MARK && !this.closed) {
+			this.paused = true;
+			if (this.source != null) {
+				this.source.config().setAutoRead(false);
+			}
+		} else if (this.paused && (pending < LOW_WATER_MARK || this.closed)) {
+			this.resumeSource();
+		}
+	}
+
+	private void resumeSource() {
+		if (!this.paused) {
+			return;
+		}
+		this.paused = false;
+		if (this.source != null) {
+			this.source.config().setAutoRead(true);
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package org.mark.llamacpp.server.upstream;
+
+import java.io.IOException;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+
+/**
+ * 	上游连接上的处理器，把收到的HTTP对象分发给当前绑定的{@link UpstreamExchange}。
+ */
+class UpstreamChannelHandler extends SimpleChannelInboundHandler<HttpObject> {
+
+	@Override
+	protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) throws Exception {
+		UpstreamExchange exchange = ctx.channel().attr(UpstreamExchange.EXCHANGE).get();
+		if (exchange == null) {
+			// 空闲连接上收到了意料之外的数据，直接丢弃这条连接
+			ctx.close();
+			return;
+		}
+		if (msg.decoderResult().isFailure()) {
+			exchange.fail(ctx.channel(), msg.decoderResult().cause());
+			return;
+		}
+		if (msg instanceof HttpResponse) {
+			exchange.handleResponse(ctx.channel(), (HttpResponse) msg);
+		}
+		if (msg instanceof HttpContent) {
+			HttpContent content = (HttpContent) msg;
+			if (content.content().isReadable()) {
+				exchange.handleContent(ctx.channel(), content.content());
+			}
+			if (msg instanceof LastHttpContent) {
+				exchange.complete(ctx.channel());
+			}
+		}
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		UpstreamExchange exchange = ctx.channel().attr(UpstreamExchange.EXCHANGE).get();
+		if (exchange != null) {
+			exchange.connectionLost(ctx.channel(), new IOException("与llama.cpp进程的连接已断开"));
+		}
+		super.channelInactive(ctx);
+	}
+
+	@Override
+	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+		UpstreamExchange exchange = ctx.channel().attr(UpstreamExchange.EXCHANGE).get();
+		if (exchange != null) {
+			exchange.connectionLost(ctx.channel(), cause);
+		}
+		ctx.close();
+	}
+}
@@ -0,0 +1,406 @@
+package org.mark.llamacpp.server.upstream;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import org.mark.llamacpp.server.channel.NettyTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.pool.AbstractChannelPoolHandler;
+import io.netty.channel.pool.ChannelHealthChecker;
+import io.netty.channel.pool.ChannelPool;
+import io.netty.channel.pool.SimpleChannelPool;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/**
+ * 	访问本机llama-server进程的HTTP客户端。
+ * 	每个模型端口维护一个keep-alive连接池，请求和响应都在Netty的EventLoop上异步完成，不占用阻塞线程。
+ */
+public class UpstreamClient {
+
+	private static final Logger logger = LoggerFactory.getLogger(UpstreamClient.class);
+
+	/**
+	 * 	llama-server监听在0.0.0.0，这里直接走IPv4回环地址。
+	 */
+	private static final String UPSTREAM_HOST = "127.0.0.1";
+
+	private static final int CONNECT_TIMEOUT_MS = 10000;
+
+	/**
+	 * 	单例
+	 */
+	private static final UpstreamClient INSTANCE = new UpstreamClient();
+
+	public static UpstreamClient getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * 	端口 -> 连接池
+	 */
+	private final Map<Integer, ChannelPool> pools = new ConcurrentHashMap<>();
+
+	/**
+	 * 	端口 -> 阻塞调用使用的连接池。
+	 * 	阻塞调用可能发生在服务端的EventLoop线程里，如果上游连接恰好注册在同一个EventLoop上就会死锁，所以单独使用一组线程。
+	 */
+	private final Map<Integer, ChannelPool> blockingPools = new ConcurrentHashMap<>();
+
+	private volatile EventLoopGroup blockingGroup;
+
+	private final Object groupLock = new Object();
+
+	private volatile UpstreamObserver observer;
+
+	private volatile HedgePolicy hedgePolicy;
+
+	private UpstreamClient() {
+
+	}
+
+	/**
+	 * 	设置请求观察者。
+	 * @param observer
+	 */
+	public void setObserver(UpstreamObserver observer) {
+		this.observer = observer;
+	}
+
+	/**
+	 * 	设置对冲策略，为null时不对冲。只对异步请求生效。
+	 * @param hedgePolicy
+	 */
+	public void setHedgePolicy(HedgePolicy hedgePolicy) {
+		this.hedgePolicy = hedgePolicy;
+	}
+
+	/**
+	 * 	上下游共用同一批IO线程。
+	 */
+	private EventLoopGroup group() {
+		return NettyTransport.getInstance().workerGroup();
+	}
+
+	private EventLoopGroup blockingGroup() {
+		EventLoopGroup g = this.blockingGroup;
+		if (g != null) {
+			return g;
+		}
+		synchronized (this.groupLock) {
+			if (this.blockingGroup == null) {
+				this.blockingGroup = NettyTransport.getInstance().newEventLoopGroup(1, "llama-upstream-blocking");
+			}
+			return this.blockingGroup;
+		}
+	}
+
+	private ChannelPool pool(int port, boolean blocking) {
+		Map<Integer, ChannelPool> map = blocking ? this.blockingPools : this.pools;
+		return map.computeIfAbsent(port, p -> {
+			Bootstrap bootstrap = new Bootstrap()
+					.group(blocking ? this.blockingGroup() : this.group())
+					.channel(NettyTransport.getInstance().socketChannelClass())
+					.option(ChannelOption.TCP_NODELAY, true)
+					.option(ChannelOption.SO_KEEPALIVE, true)
+					.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, CONNECT_TIMEOUT_MS)
+					.remoteAddress(UPSTREAM_HOST, p.intValue());
+			return new SimpleChannelPool(bootstrap, new AbstractChannelPoolHandler() {
+				@Override
+				public void channelCreated(Channel ch) throws Exception {
+					ch.pipeline()
+							.addLast(new HttpClientCodec())
+							.addLast(new UpstreamChannelHandler());
+				}
+			}, ChannelHealthChecker.ACTIVE, true, true);
+		});
+	}
+
+	/**
+	 * 	关闭指定端口的连接池，模型停止时调用。
+	 * @param port
+	 */
+	public void closePool(int port) {
+		closeQuietly(this.pools.remove(port));
+		closeQuietly(this.blockingPools.remove(port));
+	}
+
+	private static void closeQuietly(ChannelPool pool) {
+		if (pool != null) {
+			try {
+				pool.close();
+			} catch (Exception e) {
+				logger.info("关闭llama.cpp连接池时发生错误", e);
+			}
+		}
+	}
+
+	/**
+	 * 	发送请求，响应通过listener异步回调。
+	 * @param port
+	 * @param method
+	 * @param uri
+	 * @param headers 客户端原始请求头，会过滤掉逐跳头，可以为null
+	 * @param body 请求体，所有权转移给本方法，可以为null
+	 * @param timeoutMs 整个请求的超时时间，小于等于0表示不限制
+	 * @param listener
+	 * @return
+	 */
+	public UpstreamExchange send(int port, HttpMethod method, String uri, HttpHeaders headers, ByteBuf body, long timeoutMs, UpstreamListener listener) {
+		return this.send(port, method, uri, headers, body, timeoutMs, listener, false);
+	}
+
+	private UpstreamExchange send(int port, HttpMethod method, String uri, HttpHeaders headers, ByteBuf body, long timeoutMs, UpstreamListener listener, boolean blocking) {
+		ByteBuf content = body == null ? Unpooled.EMPTY_BUFFER : body;
+		FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, method, uri, content);
+		if (headers != null) {
+			copyHeaders(headers, request.headers());
+		}
+		request.headers().set(HttpHeaderNames.HOST, UPSTREAM_HOST + ":" + port);
+		request.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+		request.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
+		if (content.isReadable() && !request.headers().contains(HttpHeaderNames.CONTENT_TYPE)) {
+			request.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
+		}
+		UpstreamExchange exchange = new UpstreamExchange(port, this.pool(port, blocking), request, listener, timeoutMs, this.observer);
+		exchange.start();
+		if (!blocking) {
+			this.scheduleHedge(exchange, port, uri);
+		}
+		return exchange;
+	}
+
+	/**
+	 * 	发送请求，请求体边收边发（chunked），响应通过listener异步回调。不对冲，复用的连接失效时也只在请求体还没发出时重试。
+	 * @param port
+	 * @param method
+	 * @param uri
+	 * @param headers 客户端原始请求头，会过滤掉逐跳头，可以为null
+	 * @param body
+	 * @param timeoutMs 整个请求的超时时间，小于等于0表示不限制
+	 * @param listener
+	 * @return
+	 */
+	public UpstreamExchange sendStreaming(int port, HttpMethod method, String uri, HttpHeaders headers, StreamingBody body, long timeoutMs, UpstreamListener listener) {
+		FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, method, uri, Unpooled.EMPTY_BUFFER);
+		if (headers != null) {
+			copyHeaders(headers, request.headers());
+		}
+		request.headers().set(HttpHeaderNames.HOST, UPSTREAM_HOST + ":" + port);
+		request.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+		request.headers().set(HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED);
+		if (!request.headers().contains(HttpHeaderNames.CONTENT_TYPE)) {
+			request.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
+		}
+		UpstreamExchange exchange = new UpstreamExchange(port, this.pool(port, false), request, body, listener, timeoutMs, this.observer);
+		exchange.start();
+		return exchange;
+	}
+
+	/**
+	 * 	按对冲策略安排对冲请求。
+	 */
+	private void scheduleHedge(UpstreamExchange exchange, int port, String uri) {
+		HedgePolicy policy = this.hedgePolicy;
+		if (policy == null) {
+			return;
+		}
+		long delayMs = policy.getHedgeDelayMs(port, uri);
+		if (delayMs <= 0) {
+			return;
+		}
+		ScheduledFuture<?> task = this.group().next().schedule(() -> {
+			if (exchange.isDone() || exchange.isResponded()) {
+				return;
+			}
+			int target = policy.selectHedgePort(port, uri);
+			if (target > 0 && target != port) {
+				exchange.hedge(target, this.pool(target, false));
+			}
+		}, delayMs, TimeUnit.MILLISECONDS);
+		exchange.whenDone(() -> task.cancel(false));
+	}
+
+	/**
+	 * 	发送请求并聚合完整响应体。
+	 * @param port
+	 * @param method
+	 * @param uri
+	 * @param headers
+	 * @param body
+	 * @param timeoutMs
+	 * @param callback 成功时result不为null，失败时error不为null；主动取消时不回调
+	 * @return
+	 */
+	public UpstreamExchange sendAggregated(int port, HttpMethod method, String uri, HttpHeaders headers, ByteBuf body, long timeoutMs, BiConsumer<UpstreamResult, Throwable> callback) {
+		return this.send(port, method, uri, headers, body, timeoutMs, new AggregatingListener(callback));
+	}
+
+	/**
+	 * 	阻塞调用，给管理接口之类的小请求使用。
+	 * @param port
+	 * @param method
+	 * @param uri
+	 * @param body JSON请求体，可以为null
+	 * @param timeoutMs
+	 * @return
+	 * @throws Exception
+	 */
+	public UpstreamResult execute(int port, HttpMethod method, String uri, byte[] body, long timeoutMs) throws Exception {
+		return this.execute(port, method, uri, body, timeoutMs, null);
+	}
+	
+	/**
+	 * 	阻塞调用，同时把请求交给tracker，调用方可以在其它线程里{@link UpstreamExchange#cancel()}，此时抛出CancellationException。
+	 * @param port
+	 * @param method
+	 * @param uri
+	 * @param body
+	 * @param timeoutMs
+	 * @param tracker 可以为null
+	 * @return
+	 * @throws Exception
+	 */
+	public UpstreamResult execute(int port, HttpMethod method, String uri, byte[] body, long timeoutMs, Consumer<UpstreamExchange> tracker) throws Exception {
+		CompletableFuture<UpstreamResult> future = new CompletableFuture<>();
+		ByteBuf content = body == null || body.length == 0 ? null : Unpooled.wrappedBuffer(body);
+		UpstreamExchange exchange = this.send(port, method, uri, null, content, timeoutMs, new AggregatingListener((result, error) -> {
+			if (error != null) {
+				future.completeExceptionally(error);
+			} else {
+				future.complete(result);
+			}
+		}), true);
+		exchange.onCancel(() -> future.completeExceptionally(new CancellationException("请求已取消")));
+		if (tracker != null) {
+			tracker.accept(exchange);
+		}
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			exchange.cancel();
+			Thread.currentThread().interrupt();
+			throw e;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * 	复制请求头，跳过逐跳头和会影响转发的头。
+	 * @param from
+	 * @param to
+	 */
+	public static void copyHeaders(HttpHeaders from, HttpHeaders to) {
+		for (Map.Entry<String, String> entry : from) {
+			String key = entry.getKey();
+			if (key.equalsIgnoreCase("Connection") ||
+				key.equalsIgnoreCase("Content-Length") ||
+				key.equalsIgnoreCase("Transfer-Encoding") ||
+				key.equalsIgnoreCase("Host") ||
+				key.equalsIgnoreCase("Keep-Alive") ||
+				key.equalsIgnoreCase("Upgrade") ||
+				key.equalsIgnoreCase("Expect") ||
+				key.equalsIgnoreCase("TE") ||
+				key.equalsIgnoreCase("Accept-Encoding")) {
+				continue;
+			}
+			to.add(key, entry.getValue());
+		}
+	}
+
+	/**
+	 * 	复制一份请求头，用于在请求对象释放后继续使用。
+	 * @param from
+	 * @return
+	 */
+	public static HttpHeaders copyHeaders(HttpHeaders from) {
+		HttpHeaders to = new DefaultHttpHeaders(false);
+		if (from != null) {
+			copyHeaders(from, to);
+		}
+		return to;
+	}
+
+	/**
+	 * 	把响应体聚合成byte[]。
+	 */
+	private static class AggregatingListener implements UpstreamListener {
+
+		private final BiConsumer<UpstreamResult, Throwable> callback;
+
+		private HttpResponse response;
+
+		private CompositeByteBuf body;
+
+		private AggregatingListener(BiConsumer<UpstreamResult, Throwable> callback) {
+			this.callback = callback;
+		}
+
+		@Override
+		public void onResponse(HttpResponse response) {
+			this.response = response;
+		}
+
+		@Override
+		public void onContent(ByteBuf content) {
+			if (this.body == null) {
+				this.body = Unpooled.compositeBuffer(Integer.MAX_VALUE);
+			}
+			this.body.addComponent(true, content.retain());
+		}
+
+		@Override
+		public void onComplete() {
+			byte[] bytes;
+			if (this.body == null) {
+				bytes = new byte[0];
+			} else {
+				bytes = ByteBufUtil.getBytes(this.body);
+				this.body.release();
+				this.body = null;
+			}
+			int status = this.response == null ? 502 : this.response.status().code();
+			HttpHeaders headers = this.response == null ? new DefaultHttpHeaders() : this.response.headers();
+			this.callback.accept(new UpstreamResult(status, headers, bytes), null);
+		}
+
+		@Override
+		public void onError(Throwable cause) {
+			if (this.body != null) {
+				this.body.release();
+				this.body = null;
+			}
+			this.callback.accept(null, cause);
+		}
+	}
+}
@@ -0,0 +1,581 @@
+package org.mark.llamacpp.server.upstream;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.pool.ChannelPool;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/**
+ * 	一次发往llama-server的请求。
+ * 	负责从连接池借出连接、发送请求、把响应交给{@link UpstreamListener}，结束后归还或关闭连接。
+ * 	开启对冲时同一个请求会再发给另一个端口，先收到响应头的一方胜出，另一方的连接直接关闭。
+ * 	请求体也可以是{@link StreamingBody}，这时请求头先发出去，请求体边收边发，不对冲。
+ */
+public class UpstreamExchange {
+
+	private static final Logger logger = LoggerFactory.getLogger(UpstreamExchange.class);
+
+	/**
+	 * 	连接上当前正在进行的请求。
+	 */
+	static final AttributeKey<UpstreamExchange> EXCHANGE = AttributeKey.valueOf("llama.upstream.exchange");
+
+	/**
+	 * 	连接已经完成的请求数，大于0说明是复用的连接。
+	 */
+	static final AttributeKey<Integer> USES = AttributeKey.valueOf("llama.upstream.uses");
+
+	private final FullHttpRequest request;
+	
+	/**
+	 * 	流式请求体，为null时请求体就是request的内容。
+	 */
+	private final StreamingBody body;
+
+	private final UpstreamListener listener;
+
+	private final long timeoutMs;
+
+	private final UpstreamObserver observer;
+
+	private final long startNanos = System.nanoTime();
+
+	private final AtomicBoolean done = new AtomicBoolean(false);
+
+	/**
+	 * 	当前的请求。对冲胜出后会换成对冲的那一个。
+	 */
+	private volatile Attempt primary;
+
+	/**
+	 * 	对冲请求，没有时为null。
+	 */
+	private Attempt hedge;
+
+	private volatile boolean cancelled = false;
+
+	private volatile boolean responded = false;
+
+	private volatile boolean keepAlive = true;
+	
+	private volatile boolean readPaused = false;
+	
+	/**
+	 * 	取消或到期的时间，用于统计从决定取消到上游连接关闭的耗时。
+	 */
+	private volatile long abortNanos = 0;
+
+	private ScheduledFuture<?> timeoutTask;
+	
+	private volatile Runnable cancelHook;
+	
+	/**
+	 * 	请求结束（完成、失败或取消）后要执行的回调。
+	 */
+	private List<Runnable> doneHooks;
+	
+	private boolean finished = false;
+
+	UpstreamExchange(int port, ChannelPool pool, FullHttpRequest request, UpstreamListener listener, long timeoutMs, UpstreamObserver observer) {
+		this(port, pool, request, null, listener, timeoutMs, observer);
+	}
+
+	UpstreamExchange(int port, ChannelPool pool, FullHttpRequest request, StreamingBody body, UpstreamListener listener, long timeoutMs, UpstreamObserver observer) {
+		this.primary = new Attempt(port, pool);
+		this.request = request;
+		this.body = body;
+		this.listener = listener;
+		this.timeoutMs = timeoutMs;
+		this.observer = observer;
+	}
+
+	/**
+	 * 	处理这个请求的端口。对冲胜出后返回对冲的端口。
+	 * @return
+	 */
+	public int getPort() {
+		return this.primary.port;
+	}
+
+	public boolean isDone() {
+		return this.done.get();
+	}
+
+	public boolean isCancelled() {
+		return this.cancelled;
+	}
+
+	/**
+	 * 	是否已经收到响应头。
+	 * @return
+	 */
+	public boolean isResponded() {
+		return this.responded;
+	}
+
+	/**
+	 * 	从创建到现在经过的毫秒数。
+	 * @return
+	 */
+	public long elapsedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.startNanos);
+	}
+
+	/**
+	 * 	取消请求。会直接关闭上游连接，llama-server检测到断开后会停止生成并释放slot。
+	 */
+	public void cancel() {
+		if (!this.done.compareAndSet(false, true)) {
+			return;
+		}
+		this.cancelled = true;
+		this.abortNanos = System.nanoTime();
+		this.finish(true, false);
+		this.runDoneHooks();
+		Runnable hook = this.cancelHook;
+		if (hook != null) {
+			hook.run();
+		}
+	}
+	
+	/**
+	 * 	请求到达截止时间：关闭上游连接，listener收到{@link TimeoutException}。
+	 * @param deadlineMs 截止时间，用于错误信息
+	 */
+	public void expire(long deadlineMs) {
+		if (this.done.get()) {
+			return;
+		}
+		this.abortNanos = System.nanoTime();
+		this.fail(new TimeoutException("请求超过截止时间: " + deadlineMs + "ms"));
+	}
+	
+	/**
+	 * 	暂停读取上游响应。下游写不过来时调用，数据会留在llama-server和内核的缓冲里。
+	 */
+	public void pauseRead() {
+		this.readPaused = true;
+		Channel ch = this.primary.channel;
+		if (ch != null) {
+			ch.config().setAutoRead(false);
+		}
+	}
+	
+	/**
+	 * 	恢复读取上游响应。
+	 */
+	public void resumeRead() {
+		this.readPaused = false;
+		Channel ch = this.primary.channel;
+		if (ch != null) {
+			ch.config().setAutoRead(true);
+		}
+	}
+	
+	public boolean isReadPaused() {
+		return this.readPaused;
+	}
+	
+	/**
+	 * 	添加请求结束时的回调，用于释放排队许可等资源。如果已经结束则立即执行。
+	 * @param hook
+	 */
+	public void whenDone(Runnable hook) {
+		synchronized (this) {
+			if (!this.finished) {
+				if (this.doneHooks == null) {
+					this.doneHooks = new ArrayList<>(2);
+				}
+				this.doneHooks.add(hook);
+				return;
+			}
+		}
+		hook.run();
+	}
+	
+	/**
+	 * 	添加释放slot、排队许可之类资源的回调：上游请求结束时执行。
+	 * 	合并到别人的上游请求上时（见{@link SingleFlight}）自己没有占用这些资源，立即执行。
+	 * @param hook
+	 */
+	public void whenUpstreamDone(Runnable hook) {
+		this.whenDone(hook);
+	}
+	
+	/**
+	 * 	设置取消时的回调，供阻塞调用唤醒等待线程。如果已经取消则立即执行。
+	 * @param hook
+	 */
+	void onCancel(Runnable hook) {
+		this.cancelHook = hook;
+		if (this.cancelled) {
+			hook.run();
+		}
+	}
+
+	//================================================================================================
+
+	void start() {
+		this.notifyStart(this.primary.port);
+		this.acquire(this.primary);
+	}
+
+	/**
+	 * 	把同一个请求再发给另一个端口。已经收到响应或者已经对冲过时忽略。
+	 * @param port
+	 * @param pool
+	 */
+	void hedge(int port, ChannelPool pool) {
+		Attempt a;
+		synchronized (this) {
+			if (this.done.get() || this.responded || this.hedge != null || this.body != null) {
+				return;
+			}
+			a = new Attempt(port, pool);
+			this.hedge = a;
+		}
+		logger.info("端口{}超过{}ms没有响应，对冲到端口{}", this.primary.port, this.elapsedMillis(), port);
+		this.notifyStart(port);
+		this.acquire(a);
+	}
+
+	private void acquire(Attempt a) {
+		a.pool.acquire().addListener((Future<Channel> f) -> {
+			if (!f.isSuccess()) {
+				this.attemptFailed(a, f.cause());
+				return;
+			}
+			this.attach(a, f.getNow());
+		});
+	}
+
+	private void attach(Attempt a, Channel ch) {
+		HttpRequest msg;
+		synchronized (this) {
+			if (this.done.get() || a.ended) {
+				a.pool.release(ch);
+				return;
+			}
+			a.channel = ch;
+			ch.attr(EXCHANGE).set(this);
+			if (this.readPaused) {
+				ch.config().setAutoRead(false);
+			}
+			if (this.timeoutMs > 0 && this.timeoutTask == null) {
+				this.timeoutTask = ch.eventLoop().schedule(() -> {
+					this.fail(new TimeoutException("llama.cpp进程响应超时: " + this.timeoutMs + "ms"));
+				}, this.timeoutMs, TimeUnit.MILLISECONDS);
+			}
+			if (this.body == null) {
+				msg = this.request.retainedDuplicate();
+			} else {
+				msg = new DefaultHttpRequest(this.request.protocolVersion(), this.request.method(), this.request.uri(), this.request.headers());
+			}
+		}
+		ch.writeAndFlush(msg).addListener((ChannelFutureListener) wf -> {
+			if (!wf.isSuccess()) {
+				this.connectionLost(ch, wf.cause());
+			}
+		});
+		if (this.body != null) {
+			this.body.attach(ch);
+		}
+	}
+
+	void handleResponse(Channel ch, HttpResponse response) {
+		if (this.done.get()) {
+			return;
+		}
+		Attempt loser;
+		synchronized (this) {
+			if (this.done.get() || this.responded) {
+				return;
+			}
+			Attempt h = this.hedge;
+			if (h != null && h.channel == ch) {
+				// 对冲的请求先响应，原来的请求作废
+				loser = this.primary;
+				this.primary = h;
+			} else if (this.primary.channel == ch) {
+				loser = h;
+			} else {
+				return;
+			}
+			this.hedge = null;
+			this.responded = true;
+		}
+		if (loser != null) {
+			this.abandon(loser, false);
+		}
+		this.keepAlive = HttpUtil.isKeepAlive(response);
+		this.listener.onResponse(response);
+	}
+
+	void handleContent(Channel ch, ByteBuf content) {
+		if (this.done.get() || ch != this.primary.channel) {
+			return;
+		}
+		this.listener.onContent(content);
+	}
+
+	void complete(Channel ch) {
+		if (ch != this.primary.channel) {
+			return;
+		}
+		this.complete();
+	}
+
+	void complete() {
+		if (!this.done.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			this.listener.onComplete();
+		} catch (Exception e) {
+			logger.info("处理上游响应完成事件时发生错误", e);
+		}
+		this.finish(!this.keepAlive, false);
+		this.runDoneHooks();
+	}
+
+	/**
+	 * 	某条连接上的响应解码失败。
+	 * @param ch
+	 * @param cause
+	 */
+	void fail(Channel ch, Throwable cause) {
+		Attempt a = this.attemptOf(ch);
+		if (a != null) {
+			this.attemptFailed(a, cause);
+		}
+	}
+
+	void fail(Throwable cause) {
+		if (!this.done.compareAndSet(false, true)) {
+			return;
+		}
+		this.finish(true, !this.responded);
+		try {
+			this.listener.onError(cause);
+		} catch (Exception e) {
+			logger.info("处理上游错误事件时发生错误", e);
+		}
+		this.runDoneHooks();
+	}
+
+	/**
+	 * 	连接在收到响应之前断开。如果是复用的空闲连接（可能已被llama-server关闭），换一条新连接重试一次。
+	 * @param ch
+	 * @param cause
+	 */
+	void connectionLost(Channel ch, Throwable cause) {
+		if (this.done.get()) {
+			return;
+		}
+		Attempt a = this.attemptOf(ch);
+		if (a == null) {
+			return;
+		}
+		Integer uses = ch.attr(USES).get();
+		boolean reused = uses != null && uses.intValue() > 0;
+		// 流式请求体已经发出去的部分没法重发
+		if (!this.responded && reused && !a.retried && (this.body == null || !this.body.isStarted())) {
+			synchronized (this) {
+				if (this.done.get() || a.ended || a.channel != ch) {
+					return;
+				}
+				a.retried = true;
+				ch.attr(EXCHANGE).set(null);
+				a.channel = null;
+			}
+			ch.close();
+			a.pool.release(ch);
+			this.acquire(a);
+			return;
+		}
+		this.attemptFailed(a, cause != null ? cause : new IOException("与llama.cpp进程的连接已断开"));
+	}
+
+	private synchronized Attempt attemptOf(Channel ch) {
+		if (this.primary.channel == ch) {
+			return this.primary;
+		}
+		Attempt h = this.hedge;
+		return h != null && h.channel == ch ? h : null;
+	}
+
+	/**
+	 * 	某一路请求失败。还有另一路在进行时只放弃失败的这一路，否则整个请求失败。
+	 */
+	private void attemptFailed(Attempt a, Throwable cause) {
+		synchronized (this) {
+			if (this.done.get() || a.ended) {
+				return;
+			}
+			if (a == this.hedge) {
+				this.hedge = null;
+			} else if (a == this.primary && this.hedge != null && !this.responded) {
+				this.primary = this.hedge;
+				this.hedge = null;
+			} else {
+				a = null;
+			}
+		}
+		if (a == null) {
+			this.fail(cause);
+			return;
+		}
+		logger.info("端口{}上的请求失败，由另一个端口继续处理: {}", a.port, cause == null ? "" : cause.getMessage());
+		this.abandon(a, true);
+	}
+
+	/**
+	 * 	放弃一路请求，关闭它的连接。
+	 */
+	private void abandon(Attempt a, boolean failed) {
+		Channel ch;
+		synchronized (this) {
+			if (a.ended) {
+				return;
+			}
+			a.ended = true;
+			ch = a.channel;
+			a.channel = null;
+		}
+		if (ch != null) {
+			ch.attr(EXCHANGE).set(null);
+			ch.config().setAutoRead(true);
+			ch.close();
+			a.pool.release(ch);
+		}
+		this.notifyEnd(a.port, failed);
+	}
+
+	private void runDoneHooks() {
+		List<Runnable> hooks;
+		synchronized (this) {
+			this.finished = true;
+			hooks = this.doneHooks;
+			this.doneHooks = null;
+		}
+		if (hooks == null) {
+			return;
+		}
+		for (Runnable hook : hooks) {
+			try {
+				hook.run();
+			} catch (Exception e) {
+				logger.info("执行上游请求结束回调时发生错误", e);
+			}
+		}
+	}
+
+	private void finish(boolean closeChannel, boolean failed) {
+		Attempt a;
+		Attempt h;
+		Channel ch;
+		boolean report;
+		synchronized (this) {
+			if (this.timeoutTask != null) {
+				this.timeoutTask.cancel(false);
+			}
+			a = this.primary;
+			h = this.hedge;
+			this.hedge = null;
+			report = !a.ended;
+			a.ended = true;
+			ch = a.channel;
+			a.channel = null;
+		}
+		if (this.body != null) {
+			// 请求体没发完就结束了（上游提前返回错误或者被取消），连接上的状态不确定，不能复用
+			closeChannel |= !this.body.isFinished();
+			this.body.close();
+		}
+		if (ch != null) {
+			ch.attr(EXCHANGE).set(null);
+			Integer uses = ch.attr(USES).get();
+			ch.attr(USES).set(uses == null ? 1 : uses.intValue() + 1);
+			// 归还前恢复自动读取，否则下一个请求会收不到响应
+			ch.config().setAutoRead(true);
+			if (closeChannel) {
+				long since = this.abortNanos;
+				if (since != 0) {
+					// 取消后上游连接关闭完成的耗时，llama-server在连接断开后停止生成并释放slot
+					ch.close().addListener(f -> StreamMetrics.getInstance().recordSlotRelease(System.nanoTime() - since));
+				} else {
+					ch.close();
+				}
+			}
+			a.pool.release(ch);
+		}
+		if (report) {
+			this.notifyEnd(a.port, failed);
+		}
+		if (h != null) {
+			this.abandon(h, false);
+		}
+		this.request.release();
+	}
+
+	private void notifyStart(int port) {
+		if (this.observer == null) {
+			return;
+		}
+		try {
+			this.observer.onAttemptStart(port);
+		} catch (Exception e) {
+			logger.info("通知上游请求开始时发生错误", e);
+		}
+	}
+
+	private void notifyEnd(int port, boolean failed) {
+		if (this.observer == null) {
+			return;
+		}
+		try {
+			this.observer.onAttemptEnd(port, failed);
+		} catch (Exception e) {
+			logger.info("通知上游请求结束时发生错误", e);
+		}
+	}
+
+	/**
+	 * 	发往某个端口的一路请求。
+	 */
+	private static class Attempt {
+
+		private final int port;
+
+		private final ChannelPool pool;
+
+		private volatile Channel channel;
+
+		private boolean retried = false;
+
+		private boolean ended = false;
+
+		private Attempt(int port, ChannelPool pool) {
+			this.port = port;
+			this.pool = pool;
+		}
+	}
+}
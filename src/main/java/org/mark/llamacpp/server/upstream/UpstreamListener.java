@@ -0,0 +1,34 @@
+package org.mark.llamacpp.server.upstream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpResponse;
+
+/**
+ * 	上游（llama-server）响应的回调。
+ * 	所有回调都在上游连接的EventLoop线程中执行，不要在这里做阻塞操作。
+ */
+public interface UpstreamListener {
+
+	/**
+	 * 	收到响应头。
+	 * @param response
+	 */
+	public void onResponse(HttpResponse response);
+
+	/**
+	 * 	收到一段响应体。回调返回后content会被释放，如果需要继续持有请自行retain。
+	 * @param content
+	 */
+	public void onContent(ByteBuf content);
+
+	/**
+	 * 	响应体接收完毕。
+	 */
+	public void onComplete();
+
+	/**
+	 * 	请求失败（连接失败、超时、上游提前断开等）。主动调用{@link UpstreamExchange#cancel()}时不会触发。
+	 * @param cause
+	 */
+	public void onError(Throwable cause);
+}
@@ -0,0 +1,21 @@
+package org.mark.llamacpp.server.upstream;
+
+/**
+ * 	观察发往各个端口的请求，用于统计每个llama-server进程上正在处理的请求数和连接失败。
+ * 	回调发生在IO线程里，实现要足够轻量。
+ */
+public interface UpstreamObserver {
+
+	/**
+	 * 	开始向端口发送一路请求（包括对冲请求）。
+	 * @param port
+	 */
+	public void onAttemptStart(int port);
+
+	/**
+	 * 	一路请求结束。
+	 * @param port
+	 * @param failed 没有收到响应就失败了（连接失败、超时等），主动取消和对冲落败不算
+	 */
+	public void onAttemptEnd(int port, boolean failed);
+}
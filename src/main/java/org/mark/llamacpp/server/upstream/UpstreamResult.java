@@ -0,0 +1,43 @@
+package org.mark.llamacpp.server.upstream;
+
+import java.nio.charset.StandardCharsets;
+
+import io.netty.handler.codec.http.HttpHeaders;
+
+/**
+ * 	聚合后的上游响应。
+ */
+public class UpstreamResult {
+
+	private final int statusCode;
+
+	private final HttpHeaders headers;
+
+	private final byte[] body;
+
+	public UpstreamResult(int statusCode, HttpHeaders headers, byte[] body) {
+		this.statusCode = statusCode;
+		this.headers = headers;
+		this.body = body == null ? new byte[0] : body;
+	}
+
+	public int getStatusCode() {
+		return this.statusCode;
+	}
+
+	public boolean isSuccess() {
+		return this.statusCode >= 200 && this.statusCode < 300;
+	}
+
+	public HttpHeaders getHeaders() {
+		return this.headers;
+	}
+
+	public byte[] getBody() {
+		return this.body;
+	}
+
+	public String getBodyAsString() {
+		return new String(this.body, StandardCharsets.UTF_8);
+	}
+}
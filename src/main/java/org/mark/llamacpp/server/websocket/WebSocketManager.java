@@ -4,6 +4,8 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -229,16 +231,40 @@ public class WebSocketManager {
         broadcast(JsonUtil.toJson(event));
     }
     
-    public void sendConsoleLineEvent(String modelId, String line) {
-        byte[] bytes = line == null ? new byte[0] : line.getBytes(StandardCharsets.UTF_8);
-        String b64 = Base64.getEncoder().encodeToString(bytes);
-        String eventMessage = String.format(
-            "{\"type\":\"console\",\"modelId\":\"%s\",\"line64\":\"%s\",\"timestamp\":%d}",
-            modelId != null ? modelId.replace("\"", "\\\"") : "",
-            b64,
-            System.currentTimeMillis()
-        );
-        broadcast(eventMessage);
+    /**
+     * 	发送模型排队状态：队列长度、等待时间等。
+     */
+    public void sendModelQueueEvent(String modelId, Map<String, Object> queue) {
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("type", "model_queue");
+        event.put("modelId", modelId == null ? "" : modelId);
+        event.put("queue", queue);
+        event.put("timestamp", System.currentTimeMillis());
+        broadcast(JsonUtil.toJson(event));
+    }
+    
+    /**
+     * 广播一批控制台输出，每批一个消息，带上这一批在console.log里的游标范围[start, cursor)。
+     * 写缓冲已满（isWritable为false）的连接直接跳过这一批，不让慢客户端的积压无限增长；客户端发现start和自己的游标接不上时，用/api/sys/console/tail补齐。
+     */
+    public void sendConsoleBatchEvent(String text, int lines, long epoch, long start, long cursor) {
+        if (connections.isEmpty()) {
+            return;
+        }
+        String b64 = Base64.getEncoder().encodeToString(text.getBytes(StandardCharsets.UTF_8));
+        String eventMessage = "{\"type\":\"console_batch\",\"text64\":\"" + b64 + "\",\"lines\":" + lines
+                + ",\"epoch\":" + epoch + ",\"start\":" + start + ",\"cursor\":" + cursor
+                + ",\"timestamp\":" + System.currentTimeMillis() + "}";
+        connections.entrySet().removeIf(entry -> {
+            ChannelHandlerContext ctx = entry.getValue();
+            if (!ctx.channel().isActive()) {
+                return true;
+            }
+            if (ctx.channel().isWritable()) {
+                ctx.writeAndFlush(new TextWebSocketFrame(eventMessage));
+            }
+            return false;
+        });
     }
     
     /**
@@ -4,6 +4,9 @@
     let timer = null;
     let pending = [];
     let scheduled = false;
+    // console.log的读取位置，只取游标之后的新内容
+    let consoleEpoch = 0;
+    let consoleCursor = -1;
 
     function getEls() {
         return {
@@ -27,18 +30,30 @@
         container.scrollTop = container.scrollHeight;
     }
 
-    async function fetchConsole() {
+    async function fetchConsole(reset) {
         const els = getEls();
         if (els.status) els.status.textContent = '加载中...';
         try {
-            const res = await fetch('/api/sys/console');
-            const text = await res.text();
+            const full = reset === true || consoleCursor < 0;
+            const url = full
+                ? '/api/sys/console/tail?lines=1000'
+                : `/api/sys/console/tail?lines=1000&epoch=${consoleEpoch}&cursor=${consoleCursor}`;
+            const res = await fetch(url);
+            const json = await res.json();
+            const data = json && json.data;
+            if (!data) throw new Error('empty');
             const stay = nearBottom(els.container);
-            if (els.content) els.content.textContent = text;
+            if (els.content) {
+                if (full || data.truncated) els.content.textContent = data.text;
+                else if (data.text) els.content.textContent += data.text;
+            }
+            consoleEpoch = data.epoch;
+            consoleCursor = data.cursor;
             if (stay) scrollBottom(els.container);
             if (els.status) {
-                els.status.textContent = `已更新 · ${new Date().toLocaleTimeString()} · ${text.length}`;
+                els.status.textContent = `已更新 · ${new Date().toLocaleTimeString()} · ${els.content ? els.content.textContent.length : 0}`;
             }
+            if (data.more) return fetchConsole();
         } catch (e) {
             if (els.status) els.status.textContent = '加载失败';
         }
@@ -62,7 +77,7 @@
         const els = getEls();
         if (!els.modal) return;
         els.modal.classList.add('show');
-        fetchConsole().finally(() => {
+        fetchConsole(true).finally(() => {
             setTimeout(() => scrollBottom(els.container), 120);
         });
     }
@@ -92,9 +107,22 @@
         }
     }
 
+    // WebSocket推送的一批输出，按游标去重；和已有内容接不上时改用接口补齐
+    function appendConsoleBatch(epoch, start, cursor, text) {
+        const els = getEls();
+        if (!els.modal || !els.modal.classList.contains('show')) return;
+        if (consoleCursor < 0 || epoch !== consoleEpoch || cursor <= consoleCursor) return;
+        if (start !== consoleCursor) {
+            fetchConsole();
+            return;
+        }
+        consoleCursor = cursor;
+        appendLogLine(text);
+    }
+
     function bind() {
         const els = getEls();
-        if (els.refreshBtn) els.refreshBtn.addEventListener('click', fetchConsole);
+        if (els.refreshBtn) els.refreshBtn.addEventListener('click', () => fetchConsole(true));
         if (els.autoBox) {
             els.autoBox.addEventListener('change', function () {
                 if (els.autoBox.checked) startConsoleAuto();
@@ -114,6 +142,7 @@
 
     window.openConsoleModal = openConsoleModal;
     window.appendLogLine = appendLogLine;
+    window.appendConsoleBatch = appendConsoleBatch;
     window.stopConsoleAuto = stopConsoleAuto;
 })();
 
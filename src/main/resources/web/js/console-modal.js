@@ -9,6 +9,10 @@
     let consoleTimer = null;
     let pendingLogs = [];
     let flushScheduled = false;
+    // console.log的读取位置，只取游标之后的新内容
+    let consoleEpoch = 0;
+    let consoleCursor = -1;
+    const MAX_CONSOLE_CHARS = 1024 * 1024;
 
     function nearBottom() {
         if (!logContainer) return true;
@@ -20,24 +24,44 @@
         logContainer.scrollTop = logContainer.scrollHeight;
     }
 
-    async function fetchConsole() {
+    function trimConsole() {
+        if (!logEl || logEl.textContent.length <= MAX_CONSOLE_CHARS) return;
+        const text = logEl.textContent;
+        const cut = text.indexOf('\n', text.length - MAX_CONSOLE_CHARS / 2);
+        logEl.textContent = cut < 0 ? '' : text.substring(cut + 1);
+    }
+
+    async function fetchConsole(reset) {
         if (consoleStatusText) consoleStatusText.textContent = '加载中...';
         try {
-            const res = await fetch('/api/sys/console');
-            const text = await res.text();
+            const full = reset === true || consoleCursor < 0;
+            const url = full
+                ? '/api/sys/console/tail?lines=2000'
+                : `/api/sys/console/tail?lines=2000&epoch=${consoleEpoch}&cursor=${consoleCursor}`;
+            const res = await fetch(url);
+            const json = await res.json();
+            const data = json && json.data;
+            if (!data) throw new Error('empty');
             const atBottom = nearBottom();
-            if (logEl) logEl.textContent = text;
+            if (logEl) {
+                if (full || data.truncated) logEl.textContent = data.text;
+                else if (data.text) logEl.textContent += data.text;
+                trimConsole();
+            }
+            consoleEpoch = data.epoch;
+            consoleCursor = data.cursor;
             if (atBottom) scrollBottom();
             if (consoleStatusText) {
-                consoleStatusText.textContent = `已更新 · ${new Date().toLocaleTimeString()} · Size: ${text.length}`;
+                consoleStatusText.textContent = `已更新 · ${new Date().toLocaleTimeString()} · Size: ${logEl ? logEl.textContent.length : 0}`;
             }
+            if (data.more) return fetchConsole();
         } catch (e) {
             if (consoleStatusText) consoleStatusText.textContent = '加载失败';
         }
     }
 
     function openConsoleModal() {
-        fetchConsole();
+        fetchConsole(true);
         setTimeout(() => {
             scrollBottom();
         }, 100);
@@ -57,11 +81,24 @@
                 const chunk = pendingLogs.join('');
                 pendingLogs = [];
                 logEl.textContent += chunk;
+                trimConsole();
                 if (atBottom) scrollBottom();
             });
         }
     }
 
+    // WebSocket推送的一批输出，按游标去重；和已有内容接不上时改用接口补齐
+    function appendConsoleBatch(epoch, start, cursor, text) {
+        if (!logEl || consoleCursor < 0 || epoch !== consoleEpoch) return;
+        if (cursor <= consoleCursor) return;
+        if (start !== consoleCursor) {
+            fetchConsole();
+            return;
+        }
+        consoleCursor = cursor;
+        appendLogLine(text);
+    }
+
     function startConsoleAuto() {
         stopConsoleAuto();
         const interval = Math.max(500, parseInt((intervalConsoleInput && intervalConsoleInput.value) || '2000', 10));
@@ -75,7 +112,7 @@
         }
     }
 
-    if (refreshConsoleBtn) refreshConsoleBtn.addEventListener('click', fetchConsole);
+    if (refreshConsoleBtn) refreshConsoleBtn.addEventListener('click', () => fetchConsole(true));
     if (autoRefreshConsole) {
         autoRefreshConsole.addEventListener('change', () => {
             if (autoRefreshConsole.checked) startConsoleAuto();
@@ -85,5 +122,6 @@
 
     window.openConsoleModal = openConsoleModal;
     window.appendLogLine = appendLogLine;
+    window.appendConsoleBatch = appendConsoleBatch;
     window.stopConsoleAuto = stopConsoleAuto;
 })();
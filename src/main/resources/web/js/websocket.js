@@ -79,6 +79,24 @@ function handleWebSocketMessage(message) {
                         }
                     }
                     break;
+                case 'console_batch':
+                    {
+                        const consoleMain = document.getElementById('main-console');
+                        if (consoleMain && consoleMain.style && consoleMain.style.display !== 'none' && typeof data.text64 === 'string') {
+                            const bin = atob(data.text64);
+                            const bytes = new Uint8Array(bin.length);
+                            for (let i = 0; i < bin.length; i++) bytes[i] = bin.charCodeAt(i);
+                            const text = wsDecoder.decode(bytes);
+                            if (typeof appendConsoleBatch === 'function' && typeof data.cursor === 'number') {
+                                appendConsoleBatch(data.epoch, data.start, data.cursor, text);
+                            } else if (typeof appendLogLine === 'function') {
+                                const lines = text.split('\n');
+                                if (lines.length && lines[lines.length - 1] === '') lines.pop();
+                                lines.forEach(l => appendLogLine(l));
+                            }
+                        }
+                    }
+                    break;
             }
         }
     } catch (error) {}
@@ -0,0 +1,281 @@
+package org.mark.llamacpp.server.transcode;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mark.llamacpp.lmstudio.LmStudioStreamTranscoder;
+import org.mark.llamacpp.ollama.OllamaApiTool;
+import org.mark.llamacpp.ollama.OllamaChatTranscoder;
+import org.mark.llamacpp.server.stream.ChunkReader;
+import org.mark.llamacpp.server.stream.ToolCallIdStage;
+import org.mark.llamacpp.server.stream.TokenStream;
+import org.mark.llamacpp.server.stream.UsageStage;
+import org.mark.llamacpp.server.tools.JsonUtil;
+import org.mark.llamacpp.server.upstream.SseLineDecoder;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+/**
+ * 	Ollama和LM Studio流式转换的吞吐对比：旧的逐行解析成JsonObject再用Gson序列化的写法，和现在的{@link TokenStream}流水线。
+ * 	单线程，每轮把N个典型的逐token数据块重复转换若干次，输出每秒处理的数据块数和每个数据块分配的字节数。
+ * 	前几轮是JVM预热，看最后一轮的结果。
+ * 	<pre>
+ * 	./javac-linux.sh
+ * 	javac -encoding UTF-8 -cp "build/classes:lib/*" -d build/bench src/test/java/org/mark/llamacpp/server/transcode/TranscoderBenchmark.java
+ * 	java -cp "build/bench:build/classes:lib/*" org.mark.llamacpp.server.transcode.TranscoderBenchmark [数据块数 重复次数 轮数]
+ * 	</pre>
+ */
+public class TranscoderBenchmark {
+
+	public static void main(String[] args) {
+		int chunks = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int streams = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+		byte[][] lines = new byte[chunks][];
+		for (int i = 0; i < chunks; i++) {
+			String line = "data: {\"choices\":[{\"finish_reason\":null,\"index\":0,\"delta\":{\"content\":\" token" + i + " \\\"q\\\" 文本\"}}],"
+					+ "\"created\":1700000000,\"id\":\"chatcmpl-abcdefghijklmnopqrstuvwxyz012345\",\"model\":\"qwen2.5-7b-instruct-q4_k_m.gguf\","
+					+ "\"system_fingerprint\":\"b4567-abcdef12\",\"object\":\"chat.completion.chunk\"}\n";
+			lines[i] = line.getBytes(StandardCharsets.UTF_8);
+		}
+		System.out.printf("%d chunks x %d streams, %d rounds%n", chunks, streams, rounds);
+		for (int round = 0; round < rounds; round++) {
+			Result oldOllama = run(lines, streams, () -> {
+				LegacyOllama legacy = new LegacyOllama("qwen:7b");
+				return decoder(new SseLineDecoder((String line) -> sink(legacy.handleLine(line))));
+			});
+			// 和生产代码一样挂上工具调用ID和用量统计两个阶段
+			Result newOllama = run(lines, streams, () -> pipeline(new TokenStream(ChunkReader.openAIChat(), new OllamaChatTranscoder("qwen:7b"),
+					PooledByteBufAllocator.DEFAULT, ByteBuf::release).add(new ToolCallIdStage()).add(new UsageStage())));
+			Result oldLmStudio = run(lines, streams, () -> {
+				LegacyLmStudio legacy = new LegacyLmStudio();
+				return decoder(new SseLineDecoder((String line) -> sink(legacy.handleLine(line))));
+			});
+			Result newLmStudio = run(lines, streams, () -> pipeline(new TokenStream(ChunkReader.openAIChat(), new LmStudioStreamTranscoder(false),
+					PooledByteBufAllocator.DEFAULT, ByteBuf::release).add(new ToolCallIdStage()).add(new UsageStage())));
+			System.out.printf("round %d  Ollama:    old %s | new %s%n", round, oldOllama, newOllama);
+			System.out.printf("round %d  LM Studio: old %s | new %s%n", round, oldLmStudio, newLmStudio);
+		}
+	}
+
+	private interface Feeder {
+		public void feed(ByteBuf content);
+
+		public void finish();
+	}
+
+	private interface FeederFactory {
+		public Feeder create();
+	}
+
+	private static class Result {
+		private final double chunksPerSecond;
+		private final double bytesPerChunk;
+
+		private Result(double chunksPerSecond, double bytesPerChunk) {
+			this.chunksPerSecond = chunksPerSecond;
+			this.bytesPerChunk = bytesPerChunk;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%8.0f tok/s %7.0f B/tok", this.chunksPerSecond, this.bytesPerChunk);
+		}
+	}
+
+	private static Feeder pipeline(TokenStream stream) {
+		return new Feeder() {
+			@Override
+			public void feed(ByteBuf content) {
+				stream.feed(content);
+			}
+
+			@Override
+			public void finish() {
+				stream.finish();
+				stream.release();
+			}
+		};
+	}
+
+	private static Feeder decoder(SseLineDecoder decoder) {
+		return new Feeder() {
+			@Override
+			public void feed(ByteBuf content) {
+				decoder.feed(content);
+			}
+
+			@Override
+			public void finish() {
+				decoder.finish();
+				decoder.release();
+			}
+		};
+	}
+
+	private static Result run(byte[][] lines, int streams, FeederFactory factory) {
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().threadId();
+		long a0 = mx.getThreadAllocatedBytes(tid);
+		long t0 = System.nanoTime();
+		for (int s = 0; s < streams; s++) {
+			Feeder feeder = factory.create();
+			for (byte[] line : lines) {
+				feeder.feed(Unpooled.wrappedBuffer(line));
+			}
+			feeder.finish();
+		}
+		long t1 = System.nanoTime();
+		long a1 = mx.getThreadAllocatedBytes(tid);
+		long n = (long) streams * lines.length;
+		return new Result(n * 1e9 / (t1 - t0), (a1 - a0) / (double) n);
+	}
+
+	/**
+	 * 	旧路径也要写到直接内存里，和新路径一样算上这一步。
+	 */
+	private static void sink(String out) {
+		if (out == null) {
+			return;
+		}
+		ByteBuf buf = PooledByteBufAllocator.DEFAULT.buffer();
+		buf.writeCharSequence(out, StandardCharsets.UTF_8);
+		buf.release();
+	}
+
+	//================================================================================================
+
+	/**
+	 * 	改成流水线之前OllamaChatService里流式监听器的逐行处理，只保留正文相关的部分。
+	 */
+	private static class LegacyOllama {
+		private final String model;
+		private final Map<Integer, String> ids = new HashMap<>();
+		private String doneReason = "stop";
+		private JsonObject timings;
+
+		private LegacyOllama(String model) {
+			this.model = model;
+		}
+
+		private String handleLine(String line) {
+			if (!line.startsWith("data: ")) {
+				return null;
+			}
+			String data = line.substring(6);
+			if ("[DONE]".equals(data)) {
+				return this.write("", null, null, true, this.doneReason, OllamaApiTool.buildOllamaTimingFields(this.timings));
+			}
+			JsonObject chunk = JsonUtil.tryParseObject(data);
+			if (chunk == null) {
+				return null;
+			}
+			if (chunk.has("timings") && chunk.get("timings").isJsonObject()) {
+				this.timings = chunk.getAsJsonObject("timings");
+			}
+			JsonArray choices = chunk.getAsJsonArray("choices");
+			JsonObject c0 = choices.get(0).getAsJsonObject();
+			JsonObject delta = c0.has("delta") && c0.get("delta").isJsonObject() ? c0.getAsJsonObject("delta") : null;
+			String content = delta != null && delta.has("content") ? JsonUtil.jsonValueToString(delta.get("content")) : null;
+			String thinking = delta != null && delta.has("reasoning_content") ? JsonUtil.jsonValueToString(delta.get("reasoning_content")) : null;
+			JsonElement toolCalls = delta != null ? OllamaApiTool.extractToolCallsFromOpenAIMessage(delta, this.ids, false) : null;
+			JsonElement fr = c0.get("finish_reason");
+			if (fr != null && !fr.isJsonNull()) {
+				String finish = JsonUtil.jsonValueToString(fr);
+				if (finish != null && !finish.isBlank()) {
+					this.doneReason = finish;
+				}
+			}
+			boolean hasContent = content != null && !content.isEmpty();
+			boolean hasThinking = thinking != null && !thinking.isEmpty();
+			if (hasContent || hasThinking || toolCalls != null) {
+				return this.write(hasContent ? content : "", hasThinking ? thinking : null, toolCalls != null ? OllamaApiTool.toOllamaToolCalls(toolCalls) : null, false, null, null);
+			}
+			return null;
+		}
+
+		private String write(String content, String thinking, JsonElement toolCalls, boolean done, String doneReason, Map<String, Object> doneFields) {
+			Map<String, Object> out = new HashMap<>();
+			out.put("model", this.model);
+			out.put("created_at", OllamaApiTool.formatOllamaTime(Instant.now()));
+			Map<String, Object> message = new HashMap<>();
+			message.put("role", "assistant");
+			message.put("content", content == null ? "" : content);
+			if (thinking != null && !thinking.isBlank()) {
+				message.put("thinking", thinking);
+			}
+			if (toolCalls != null && !toolCalls.isJsonNull()) {
+				message.put("tool_calls", toolCalls);
+			}
+			out.put("message", message);
+			out.put("done", Boolean.valueOf(done));
+			if (done) {
+				out.put("done_reason", doneReason == null || doneReason.isBlank() ? "stop" : doneReason);
+				if (doneFields != null) {
+					out.putAll(doneFields);
+				}
+			}
+			return JsonUtil.toJson(out) + "\n";
+		}
+	}
+
+	/**
+	 * 	改成流水线之前LMStudioService里流式监听器的逐行处理。
+	 */
+	private static class LegacyLmStudio {
+		private final Map<Integer, String> ids = new HashMap<>();
+		private final StringBuilder fullContent = new StringBuilder();
+		private String id;
+		private Long created;
+		private JsonObject timings;
+		private String finishReason;
+
+		private String handleLine(String line) {
+			if (line.startsWith("data: ")) {
+				String data = line.substring(6);
+				if (data.equals("[DONE]")) {
+					return null;
+				}
+				String outLine = line;
+				JsonObject parsed = JsonUtil.tryParseObject(data);
+				if (parsed != null) {
+					if (this.id == null) {
+						this.id = parsed.get("id").getAsString();
+					}
+					if (this.created == null) {
+						this.created = parsed.get("created").getAsLong();
+					}
+					if (parsed.has("timings") && parsed.get("timings").isJsonObject()) {
+						this.timings = parsed.getAsJsonObject("timings");
+					}
+					JsonObject c0 = parsed.getAsJsonArray("choices").get(0).getAsJsonObject();
+					if (c0.has("finish_reason") && !c0.get("finish_reason").isJsonNull()) {
+						this.finishReason = c0.get("finish_reason").getAsString();
+					}
+					JsonObject delta = c0.has("delta") && c0.get("delta").isJsonObject() ? c0.getAsJsonObject("delta") : null;
+					if (delta != null && delta.has("content") && !delta.get("content").isJsonNull()) {
+						this.fullContent.append(delta.get("content").getAsString());
+					}
+					if (JsonUtil.ensureToolCallIds(parsed, this.ids)) {
+						outLine = "data: " + JsonUtil.toJson(parsed);
+					}
+				}
+				return outLine + "\r\n";
+			} else if (line.startsWith("event: ")) {
+				return line + "\r\n";
+			} else if (line.isEmpty()) {
+				return "\r\n";
+			}
+			return null;
+		}
+	}
+}